@@ -2,6 +2,7 @@ package telegram.files;
 
 import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.ReUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
@@ -15,12 +16,16 @@ import org.drinkless.tdlib.TdApi;
 import org.jooq.lambda.tuple.Tuple2;
 import org.jooq.lambda.tuple.Tuple3;
 import telegram.files.repository.AutomationState;
+import telegram.files.repository.ChatBounds;
+import telegram.files.repository.DownloadCandidate;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileStatus;
 import telegram.files.repository.SettingAutoRecords;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.SettingTimeLimitedDownload;
 
 import java.time.LocalTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,6 +49,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
 
     private static final int MAX_WAITING_LENGTH = 30;
 
+    // slots are refilled as downloads finish, the tick only reconciles the counts and catches what events missed
     private static final int DOWNLOAD_INTERVAL = 10 * 1000;
 
     private static final List<String> DEFAULT_FILE_TYPE_ORDER = List.of("photo", "video", "audio", "file");
@@ -54,6 +60,14 @@ public class AutoDownloadVerticle extends AbstractVerticle {
     // telegramId -> waiting scan threads
     private final Map<Long, LinkedList<WaitingScanThread>> waitingScanThreads = new ConcurrentHashMap<>();
 
+    private final DownloadSlots slots = new DownloadSlots();
+
+    // telegramId -> adaptive concurrency, only with AUTO_DOWNLOAD_ADAPTIVE
+    private final Map<Long, ConcurrencyController> controllers = new ConcurrentHashMap<>();
+
+    // telegramId -> claims so far, rotates the automation claiming first
+    private final Map<Long, Integer> rotation = new ConcurrentHashMap<>();
+
     private final SettingAutoRecords autoRecords;
 
     private int limit = DEFAULT_LIMIT;
@@ -137,19 +151,31 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                                     log.debug("No download-enabled automations found - skipping download loop.");
                                     return;
                                 }
-                                enabledItems.forEach(auto -> downloadFromDatabase(auto.telegramId));
+                                enabledItems.stream()
+                                        .map(auto -> auto.telegramId)
+                                        .distinct()
+                                        .forEach(this::reconcileAndDownload);
                             });
+                    if (Config.AUTO_DOWNLOAD_ADAPTIVE) {
+                        vertx.setPeriodic(Config.AUTO_DOWNLOAD_ADJUST_INTERVAL_SECONDS * 1000,
+                                _ -> autoRecords.getDownloadEnabledItems().stream()
+                                        .map(auto -> auto.telegramId)
+                                        .distinct()
+                                        .forEach(this::adjustConcurrency));
+                    }
 
                     log.info("""
                             Auto download verticle started!
                             |History scan interval: %s ms
-                            |Download interval: %s ms
+                            |Download reconcile interval: %s ms
                             |Download limit: %s per telegram account!
+                            |Adaptive concurrency: %s
                             |Time limit: %s
                             |Auto chats: %s
                             """.formatted(HISTORY_SCAN_INTERVAL,
                             DOWNLOAD_INTERVAL,
                             limit,
+                            Config.AUTO_DOWNLOAD_ADAPTIVE ? "%d - %d".formatted(Config.AUTO_DOWNLOAD_MIN_CONCURRENCY, Config.AUTO_DOWNLOAD_MAX_CONCURRENCY) : "off",
                             timeLimited == null ? "" : Json.encode(timeLimited),
                             autoRecords.getDownloadEnabledItems().size()));
 
@@ -191,6 +217,10 @@ public class AutoDownloadVerticle extends AbstractVerticle {
             log.trace("Auto download message received: %s".formatted(message.body()));
             this.onNewMessage((JsonObject) message.body());
         });
+        vertx.eventBus().consumer(EventEnum.DOWNLOAD_STATUS_CHANGED.address(), message -> {
+            log.trace("Download status changed: %s".formatted(message.body()));
+            this.onDownloadStatusChanged((JsonObject) message.body());
+        });
         return Future.succeededFuture();
     }
 
@@ -206,12 +236,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
         Integer sentinelMessageDate = null;
         if (auto.download.rule.historySince != null && auto.download.rule.historySince > 0) {
             try {
-                TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(auto.telegramId);
-                TdApi.Message sentinelMessage = Future.await(
-                    telegramVerticle.client.execute(
-                        new TdApi.GetChatMessageByDate(auto.chatId, auto.download.rule.historySince)
-                    )
-                );
+                TdApi.Message sentinelMessage = Future.await(SentinelCache.INSTANCE.get(auto));
                 if (sentinelMessage != null) {
                     sentinelMessageId = sentinelMessage.id;
                     sentinelMessageDate = sentinelMessage.date;
@@ -268,12 +293,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
         // Compute sentinel message date if historySince is provided
         if (auto.download.rule.historySince != null && auto.download.rule.historySince > 0) {
             try {
-                TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(auto.telegramId);
-                TdApi.Message sentinelMessage = Future.await(
-                    telegramVerticle.client.execute(
-                        new TdApi.GetChatMessageByDate(auto.chatId, auto.download.rule.historySince)
-                    )
-                );
+                TdApi.Message sentinelMessage = Future.await(SentinelCache.INSTANCE.get(auto));
                 if (sentinelMessage != null) {
                     params.sentinelMessageId = sentinelMessage.id;
                     params.sentinelMessageDate = sentinelMessage.date;
@@ -392,7 +412,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                 // Check if nextFromMessageId is beyond newest message (should scan backwards)
                 // If we have a high nextFromMessageId but no messages, try scanning backwards
                 Long oldestMsgId = Future.await(
-                    DataVerticle.fileRepository.getMinMessageId(telegramId, chatId)
+                    DataVerticle.fileRepository.getChatBounds(telegramId, chatId).map(ChatBounds::minMessageId)
                 );
                 
                 // If we have files downloaded and nextFromMessageId is beyond the newest, reset to scan backwards
@@ -439,7 +459,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                 reachedCutoff = false;
             }
             
-            DataVerticle.fileRepository.getFilesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
+            DataVerticle.fileRepository.getStatusesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
                     .onSuccess(existFiles -> {
                         List<TdApi.Message> messages = Stream.of(foundChatMessages.messages)
                                 .parallel()
@@ -454,8 +474,8 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                                     if (!existFiles.containsKey(uniqueId)) {
                                         return true;
                                     } else {
-                                        FileRecord fileRecord = existFiles.get(uniqueId);
-                                        return fileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle);
+                                        FileStatus fileStatus = existFiles.get(uniqueId);
+                                        return fileStatus.isDownloadStatus(FileRecord.DownloadStatus.idle);
                                     }
                                 })
                                 .toList();
@@ -531,7 +551,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                                 // If we're scanning forwards and hit 0, try scanning backwards
                                 if (foundChatMessages.nextFromMessageId == 0 && nextFromMessageId > 0) {
                                     Long oldestMsgId = Future.await(
-                                        DataVerticle.fileRepository.getMinMessageId(telegramId, chatId)
+                                        DataVerticle.fileRepository.getChatBounds(telegramId, chatId).map(ChatBounds::minMessageId)
                                     );
                                     
                                     if (oldestMsgId != null && oldestMsgId > 0 && nextFromMessageId > oldestMsgId) {
@@ -615,7 +635,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                                 // If we're scanning forwards and hit 0, try scanning backwards
                                 if (foundChatMessages.nextFromMessageId == 0 && nextFromMessageId > 0) {
                                     Long oldestMsgId = Future.await(
-                                        DataVerticle.fileRepository.getMinMessageId(telegramId, chatId)
+                                        DataVerticle.fileRepository.getChatBounds(telegramId, chatId).map(ChatBounds::minMessageId)
                                     );
                                     
                                     if (oldestMsgId != null && oldestMsgId > 0 && nextFromMessageId > oldestMsgId) {
@@ -678,8 +698,57 @@ public class AutoDownloadVerticle extends AbstractVerticle {
     }
 
     private int getSurplusSize(long telegramId) {
-        Integer downloading = Future.await(DataVerticle.fileRepository.countByStatus(telegramId, FileRecord.DownloadStatus.downloading));
-        return downloading == null ? limit : Math.max(0, limit - downloading);
+        return slots.free(telegramId, getConcurrencyLimit(telegramId));
+    }
+
+    /**
+     * The downloads the account may run at once: the download limit setting, or the adaptive concurrency starting from it.
+     */
+    private int getConcurrencyLimit(long telegramId) {
+        if (!Config.AUTO_DOWNLOAD_ADAPTIVE) {
+            return limit;
+        }
+        return controllers.computeIfAbsent(telegramId, _ -> new ConcurrencyController(Config.AUTO_DOWNLOAD_MIN_CONCURRENCY,
+                        Config.AUTO_DOWNLOAD_MAX_CONCURRENCY, limit))
+                .concurrency();
+    }
+
+    public JsonObject getConcurrency(long telegramId) {
+        if (!Config.AUTO_DOWNLOAD_ADAPTIVE) {
+            return JsonObject.of("adaptive", false, "concurrency", limit);
+        }
+        getConcurrencyLimit(telegramId);
+        return controllers.get(telegramId).getStatus();
+    }
+
+    private void adjustConcurrency(long telegramId) {
+        int before = getConcurrencyLimit(telegramId);
+        long speed = TelegramVerticles.get(telegramId).map(TelegramVerticle::getCurrentSpeed).orElse(0L);
+        boolean saturated = slots.downloading(telegramId) >= before;
+        int after = controllers.get(telegramId).adjust(speed, saturated, System.currentTimeMillis());
+        if (after != before) {
+            log.debug("Download concurrency of telegramId %d: %d -> %d".formatted(telegramId, before, after));
+        }
+        if (after > before && isDownloadTime()) {
+            downloadFromDatabase(telegramId);
+        }
+    }
+
+    /**
+     * A download that failed to start, or one TDLib stopped before it completed, e is null then.
+     * Flood waits come back as error 429, with the seconds to wait in the message.
+     */
+    private void onDownloadFailed(long telegramId, Throwable e) {
+        ConcurrencyController controller = controllers.get(telegramId);
+        if (controller == null) {
+            return;
+        }
+        if (e instanceof TelegramRunException tre && (tre.getError().code == 429 || StrUtil.containsIgnoreCase(tre.getError().message, "FLOOD_WAIT"))) {
+            String seconds = ReUtil.getGroup1("(?i)(?:retry after |FLOOD_WAIT_)(\\d+)", tre.getError().message);
+            controller.onFloodWait(Convert.toLong(seconds, 30L) * 1000, System.currentTimeMillis());
+        } else {
+            controller.onFailed();
+        }
     }
 
     private boolean isDownloadCommentEnabled(SettingAutoRecords.Automation auto) {
@@ -767,7 +836,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
             TdApi.Message message = messageWrapper.message;
             Integer fileId = TdApiHelp.getFileId(message);
             log.debug("Start download file: %s".formatted(fileId));
-            telegramVerticle.startDownload(message.chatId, message.id, fileId)
+            telegramVerticle.startDownload(message.chatId, message.id, fileId, false, DownloadQueueService.tdlibPriority(0))
                     .onSuccess(fileRecord -> {
                         log.debug("Start download file success! ChatId: %d MessageId:%d FileId:%d"
                                 .formatted(message.chatId, message.id, fileId));
@@ -784,66 +853,143 @@ public class AutoDownloadVerticle extends AbstractVerticle {
         log.debug("Remaining download messages: %d".formatted(messages.size()));
     }
     
+    private void reconcileAndDownload(long telegramId) {
+        DownloadQueueService.getDownloadingCount(telegramId)
+            .onSuccess(downloading -> {
+                if (downloading != slots.downloading(telegramId)) {
+                    log.debug("Reconciled downloading count of telegramId %d: %d -> %d"
+                        .formatted(telegramId, slots.downloading(telegramId), downloading));
+                }
+                slots.reconcile(telegramId, downloading);
+                downloadFromDatabase(telegramId);
+            })
+            .onFailure(err -> log.error("Failed to count downloading files: %s".formatted(err.getMessage())));
+    }
+
+    /**
+     * A download leaving the downloading status frees its slot, which is refilled right away.
+     */
+    private void onDownloadStatusChanged(JsonObject jsonObject) {
+        long telegramId = jsonObject.getLong("telegramId");
+        String downloading = FileRecord.DownloadStatus.downloading.name();
+        boolean wasDownloading = downloading.equals(jsonObject.getString("from"));
+        boolean isDownloading = downloading.equals(jsonObject.getString("to"));
+        if (wasDownloading == isDownloading) {
+            return;
+        }
+        if (isDownloading) {
+            // started outside a claim, e.g. from the web page
+            slots.started(telegramId);
+            return;
+        }
+        slots.finished(telegramId);
+        String to = jsonObject.getString("to");
+        if (FileRecord.DownloadStatus.completed.name().equals(to) || FileRecord.DownloadStatus.downloaded.name().equals(to)) {
+            ConcurrencyController controller = controllers.get(telegramId);
+            if (controller != null) {
+                controller.onCompleted();
+            }
+        } else if (!FileRecord.DownloadStatus.paused.name().equals(to) && !jsonObject.getBoolean("stoppedByUser", false)) {
+            // TDLib stopped the download without completing it
+            onDownloadFailed(telegramId, null);
+        }
+        if (isDownloadTime() && autoRecords.getDownloadEnabledItems().stream().anyMatch(auto -> auto.telegramId == telegramId)) {
+            downloadFromDatabase(telegramId);
+        }
+    }
+
     /**
      * Download files from database-driven queue.
-     * Queries database for files ready to download and starts downloads.
+     * The free slots of the account are split evenly over its automations, each claiming from its own chat with its
+     * own cutoff and order, so a chat with a large backlog can't starve the others. Slots a chat can't fill go to the
+     * chats that filled theirs. The chat getting the remainder of an uneven split rotates.
+     * Only chats with a download automation are claimed from. Idle files of other chats, e.g. a chat that is only
+     * preloaded or whose automation was removed, stay idle until they are started from the web page.
      */
     private void downloadFromDatabase(long telegramId) {
-        int queueLimit = limit > Integer.MAX_VALUE / 2 
-            ? Integer.MAX_VALUE 
-            : limit * 2;
-        // Get cutoff date from automation settings
-        SettingAutoRecords.Automation automation = autoRecords.getDownloadEnabledItems().stream()
+        List<SettingAutoRecords.Automation> automations = autoRecords.getDownloadEnabledItems().stream()
             .filter(auto -> auto.telegramId == telegramId)
-            .findFirst()
-            .orElse(null);
-        
-        if (automation != null && automation.download != null && automation.download.rule != null 
-            && automation.download.rule.historySince != null && automation.download.rule.historySince > 0) {
-            // Get sentinel message date for cutoff
-            Optional<TelegramVerticle> verticleOpt = TelegramVerticles.get(telegramId);
-            if (verticleOpt.isPresent()) {
-                verticleOpt.get().client.execute(
-                    new TdApi.GetChatMessageByDate(automation.chatId, automation.download.rule.historySince)
-                ).onSuccess(sentinelMessage -> {
-                    Integer cutoff = sentinelMessage != null ? sentinelMessage.date : null;
-                    queueAndDownload(telegramId, queueLimit, cutoff);
-                }).onFailure(err -> {
-                    log.warn("Failed to get sentinel message for cutoff, queueing without cutoff: %s".formatted(err.getMessage()));
-                    queueAndDownload(telegramId, queueLimit, null);
-                });
-                return;
-            } else {
-                log.warn("Telegram verticle not found for telegramId %d, queueing without cutoff".formatted(telegramId));
-            }
+            .toList();
+        if (automations.isEmpty()) {
+            return;
         }
-        
-        // No cutoff date found, queue without filtering
-        queueAndDownload(telegramId, queueLimit, null);
+        int free = slots.free(telegramId, getConcurrencyLimit(telegramId));
+        if (free <= 0 || !slots.beginClaim(telegramId)) {
+            return;
+        }
+        int first = Math.floorMod(rotation.merge(telegramId, 1, Integer::sum), automations.size());
+        List<SettingAutoRecords.Automation> ordered = new ArrayList<>(automations.subList(first, automations.size()));
+        ordered.addAll(automations.subList(0, first));
+
+        claimFair(telegramId, ordered, free)
+            .onComplete(r -> slots.endClaim(telegramId, r.succeeded() ? r.result().size() : 0))
+            .onSuccess(files -> processDownloadFiles(telegramId, files))
+            .onFailure(err -> log.error("Failed to claim files for download from database: %s".formatted(err.getMessage())));
     }
-    
-    private void queueAndDownload(long telegramId, int queueLimit, Integer cutoffDateSeconds) {
-        // Get downloadOldestFirst setting from automation
-        SettingAutoRecords.Automation automation = autoRecords.getDownloadEnabledItems().stream()
-            .filter(auto -> auto.telegramId == telegramId)
-            .findFirst()
-            .orElse(null);
-        Boolean downloadOldestFirst = automation != null && automation.download != null && automation.download.rule != null
-            ? automation.download.rule.downloadOldestFirst : null;
-        
-        DownloadQueueService.queueFilesForDownload(telegramId, 0, queueLimit, cutoffDateSeconds, downloadOldestFirst)
-            .compose(queuedCount -> {
-                if (queuedCount > 0) {
-                    log.debug("Queued %d idle files for download. TelegramId: %d".formatted(queuedCount, telegramId));
+
+    private Future<List<DownloadCandidate>> claimFair(long telegramId, List<SettingAutoRecords.Automation> automations, int free) {
+        int[] shares = DownloadSlots.split(free, automations.size());
+        return Future.all(IntStream.range(0, automations.size())
+                .mapToObj(i -> claimChat(telegramId, automations.get(i), shares[i]))
+                .toList())
+            .compose(results -> {
+                List<DownloadCandidate> claimed = new ArrayList<>();
+                List<SettingAutoRecords.Automation> filled = new ArrayList<>();
+                for (int i = 0; i < automations.size(); i++) {
+                    List<DownloadCandidate> files = results.resultAt(i);
+                    claimed.addAll(files);
+                    if (shares[i] > 0 && files.size() == shares[i]) {
+                        filled.add(automations.get(i));
+                    }
                 }
-                // Then get files to download
-                return DownloadQueueService.getFilesForDownload(telegramId, limit);
-            })
-            .onSuccess(files -> processDownloadFiles(telegramId, files))
-            .onFailure(err -> log.error("Failed to queue/get files for download from database: %s".formatted(err.getMessage())));
+                int left = free - claimed.size();
+                if (left <= 0 || filled.isEmpty()) {
+                    return Future.succeededFuture(claimed);
+                }
+                return claimFair(telegramId, filled, left)
+                    .map(more -> {
+                        claimed.addAll(more);
+                        return claimed;
+                    });
+            });
+    }
+
+    /**
+     * Claim up to limit files of the automation's chat, with the cutoff and order of its rule. A failure claims nothing.
+     */
+    private Future<List<DownloadCandidate>> claimChat(long telegramId, SettingAutoRecords.Automation automation, int limit) {
+        if (limit <= 0) {
+            return Future.succeededFuture(List.of());
+        }
+        SettingAutoRecords.DownloadRule rule = automation.download == null ? null : automation.download.rule;
+        Boolean downloadOldestFirst = rule == null ? null : rule.downloadOldestFirst;
+        // Claiming marks the files downloading in the same statement that picks them,
+        // so an overlapping tick or the HTTP start path can't start them a second time
+        return getCutoffDate(telegramId, automation)
+            .compose(cutoff -> DataVerticle.fileRepository.claimFilesForDownload(telegramId, automation.chatId, limit, downloadOldestFirst, cutoff))
+            .recover(err -> {
+                log.error("Failed to claim files for download. ChatId: %d: %s".formatted(automation.chatId, err.getMessage()));
+                return Future.succeededFuture(List.of());
+            });
+    }
+
+    /**
+     * The date of the chat's first message since the rule's historySince, null for no cutoff.
+     */
+    private Future<Integer> getCutoffDate(long telegramId, SettingAutoRecords.Automation automation) {
+        SettingAutoRecords.DownloadRule rule = automation.download == null ? null : automation.download.rule;
+        if (rule == null || rule.historySince == null || rule.historySince <= 0) {
+            return Future.succeededFuture(null);
+        }
+        return SentinelCache.INSTANCE.get(telegramId, automation.chatId, rule.historySince)
+            .map(sentinelMessage -> sentinelMessage != null ? sentinelMessage.date : null)
+            .recover(err -> {
+                log.warn("Failed to get sentinel message for cutoff, queueing without cutoff: %s".formatted(err.getMessage()));
+                return Future.succeededFuture(null);
+            });
     }
     
-    private void processDownloadFiles(long telegramId, List<FileRecord> files) {
+    private void processDownloadFiles(long telegramId, List<DownloadCandidate> files) {
         if (CollUtil.isEmpty(files)) {
             return;
         }
@@ -865,7 +1011,8 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                         TdApiHelp.FileHandler<?> handler = handlerOpt.get();
                         Integer telegramFileId = handler.getFileId();
                         log.debug("Start download file from database: DB ID=%d, Telegram File ID=%d, Message ID=%d".formatted(fileRecord.id(), telegramFileId, fileRecord.messageId()));
-                        return telegramVerticle.startDownload(fileRecord.chatId(), fileRecord.messageId(), telegramFileId);
+                        return telegramVerticle.startDownload(fileRecord.chatId(), fileRecord.messageId(), telegramFileId, true,
+                            DownloadQueueService.tdlibPriority(fileRecord.downloadPriority()));
                     })
                     .onSuccess(updatedRecord -> {
                         log.debug("Start download file success! ChatId: %d MessageId:%d"
@@ -877,8 +1024,14 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                                 .add(new WaitingScanThread(telegramId, updatedRecord.threadChatId(), updatedRecord.messageThreadId()));
                         }
                     })
-                    .onFailure(e -> log.error("Download file failed! ChatId: %d MessageId:%d DB ID:%d"
-                        .formatted(fileRecord.chatId(), fileRecord.messageId(), fileRecord.id()), e));
+                    .onFailure(e -> {
+                        log.error("Download file failed! ChatId: %d MessageId:%d DB ID:%d"
+                            .formatted(fileRecord.chatId(), fileRecord.messageId(), fileRecord.id()), e);
+                        onDownloadFailed(telegramId, e);
+                        // not refilled right away, the released file would be claimed again
+                        DownloadQueueService.releaseClaim(fileRecord)
+                            .onComplete(_ -> slots.finished(telegramId));
+                    });
             })
             .toList();
         
@@ -54,6 +54,8 @@ public class AutomationsHolder {
 
     public void onAutoRecordsUpdate(SettingAutoRecords records) {
         for (SettingAutoRecords.Automation automation : records.automations) {
+            // the rule may have changed, resolve the history cutoff again
+            SentinelCache.INSTANCE.invalidate(automation.telegramId, automation.chatId);
             if (!AUTO_RECORDS.exists(automation.telegramId, automation.chatId)) {
                 // new enabled
                 TelegramVerticles.get(automation.telegramId)
@@ -81,6 +83,7 @@ public class AutomationsHolder {
                 return false;
             }
             removedItems.add(item);
+            SentinelCache.INSTANCE.invalidate(item.telegramId, item.chatId);
             log.info("Remove auto records success: %s".formatted(item.uniqueKey()));
             return true;
         });
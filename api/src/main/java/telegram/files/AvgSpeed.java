@@ -165,6 +165,21 @@ public class AvgSpeed {
         return (bytesDownloaded * 1000L) / timeDiff;
     }
 
+    /**
+     * Get the smoothed speed of the latest point, 0 if none was recorded in the last interval
+     */
+    public long getCurrentSpeed() {
+        return getCurrentSpeed(System.currentTimeMillis());
+    }
+
+    long getCurrentSpeed(long now) {
+        Map.Entry<Long, SpeedPoint> lastEntry = speedPoints.lastEntry();
+        if (lastEntry == null || now - lastEntry.getKey() > interval * 1000L) {
+            return 0;
+        }
+        return lastEntry.getValue().speed;
+    }
+
     /**
      * Get median speed from all recorded points
      */
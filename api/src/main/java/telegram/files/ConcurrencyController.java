@@ -0,0 +1,129 @@
+package telegram.files;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Tunes the concurrent downloads of one telegram account, additive increase and multiplicative decrease.
+ * Once per window: flood waits and a high error rate halve the concurrency, otherwise one more download is tried
+ * while the slots are all in use, and taken back if throughput didn't grow with it.
+ */
+class ConcurrencyController {
+
+    static final int HISTORY_SIZE = 120;
+
+    // at least this many finished downloads before the error rate counts
+    private static final int MIN_ERROR_SAMPLE = 4;
+
+    private static final int MAX_ERROR_PERCENT = 10;
+
+    private static final int MIN_GAIN_PERCENT = 5;
+
+    private final int min;
+
+    private final int max;
+
+    private int concurrency;
+
+    private int completed;
+
+    private int failed;
+
+    private boolean floodWaited;
+
+    private long floodWaitUntil;
+
+    private long lastSpeed;
+
+    // the change made by the last window: 1, -1 or 0
+    private int lastChange;
+
+    private final Deque<JsonObject> history = new ArrayDeque<>();
+
+    ConcurrencyController(int min, int max, int initial) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.concurrency = Math.clamp(initial, this.min, this.max);
+    }
+
+    synchronized int concurrency() {
+        return concurrency;
+    }
+
+    synchronized void onCompleted() {
+        completed++;
+    }
+
+    synchronized void onFailed() {
+        failed++;
+    }
+
+    synchronized void onFloodWait(long retryAfterMillis, long now) {
+        floodWaited = true;
+        floodWaitUntil = Math.max(floodWaitUntil, now + retryAfterMillis);
+    }
+
+    /**
+     * End the window and choose the concurrency for the next one.
+     *
+     * @param speed     bytes per second measured in the window
+     * @param saturated whether all slots are in use, an account without backlog isn't grown
+     */
+    synchronized int adjust(long speed, boolean saturated, long now) {
+        String reason;
+        boolean backoff = false;
+        int before = concurrency;
+        int finished = completed + failed;
+        if (floodWaited) {
+            concurrency = Math.max(min, concurrency / 2);
+            reason = "flood wait";
+            backoff = true;
+        } else if (finished >= MIN_ERROR_SAMPLE && failed * 100 > finished * MAX_ERROR_PERCENT) {
+            concurrency = Math.max(min, concurrency / 2);
+            reason = "errors";
+            backoff = true;
+        } else if (now < floodWaitUntil) {
+            reason = "flood wait pending";
+        } else if (!saturated) {
+            reason = "not saturated";
+        } else if (lastChange > 0 && speed * 100 < lastSpeed * (100 + MIN_GAIN_PERCENT)) {
+            concurrency = Math.max(min, concurrency - 1);
+            reason = "no gain";
+        } else if (lastChange < 0) {
+            reason = "steady";
+        } else {
+            concurrency = Math.min(max, concurrency + 1);
+            reason = "probe";
+        }
+        // after a backoff the next window holds rather than probing right away
+        lastChange = backoff ? -1 : Integer.signum(concurrency - before);
+        history.addLast(JsonObject.of(
+                "timestamp", now,
+                "concurrency", concurrency,
+                "speed", speed,
+                "completed", completed,
+                "failed", failed,
+                "reason", reason));
+        while (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+        lastSpeed = speed;
+        completed = 0;
+        failed = 0;
+        floodWaited = false;
+        return concurrency;
+    }
+
+    synchronized JsonObject getStatus() {
+        return JsonObject.of(
+                "adaptive", true,
+                "concurrency", concurrency,
+                "min", min,
+                "max", max,
+                "floodWaitUntil", floodWaitUntil,
+                "history", new JsonArray(history.stream().map(JsonObject::copy).toList()));
+    }
+}
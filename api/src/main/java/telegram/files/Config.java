@@ -47,6 +47,38 @@ public class Config {
 
     public static final int TELEGRAM_LOG_LEVEL = Convert.toInt(System.getenv("TELEGRAM_LOG_LEVEL"), 0);
 
+    public static final int FILE_CACHE_SIZE = Convert.toInt(System.getenv("FILE_CACHE_SIZE"), 1024);
+
+    public static final long FILE_CACHE_TTL_SECONDS = Convert.toLong(System.getenv("FILE_CACHE_TTL_SECONDS"), 60L);
+
+    public static final int WRITE_BATCH_SIZE = Convert.toInt(System.getenv("WRITE_BATCH_SIZE"), 64);
+
+    public static final long WRITE_BATCH_MAX_DELAY_MILLIS = Convert.toLong(System.getenv("WRITE_BATCH_MAX_DELAY_MILLIS"), 5L);
+
+    public static final int SQLITE_CACHE_SIZE_KB = Convert.toInt(System.getenv("SQLITE_CACHE_SIZE_KB"), 2000);
+
+    public static final long SQLITE_MMAP_SIZE_MB = Convert.toLong(System.getenv("SQLITE_MMAP_SIZE_MB"), 0L);
+
+    public static final String SQLITE_TEMP_STORE = StrUtil.blankToDefault(System.getenv("SQLITE_TEMP_STORE"), "DEFAULT").toUpperCase();
+
+    public static final long SQLITE_JOURNAL_SIZE_LIMIT_MB = Convert.toLong(System.getenv("SQLITE_JOURNAL_SIZE_LIMIT_MB"), 64L);
+
+    public static final long SQLITE_MAINTENANCE_IDLE_SECONDS = Convert.toLong(System.getenv("SQLITE_MAINTENANCE_IDLE_SECONDS"), 60L);
+
+    public static final int FILE_ARCHIVE_AFTER_DAYS = Convert.toInt(System.getenv("FILE_ARCHIVE_AFTER_DAYS"), 0);
+
+    public static final int FILE_ARCHIVE_BATCH_SIZE = Convert.toInt(System.getenv("FILE_ARCHIVE_BATCH_SIZE"), 1000);
+
+    public static final long FILE_ARCHIVE_INTERVAL_MINUTES = Convert.toLong(System.getenv("FILE_ARCHIVE_INTERVAL_MINUTES"), 60L);
+
+    public static final boolean AUTO_DOWNLOAD_ADAPTIVE = Convert.toBool(System.getenv("AUTO_DOWNLOAD_ADAPTIVE"), false);
+
+    public static final int AUTO_DOWNLOAD_MIN_CONCURRENCY = Convert.toInt(System.getenv("AUTO_DOWNLOAD_MIN_CONCURRENCY"), 1);
+
+    public static final int AUTO_DOWNLOAD_MAX_CONCURRENCY = Convert.toInt(System.getenv("AUTO_DOWNLOAD_MAX_CONCURRENCY"), 20);
+
+    public static final long AUTO_DOWNLOAD_ADJUST_INTERVAL_SECONDS = Convert.toLong(System.getenv("AUTO_DOWNLOAD_ADJUST_INTERVAL_SECONDS"), 30L);
+
     public static final String OPENAI_MODEL = StrUtil.blankToDefault(System.getenv("OPENAI_MODEL"), ChatModel.GPT_4O_MINI.asString());
 
     public static final DeploymentOptions VIRTUAL_THREAD_DEPLOYMENT_OPTIONS = new DeploymentOptions()
@@ -17,13 +17,16 @@ import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.SqlConnectOptions;
 import org.jooq.lambda.tuple.Tuple;
 import telegram.files.repository.*;
+import telegram.files.repository.impl.CachedFileRepository;
 import telegram.files.repository.impl.FileRepositoryImpl;
 import telegram.files.repository.impl.SettingRepositoryImpl;
 import telegram.files.repository.impl.StatisticRepositoryImpl;
 import telegram.files.repository.impl.TelegramRepositoryImpl;
+import telegram.files.repository.impl.WriteBatcher;
 
 import java.io.File;
 import java.util.List;
+import java.util.function.Function;
 
 public class DataVerticle extends AbstractVerticle {
 
@@ -31,6 +34,17 @@ public class DataVerticle extends AbstractVerticle {
 
     public static Pool pool;
 
+    /**
+     * Read-only pool for plain reads. On SQLite it is separate from the single-connection writer {@link #pool},
+     * so reads never queue behind writes, other databases use the same pool for both.
+     */
+    public static Pool readPool;
+
+    /**
+     * Group commit for SQLite writes, null when writes commit one by one.
+     */
+    public static WriteBatcher writeBatcher;
+
     public static FileRepository fileRepository;
 
     public static TelegramRepository telegramRepository;
@@ -58,16 +72,23 @@ public class DataVerticle extends AbstractVerticle {
                 new SettingRecord.SettingRecordDefinition(),
                 new TelegramRecord.TelegramRecordDefinition(),
                 new FileRecord.FileRecordDefinition(),
-                new StatisticRecord.StatisticRecordDefinition()
+                new FileArchive.FileArchiveDefinition(),
+                new FileDeletion.FileDeletionDefinition(),
+                new StatisticRecord.StatisticRecordDefinition(),
+                new FileTag.FileTagDefinition(),
+                new FileStats.FileStatsDefinition()
         );
     }
 
     public void start(Promise<Void> stopPromise) {
         pool = buildSqlClient();
-        settingRepository = new SettingRepositoryImpl(pool);
-        telegramRepository = new TelegramRepositoryImpl(pool);
-        fileRepository = new FileRepositoryImpl(pool);
-        statisticRepository = new StatisticRepositoryImpl(pool);
+        readPool = Config.isSqlite() ? buildSqliteReadPool() : pool;
+        writeBatcher = Config.isSqlite() && Config.WRITE_BATCH_MAX_DELAY_MILLIS > 0 ?
+                new WriteBatcher(vertx, pool, Config.WRITE_BATCH_SIZE, Config.WRITE_BATCH_MAX_DELAY_MILLIS) : null;
+        settingRepository = new SettingRepositoryImpl(pool, readPool);
+        telegramRepository = new TelegramRepositoryImpl(pool, readPool);
+        fileRepository = new CachedFileRepository(new FileRepositoryImpl(pool, readPool, writeBatcher), Config.FILE_CACHE_SIZE, Config.FILE_CACHE_TTL_SECONDS * 1000);
+        statisticRepository = new StatisticRepositoryImpl(pool, readPool, writeBatcher);
         isCompletelyNewInitialization()
                 .compose(isNew -> Future.all(definitions.stream().map(d -> d.createTable(pool)).toList()).map(isNew))
                 .compose(isNew -> settingRepository.<Version>getByKey(SettingKey.version).map(version -> Tuple.tuple(isNew, version)))
@@ -75,8 +96,14 @@ public class DataVerticle extends AbstractVerticle {
                     if (tuple.v1) return Future.succeededFuture();
 
                     Version version = tuple.v2 == null ? new Version("0.0.0") : tuple.v2;
-                    return Future.all(definitions.stream().map(d -> d.migrate(pool, version, new Version(Start.VERSION))).toList());
+                    // in the order of the definitions, a data migration reads the tables migrated before it
+                    Future<Void> migrated = Future.succeededFuture();
+                    for (Definition definition : definitions) {
+                        migrated = migrated.compose(_ -> definition.migrate(pool, version, new Version(Start.VERSION)));
+                    }
+                    return migrated;
                 })
+                .compose(r -> Future.all(definitions.stream().map(d -> d.createIndexes(pool)).toList()))
                 .compose(r ->
                         settingRepository.createOrUpdate(SettingKey.version.name(), Start.VERSION))
                 .onSuccess(r -> {
@@ -92,17 +119,26 @@ public class DataVerticle extends AbstractVerticle {
     @Override
     public void stop(Promise<Void> stopPromise) throws Exception {
         if (pool != null) {
-            pool.close().onComplete(r -> {
-                if (r.succeeded()) {
-                    log.debug("Data verticle stopped!");
-                } else {
-                    log.error("Failed to close data verticle: %s".formatted(r.cause().getMessage()));
-                }
-                stopPromise.complete();
-            });
+            (writeBatcher != null ? writeBatcher.flush() : Future.<Void>succeededFuture())
+                    .transform(_ -> Future.all(pool.close(), readPool != null && readPool != pool ? readPool.close() : Future.succeededFuture()))
+                    .onComplete(r -> {
+                        if (r.succeeded()) {
+                            log.debug("Data verticle stopped!");
+                        } else {
+                            log.error("Failed to close data verticle: %s".formatted(r.cause().getMessage()));
+                        }
+                        stopPromise.complete();
+                    });
         }
     }
 
+    /**
+     * Run a write outside the repositories, batched like theirs.
+     */
+    public static <T> Future<T> write(Function<SqlClient, Future<T>> write) {
+        return writeBatcher != null ? writeBatcher.submit(write) : write.apply(pool);
+    }
+
     public static String getDataPath() {
         String dataPath = System.getenv("DATA_PATH");
         dataPath = StrUtil.blankToDefault(dataPath, "data.db");
@@ -111,20 +147,48 @@ public class DataVerticle extends AbstractVerticle {
     }
 
     private Pool buildSqlClient() {
+        // SQLite allows a single writer, more connections would only wait on each other's locks
         PoolOptions poolOptions = new PoolOptions()
                 .setShared(true)
-                .setMaxSize(8)
+                .setMaxSize(Config.isSqlite() ? 1 : 8)
                 .setName("pool-tf")
                 .setIdleTimeout(300000)
                 .setPoolCleanerPeriod(300000);
 
         return createPool(vertx,
                 Config.isSqlite() ? new JDBCConnectOptions()
-                        .setJdbcUrl("jdbc:sqlite:%s?journal_mode=WAL&busy_timeout=30000&synchronous=NORMAL&cache_size=-2000".formatted(getDataPath())) :
+                        .setJdbcUrl("jdbc:sqlite:%s?journal_mode=WAL&busy_timeout=30000&synchronous=NORMAL&auto_vacuum=INCREMENTAL&journal_size_limit=%d&%s"
+                                .formatted(getDataPath(), Config.SQLITE_JOURNAL_SIZE_LIMIT_MB * 1024 * 1024, sqliteTuning())) :
                         sqlConnectOptions,
                 poolOptions);
     }
 
+    /**
+     * WAL readers don't block the writer nor each other, open_mode=1 opens the connections read-only.
+     */
+    private Pool buildSqliteReadPool() {
+        PoolOptions poolOptions = new PoolOptions()
+                .setShared(true)
+                .setMaxSize(8)
+                .setName("pool-tf-read")
+                .setIdleTimeout(300000)
+                .setPoolCleanerPeriod(300000);
+
+        return createPool(vertx,
+                new JDBCConnectOptions()
+                        .setJdbcUrl("jdbc:sqlite:%s?open_mode=1&busy_timeout=30000&%s".formatted(getDataPath(), sqliteTuning())),
+                poolOptions);
+    }
+
+    /**
+     * The per-connection settings of both pools. auto_vacuum only applies to a database created with it,
+     * an older database keeps its free pages until a VACUUM.
+     */
+    private static String sqliteTuning() {
+        return "cache_size=-%d&mmap_size=%d&temp_store=%s".formatted(Config.SQLITE_CACHE_SIZE_KB,
+                Config.SQLITE_MMAP_SIZE_MB * 1024 * 1024, Config.SQLITE_TEMP_STORE);
+    }
+
     private Future<Boolean> isCompletelyNewInitialization() {
         if (Config.isSqlite()) {
             return pool.query("""
@@ -245,25 +309,28 @@ public class DataVerticle extends AbstractVerticle {
         }
     }
 
+    /**
+     * A pool for the database the options point to, which may be another one than the configured, e.g. the source of a migration.
+     */
     public static Pool createPool(Vertx vertx, Object connectOptions, PoolOptions poolOptions) {
-        if (Config.isSqlite()) {
+        if (connectOptions instanceof JDBCConnectOptions jdbcConnectOptions) {
             return JDBCPool.pool(vertx,
-                    (JDBCConnectOptions) connectOptions,
+                    jdbcConnectOptions,
                     poolOptions
             );
-        } else if (Config.isPostgres()) {
+        } else if (connectOptions instanceof PgConnectOptions pgConnectOptions) {
             return PgBuilder
                     .pool()
                     .using(vertx)
                     .with(poolOptions)
-                    .connectingTo((SqlConnectOptions) connectOptions)
+                    .connectingTo(pgConnectOptions)
                     .build();
-        } else if (Config.isMysql()) {
+        } else if (connectOptions instanceof MySQLConnectOptions mySQLConnectOptions) {
             return MySQLBuilder
                     .pool()
                     .using(vertx)
                     .with(poolOptions)
-                    .connectingTo((SqlConnectOptions) connectOptions)
+                    .connectingTo(mySQLConnectOptions)
                     .build();
         } else {
             throw new VertxException("Unsupported database type");
@@ -1,38 +1,47 @@
 package telegram.files;
 
-import cn.hutool.core.collection.CollUtil;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
+import telegram.files.repository.DownloadCandidate;
 import telegram.files.repository.FileRecord;
 
-import java.util.List;
-
 /**
  * Service for querying database for files ready to download and managing the download queue.
  * 
  * Key Features:
  * - Queries database for files with download_status='idle' and scan_state='idle'
- * - Orders by download_priority DESC, queued_at ASC
+ * - Orders by download_priority DESC, then date, queued_at ASC
+ * - Maps download_priority onto TDLib's download priority, clicks in the web page go ahead of everything queued
  * - Marks files as queued (sets queued_at timestamp)
+ * - Claims files atomically (marks them downloading in the same statement that selects them)
  * - Respects per-telegram account limits
+ * - The automatic downloads claim per chat with a download automation, files of other chats aren't claimed
  */
 public class DownloadQueueService {
     
     private static final Log log = LogFactory.get();
-    
+
+    public static final int MIN_PRIORITY = -15;
+
+    public static final int MAX_PRIORITY = 15;
+
     /**
-     * Get files ready for download from the database.
-     * Files are ordered by priority (higher first) and queued_at (older first).
-     * 
-     * @param telegramId Telegram account ID
-     * @param limit Maximum number of files to return
-     * @param cutoffDateSeconds Optional cutoff date in seconds. Only return files with date >= cutoffDate.
-     * @param downloadOldestFirst If true, order by message_id ASC (oldest first), else DESC (newest first).
-     * @return List of FileRecord ready for download
+     * The TDLib priority of a download the user started from the web page. It isn't claimed, so it starts even when
+     * the automations use all slots, and TDLib serves it before the queued downloads, which stay below 32.
+     * It counts as a downloading file of the account, the automations refill only once the account is below its limit again.
      */
-    public static Future<List<FileRecord>> getFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
-        return DataVerticle.fileRepository.getFilesReadyForDownload(telegramId, limit, cutoffDateSeconds, downloadOldestFirst);
+    public static final int INTERACTIVE_PRIORITY = 32;
+
+    public static int clampPriority(int downloadPriority) {
+        return Math.clamp(downloadPriority, MIN_PRIORITY, MAX_PRIORITY);
+    }
+
+    /**
+     * Map download_priority onto TDLib's 1..31, 0 is 16.
+     */
+    public static int tdlibPriority(int downloadPriority) {
+        return 16 + clampPriority(downloadPriority);
     }
     
     /**
@@ -47,7 +56,13 @@ public class DownloadQueueService {
      * @return Number of files queued
      */
     public static Future<Integer> queueFilesForDownload(long telegramId, long chatId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
-        return DataVerticle.fileRepository.queueFilesForDownload(telegramId, chatId, limit, cutoffDateSeconds, downloadOldestFirst != null ? downloadOldestFirst : true);
+        if (chatId == 0 || cutoffDateSeconds == null || cutoffDateSeconds <= 0) {
+            return DataVerticle.fileRepository.queueFilesForDownload(telegramId, chatId, limit, cutoffDateSeconds, downloadOldestFirst != null ? downloadOldestFirst : true);
+        }
+        // nothing stored for the chat is newer than the cutoff, no need to search file_record
+        return DataVerticle.fileRepository.getChatBounds(telegramId, chatId)
+                .compose(bounds -> bounds.isEmpty() || bounds.maxDate() < cutoffDateSeconds ? Future.succeededFuture(0) :
+                        DataVerticle.fileRepository.queueFilesForDownload(telegramId, chatId, limit, cutoffDateSeconds, downloadOldestFirst != null ? downloadOldestFirst : true));
     }
     
     /**
@@ -62,27 +77,11 @@ public class DownloadQueueService {
     }
     
     /**
-     * Get files ready for download, respecting the limit of concurrent downloads.
-     * 
-     * @param telegramId Telegram account ID
-     * @param maxConcurrent Maximum concurrent downloads allowed
-     * @return List of FileRecord ready for download
+     * Hand a claimed file back to the queue when its download could not be started.
      */
-    public static Future<List<FileRecord>> getFilesForDownload(long telegramId, int maxConcurrent) {
-        return getDownloadingCount(telegramId)
-            .compose(downloadingCount -> {
-                int surplus = Math.max(0, maxConcurrent - downloadingCount);
-                if (surplus <= 0) {
-                    log.debug("No surplus download slots available for telegramId %d (downloading: %d, max: %d)"
-                        .formatted(telegramId, downloadingCount, maxConcurrent));
-                    return Future.succeededFuture(List.of());
-                }
-                
-                // Get files ready for download (already queued or need to be queued)
-                // Note: cutoffDateSeconds and downloadOldestFirst will be determined by the repository
-                // based on automation settings
-                return getFilesReadyForDownload(telegramId, surplus, null, null);
-            });
+    public static Future<Void> releaseClaim(DownloadCandidate file) {
+        return DataVerticle.fileRepository.updateDownloadStatus(file.id(), file.uniqueId(), null, FileRecord.DownloadStatus.idle, null)
+            .onFailure(err -> log.error("Failed to release claimed file %s: %s".formatted(file.uniqueId(), err.getMessage())))
+            .mapEmpty();
     }
 }
-
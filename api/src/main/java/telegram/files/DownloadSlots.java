@@ -0,0 +1,73 @@
+package telegram.files;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Downloads in flight per telegram account, counted in memory from the claims and the download status transitions,
+ * so a freed slot can be refilled without counting file_record. The periodic tick reconciles the count with the database.
+ */
+class DownloadSlots {
+
+    // telegramId -> downloads in flight
+    private final Map<Long, Integer> downloading = new ConcurrentHashMap<>();
+
+    // accounts with a claim running, their count is about to change
+    private final Set<Long> claiming = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Split the free slots evenly over the chats, the first ones get one more when they don't divide evenly.
+     */
+    static int[] split(int free, int chats) {
+        int[] shares = new int[chats];
+        for (int i = 0; i < chats; i++) {
+            shares[i] = free / chats + (i < free % chats ? 1 : 0);
+        }
+        return shares;
+    }
+
+    int downloading(long telegramId) {
+        return downloading.getOrDefault(telegramId, 0);
+    }
+
+    int free(long telegramId, int limit) {
+        return Math.max(0, limit - downloading(telegramId));
+    }
+
+    /**
+     * @return false if a claim for the account is already running, only one claims at a time
+     */
+    boolean beginClaim(long telegramId) {
+        return claiming.add(telegramId);
+    }
+
+    void endClaim(long telegramId, int claimed) {
+        if (claimed > 0) {
+            downloading.merge(telegramId, claimed, Integer::sum);
+        }
+        claiming.remove(telegramId);
+    }
+
+    void started(long telegramId) {
+        downloading.merge(telegramId, 1, Integer::sum);
+    }
+
+    void finished(long telegramId) {
+        downloading.computeIfPresent(telegramId, (_, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Replace the count by the one in the database, unless a claim is running and the count read may miss it.
+     */
+    void reconcile(long telegramId, int count) {
+        if (claiming.contains(telegramId)) {
+            return;
+        }
+        if (count > 0) {
+            downloading.put(telegramId, count);
+        } else {
+            downloading.remove(telegramId);
+        }
+    }
+}
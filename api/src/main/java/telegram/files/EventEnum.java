@@ -24,6 +24,12 @@ public enum EventEnum {
      */
     MESSAGE_RECEIVED,
 
+    /**
+     * suffix = null <br>
+     * body = JSONObject with "telegramId", "uniqueId", "from", "to" (download status names)
+     */
+    DOWNLOAD_STATUS_CHANGED,
+
     /**
      * suffix = null <br>
      * body = JSONObject with "telegramId", "payload"
@@ -0,0 +1,74 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves files downloaded and transferred more than {@link Config#FILE_ARCHIVE_AFTER_DAYS} days ago into the archive,
+ * a batch at a time until none are left, then waits for the next interval.
+ */
+public class FileArchiveVerticle extends AbstractVerticle {
+
+    private static final Log log = LogFactory.get();
+
+    private final int afterDays;
+
+    private final int batchSize;
+
+    private final long intervalMillis;
+
+    private boolean running;
+
+    public FileArchiveVerticle() {
+        this(Config.FILE_ARCHIVE_AFTER_DAYS, Config.FILE_ARCHIVE_BATCH_SIZE, TimeUnit.MINUTES.toMillis(Config.FILE_ARCHIVE_INTERVAL_MINUTES));
+    }
+
+    public FileArchiveVerticle(int afterDays, int batchSize, long intervalMillis) {
+        this.afterDays = afterDays;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        vertx.setPeriodic(0, intervalMillis, _ -> archive());
+        log.info("""
+                File archive verticle started!
+                |Archive after: %d days
+                |Batch size: %d
+                |Interval: %s ms
+                """.formatted(afterDays, batchSize, intervalMillis));
+        startPromise.complete();
+    }
+
+    @Override
+    public void stop() {
+        log.info("File archive verticle stopped!");
+    }
+
+    private void archive() {
+        if (running) {
+            return;
+        }
+        running = true;
+        long completedBefore = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(afterDays);
+        archiveBatches(completedBefore, 0)
+                .onSuccess(total -> {
+                    if (total > 0) {
+                        log.info("Archived %d files completed before %d".formatted(total, completedBefore));
+                    }
+                })
+                .onComplete(_ -> running = false);
+    }
+
+    private Future<Integer> archiveBatches(long completedBefore, int total) {
+        return DataVerticle.fileRepository.archiveFiles(completedBefore, batchSize)
+                .compose(archived -> archived < batchSize ? Future.succeededFuture(total + archived) :
+                        archiveBatches(completedBefore, total + archived));
+    }
+}
@@ -6,6 +6,7 @@ import io.vertx.core.Future;
 import io.vertx.core.json.JsonObject;
 import org.drinkless.tdlib.TdApi;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileThumbnail;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -17,8 +18,8 @@ public class FileRecordRetriever {
                 .compose(r -> getTdMessages(r.v1).map(r::concat))
                 .compose(r -> getThumbnails(r.v1).map(r::concat))
                 .map(r -> {
-                    Map<String, TdApi.Message> messageMap = r.v4;
-                    Map<String, FileRecord> thumbnailMap = r.v5;
+                    Map<String, TdApi.Message> messageMap = r.v6;
+                    Map<String, FileThumbnail> thumbnailMap = r.v7;
                     List<JsonObject> fileRecords = r.v1.stream()
                             .map(fileRecord -> TelegramConverter.withSource(fileRecord.telegramId(),
                                     fileRecord,
@@ -30,11 +31,40 @@ public class FileRecordRetriever {
                     return new JsonObject()
                             .put("files", fileRecords)
                             .put("nextFromMessageId", r.v2)
+                            .put("nextFromRank", r.v5)
                             .put("count", r.v3)
+                            .put("countExact", r.v4)
                             .put("size", fileRecords.size());
                 });
     }
 
+    /**
+     * The files changed and deleted after the since cursor, clients apply deleted before files and continue from nextSince.
+     * A negative since only returns the current cursor.
+     */
+    public static Future<JsonObject> getChanges(long since, int limit) {
+        return DataVerticle.fileRepository.getChanges(since, limit)
+                .compose(r -> getTdMessages(r.v1).map(r::concat))
+                .compose(r -> getThumbnails(r.v1).map(r::concat))
+                .map(r -> {
+                    Map<String, TdApi.Message> messageMap = r.v5;
+                    Map<String, FileThumbnail> thumbnailMap = r.v6;
+                    List<JsonObject> fileRecords = r.v1.stream()
+                            .map(fileRecord -> TelegramConverter.withSource(fileRecord.telegramId(),
+                                    fileRecord,
+                                    StrUtil.isBlank(fileRecord.thumbnailUniqueId()) ? null : thumbnailMap.get(fileRecord.thumbnailUniqueId()),
+                                    messageMap.get(fileRecord.uniqueId())
+                            ))
+                            .filter(Objects::nonNull)
+                            .toList();
+                    return new JsonObject()
+                            .put("files", fileRecords)
+                            .put("deleted", r.v2)
+                            .put("nextSince", r.v3)
+                            .put("hasMore", r.v4);
+                });
+    }
+
     /**
      * Get messages from telegram
      *
@@ -131,7 +161,7 @@ public class FileRecordRetriever {
         return messageMap;
     }
 
-    public static Future<Map<String, FileRecord>> getThumbnails(Collection<FileRecord> fileRecords) {
+    public static Future<Map<String, FileThumbnail>> getThumbnails(Collection<FileRecord> fileRecords) {
         if (fileRecords == null || fileRecords.isEmpty()) {
             return Future.succeededFuture(Collections.emptyMap());
         }
@@ -142,7 +172,7 @@ public class FileRecordRetriever {
                 .toList();
 
         return DataVerticle.fileRepository
-                .getFilesByUniqueId(thumbnailUniqueIds);
+                .getThumbnailsByUniqueId(thumbnailUniqueIds);
     }
 
     public static Future<TdApi.Message[]> getAlbumMessages(long telegramId, TdApi.Message message) {
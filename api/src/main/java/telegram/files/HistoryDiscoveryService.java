@@ -7,12 +7,15 @@ import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
 import org.drinkless.tdlib.TdApi;
 import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.ChatBounds;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileStatus;
 import telegram.files.repository.SettingAutoRecords;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -58,18 +61,13 @@ public class HistoryDiscoveryService {
             automation.download.nextFromMessageId
         );
         
-        // Compute sentinel message date if historySince is provided
-        if (automation.download.rule.historySince != null && automation.download.rule.historySince > 0) {
-            Optional<TelegramVerticle> verticleOpt = TelegramVerticles.get(automation.telegramId);
-            if (verticleOpt.isEmpty()) {
-                log.warn("Telegram verticle not found for telegramId %d, skipping history cutoff setup".formatted(automation.telegramId));
-                discoverHistoryInternal(params, callback, currentTimeMillis);
-                return;
-            }
-            TelegramVerticle telegramVerticle = verticleOpt.get();
-            telegramVerticle.client.execute(
-                new TdApi.GetChatMessageByDate(automation.chatId, automation.download.rule.historySince)
-            ).onSuccess(sentinelMessage -> {
+        // Resolve the sentinel message if historySince is provided, cached per automation
+        if (automation.download.rule.historySince == null || automation.download.rule.historySince <= 0) {
+            discoverHistoryInternal(params, callback, currentTimeMillis);
+            return;
+        }
+        SentinelCache.INSTANCE.get(automation)
+            .onSuccess(sentinelMessage -> {
                 if (sentinelMessage != null) {
                     params.sentinelMessageId = sentinelMessage.id;
                     params.sentinelMessageDate = sentinelMessage.date;
@@ -83,9 +81,6 @@ public class HistoryDiscoveryService {
                 log.warn("Failed to get sentinel message for history cutoff: %s".formatted(err.getMessage()));
                 discoverHistoryInternal(params, callback, currentTimeMillis);
             });
-        } else {
-            discoverHistoryInternal(params, callback, currentTimeMillis);
-        }
     }
     
     /**
@@ -204,7 +199,7 @@ public class HistoryDiscoveryService {
             discoverHistoryInternal(params, callback, currentTimeMillis);
         } else {
             // All file types exhausted - check if we should reset or mark complete
-            DataVerticle.fileRepository.getMinMessageId(telegramId, chatId)
+            DataVerticle.fileRepository.getChatBounds(telegramId, chatId).map(ChatBounds::minMessageId)
                 .onSuccess(oldestMsgId -> {
                     if (oldestMsgId != null && oldestMsgId > 0 && params.nextFromMessageId > oldestMsgId) {
                         // Beyond newest message, reset to scan backwards
@@ -262,7 +257,7 @@ public class HistoryDiscoveryService {
         }
         
         // Check which messages already exist in database
-        DataVerticle.fileRepository.getFilesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
+        DataVerticle.fileRepository.getStatusesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
             .onSuccess(existFiles -> {
                 // Filter messages: new ones or existing ones with idle status
                 // Use historySince (configured cutoff date) for filtering, not sentinelMessageDate
@@ -277,9 +272,9 @@ public class HistoryDiscoveryService {
                         if (!existFiles.containsKey(uniqueId)) {
                             return true;  // New file, needs to be inserted
                         } else {
-                            FileRecord fileRecord = existFiles.get(uniqueId);
+                            FileStatus fileStatus = existFiles.get(uniqueId);
                             // Update if status is not idle (e.g., if it was error, we want to retry)
-                            return !fileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle);
+                            return !fileStatus.isDownloadStatus(FileRecord.DownloadStatus.idle);
                         }
                     })
                     .toList();
@@ -350,67 +345,56 @@ public class HistoryDiscoveryService {
     /**
      * Persist discovered files to database with scan_state='idle'.
      * Files are inserted or updated, but NOT queued for download.
+     * The whole page is written with one bulk insert; only existing files that need a reset cost an extra statement.
      */
     private static Future<Integer> persistDiscoveredFiles(long telegramId, List<TdApi.Message> messages, String uniqueKey) {
-        java.util.concurrent.atomic.AtomicInteger count = new java.util.concurrent.atomic.AtomicInteger(0);
-        
-        return Future.all(messages.stream()
+        List<FileRecord> fileRecords = messages.stream()
             .map(message -> {
                 // Convert message to FileRecord using TdApiHelp
                 Optional<TdApiHelp.FileHandler<?>> handlerOpt = TdApiHelp.getFileHandler(message);
                 if (handlerOpt.isEmpty()) {
-                    return Future.succeededFuture();
+                    return null;
                 }
-                
                 FileRecord fileRecord = handlerOpt.get().convertFileRecord(telegramId);
                 if (fileRecord == null) {
                     log.debug("%s Failed to convert message to FileRecord (messageId: %d)".formatted(
                         uniqueKey, message.id));
-                    return Future.succeededFuture();
                 }
-                
-                return DataVerticle.fileRepository.createIfNotExist(fileRecord)
-                    .compose(created -> {
-                        if (created) {
-                            count.incrementAndGet();
-                            log.trace("%s Created file record: %s".formatted(uniqueKey, fileRecord.fileName()));
-                            return Future.succeededFuture();
-                        } else {
-                            // File exists - check if we need to update it
-                            return DataVerticle.fileRepository.getByUniqueId(fileRecord.uniqueId())
-                                .compose(existing -> {
-                                    if (existing == null) {
-                                        return Future.succeededFuture();
-                                    }
-                                    
-                                    FileRecord.DownloadStatus currentStatus;
-                                    try {
-                                        currentStatus = FileRecord.DownloadStatus.valueOf(existing.downloadStatus());
-                                    } catch (IllegalArgumentException e) {
-                                        log.warn("%s Invalid download status '%s' for file %s, treating as idle".formatted(
-                                            uniqueKey, existing.downloadStatus(), existing.fileName()));
-                                        currentStatus = FileRecord.DownloadStatus.idle;
-                                    }
-                                    if (currentStatus != FileRecord.DownloadStatus.idle && currentStatus != FileRecord.DownloadStatus.completed) {
-                                        // Reset non-idle/non-completed files to idle for retry
-                                        return DataVerticle.fileRepository.updateDownloadStatus(
-                                            existing.id(),
-                                            existing.uniqueId(),
-                                            null,
-                                            FileRecord.DownloadStatus.idle,
-                                            null
-                                        ).onSuccess(v -> {
-                                            count.incrementAndGet();
-                                            log.trace("%s Reset file record to idle: %s".formatted(uniqueKey, fileRecord.fileName()));
-                                        });
-                                    }
-                                    return Future.succeededFuture();
-                                });
-                        }
-                    });
+                return fileRecord;
             })
-            .toList())
-            .map(count.get());
+            .filter(Objects::nonNull)
+            .toList();
+
+        return DataVerticle.fileRepository.createAllIfNotExist(fileRecords)
+            .compose(result -> {
+                List<FileRecord> inserted = result.v1;
+                log.trace("%s Created %d file records".formatted(uniqueKey, inserted.size()));
+
+                List<FileRecord> toReset = result.v2.stream()
+                    .filter(existing -> {
+                        FileRecord.DownloadStatus currentStatus;
+                        try {
+                            currentStatus = FileRecord.DownloadStatus.valueOf(existing.downloadStatus());
+                        } catch (IllegalArgumentException | NullPointerException e) {
+                            log.warn("%s Invalid download status '%s' for file %s, treating as idle".formatted(
+                                uniqueKey, existing.downloadStatus(), existing.fileName()));
+                            currentStatus = FileRecord.DownloadStatus.idle;
+                        }
+                        // Reset non-idle/non-completed files to idle for retry
+                        return currentStatus != FileRecord.DownloadStatus.idle && currentStatus != FileRecord.DownloadStatus.completed;
+                    })
+                    .toList();
+                return Future.all(toReset.stream()
+                        .map(existing -> DataVerticle.fileRepository.updateDownloadStatus(
+                            existing.id(),
+                            existing.uniqueId(),
+                            null,
+                            FileRecord.DownloadStatus.idle,
+                            null
+                        ).onSuccess(v -> log.trace("%s Reset file record to idle: %s".formatted(uniqueKey, existing.fileName()))))
+                        .toList())
+                    .map(inserted.size() + toReset.size());
+            });
     }
     
     private static Tuple2<String, List<String>> handleRule(SettingAutoRecords.DownloadRule rule) {
@@ -20,6 +20,7 @@ import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.healthchecks.HealthChecks;
+import io.vertx.ext.healthchecks.Status;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
@@ -34,6 +35,7 @@ import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.SettingRecord;
+import telegram.files.repository.impl.CachedFileRepository;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -65,6 +67,10 @@ public class HttpVerticle extends AbstractVerticle {
 
     private final FileRouteHandler fileRouteHandler = new FileRouteHandler();
 
+    private SqliteMaintenanceVerticle sqliteMaintenanceVerticle;
+
+    private AutoDownloadVerticle autoDownloadVerticle;
+
     private static final String SESSION_COOKIE_NAME = "tf";
 
     @Override
@@ -75,6 +81,8 @@ public class HttpVerticle extends AbstractVerticle {
                 .compose(_ -> initAutoDownloadVerticle())
                 .compose(_ -> initTransferVerticle())
                 .compose(_ -> initPreloadMessageVerticle())
+                .compose(_ -> initFileArchiveVerticle())
+                .compose(_ -> initSqliteMaintenanceVerticle())
                 .compose(_ -> initEventConsumer())
                 .onSuccess(startPromise::complete)
                 .onFailure(startPromise::fail);
@@ -145,11 +153,15 @@ public class HttpVerticle extends AbstractVerticle {
 
         HealthChecks hc = HealthChecks.create(vertx);
         hc.register("http-server", Promise::complete);
+        if (DataVerticle.fileRepository instanceof CachedFileRepository cachedFileRepository) {
+            hc.register("file-record-cache", promise -> promise.complete(Status.OK(cachedFileRepository.getStatistics())));
+        }
 
         router.get("/").handler(ctx -> ctx.response().end("Hello World!"));
         router.get("/health").handler(HealthCheckHandler.createWithHealthChecks(hc));
         router.get("/version").handler(ctx -> ctx.json(new JsonObject().put("version", Start.VERSION)));
         router.route("/ws").handler(this::handleWebSocket);
+        router.get("/database/statistics").handler(this::handleDatabaseStatistics);
 
         router.get("/settings").handler(this::handleSettings);
         router.post("/settings/create").handler(this::handleSettingsCreate);
@@ -166,6 +178,7 @@ public class HttpVerticle extends AbstractVerticle {
         router.get("/telegram/:telegramId/chat/:chatId/statistics").handler(this::handleTelegramChatDownloadStatistics);
         router.get("/telegram/:telegramId/download-statistics").handler(this::handleTelegramDownloadStatistics);
         router.post("/telegrams/change").handler(this::handleTelegramChange);
+        router.post("/telegram/:telegramId/chat/:chatId/update-priority").handler(this::handleChatPriorityUpdate);
         router.post("/telegram/:telegramId/toggle-proxy").handler(this::handleTelegramToggleProxy);
         router.get("/telegram/:telegramId/ping").handler(this::handleTelegramPing);
         router.get("/telegram/:telegramId/test-network").handler(this::handleTelegramTestNetwork);
@@ -179,11 +192,13 @@ public class HttpVerticle extends AbstractVerticle {
 
         router.get("/files/count").handler(this::handleFilesCount);
         router.get("/files").handler(this::handleFiles);
+        router.get("/files/changes").handler(this::handleFileChanges);
         router.post("/files/start-download-multiple").handler(this::handleFileStartDownloadMultiple);
         router.post("/files/cancel-download-multiple").handler(this::handleFileCancelDownloadMultiple);
         router.post("/files/toggle-pause-download-multiple").handler(this::handleFileTogglePauseDownloadMultiple);
         router.post("/files/remove-multiple").handler(this::handleFileRemoveMultiple);
         router.post("/files/update-tags").handler(this::handleFileTagsUpdateMultiple);
+        router.post("/files/update-priority").handler(this::handleFilePriorityUpdateMultiple);
         router.post("/file/:uniqueId/update-tags").handler(this::handleFileTagsUpdate);
 
         router.route()
@@ -213,7 +228,8 @@ public class HttpVerticle extends AbstractVerticle {
     }
 
     public Future<Void> initAutoDownloadVerticle() {
-        return vertx.deployVerticle(new AutoDownloadVerticle(), Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS)
+        autoDownloadVerticle = new AutoDownloadVerticle();
+        return vertx.deployVerticle(autoDownloadVerticle, Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS)
                 .mapEmpty();
     }
 
@@ -227,6 +243,23 @@ public class HttpVerticle extends AbstractVerticle {
                 .mapEmpty();
     }
 
+    public Future<Void> initFileArchiveVerticle() {
+        if (Config.FILE_ARCHIVE_AFTER_DAYS <= 0) {
+            return Future.succeededFuture();
+        }
+        return vertx.deployVerticle(new FileArchiveVerticle())
+                .mapEmpty();
+    }
+
+    public Future<Void> initSqliteMaintenanceVerticle() {
+        if (!Config.isSqlite()) {
+            return Future.succeededFuture();
+        }
+        sqliteMaintenanceVerticle = new SqliteMaintenanceVerticle();
+        return vertx.deployVerticle(sqliteMaintenanceVerticle)
+                .mapEmpty();
+    }
+
     private Future<Void> initEventConsumer() {
         vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
             log.debug("Received telegram event: %s".formatted(message.body()));
@@ -300,6 +333,18 @@ public class HttpVerticle extends AbstractVerticle {
                 .onFailure(err -> log.warn("Failed to upgrade to WebSocket: %s".formatted(err.getMessage())));
     }
 
+    private void handleDatabaseStatistics(RoutingContext ctx) {
+        if (!Config.isSqlite()) {
+            ctx.json(JsonObject.of("type", Config.DB_TYPE));
+            return;
+        }
+        SqliteMaintenanceVerticle.statistics(DataVerticle.readPool)
+                .map(statistics -> sqliteMaintenanceVerticle == null ? statistics :
+                        statistics.put("maintenance", sqliteMaintenanceVerticle.getStatus()))
+                .onSuccess(ctx::json)
+                .onFailure(ctx::fail);
+    }
+
     private void handleSettingsCreate(RoutingContext ctx) {
         JsonObject object = ctx.body().asJsonObject();
         if (CollUtil.isEmpty(object)) {
@@ -463,8 +508,11 @@ public class HttpVerticle extends AbstractVerticle {
 
         String type = ctx.request().getParam("type");
         String timeRange = ctx.request().getParam("timeRange");
+        long telegramId = Convert.toLong(ctx.pathParam("telegramId"));
         (Objects.equals(type, "phase") ? telegramVerticle.getDownloadStatisticsByPhase(Convert.toInt(timeRange, 1)) :
-                telegramVerticle.getDownloadStatistics())
+                telegramVerticle.getDownloadStatistics()
+                        .map(statistics -> autoDownloadVerticle == null ? statistics :
+                                statistics.put("concurrency", autoDownloadVerticle.getConcurrency(telegramId))))
                 .onSuccess(ctx::json)
                 .onFailure(ctx::fail);
     }
@@ -963,6 +1011,37 @@ public class HttpVerticle extends AbstractVerticle {
         });
     }
 
+    private void handleFilePriorityUpdateMultiple(RoutingContext ctx) {
+        JsonObject jsonObject = ctx.body().asJsonObject();
+        Integer priority = jsonObject.getInteger("priority");
+        JsonArray files = jsonObject.getJsonArray("files");
+        if (priority == null || CollUtil.isEmpty(files)) {
+            ctx.fail(400);
+            return;
+        }
+        List<String> uniqueIds = files.stream()
+                .map(f -> ((JsonObject) f).getString("uniqueId"))
+                .filter(StrUtil::isNotBlank)
+                .distinct()
+                .toList();
+        DataVerticle.fileRepository.updateDownloadPriority(uniqueIds, DownloadQueueService.clampPriority(priority))
+                .onSuccess(count -> ctx.json(JsonObject.of("count", count)))
+                .onFailure(ctx::fail);
+    }
+
+    private void handleChatPriorityUpdate(RoutingContext ctx) {
+        Long telegramId = Convert.toLong(ctx.pathParam("telegramId"));
+        Long chatId = Convert.toLong(ctx.pathParam("chatId"));
+        Integer priority = ctx.body().asJsonObject().getInteger("priority");
+        if (telegramId == null || chatId == null || priority == null) {
+            ctx.fail(400);
+            return;
+        }
+        DataVerticle.fileRepository.updateChatDownloadPriority(telegramId, chatId, DownloadQueueService.clampPriority(priority))
+                .onSuccess(count -> ctx.json(JsonObject.of("count", count)))
+                .onFailure(ctx::fail);
+    }
+
     private void handleFileMultiple(RoutingContext ctx, Function2<TelegramVerticle, JsonObject, Future<?>> handler) {
         JsonObject jsonObject = ctx.body().asJsonObject();
         JsonArray files = jsonObject.getJsonArray("files");
@@ -1024,6 +1103,15 @@ public class HttpVerticle extends AbstractVerticle {
                 .onFailure(ctx::fail);
     }
 
+    private void handleFileChanges(RoutingContext ctx) {
+        long since = Convert.toLong(ctx.queryParams().get("since"), -1L);
+        int limit = Math.clamp(Convert.toInt(ctx.queryParams().get("limit"), 200), 1, 1000);
+
+        FileRecordRetriever.getChanges(since, limit)
+                .onSuccess(ctx::json)
+                .onFailure(ctx::fail);
+    }
+
     private void handleFileTagsUpdate(RoutingContext ctx) {
         String uniqueId = ctx.pathParam("uniqueId");
         if (StrUtil.isBlank(uniqueId)) {
@@ -5,6 +5,8 @@ import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import io.vertx.core.Vertx;
 import telegram.files.maintains.AlbumCaptionMaintainVerticle;
+import telegram.files.maintains.DatabaseMigrateMaintainVerticle;
+import telegram.files.maintains.FileStatsMaintainVerticle;
 import telegram.files.maintains.MaintainVerticle;
 import telegram.files.maintains.ThumbnailMaintainVerticle;
 
@@ -24,6 +26,8 @@ public class Maintain {
             System.out.println("Maintain names:");
             System.out.println("  album-caption");
             System.out.println("  thumbnail");
+            System.out.println("  file-stats");
+            System.out.println("  db-migrate <source>    copy sqlite:/path/to/data.db, postgresql://... or mysql://... into the configured database");
             System.exit(1);
         }
 
@@ -47,6 +51,26 @@ public class Maintain {
                                 System.exit(1);
                             }));
                 }
+                case "file-stats" -> {
+                    maintainVerticle = new FileStatsMaintainVerticle();
+                    MessyUtils.await(vertx.deployVerticle(maintainVerticle, Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS)
+                            .onFailure(err -> {
+                                log.error("Failed to deploy file stats maintain verticle", err);
+                                System.exit(1);
+                            }));
+                }
+                case "db-migrate" -> {
+                    if (args.length < 2) {
+                        System.out.println("Missing source database, e.g. sqlite:/app/data/data.db");
+                        System.exit(1);
+                    }
+                    maintainVerticle = new DatabaseMigrateMaintainVerticle(args[1]);
+                    MessyUtils.await(vertx.deployVerticle(maintainVerticle, Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS)
+                            .onFailure(err -> {
+                                log.error("Failed to deploy database migrate maintain verticle", err);
+                                System.exit(1);
+                            }));
+                }
                 default -> {
                     System.out.println("Unknown maintain name: " + maintainName);
                     System.exit(1);
@@ -11,6 +11,8 @@ import telegram.files.repository.AutomationState;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 public class PreloadMessageVerticle extends AbstractVerticle {
@@ -94,7 +96,7 @@ public class PreloadMessageVerticle extends AbstractVerticle {
             auto.complete(AutomationState.HISTORY_PRELOAD_COMPLETE);
             return;
         }
-        int count = 0;
+        List<FileRecord> fileRecords = new ArrayList<>();
         for (TdApi.Message message : foundChatMessages.messages) {
             Optional<TdApiHelp.FileHandler<? extends TdApi.MessageContent>> fileHandlerOptional = TdApiHelp.getFileHandler(message);
             if (fileHandlerOptional.isEmpty()) {
@@ -102,11 +104,9 @@ public class PreloadMessageVerticle extends AbstractVerticle {
             }
             TdApi.MessageThreadInfo messageThreadInfo = Future.await(telegramVerticle.client
                     .execute(new TdApi.GetMessageThread(message.chatId, message.id), true));
-            FileRecord fileRecord = fileHandlerOptional.get().convertFileRecord(auto.telegramId).withThreadInfo(messageThreadInfo);
-            if (Future.await(DataVerticle.fileRepository.createIfNotExist(fileRecord))) {
-                count++;
-            }
+            fileRecords.add(fileHandlerOptional.get().convertFileRecord(auto.telegramId).withThreadInfo(messageThreadInfo));
         }
+        int count = Future.await(DataVerticle.fileRepository.createAllIfNotExist(fileRecords)).v1.size();
 
         if (log.isDebugEnabled() && count > 0) {
             log.debug("Load history message success! TelegramId: %d ChatId: %d Count: %d".formatted(auto.telegramId, auto.chatId, count));
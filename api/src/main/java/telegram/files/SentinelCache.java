@@ -0,0 +1,68 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import org.drinkless.tdlib.TdApi;
+import org.jooq.lambda.tuple.Tuple;
+import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.SettingAutoRecords;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The history cutoff sentinel of each automation: the chat's message at the rule's historySince, resolved with
+ * {@link TdApi.GetChatMessageByDate} once and kept until the automation is updated or removed.
+ * Only automations in {@link AutomationsHolder} are kept, a scan still running for a removed one resolves without caching.
+ */
+public class SentinelCache {
+
+    public static final SentinelCache INSTANCE = new SentinelCache();
+
+    // (telegramId, chatId) -> (historySince, sentinel message)
+    private final Map<Tuple2<Long, Long>, Tuple2<Integer, Future<TdApi.Message>>> sentinels = new ConcurrentHashMap<>();
+
+    private SentinelCache() {
+    }
+
+    public Future<TdApi.Message> get(SettingAutoRecords.Automation automation) {
+        SettingAutoRecords.DownloadRule rule = automation.download == null ? null : automation.download.rule;
+        return get(automation.telegramId, automation.chatId, rule == null ? null : rule.historySince);
+    }
+
+    /**
+     * @return the sentinel message, null without historySince or when the chat has no message at that date.
+     * A failed lookup isn't kept, the next call tries again.
+     */
+    public Future<TdApi.Message> get(long telegramId, long chatId, Integer historySince) {
+        if (historySince == null || historySince <= 0) {
+            return Future.succeededFuture();
+        }
+        Tuple2<Long, Long> key = Tuple.tuple(telegramId, chatId);
+        Tuple2<Integer, Future<TdApi.Message>> cached = sentinels.get(key);
+        if (cached != null && cached.v1.equals(historySince)) {
+            return cached.v2;
+        }
+        Optional<TelegramVerticle> verticleOpt = TelegramVerticles.get(telegramId);
+        if (verticleOpt.isEmpty()) {
+            return Future.failedFuture("Telegram verticle not found: %d".formatted(telegramId));
+        }
+        Future<TdApi.Message> sentinel = verticleOpt.get().client.execute(new TdApi.GetChatMessageByDate(chatId, historySince));
+        Tuple2<Integer, Future<TdApi.Message>> entry = Tuple.tuple(historySince, sentinel);
+        sentinels.put(key, entry);
+        // checked after the put, a removal invalidates before or sees the entry here
+        if (!AutomationsHolder.INSTANCE.autoRecords().exists(telegramId, chatId)) {
+            sentinels.remove(key, entry);
+        }
+        sentinel.onFailure(_ -> sentinels.remove(key, entry));
+        return sentinel;
+    }
+
+    public void invalidate(long telegramId, long chatId) {
+        sentinels.remove(Tuple.tuple(telegramId, chatId));
+    }
+
+    int size() {
+        return sentinels.size();
+    }
+}
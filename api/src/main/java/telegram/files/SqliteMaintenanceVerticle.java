@@ -0,0 +1,244 @@
+package telegram.files;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlConnection;
+import telegram.files.repository.FileRecord;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a SQLite database in shape while nothing writes to it: refreshes the planner statistics after the tables grew,
+ * runs PRAGMA optimize, hands free pages back to the file system and truncates the write-ahead log.
+ * The database counts as idle once the write-ahead log wasn't modified for {@link Config#SQLITE_MAINTENANCE_IDLE_SECONDS},
+ * the vacuum also waits until no file is downloading. The connection pragmas come from the SQLITE_* environment
+ * variables, see {@link Config}.
+ */
+public class SqliteMaintenanceVerticle extends AbstractVerticle {
+
+    private static final Log log = LogFactory.get();
+
+    private static final long OPTIMIZE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final long ANALYZE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Rows sampled per index by ANALYZE and PRAGMA optimize, enough for the planner and cheap on large tables.
+     */
+    private static final int ANALYSIS_LIMIT = 1000;
+
+    /**
+     * file_record grown by this share since the last ANALYZE makes its statistics stale.
+     */
+    private static final double ANALYZE_GROWTH = 0.25;
+
+    private static final int VACUUM_MIN_FREE_PAGES = 1024;
+
+    private static final int VACUUM_PAGES_PER_RUN = 4096;
+
+    private static final List<String> AUTO_VACUUM_MODES = List.of("none", "full", "incremental");
+
+    private static final List<String> TEMP_STORE_MODES = List.of("default", "file", "memory");
+
+    private final long idleMillis;
+
+    private final long intervalMillis;
+
+    private boolean running;
+
+    private long lastCheckpointAt;
+
+    private long lastOptimizeAt;
+
+    private long lastAnalyzeAt;
+
+    private long lastVacuumAt;
+
+    private long analyzedRowId;
+
+    public SqliteMaintenanceVerticle() {
+        this(TimeUnit.SECONDS.toMillis(Config.SQLITE_MAINTENANCE_IDLE_SECONDS), TimeUnit.MINUTES.toMillis(1));
+    }
+
+    public SqliteMaintenanceVerticle(long idleMillis, long intervalMillis) {
+        this.idleMillis = idleMillis;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        vertx.setPeriodic(intervalMillis, intervalMillis, _ -> maintain());
+        log.info("""
+                SQLite maintenance verticle started!
+                |Idle after: %d ms
+                |Interval: %d ms
+                """.formatted(idleMillis, intervalMillis));
+        startPromise.complete();
+    }
+
+    @Override
+    public void stop() {
+        log.info("SQLite maintenance verticle stopped!");
+    }
+
+    public JsonObject getStatus() {
+        return JsonObject.of(
+                "idle", isIdle(),
+                "lastCheckpointAt", lastCheckpointAt,
+                "lastOptimizeAt", lastOptimizeAt,
+                "lastAnalyzeAt", lastAnalyzeAt,
+                "lastVacuumAt", lastVacuumAt
+        );
+    }
+
+    /**
+     * Run whatever maintenance is due, if the database is idle. Statistics come first, the checkpoint last, so it also
+     * moves their writes out of the write-ahead log.
+     */
+    Future<Void> maintain() {
+        if (running || !isIdle()) {
+            return Future.succeededFuture();
+        }
+        running = true;
+        return DataVerticle.pool.withConnection(conn -> conn
+                        .query("PRAGMA analysis_limit = %d".formatted(ANALYSIS_LIMIT)).execute()
+                        .compose(_ -> analyze(conn))
+                        .compose(_ -> optimize(conn))
+                        .compose(_ -> vacuum(conn))
+                        .compose(_ -> checkpoint(conn)))
+                .onFailure(err -> log.error("Failed to maintain database: %s".formatted(err.getMessage())))
+                .onComplete(_ -> running = false);
+    }
+
+    private boolean isIdle() {
+        File wal = walFile();
+        return !wal.exists() || System.currentTimeMillis() - wal.lastModified() >= idleMillis;
+    }
+
+    private Future<Void> analyze(SqlConnection conn) {
+        return pragma(conn, "SELECT COALESCE(MAX(row_id), 0) FROM file_record")
+                .compose(maxRowId -> {
+                    boolean due = lastAnalyzeAt == 0
+                                  || System.currentTimeMillis() - lastAnalyzeAt >= ANALYZE_INTERVAL_MILLIS
+                                  || maxRowId > analyzedRowId * (1 + ANALYZE_GROWTH);
+                    if (!due) {
+                        return Future.succeededFuture();
+                    }
+                    return conn.query("ANALYZE").execute()
+                            .onSuccess(_ -> {
+                                lastAnalyzeAt = System.currentTimeMillis();
+                                analyzedRowId = maxRowId;
+                                log.debug("Analyzed database at file_record row %d".formatted(maxRowId));
+                            })
+                            .mapEmpty();
+                });
+    }
+
+    private Future<Void> optimize(SqlConnection conn) {
+        if (System.currentTimeMillis() - lastOptimizeAt < OPTIMIZE_INTERVAL_MILLIS) {
+            return Future.succeededFuture();
+        }
+        return conn.query("PRAGMA optimize").execute()
+                .onSuccess(_ -> lastOptimizeAt = System.currentTimeMillis())
+                .mapEmpty();
+    }
+
+    /**
+     * Only a database created with auto_vacuum=INCREMENTAL can shrink this way, an older one keeps its free pages
+     * until a full VACUUM. A running download writes its progress any moment, the vacuum waits for a window without one.
+     */
+    private Future<Void> vacuum(SqlConnection conn) {
+        return pragma(conn, "SELECT COALESCE(SUM(file_count), 0) FROM file_stats WHERE download_status = '%s'"
+                .formatted(FileRecord.DownloadStatus.downloading.name()))
+                .compose(downloading -> {
+                    if (downloading > 0) {
+                        log.debug("Skip vacuum, %d files downloading".formatted(downloading));
+                        return Future.succeededFuture();
+                    }
+                    return incrementalVacuum(conn);
+                });
+    }
+
+    private Future<Void> incrementalVacuum(SqlConnection conn) {
+        return pragma(conn, "PRAGMA auto_vacuum")
+                .compose(autoVacuum -> autoVacuum != 2 ? Future.succeededFuture(0L) : pragma(conn, "PRAGMA freelist_count"))
+                .compose(freePages -> {
+                    if (freePages < VACUUM_MIN_FREE_PAGES) {
+                        return Future.succeededFuture();
+                    }
+                    long pages = Math.min(freePages, VACUUM_PAGES_PER_RUN);
+                    return conn.query("PRAGMA incremental_vacuum(%d)".formatted(pages)).execute()
+                            .onSuccess(_ -> {
+                                lastVacuumAt = System.currentTimeMillis();
+                                log.debug("Vacuumed %d of %d free pages".formatted(pages, freePages));
+                            })
+                            .mapEmpty();
+                });
+    }
+
+    private Future<Void> checkpoint(SqlConnection conn) {
+        if (walFile().length() == 0) {
+            return Future.succeededFuture();
+        }
+        return conn.query("PRAGMA wal_checkpoint(TRUNCATE)").execute()
+                .onSuccess(rs -> {
+                    // busy, a reader kept the log, the next idle period tries again
+                    if (rs.iterator().next().getInteger(0) == 0) {
+                        lastCheckpointAt = System.currentTimeMillis();
+                    }
+                })
+                .mapEmpty();
+    }
+
+    /**
+     * Page counts, sizes and the settings of a SQLite database.
+     */
+    public static Future<JsonObject> statistics(SqlClient client) {
+        return Future.all(
+                        pragma(client, "PRAGMA page_size"),
+                        pragma(client, "PRAGMA page_count"),
+                        pragma(client, "PRAGMA freelist_count"),
+                        pragma(client, "PRAGMA auto_vacuum"),
+                        pragma(client, "PRAGMA cache_size"),
+                        pragma(client, "PRAGMA mmap_size"),
+                        pragma(client, "PRAGMA temp_store"),
+                        client.query("PRAGMA journal_mode").execute().map(rs -> rs.iterator().next().getString(0))
+                )
+                .map(r -> {
+                    long pageSize = r.<Long>resultAt(0);
+                    long pageCount = r.<Long>resultAt(1);
+                    long freePages = r.<Long>resultAt(2);
+                    return JsonObject.of(
+                            "type", Config.DB_TYPE,
+                            "pageSize", pageSize,
+                            "pageCount", pageCount,
+                            "freelistCount", freePages,
+                            "databaseBytes", pageSize * pageCount,
+                            "freeBytes", pageSize * freePages,
+                            "walBytes", walFile().length(),
+                            "journalMode", r.<String>resultAt(7),
+                            "autoVacuum", AUTO_VACUUM_MODES.get(r.<Long>resultAt(3).intValue()),
+                            "cacheSize", r.<Long>resultAt(4),
+                            "mmapSize", r.<Long>resultAt(5),
+                            "tempStore", TEMP_STORE_MODES.get(r.<Long>resultAt(6).intValue())
+                    );
+                });
+    }
+
+    private static Future<Long> pragma(SqlClient client, String sql) {
+        return client.query(sql).execute()
+                .map(rs -> Convert.toLong(rs.iterator().next().getValue(0), 0L));
+    }
+
+    private static File walFile() {
+        return new File(DataVerticle.getDataPath() + "-wal");
+    }
+}
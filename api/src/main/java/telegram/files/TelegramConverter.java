@@ -15,6 +15,7 @@ import io.vertx.core.json.JsonObject;
 import org.drinkless.tdlib.TdApi;
 import org.jooq.lambda.tuple.Tuple;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileThumbnail;
 import telegram.files.repository.SettingAutoRecords;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.StatisticRecord;
@@ -61,7 +62,7 @@ public class TelegramConverter {
                 .compose(t -> DataVerticle.settingRepository.<Boolean>getByKey(SettingKey.uniqueOnly).map(t::concat))
                 .map(t -> {
                     Map<String, FileRecord> fileRecords = t.v1;
-                    Map<String, FileRecord> thumbnails = t.v2;
+                    Map<String, FileThumbnail> thumbnails = t.v2;
                     List<TdApi.Message> filterMessages = t.v3 ? TdApiHelp.filterUniqueMessages(Arrays.asList(messages))
                             : Arrays.asList(messages);
 
@@ -130,7 +131,7 @@ public class TelegramConverter {
 
     public static JsonObject withSource(long telegramId,
                                         FileRecord fileRecord,
-                                        FileRecord thumbnailRecord,
+                                        FileThumbnail thumbnailRecord,
                                         TdApi.Message message) {
         TdApiHelp.FileHandler<? extends TdApi.MessageContent> fileHandler = TdApiHelp.getFileHandler(message)
                 .orElse(null);
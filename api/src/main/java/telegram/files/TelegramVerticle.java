@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -67,6 +68,9 @@ public class TelegramVerticle extends AbstractVerticle {
 
     private long lastFileDownloadEventTime;
 
+    // file ids paused or cancelled from the web page, their download stopping isn't a failure
+    private final Set<Integer> stoppedByUser = ConcurrentHashMap.newKeySet();
+
     public TelegramVerticle(String rootPath) {
         this.rootPath = rootPath;
     }
@@ -302,7 +306,19 @@ public class TelegramVerticle extends AbstractVerticle {
                 });
     }
 
+    /**
+     * Start a download the user asked for, see {@link DownloadQueueService#INTERACTIVE_PRIORITY}.
+     */
     public Future<FileRecord> startDownload(Long chatId, Long messageId, Integer fileId) {
+        return startDownload(chatId, messageId, fileId, false, DownloadQueueService.INTERACTIVE_PRIORITY);
+    }
+
+    /**
+     * @param claimed  the file record was already marked downloading by {@link telegram.files.repository.FileRepository#claimFilesForDownload},
+     *                 the download is started instead of being rejected as a duplicate
+     * @param priority TDLib download priority, 1..32
+     */
+    public Future<FileRecord> startDownload(Long chatId, Long messageId, Integer fileId, boolean claimed, int priority) {
         return Future.all(
                         client.execute(new TdApi.GetFile(fileId)),
                         client.execute(new TdApi.GetMessage(chatId, messageId)),
@@ -332,7 +348,8 @@ public class TelegramVerticle extends AbstractVerticle {
                         }
 //                        return Future.failedFuture("Unknown file download status");
                     }
-                    if (dbFileRecord != null && !dbFileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle)) {
+                    if (dbFileRecord != null && !dbFileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle)
+                        && !(claimed && dbFileRecord.isDownloadStatus(FileRecord.DownloadStatus.downloading))) {
                         return Future.failedFuture("File is already downloading or completed");
                     }
 
@@ -359,7 +376,7 @@ public class TelegramVerticle extends AbstractVerticle {
                             .compose(record -> {
                                 // Check if we should start the download
                                 // Don't start if already downloading or completed
-                                if (record.isDownloadStatus(FileRecord.DownloadStatus.downloading) ||
+                                if ((!claimed && record.isDownloadStatus(FileRecord.DownloadStatus.downloading)) ||
                                     record.isDownloadStatus(FileRecord.DownloadStatus.completed)) {
                                     return Future.succeededFuture(record);
                                 }
@@ -380,7 +397,7 @@ public class TelegramVerticle extends AbstractVerticle {
                                 
                                 // Start the download
                                 return statusUpdateFuture
-                                        .compose(updatedRecord -> client.execute(new TdApi.AddFileToDownloads(fileId, chatId, messageId, 32))
+                                        .compose(updatedRecord -> client.execute(new TdApi.AddFileToDownloads(fileId, chatId, messageId, priority))
                                                 .onSuccess(ignore -> {
                                                     sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
                                                             .put("fileId", fileId)
@@ -431,6 +448,7 @@ public class TelegramVerticle extends AbstractVerticle {
                         return Future.failedFuture("File not started downloading");
                     }
 
+                    stoppedByUser.add(fileId);
                     return client.execute(new TdApi.CancelDownloadFile(fileId, false))
                             .map(file);
                 })
@@ -468,10 +486,14 @@ public class TelegramVerticle extends AbstractVerticle {
                         // Maybe the file is not exist, so we need to redownload it
                         return DataVerticle.fileRepository.getByUniqueId(file.remote.uniqueId)
                                 .compose(fileRecord ->
-                                        client.execute(new TdApi.AddFileToDownloads(fileId, fileRecord.chatId(), fileRecord.messageId(), 32)))
+                                        client.execute(new TdApi.AddFileToDownloads(fileId, fileRecord.chatId(), fileRecord.messageId(),
+                                                DownloadQueueService.INTERACTIVE_PRIORITY)))
                                 .mapEmpty();
                     }
 
+                    if (isPaused) {
+                        stoppedByUser.add(fileId);
+                    }
                     return client.execute(new TdApi.ToggleDownloadIsPaused(fileId, isPaused));
                 })
                 .mapEmpty();
@@ -571,6 +593,10 @@ public class TelegramVerticle extends AbstractVerticle {
         });
     }
 
+    public long getCurrentSpeed() {
+        return avgSpeed.getCurrentSpeed();
+    }
+
     public Future<JsonObject> getDownloadStatisticsByPhase(Integer timeRange) {
         // 1: 1 hour, 2: 1 day, 3: 1 week, 4: 1 month
         long endTime = System.currentTimeMillis();
@@ -723,7 +749,7 @@ public class TelegramVerticle extends AbstractVerticle {
                         if (mainFileRecord != null && mainFileRecord.thumbnailUniqueId() != null) {
                             return FileRecordRetriever.getThumbnails(List.of(mainFileRecord))
                                     .map(thumbnailMap -> {
-                                        FileRecord thumbnailRecord = thumbnailMap.get(mainFileRecord.thumbnailUniqueId());
+                                        FileThumbnail thumbnailRecord = thumbnailMap.get(mainFileRecord.thumbnailUniqueId());
                                         if (thumbnailRecord != null && thumbnailRecord.isDownloadStatus(FileRecord.DownloadStatus.completed)) {
                                             statusData.put("thumbnailFile", JsonObject.of(
                                                     "uniqueId", thumbnailRecord.uniqueId(),
@@ -938,6 +964,7 @@ public class TelegramVerticle extends AbstractVerticle {
                                             finalCompletionDate)
                                     .onSuccess(r -> {
                                         sendFileStatusHttpEvent(file, r);
+                                        publishDownloadStatusChanged(file.id, fileRecord, r);
                                         
                                         // Set file modification time to match original Telegram upload date
                                         if (finalCompletionDate != null && finalLocalPath != null && fileRecord.date() > 0) {
@@ -974,6 +1001,23 @@ public class TelegramVerticle extends AbstractVerticle {
         }
     }
 
+    /**
+     * stoppedByUser tells a download paused or cancelled from the web page apart from one TDLib stopped on an error.
+     */
+    private void publishDownloadStatusChanged(int fileId, FileRecord fileRecord, JsonObject fileUpdated) {
+        if (fileUpdated == null || !fileUpdated.containsKey("downloadStatus")) {
+            return;
+        }
+        boolean downloading = FileRecord.DownloadStatus.downloading.name().equals(fileUpdated.getString("downloadStatus"));
+        vertx.eventBus().publish(EventEnum.DOWNLOAD_STATUS_CHANGED.address(), JsonObject.of()
+                .put("telegramId", fileRecord.telegramId())
+                .put("uniqueId", fileRecord.uniqueId())
+                .put("from", fileUpdated.getString("previousDownloadStatus"))
+                .put("to", fileUpdated.getString("downloadStatus"))
+                .put("stoppedByUser", !downloading && stoppedByUser.remove(fileId))
+        );
+    }
+
     private void onMessageReceived(TdApi.Message message) {
         log.trace("[%s] Receive message: %s".formatted(getRootId(), message));
         if (this.telegramRecord == null) {
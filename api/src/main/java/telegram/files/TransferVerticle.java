@@ -8,7 +8,7 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.json.JsonObject;
-import org.jooq.lambda.tuple.Tuple3;
+import org.jooq.lambda.tuple.Tuple5;
 import telegram.files.repository.AutomationState;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
@@ -137,7 +137,7 @@ public class TransferVerticle extends AbstractVerticle {
             if (transfer == null) {
                 continue;
             }
-            Tuple3<List<FileRecord>, Long, Long> filesTuple = Future.await(DataVerticle.fileRepository.getFiles(automation.chatId,
+            Tuple5<List<FileRecord>, Long, Long, Boolean, Double> filesTuple = Future.await(DataVerticle.fileRepository.getFiles(automation.chatId,
                     Map.of("downloadStatus", FileRecord.DownloadStatus.completed.name(),
                             "transferStatus", FileRecord.TransferStatus.idle.name()
                     )
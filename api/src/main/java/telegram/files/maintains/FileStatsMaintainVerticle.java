@@ -0,0 +1,28 @@
+package telegram.files.maintains;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import telegram.files.DataVerticle;
+
+/**
+ * This verticle rebuilds the file statistics from the file records.
+ */
+public class FileStatsMaintainVerticle extends MaintainVerticle {
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        super.start(startPromise, this::handleFileStats);
+    }
+
+    public void handleFileStats() {
+        log.info("🔨 Start to rebuild file statistics");
+        try {
+            Future.await(DataVerticle.fileRepository.rebuildFileStats());
+            log.info("✅ Finished rebuilding file statistics, cost: %d ms".formatted(timeInterval.intervalMs()));
+            super.end(true, null);
+        } catch (Exception e) {
+            log.error("🔨 Failed to rebuild file statistics", e);
+            super.end(false, e);
+        }
+    }
+}
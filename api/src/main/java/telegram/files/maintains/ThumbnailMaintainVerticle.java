@@ -11,6 +11,7 @@ import io.vertx.sqlclient.templates.SqlTemplate;
 import org.drinkless.tdlib.TdApi;
 import telegram.files.*;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
 
 import java.util.List;
 import java.util.Map;
@@ -51,10 +52,10 @@ public class ThumbnailMaintainVerticle extends MaintainVerticle {
                 log.debug("🔨 Scan page %d, limit 100".formatted(page));
                 List<FileRecord> rows = Future.await(SqlTemplate.forQuery(DataVerticle.pool, """
                                 SELECT * FROM file_record
-                                WHERE thumbnail_unique_id is null AND type != 'thumbnail'
+                                WHERE thumbnail_unique_id is null AND type != %s
                                 %s
                                 ORDER BY message_id desc LIMIT 100
-                                """.formatted(fromMessageId == 0 ? "" : " AND message_id < #{fromMessageId}")
+                                """.formatted(FileRecordCode.TYPE.literal("thumbnail"), fromMessageId == 0 ? "" : " AND message_id < #{fromMessageId}")
                         )
                         .mapTo(FileRecord.ROW_MAPPER)
                         .execute(MapUtil.of("fromMessageId", fromMessageId))
@@ -159,15 +160,8 @@ public class ThumbnailMaintainVerticle extends MaintainVerticle {
     }
 
     private void updateThumbnailUniqueId(String uniqueId, String thumbnailUniqueId) {
-        SqlTemplate.forUpdate(DataVerticle.pool, """
-                        UPDATE file_record
-                        SET thumbnail_unique_id = #{thumbnailUniqueId}
-                        WHERE unique_id = #{uniqueId}
-                        """)
-                .execute(MapUtil.ofEntries(
-                        MapUtil.entry("uniqueId", uniqueId),
-                        MapUtil.entry("thumbnailUniqueId", thumbnailUniqueId)
-                ))
+        // through the repository, so the cached record sees the thumbnail
+        DataVerticle.fileRepository.updateThumbnailUniqueId(uniqueId, thumbnailUniqueId)
                 .onFailure(err -> log.error(err, "🔨 Failed to update thumbnail. file unique id: %s".formatted(uniqueId)));
     }
 }
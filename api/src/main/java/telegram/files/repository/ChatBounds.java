@@ -0,0 +1,31 @@
+package telegram.files.repository;
+
+/**
+ * The smallest and largest message id and date of the files stored for a chat, 0 when it has none.
+ * Bounds only widen: a deleted file may still be inside them.
+ */
+public record ChatBounds(long minMessageId, long maxMessageId, int minDate, int maxDate) {
+
+    public static final ChatBounds EMPTY = new ChatBounds(0, 0, 0, 0);
+
+    public static ChatBounds of(FileRecord fileRecord) {
+        return new ChatBounds(fileRecord.messageId(), fileRecord.messageId(), fileRecord.date(), fileRecord.date());
+    }
+
+    public boolean isEmpty() {
+        return maxMessageId == 0;
+    }
+
+    public ChatBounds merge(ChatBounds other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        return new ChatBounds(Math.min(minMessageId, other.minMessageId),
+                Math.max(maxMessageId, other.maxMessageId),
+                Math.min(minDate, other.minDate),
+                Math.max(maxDate, other.maxDate));
+    }
+}
@@ -0,0 +1,74 @@
+package telegram.files.repository;
+
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.templates.RowMapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Maps rows by column position. {@link #bind} looks the positions up by name once per result set,
+ * the row mapper it returns reads by index only.
+ */
+@FunctionalInterface
+public interface ColumnMapper<T> {
+
+    RowMapper<T> bind(Columns columns);
+
+    default List<T> mapAll(RowSet<Row> rows) {
+        List<T> list = new ArrayList<>(rows.size());
+        if (rows.size() == 0) {
+            return list;
+        }
+        RowMapper<T> mapper = bind(Columns.of(rows.columnsNames()));
+        for (Row row : rows) {
+            list.add(mapper.map(row));
+        }
+        return list;
+    }
+
+    /**
+     * For {@link io.vertx.sqlclient.templates.SqlTemplate#mapTo}, which hands over single rows: binds again for every row.
+     */
+    default RowMapper<T> rowMapper() {
+        return row -> {
+            List<String> names = new ArrayList<>(row.size());
+            for (int i = 0; i < row.size(); i++) {
+                names.add(row.getColumnName(i));
+            }
+            return bind(Columns.of(names)).map(row);
+        };
+    }
+
+    final class Columns {
+
+        private final Map<String, Integer> positions;
+
+        private Columns(Map<String, Integer> positions) {
+            this.positions = positions;
+        }
+
+        public static Columns of(List<String> names) {
+            Map<String, Integer> positions = new HashMap<>(names.size() * 2);
+            for (int i = 0; i < names.size(); i++) {
+                positions.putIfAbsent(names.get(i).toLowerCase(), i);
+            }
+            return new Columns(positions);
+        }
+
+        /**
+         * @throws NoSuchElementException if the result set has no such column
+         */
+        public int indexOf(String column) {
+            Integer position = positions.get(column);
+            if (position == null) {
+                throw new NoSuchElementException("Column '%s' is not in the result set".formatted(column));
+            }
+            return position;
+        }
+    }
+}
@@ -5,7 +5,9 @@ import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
 import io.vertx.sqlclient.SqlClient;
+import telegram.files.Config;
 
+import java.util.List;
 import java.util.TreeMap;
 import java.util.stream.Stream;
 
@@ -19,6 +21,13 @@ public interface Definition {
         return new TreeMap<>();
     }
 
+    /**
+     * Secondary indexes of the table, created after the table and its migrations on every startup.
+     */
+    default List<Index> getIndexes() {
+        return List.of();
+    }
+
     default Future<Void> createTable(SqlClient sqlClient) {
         return sqlClient
                 .query(getScheme())
@@ -44,4 +53,60 @@ public interface Definition {
                 .onFailure(err -> log.error("Failed to migrate table: %s".formatted(err.getMessage())))
                 .mapEmpty();
     }
+
+    /**
+     * Whether an upgrade from lastVersion to currentVersion passes version, for migrations that aren't plain statements.
+     */
+    static boolean crosses(Version lastVersion, Version currentVersion, Version version) {
+        return lastVersion.compareTo(version) < 0 && currentVersion.compareTo(version) >= 0;
+    }
+
+    /**
+     * Indexes only speed up queries, a failing one is logged and doesn't stop the startup.
+     */
+    default Future<Void> createIndexes(SqlClient sqlClient) {
+        List<Index> indexes = getIndexes();
+        if (indexes.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return Future.join(indexes.stream().map(index -> createIndex(sqlClient, index)).toList())
+                .<Void>mapEmpty()
+                .otherwise(err -> {
+                    log.error("Failed to create index: %s".formatted(err.getMessage()));
+                    return null;
+                });
+    }
+
+    private Future<Void> createIndex(SqlClient sqlClient, Index index) {
+        if (!Config.isMysql()) {
+            return sqlClient.query(index.toSql(true))
+                    .execute()
+                    .onFailure(e -> log.error("Failed to create index: %s".formatted(index.name()), e))
+                    .mapEmpty();
+        }
+        // MySQL has no CREATE INDEX IF NOT EXISTS, check the catalog first
+        return sqlClient.query("""
+                        SELECT 1
+                        FROM information_schema.statistics
+                        WHERE table_schema = DATABASE()
+                          AND table_name = '%s'
+                          AND index_name = '%s'
+                        LIMIT 1
+                        """.formatted(index.table(), index.name()))
+                .execute()
+                .compose(rs -> rs.size() > 0 ? Future.<Void>succeededFuture() :
+                        sqlClient.query(index.toSql(false)).execute().<Void>mapEmpty())
+                .onFailure(e -> log.error("Failed to create index: %s".formatted(index.name()), e));
+    }
+
+    record Index(String name, String table, String columns, boolean unique) {
+
+        public Index(String name, String table, String columns) {
+            this(name, table, columns, false);
+        }
+
+        public String toSql(boolean ifNotExists) {
+            return "CREATE %sINDEX %s%s ON %s (%s)".formatted(unique ? "UNIQUE " : "", ifNotExists ? "IF NOT EXISTS " : "", name, table, columns);
+        }
+    }
 }
@@ -0,0 +1,41 @@
+package telegram.files.repository;
+
+import java.util.Objects;
+
+/**
+ * The columns of file_record the download queue needs: what to fetch from Telegram, how to order it and what to count in file_stats.
+ */
+public record DownloadCandidate(int id,
+                                String uniqueId,
+                                long telegramId,
+                                long chatId,
+                                long messageId,
+                                int date,
+                                String type,
+                                long size,
+                                int downloadPriority) {
+
+    public static final String COLUMNS = "id, unique_id, telegram_id, chat_id, message_id, date, type, size, download_priority";
+
+    public static final ColumnMapper<DownloadCandidate> MAPPER = columns -> {
+        int id = columns.indexOf("id");
+        int uniqueId = columns.indexOf("unique_id");
+        int telegramId = columns.indexOf("telegram_id");
+        int chatId = columns.indexOf("chat_id");
+        int messageId = columns.indexOf("message_id");
+        int date = columns.indexOf("date");
+        int type = columns.indexOf("type");
+        int size = columns.indexOf("size");
+        int downloadPriority = columns.indexOf("download_priority");
+        return row -> new DownloadCandidate(row.getInteger(id),
+                row.getString(uniqueId),
+                row.getLong(telegramId),
+                row.getLong(chatId),
+                row.getLong(messageId),
+                row.getInteger(date),
+                FileRecordCode.TYPE.decode(row.getInteger(type)),
+                row.getLong(size),
+                Objects.requireNonNullElse(row.getInteger(downloadPriority), 0)
+        );
+    };
+}
@@ -0,0 +1,118 @@
+package telegram.files.repository;
+
+import cn.hutool.core.collection.IterUtil;
+import cn.hutool.core.lang.Version;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlResult;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.repository.impl.SqlDialect;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Cold half of file_record. Files downloaded and transferred a while ago are moved here, so the queue queries and their
+ * indexes only see the rows still in flight. The table has the columns of file_record and rows keep their row_id.
+ * file_stats keeps counting archived files, moving a row changes no statistics.
+ */
+public class FileArchive {
+
+    public static final String TABLE = "file_record_archive";
+
+    public static final String SCHEME = FileRecord.SCHEME.replaceFirst("file_record", TABLE);
+
+    /**
+     * The reads falling back to the archive: by unique id, by chat, by album, the completed statistics and the change feed.
+     */
+    public static final List<Definition.Index> INDEXES = List.of(
+            new Definition.Index("uk_file_record_archive_unique_id", TABLE, "unique_id", true),
+            new Definition.Index("idx_file_record_archive_chat_message", TABLE, "chat_id, message_id"),
+            new Definition.Index("idx_file_record_archive_telegram_chat", TABLE, "telegram_id, chat_id, message_id"),
+            new Definition.Index("idx_file_record_archive_thread", TABLE, "thread_chat_id, message_thread_id"),
+            new Definition.Index("idx_file_record_archive_media_album", TABLE, "media_album_id"),
+            new Definition.Index("idx_file_record_archive_completion", TABLE, "telegram_id, completion_date"),
+            new Definition.Index("idx_file_record_archive_change_seq", TABLE, "change_seq")
+    );
+
+    private static final String COLUMN_LIST = String.join(", ", FileRecord.COLUMNS);
+
+    public static class FileArchiveDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+
+        @Override
+        public List<Index> getIndexes() {
+            return INDEXES;
+        }
+
+        /**
+         * The archive follows file_record by adding the columns it lacks, replaying the ALTERs of file_record would
+         * fail on an archive created after them.
+         */
+        @Override
+        public Future<Void> migrate(SqlClient sqlClient, Version lastVersion, Version currentVersion) {
+            return FileRecordMigration.addMissingColumns(sqlClient, TABLE);
+        }
+    }
+
+    /**
+     * file_record and the archive as one derived table named file_record, for the reads spanning both.
+     * Filters go outside, the databases push them down into both halves.
+     */
+    public static String union(String columns) {
+        return "(SELECT %1$s FROM file_record UNION ALL SELECT %1$s FROM %2$s) file_record".formatted(columns, TABLE);
+    }
+
+    /**
+     * Move up to limit files completed and transferred before the cutoff into the archive, oldest completion first.
+     * Must run in a transaction, the moved rows are locked until it ends.
+     *
+     * @param completedBefore epoch milliseconds
+     * @return the number of files moved
+     */
+    public static Future<Integer> archive(SqlClient client, long completedBefore, int limit) {
+        return SqlTemplate
+                .forQuery(client, SqlDialect.current().lockSkipLocked("""
+                        SELECT row_id FROM file_record
+                        WHERE transfer_status = %s
+                          AND completion_date < #{completedBefore}
+                          AND download_status = %s
+                        ORDER BY completion_date
+                        LIMIT #{limit}
+                        """.formatted(FileRecordCode.TRANSFER_STATUS.literal("completed"), FileRecordCode.DOWNLOAD_STATUS.literal("completed"))))
+                .mapTo(row -> row.getLong(0))
+                .execute(Map.of("completedBefore", completedBefore, "limit", limit))
+                .map(IterUtil::toList)
+                .compose(rowIds -> {
+                    if (rowIds.isEmpty()) {
+                        return Future.succeededFuture(0);
+                    }
+                    String rowIdList = rowIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+                    return client.query("INSERT INTO %1$s(row_id, %2$s) SELECT row_id, %2$s FROM file_record WHERE row_id IN (%3$s)"
+                                    .formatted(TABLE, COLUMN_LIST, rowIdList))
+                            .execute()
+                            .compose(_ -> client.query("DELETE FROM file_record WHERE row_id IN (%s)".formatted(rowIdList)).execute())
+                            .map(SqlResult::rowCount);
+                });
+    }
+
+    /**
+     * Move a file back into file_record, before a write to it. Must run in a transaction.
+     *
+     * @return whether the archive held the file
+     */
+    public static Future<Boolean> restore(SqlClient client, String uniqueId) {
+        return SqlTemplate
+                .forUpdate(client, "INSERT INTO file_record(row_id, %1$s) SELECT row_id, %1$s FROM %2$s WHERE unique_id = #{uniqueId}"
+                        .formatted(COLUMN_LIST, TABLE))
+                .execute(Map.of("uniqueId", uniqueId))
+                .compose(r -> r.rowCount() == 0 ? Future.succeededFuture(false) : SqlTemplate
+                        .forUpdate(client, "DELETE FROM %s WHERE unique_id = #{uniqueId}".formatted(TABLE))
+                        .execute(Map.of("uniqueId", uniqueId))
+                        .map(true));
+    }
+}
@@ -0,0 +1,61 @@
+package telegram.files.repository;
+
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.repository.impl.SqlDialect;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files deleted from file_record and the change_seq of their deletion, so the change feed can tell clients about them.
+ * A file deleted again keeps one row with the latest number.
+ */
+public class FileDeletion {
+
+    public static final String TABLE = "file_record_deletion";
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS file_record_deletion
+            (
+                unique_id   VARCHAR(255) NOT NULL PRIMARY KEY,
+                telegram_id BIGINT       NOT NULL,
+                chat_id     BIGINT       NOT NULL,
+                change_seq  BIGINT       NOT NULL
+            )
+            """;
+
+    public static final List<Definition.Index> INDEXES = List.of(
+            new Definition.Index("idx_file_record_deletion_change_seq", TABLE, "change_seq")
+    );
+
+    private static final List<String> COLUMNS = List.of("unique_id", "telegram_id", "chat_id", "change_seq");
+
+    public static class FileDeletionDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+
+        @Override
+        public List<Index> getIndexes() {
+            return INDEXES;
+        }
+    }
+
+    /**
+     * Record the deletion of a file, in the transaction deleting it.
+     */
+    public static Future<Void> record(SqlClient client, FileRecord fileRecord, long changeSeq) {
+        SqlDialect dialect = SqlDialect.current();
+        return SqlTemplate
+                .forUpdate(client, dialect.upsert(TABLE, COLUMNS, "(#{uniqueId}, #{telegramId}, #{chatId}, #{changeSeq})",
+                        List.of("unique_id"), Map.of("change_seq", dialect.inserted("change_seq"))))
+                .execute(Map.of("uniqueId", fileRecord.uniqueId(),
+                        "telegramId", fileRecord.telegramId(),
+                        "chatId", fileRecord.chatId(),
+                        "changeSeq", changeSeq))
+                .mapEmpty();
+    }
+}
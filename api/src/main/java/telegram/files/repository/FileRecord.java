@@ -3,14 +3,16 @@ package telegram.files.repository;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.lang.Version;
 import cn.hutool.core.map.MapUtil;
+import cn.hutool.core.util.StrUtil;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.templates.RowMapper;
 import io.vertx.sqlclient.templates.TupleMapper;
 import org.drinkless.tdlib.TdApi;
 import telegram.files.Config;
 
-import java.util.Map;
-import java.util.Objects;
-import java.util.TreeMap;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public record FileRecord(int id, //file id will change
                          String uniqueId, // unique id of the file, if empty, it means the file is cant be downloaded
@@ -51,9 +53,17 @@ public record FileRecord(int id, //file id will change
         idle, transferring, completed, error
     }
 
+    /**
+     * Immutable surrogate key, TDLib's file id changes and is a plain column.
+     */
+    public static final String ROW_ID_COLUMN = Config.isPostgres() ? "BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY" :
+            Config.isMysql() ? "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY" :
+                    "INTEGER PRIMARY KEY";
+
     public static final String SCHEME = """
             CREATE TABLE IF NOT EXISTS file_record
             (
+                row_id              %s,
                 id                  INT,
                 unique_id           VARCHAR(255),
                 telegram_id         BIGINT,
@@ -64,7 +74,7 @@ public record FileRecord(int id, //file id will change
                 has_sensitive_content BOOLEAN,
                 size                BIGINT,
                 downloaded_size     BIGINT,
-                type                VARCHAR(255),
+                type                SMALLINT,
                 mime_type           VARCHAR(255),
                 file_name           VARCHAR(255),
                 thumbnail           VARCHAR(2056),
@@ -72,17 +82,52 @@ public record FileRecord(int id, //file id will change
                 caption             VARCHAR(4096),
                 extra               VARCHAR(4096),
                 local_path          VARCHAR(1024),
-                download_status     VARCHAR(255),
-                transfer_status     VARCHAR(255),
+                download_status     SMALLINT,
+                transfer_status     SMALLINT,
                 start_date          BIGINT,
                 completion_date     BIGINT,
                 tags                VARCHAR(2056),
                 thread_chat_id      BIGINT,
                 message_thread_id   BIGINT,
                 reaction_count      BIGINT DEFAULT 0,
-                PRIMARY KEY (id, unique_id)
+                scan_state          SMALLINT,
+                download_priority   INT DEFAULT 0,
+                queued_at           BIGINT,
+                change_seq          BIGINT
             )
-            """;
+            """.formatted(ROW_ID_COLUMN);
+
+    /**
+     * The declaration of every column but row_id by name, in the order of {@link #SCHEME}.
+     */
+    static final Map<String, String> COLUMN_DEFINITIONS = Arrays.stream(SCHEME.split("\n"))
+            .map(String::trim)
+            .filter(line -> !line.isEmpty() && !line.startsWith("CREATE") && !line.equals("(") && !line.equals(")"))
+            .map(line -> StrUtil.removeSuffix(line, ",").split("\\s+", 2))
+            .filter(declaration -> !declaration[0].equals("row_id"))
+            .collect(Collectors.toMap(declaration -> declaration[0], declaration -> declaration[1], (a, _) -> a, LinkedHashMap::new));
+
+    /**
+     * Every column but row_id, for statements that name them instead of {@code SELECT *}.
+     */
+    public static final List<String> COLUMNS = List.copyOf(COLUMN_DEFINITIONS.keySet());
+
+    /**
+     * The version replacing the (id, unique_id) primary key with row_id, see {@link FileRecordMigration#migrateRowId}.
+     */
+    public static final Version ROW_ID_VERSION = new Version("0.3.1");
+
+    /**
+     * The version storing type and the statuses as codes, see {@link FileRecordCode}.
+     */
+    public static final Version CODES_VERSION = new Version("0.3.2");
+
+    /**
+     * The version replacing idx_file_record_chat_queue with idx_file_record_chat_priority_queue.
+     */
+    public static final Version PRIORITY_QUEUE_VERSION = new Version("0.3.4");
+
+    private static final String OLD_CHAT_QUEUE_INDEX = "idx_file_record_chat_queue";
 
     public static final TreeMap<Version, String[]> MIGRATIONS = new TreeMap<>(MapUtil.ofEntries(
             MapUtil.entry(new Version("0.1.7"), new String[]{
@@ -106,9 +151,35 @@ public record FileRecord(int id, //file id will change
             }),
             MapUtil.entry(new Version("0.2.4"), new String[]{
                     "ALTER TABLE file_record ADD COLUMN reaction_count BIGINT DEFAULT 0;",
+            }),
+            MapUtil.entry(new Version("0.3.3"), new String[]{
+                    "ALTER TABLE file_record ADD COLUMN change_seq BIGINT;",
             })
     ));
 
+    public static final List<Definition.Index> INDEXES = List.of(
+            // getByUniqueId, updates and deletes by unique id, a file is stored once
+            new Definition.Index("uk_file_record_unique_id", "file_record", "unique_id", true),
+            // download queue, countByStatus
+            new Definition.Index("idx_file_record_download_queue", "file_record", "telegram_id, download_status, date"),
+            // download queue of one chat, the scheduler claims per automation by priority
+            new Definition.Index("idx_file_record_chat_priority_queue", "file_record", "chat_id, download_status, download_priority, date"),
+            // getFiles keyset paging by chat
+            new Definition.Index("idx_file_record_chat_message", "file_record", "chat_id, message_id"),
+            // chat statistics
+            new Definition.Index("idx_file_record_telegram_chat", "file_record", "telegram_id, chat_id, message_id"),
+            // getMainFileByThread
+            new Definition.Index("idx_file_record_thread", "file_record", "thread_chat_id, message_thread_id"),
+            // album caption and reaction queries
+            new Definition.Index("idx_file_record_media_album", "file_record", "media_album_id"),
+            // completed range statistics
+            new Definition.Index("idx_file_record_completion", "file_record", "telegram_id, completion_date"),
+            // files due for the archive, see FileArchive
+            new Definition.Index("idx_file_record_archivable", "file_record", "transfer_status, completion_date"),
+            // change feed
+            new Definition.Index("idx_file_record_change_seq", "file_record", "change_seq")
+    );
+
     public static class FileRecordDefinition implements Definition {
         @Override
         public String getScheme() {
@@ -119,42 +190,122 @@ public record FileRecord(int id, //file id will change
         public TreeMap<Version, String[]> getMigrations() {
             return MIGRATIONS;
         }
+
+        @Override
+        public List<Index> getIndexes() {
+            return INDEXES;
+        }
+
+        @Override
+        public Future<Void> migrate(SqlClient sqlClient, Version lastVersion, Version currentVersion) {
+            return Definition.super.migrate(sqlClient, lastVersion, currentVersion)
+                    // 0.3.0 shipped reading scan_state, download_priority and queued_at without a migration adding them,
+                    // an ALTER keyed to 0.3.0 would be skipped by those installs. Every upgrade adds what is missing instead.
+                    .compose(_ -> lastVersion.compareTo(currentVersion) < 0 ?
+                            FileRecordMigration.addMissingColumns(sqlClient, "file_record") : Future.succeededFuture())
+                    .compose(_ -> Definition.crosses(lastVersion, currentVersion, ROW_ID_VERSION) ?
+                            FileRecordMigration.migrateRowId(sqlClient) : Future.succeededFuture())
+                    .compose(_ -> Definition.crosses(lastVersion, currentVersion, CODES_VERSION) ?
+                            FileRecordMigration.migrateCodes(sqlClient) : Future.succeededFuture())
+                    .compose(_ -> Definition.crosses(lastVersion, currentVersion, PRIORITY_QUEUE_VERSION) ?
+                            FileRecordMigration.dropIndex(sqlClient, "file_record", OLD_CHAT_QUEUE_INDEX) : Future.succeededFuture());
+        }
+
+        @Override
+        public Future<Void> createIndexes(SqlClient sqlClient) {
+            return Definition.super.createIndexes(sqlClient)
+                    .compose(_ -> FileSearch.ensure(sqlClient));
+        }
     }
 
-    public static RowMapper<FileRecord> ROW_MAPPER = row ->
-            new FileRecord(row.getInteger("id"),
-                    row.getString("unique_id"),
-                    row.getLong("telegram_id"),
-                    row.getLong("chat_id"),
-                    row.getLong("message_id"),
-                    Objects.requireNonNullElse(row.getLong("media_album_id"), 0L),
-                    row.getInteger("date"),
-                    Config.isPostgres() ? row.getBoolean("has_sensitive_content") : Convert.toBool(row.getInteger("has_sensitive_content")),
-                    row.getLong("size"),
-                    row.getLong("downloaded_size"),
-                    row.getString("type"),
-                    row.getString("mime_type"),
-                    row.getString("file_name"),
-                    row.getString("thumbnail"),
-                    row.getString("thumbnail_unique_id"),
-                    row.getString("caption"),
-                    row.getString("extra"),
-                    row.getString("local_path"),
-                    row.getString("download_status"),
-                    row.getString("transfer_status"),
-                    Objects.requireNonNullElse(row.getLong("start_date"), 0L),
-                    row.getLong("completion_date"),
-                    row.getString("tags"),
-                    Objects.requireNonNullElse(row.getLong("thread_chat_id"), 0L),
-                    Objects.requireNonNullElse(row.getLong("message_thread_id"), 0L),
-                    row.getLong("reaction_count"),
-                    row.getString("scan_state"),
-                    row.getInteger("download_priority"),
-                    row.getLong("queued_at")
-            );
-
-    public static TupleMapper<FileRecord> PARAM_MAPPER = TupleMapper.mapper(FileRecord::toMap);
+    /**
+     * Maps full rows, {@code SELECT *}. Hot paths select less and map to {@link DownloadCandidate}, {@link FileStatus}
+     * or {@link FileThumbnail}.
+     */
+    public static final ColumnMapper<FileRecord> MAPPER = columns -> {
+        int id = columns.indexOf("id");
+        int uniqueId = columns.indexOf("unique_id");
+        int telegramId = columns.indexOf("telegram_id");
+        int chatId = columns.indexOf("chat_id");
+        int messageId = columns.indexOf("message_id");
+        int mediaAlbumId = columns.indexOf("media_album_id");
+        int date = columns.indexOf("date");
+        int hasSensitiveContent = columns.indexOf("has_sensitive_content");
+        int size = columns.indexOf("size");
+        int downloadedSize = columns.indexOf("downloaded_size");
+        int type = columns.indexOf("type");
+        int mimeType = columns.indexOf("mime_type");
+        int fileName = columns.indexOf("file_name");
+        int thumbnail = columns.indexOf("thumbnail");
+        int thumbnailUniqueId = columns.indexOf("thumbnail_unique_id");
+        int caption = columns.indexOf("caption");
+        int extra = columns.indexOf("extra");
+        int localPath = columns.indexOf("local_path");
+        int downloadStatus = columns.indexOf("download_status");
+        int transferStatus = columns.indexOf("transfer_status");
+        int startDate = columns.indexOf("start_date");
+        int completionDate = columns.indexOf("completion_date");
+        int tags = columns.indexOf("tags");
+        int threadChatId = columns.indexOf("thread_chat_id");
+        int messageThreadId = columns.indexOf("message_thread_id");
+        int reactionCount = columns.indexOf("reaction_count");
+        int scanState = columns.indexOf("scan_state");
+        int downloadPriority = columns.indexOf("download_priority");
+        int queuedAt = columns.indexOf("queued_at");
+        boolean booleanColumn = Config.isPostgres();
+        return row -> new FileRecord(row.getInteger(id),
+                row.getString(uniqueId),
+                row.getLong(telegramId),
+                row.getLong(chatId),
+                row.getLong(messageId),
+                Objects.requireNonNullElse(row.getLong(mediaAlbumId), 0L),
+                row.getInteger(date),
+                booleanColumn ? row.getBoolean(hasSensitiveContent) : Convert.toBool(row.getInteger(hasSensitiveContent)),
+                row.getLong(size),
+                row.getLong(downloadedSize),
+                FileRecordCode.TYPE.decode(row.getInteger(type)),
+                row.getString(mimeType),
+                row.getString(fileName),
+                row.getString(thumbnail),
+                row.getString(thumbnailUniqueId),
+                row.getString(caption),
+                row.getString(extra),
+                row.getString(localPath),
+                FileRecordCode.DOWNLOAD_STATUS.decode(row.getInteger(downloadStatus)),
+                FileRecordCode.TRANSFER_STATUS.decode(row.getInteger(transferStatus)),
+                Objects.requireNonNullElse(row.getLong(startDate), 0L),
+                row.getLong(completionDate),
+                row.getString(tags),
+                Objects.requireNonNullElse(row.getLong(threadChatId), 0L),
+                Objects.requireNonNullElse(row.getLong(messageThreadId), 0L),
+                row.getLong(reactionCount),
+                FileRecordCode.SCAN_STATE.decode(row.getInteger(scanState)),
+                row.getInteger(downloadPriority),
+                row.getLong(queuedAt)
+        );
+    };
+
+    /**
+     * {@link #MAPPER} for {@code SqlTemplate.mapTo}, resolves the columns on every row.
+     */
+    public static RowMapper<FileRecord> ROW_MAPPER = MAPPER.rowMapper();
+
+    public static TupleMapper<FileRecord> PARAM_MAPPER = TupleMapper.mapper(FileRecord::toParams);
+
+    /**
+     * The columns as stored, {@link #toMap} with the enumerated columns encoded.
+     */
+    public static Map<String, Object> toParams(FileRecord r) {
+        Map<String, Object> params = new HashMap<>(toMap(r));
+        for (FileRecordCode code : FileRecordCode.values()) {
+            params.put(code.column(), code.encode((String) params.get(code.column())));
+        }
+        return params;
+    }
 
+    /**
+     * The fields by column name, with names for the enumerated columns, e.g. for templates.
+     */
     public static Map<String, Object> toMap(FileRecord r) {
         return MapUtil.ofEntries(
                 MapUtil.entry("id", r.id),
@@ -0,0 +1,112 @@
+package telegram.files.repository;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The enumerated columns of file_record, stored as small integer codes instead of their names.
+ * A code is the position of the name in its list, codes are persisted: names are only ever appended, never reordered or removed.
+ * The rest of the application, the API included, keeps using the names, {@link FileRecord#MAPPER} and
+ * {@link FileRecord#PARAM_MAPPER} translate.
+ */
+public enum FileRecordCode {
+    TYPE("type", List.of("thumbnail", "photo", "video", "audio", "file"), Map.of()),
+    // 'queued' was written by older versions, it meant idle
+    DOWNLOAD_STATUS("download_status", List.of("idle", "downloading", "paused", "completed", "downloaded", "error"), Map.of("queued", "idle")),
+    TRANSFER_STATUS("transfer_status", List.of("idle", "transferring", "completed", "error"), Map.of()),
+    SCAN_STATE("scan_state", List.of("idle", "scanning", "complete"), Map.of());
+
+    /**
+     * Used where a name isn't known, compares unequal to every stored code.
+     */
+    public static final int NONE = -1;
+
+    private final String column;
+
+    private final List<String> names;
+
+    private final Map<String, String> legacyNames;
+
+    FileRecordCode(String column, List<String> names, Map<String, String> legacyNames) {
+        this.column = column;
+        this.names = names;
+        this.legacyNames = legacyNames;
+    }
+
+    public String column() {
+        return column;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name has no code
+     */
+    public int code(String name) {
+        int code = names.indexOf(name);
+        if (code < 0) {
+            throw new IllegalArgumentException("No %s code for '%s'".formatted(column, name));
+        }
+        return code;
+    }
+
+    public Integer encode(String name) {
+        return name == null ? null : code(name);
+    }
+
+    /**
+     * For user supplied names, e.g. filters: an unknown name becomes {@link #NONE} and matches nothing.
+     */
+    public int encodeOrNone(String name) {
+        return names.contains(name) ? code(name) : NONE;
+    }
+
+    public String decode(Integer code) {
+        if (code == null) {
+            return null;
+        }
+        if (code < 0 || code >= names.size()) {
+            throw new IllegalArgumentException("Unknown %s code %d".formatted(column, code));
+        }
+        return names.get(code);
+    }
+
+    /**
+     * The code of a name as SQL literal, to write it into a query.
+     */
+    public String literal(String name) {
+        return String.valueOf(code(name));
+    }
+
+    /**
+     * The codes of the names as SQL list, e.g. {@code (3, 4)}.
+     */
+    public String literals(String... names) {
+        return Arrays.stream(names)
+                .map(this::literal)
+                .collect(Collectors.joining(", ", "(", ")"));
+    }
+
+    /**
+     * SQL expression turning the stored code back into the name, for queries whose result must carry names.
+     */
+    public String decodeSql(String expression) {
+        return IntStream.range(0, names.size())
+                .mapToObj(code -> "WHEN %d THEN '%s'".formatted(code, names.get(code)))
+                .collect(Collectors.joining(" ", "CASE %s ".formatted(expression), " END"));
+    }
+
+    /**
+     * SQL expression turning a stored name into its code, to migrate rows written before the codes.
+     * Names without a code become NULL.
+     */
+    public String encodeSql(String expression) {
+        String legacy = legacyNames.entrySet().stream()
+                .map(e -> " WHEN '%s' THEN %d".formatted(e.getKey(), code(e.getValue())))
+                .collect(Collectors.joining());
+        return IntStream.range(0, names.size())
+                .mapToObj(code -> "WHEN '%s' THEN %d".formatted(names.get(code), code))
+                .collect(Collectors.joining(" ", "CASE %s ".formatted(expression), legacy + " END"));
+    }
+}
@@ -0,0 +1,294 @@
+package telegram.files.repository;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlResult;
+import telegram.files.Config;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Migrations of file_record that plain ALTER statements can't express.
+ */
+class FileRecordMigration {
+
+    private static final Log log = LogFactory.get();
+
+    private static final String OLD_UNIQUE_ID_INDEX = "idx_file_record_unique_id";
+
+    /**
+     * Where the rows removed as duplicates are kept, nothing reads it.
+     */
+    static final String DUPLICATE_TABLE = "file_record_duplicate";
+
+    private static final int LOGGED_DUPLICATES = 100;
+
+    /**
+     * Moves file_record from the (id, unique_id) primary key to the row_id surrogate key.
+     * <ul>
+     *     <li>Postgres: adds row_id as an identity column in place and swaps the primary key</li>
+     *     <li>MySQL: drops the primary key and adds row_id as the auto increment primary key in one ALTER</li>
+     *     <li>SQLite: can't change a primary key, copies the rows into a new table keeping their rowid as row_id</li>
+     * </ul>
+     * Files stored more than once under the same unique id are reduced to the oldest row so the unique index can be built,
+     * the others are kept in {@value #DUPLICATE_TABLE}. file_stats is rebuilt by its migration afterwards.
+     */
+    static Future<Void> migrateRowId(SqlClient sqlClient) {
+        return columns(sqlClient)
+                .compose(columns -> {
+                    if (columns.containsKey("row_id")) {
+                        return Future.succeededFuture();
+                    }
+                    return inTransaction(sqlClient, client -> (Config.isSqlite() ? copySqlite(client, columns) :
+                            Config.isPostgres() ? migrateRowIdPostgres(client, columns) : migrateRowIdMysql(client, columns))
+                            .onSuccess(removed -> {
+                                if (removed > 0) {
+                                    log.info("Removed %d duplicated file records".formatted(removed));
+                                }
+                            })
+                            .<Void>mapEmpty());
+                })
+                .onSuccess(_ -> log.info("file_record migrated to the row_id key"))
+                .onFailure(err -> log.error("Failed to migrate file_record to the row_id key: %s".formatted(err.getMessage())));
+    }
+
+    /**
+     * Stores type and the statuses as codes, see {@link FileRecordCode}.
+     * <ul>
+     *     <li>Postgres: converts the columns in place</li>
+     *     <li>MySQL: rewrites the names to codes, then changes the column types in one ALTER</li>
+     *     <li>SQLite: can't change a column type, copies the rows into a new table like {@link #migrateRowId}</li>
+     * </ul>
+     * file_stats keeps the names, it is still rebuilt by its migration afterwards because legacy names are counted under
+     * their replacement now.
+     */
+    static Future<Void> migrateCodes(SqlClient sqlClient) {
+        return columns(sqlClient)
+                .compose(columns -> {
+                    List<FileRecordCode> pending = Arrays.stream(FileRecordCode.values())
+                            .filter(code -> columns.containsKey(code.column()) && !isInteger(columns.get(code.column())))
+                            .toList();
+                    if (pending.isEmpty()) {
+                        return Future.succeededFuture();
+                    }
+                    return inTransaction(sqlClient, client -> (Config.isSqlite() ? copySqlite(client, columns).<Void>mapEmpty() :
+                            Config.isPostgres() ? migrateCodesPostgres(client, pending) : migrateCodesMysql(client, pending)));
+                })
+                .onSuccess(_ -> log.info("file_record migrated to status codes"))
+                .onFailure(err -> log.error("Failed to migrate file_record to status codes: %s".formatted(err.getMessage())));
+    }
+
+    private static Future<Void> inTransaction(SqlClient sqlClient, Function<SqlClient, Future<Void>> migration) {
+        // MySQL commits DDL implicitly, a transaction wouldn't hold anyway
+        return sqlClient instanceof Pool pool && !Config.isMysql() ? pool.withTransaction(migration::apply) : migration.apply(sqlClient);
+    }
+
+    /**
+     * Add the columns of the current scheme that a table shaped like file_record lacks, e.g. the archive created by an
+     * older version. New columns are declared as in {@link FileRecord#SCHEME}.
+     */
+    static Future<Void> addMissingColumns(SqlClient sqlClient, String table) {
+        return columns(sqlClient, table)
+                .compose(columns -> {
+                    Future<Void> future = Future.succeededFuture();
+                    for (Map.Entry<String, String> column : FileRecord.COLUMN_DEFINITIONS.entrySet()) {
+                        if (columns.containsKey(column.getKey())) {
+                            continue;
+                        }
+                        future = future.compose(_ -> sqlClient.query("ALTER TABLE %s ADD COLUMN %s %s"
+                                .formatted(table, column.getKey(), column.getValue())).execute().mapEmpty());
+                    }
+                    return future;
+                })
+                .onFailure(err -> log.error("Failed to add columns to %s: %s".formatted(table, err.getMessage())));
+    }
+
+    private static Future<Map<String, String>> columns(SqlClient sqlClient) {
+        return columns(sqlClient, "file_record");
+    }
+
+    /**
+     * @return the declared type of every column, by lower case column name
+     */
+    private static Future<Map<String, String>> columns(SqlClient sqlClient, String table) {
+        String sql = Config.isSqlite() ? "PRAGMA table_info(%s)".formatted(table) : Config.isPostgres() ? """
+                SELECT column_name AS name, data_type AS type FROM information_schema.columns
+                WHERE table_schema = current_schema() AND table_name = '%s'
+                """.formatted(table) : """
+                SELECT column_name AS name, data_type AS type FROM information_schema.columns
+                WHERE table_schema = DATABASE() AND table_name = '%s'
+                """.formatted(table);
+        return sqlClient.query(sql)
+                .execute()
+                .map(rs -> {
+                    Map<String, String> columns = new HashMap<>();
+                    rs.forEach(row -> columns.put(row.getString("name").toLowerCase(), String.valueOf(row.getString("type")).toLowerCase()));
+                    return columns;
+                });
+    }
+
+    private static boolean isInteger(String type) {
+        return type.contains("int");
+    }
+
+    /**
+     * @return the number of duplicated rows removed
+     */
+    private static Future<Integer> migrateRowIdPostgres(SqlClient client, Map<String, String> columns) {
+        return client.query("ALTER TABLE file_record ADD COLUMN row_id BIGINT GENERATED BY DEFAULT AS IDENTITY").execute()
+                .compose(_ -> keepDuplicates(client, columns, """
+                        SELECT * FROM file_record a
+                        WHERE EXISTS (SELECT 1 FROM file_record b WHERE a.unique_id = b.unique_id AND a.row_id > b.row_id)
+                        """))
+                .compose(_ -> removeDuplicates(client, columns, """
+                        DELETE FROM file_record a USING file_record b
+                        WHERE a.unique_id = b.unique_id AND a.row_id > b.row_id
+                        """))
+                .compose(removed -> client.query("ALTER TABLE file_record DROP CONSTRAINT IF EXISTS file_record_pkey").execute()
+                        .compose(_ -> client.query("ALTER TABLE file_record ADD PRIMARY KEY (row_id)").execute())
+                        .compose(_ -> client.query("DROP INDEX IF EXISTS " + OLD_UNIQUE_ID_INDEX).execute())
+                        .map(removed));
+    }
+
+    private static Future<Integer> migrateRowIdMysql(SqlClient client, Map<String, String> columns) {
+        return client.query("""
+                        ALTER TABLE file_record
+                            DROP PRIMARY KEY,
+                            ADD COLUMN row_id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST
+                        """).execute()
+                .compose(_ -> keepDuplicates(client, columns, """
+                        SELECT a.* FROM file_record a JOIN file_record b
+                            ON a.unique_id = b.unique_id AND a.row_id > b.row_id
+                        """))
+                .compose(_ -> removeDuplicates(client, columns, """
+                        DELETE a FROM file_record a JOIN file_record b
+                            ON a.unique_id = b.unique_id AND a.row_id > b.row_id
+                        """))
+                .compose(removed -> dropIndex(client, "file_record", OLD_UNIQUE_ID_INDEX).map(removed));
+    }
+
+    /**
+     * Drops an index if it exists. MySQL has no {@code DROP INDEX IF EXISTS}, the index is looked up first.
+     */
+    static Future<Void> dropIndex(SqlClient client, String table, String index) {
+        if (!Config.isMysql()) {
+            return client.query("DROP INDEX IF EXISTS " + index).execute().mapEmpty();
+        }
+        return client.query("""
+                        SELECT 1 FROM information_schema.statistics
+                        WHERE table_schema = DATABASE() AND table_name = '%s' AND index_name = '%s'
+                        LIMIT 1
+                        """.formatted(table, index)).execute()
+                .compose(rs -> rs.size() == 0 ? Future.<Void>succeededFuture() :
+                        client.query("DROP INDEX %s ON %s".formatted(index, table)).execute().<Void>mapEmpty());
+    }
+
+    /**
+     * Copy the duplicated rows selected by duplicates into {@value #DUPLICATE_TABLE} before they are removed,
+     * and log their unique ids.
+     */
+    private static Future<Void> keepDuplicates(SqlClient client, Map<String, String> columns, String duplicates) {
+        if (!columns.containsKey("unique_id")) {
+            return Future.succeededFuture();
+        }
+        return client.query("SELECT DISTINCT unique_id FROM (%s) d".formatted(duplicates)).execute()
+                .compose(rs -> {
+                    if (rs.size() == 0) {
+                        return Future.succeededFuture();
+                    }
+                    List<String> uniqueIds = new ArrayList<>();
+                    rs.forEach(row -> uniqueIds.add(row.getString(0)));
+                    log.warn("%d files are stored more than once, the newer rows are kept in %s. Unique ids: %s%s".formatted(
+                            uniqueIds.size(), DUPLICATE_TABLE,
+                            String.join(", ", uniqueIds.subList(0, Math.min(uniqueIds.size(), LOGGED_DUPLICATES))),
+                            uniqueIds.size() > LOGGED_DUPLICATES ? ", ..." : ""));
+                    return client.query("CREATE TABLE IF NOT EXISTS %s AS %s".formatted(DUPLICATE_TABLE, duplicates)).execute()
+                            .<Void>mapEmpty();
+                });
+    }
+
+    private static Future<Integer> removeDuplicates(SqlClient client, Map<String, String> columns, String sql) {
+        if (!columns.containsKey("unique_id")) {
+            return Future.succeededFuture(0);
+        }
+        return client.query(sql).execute().map(SqlResult::rowCount);
+    }
+
+    /**
+     * The default of transfer_status is a name, it has to go before the type can change.
+     */
+    private static Future<Void> migrateCodesPostgres(SqlClient client, List<FileRecordCode> pending) {
+        String alter = pending.stream()
+                .map(code -> "ALTER COLUMN %1$s TYPE SMALLINT USING (%2$s)".formatted(code.column(), code.encodeSql(code.column())))
+                .collect(Collectors.joining(",\n    ", "ALTER TABLE file_record\n    ", ""));
+        Future<Void> future = Future.succeededFuture();
+        for (FileRecordCode code : pending) {
+            future = future.compose(_ -> client.query("ALTER TABLE file_record ALTER COLUMN %s DROP DEFAULT".formatted(code.column()))
+                    .execute().mapEmpty());
+        }
+        return future.compose(_ -> client.query(alter).execute()).mapEmpty();
+    }
+
+    /**
+     * MySQL converts the numeric strings when the type changes.
+     */
+    private static Future<Void> migrateCodesMysql(SqlClient client, List<FileRecordCode> pending) {
+        String update = pending.stream()
+                .map(code -> "%s = %s".formatted(code.column(), code.encodeSql(code.column())))
+                .collect(Collectors.joining(",\n    ", "UPDATE file_record SET\n    ", ""));
+        String alter = pending.stream()
+                .map(code -> "MODIFY COLUMN %s SMALLINT".formatted(code.column()))
+                .collect(Collectors.joining(",\n    ", "ALTER TABLE file_record\n    ", ""));
+        return client.query(update).execute()
+                .compose(_ -> client.query(alter).execute())
+                .mapEmpty();
+    }
+
+    /**
+     * Copy the rows into a new table with the current scheme and replace the old table by it.
+     * The copy keeps the columns both tables have, the rowid becomes row_id so the full-text index keeps pointing at the same rows,
+     * it is still dropped and rebuilt because the triggers go with the old table. Enumerated columns still holding names are encoded,
+     * files stored more than once under the same unique id are reduced to the oldest row, the others are kept in
+     * {@value #DUPLICATE_TABLE}.
+     * <p>
+     * The table is copied at once, in the transaction of the migration: DataVerticle migrates before anything else is
+     * deployed, so the upgrade runs offline and a large database makes the startup take a while. Copying in batches
+     * would leave a half-copied table behind when the upgrade is interrupted.
+     *
+     * @return the number of duplicated rows removed
+     */
+    private static Future<Integer> copySqlite(SqlClient client, Map<String, String> columns) {
+        List<String> copied = FileRecord.COLUMNS.stream()
+                .filter(columns::containsKey)
+                .toList();
+        String columnList = String.join(", ", copied);
+        String selectList = copied.stream()
+                .map(column -> Arrays.stream(FileRecordCode.values())
+                        .filter(code -> code.column().equals(column) && !isInteger(columns.get(column)))
+                        .findFirst()
+                        .map(code -> code.encodeSql(column))
+                        .orElse(column))
+                .collect(Collectors.joining(", "));
+        String where = columns.containsKey("unique_id") ?
+                "WHERE unique_id IS NULL OR rowid IN (SELECT MIN(rowid) FROM file_record WHERE unique_id IS NOT NULL GROUP BY unique_id)" : "";
+        return (where.isEmpty() ? Future.<Void>succeededFuture() : keepDuplicates(client, columns, """
+                        SELECT * FROM file_record
+                        WHERE unique_id IS NOT NULL AND rowid NOT IN (SELECT MIN(rowid) FROM file_record WHERE unique_id IS NOT NULL GROUP BY unique_id)
+                        """))
+                .compose(_ -> client.query("SELECT COUNT(*) FROM file_record").execute())
+                .map(rs -> rs.iterator().next().getInteger(0))
+                .onSuccess(total -> log.info("Copying %d file records into the new table, the upgrade may take a while".formatted(total)))
+                .compose(total -> client.query(FileRecord.SCHEME.replaceFirst("file_record", "file_record_new")).execute()
+                        .compose(_ -> client.query("INSERT INTO file_record_new(row_id, %s) SELECT rowid, %s FROM file_record %s"
+                                .formatted(columnList, selectList, where)).execute())
+                        .compose(copy -> client.query("DROP TABLE file_record").execute()
+                                .compose(_ -> client.query("ALTER TABLE file_record_new RENAME TO file_record").execute())
+                                .compose(_ -> client.query("DROP TABLE IF EXISTS " + FileSearch.FTS_TABLE).execute())
+                                .map(total - copy.rowCount())));
+    }
+}
@@ -3,7 +3,9 @@ package telegram.files.repository;
 import io.vertx.core.Future;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import org.jooq.lambda.tuple.Tuple3;
+import org.jooq.lambda.tuple.Tuple2;
+import org.jooq.lambda.tuple.Tuple4;
+import org.jooq.lambda.tuple.Tuple5;
 
 import java.util.List;
 import java.util.Map;
@@ -13,10 +15,42 @@ public interface FileRepository {
 
     Future<Boolean> createIfNotExist(FileRecord fileRecord);
 
-    Future<Tuple3<List<FileRecord>, Long, Long>> getFiles(long chatId, Map<String, String> filter);
+    /**
+     * Insert a page of files in one transaction, skipping those whose unique id is already stored.
+     *
+     * @return inserted records, records already present (as stored)
+     */
+    Future<Tuple2<List<FileRecord>, List<FileRecord>>> createAllIfNotExist(List<FileRecord> fileRecords);
+
+    /**
+     * Get a page of files. Pages after the first are fetched by the fromMessageId/fromSortField keyset cursor.
+     * The total is counted once per filter signature and cached; deeper pages never recount.
+     * A search served by the full-text index is ranked by relevance unless another sort is requested,
+     * its pages are fetched by the fromRank/fromMessageId keyset cursor.
+     *
+     * @return files, nextFromMessageId, count, whether the count is exact (false when it predates later writes),
+     * nextFromRank (null unless ranked by relevance)
+     */
+    Future<Tuple5<List<FileRecord>, Long, Long, Boolean, Double>> getFiles(long chatId, Map<String, String> filter);
+
+    /**
+     * Get the files written and the ids of the files deleted after the since cursor, in change order. Deletions are to be
+     * applied first, a file deleted and added again appears in both. Rows written before change numbers existed have none
+     * and are never returned, a client starts from the current cursor (since &lt; 0) after a full {@link #getFiles} load.
+     *
+     * @return files, deleted unique ids, nextSince, whether more changes follow nextSince
+     */
+    Future<Tuple4<List<FileRecord>, List<String>, Long, Boolean>> getChanges(long since, int limit);
 
     Future<Map<String, FileRecord>> getFilesByUniqueId(List<String> uniqueIds);
 
+    /**
+     * {@link #getFilesByUniqueId} selecting only what decides whether a file needs to be (re)stored.
+     */
+    Future<Map<String, FileStatus>> getStatusesByUniqueId(List<String> uniqueIds);
+
+    Future<Map<String, FileThumbnail>> getThumbnailsByUniqueId(List<String> uniqueIds);
+
     Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId);
 
     Future<FileRecord> getByUniqueId(String uniqueId);
@@ -39,6 +73,14 @@ public interface FileRepository {
 
     Future<JsonObject> countWithType(long telegramId, long chatId);
 
+    /**
+     * Recompute file_stats from file_record, repairs the counters if they ever drifted.
+     */
+    Future<Void> rebuildFileStats();
+
+    /**
+     * @return the changed values, with previousDownloadStatus when the status changed, or null if nothing changed
+     */
     Future<JsonObject> updateDownloadStatus(int fileId,
                                             String uniqueId,
                                             String localPath,
@@ -51,24 +93,67 @@ public interface FileRepository {
 
     Future<Void> updateFileId(int fileId, String uniqueId);
 
+    Future<Void> updateThumbnailUniqueId(String uniqueId, String thumbnailUniqueId);
+
     Future<Integer> updateAlbumDataByMediaAlbumId(long mediaAlbumId, String caption, long reactionCount);
 
     Future<Void> updateTags(String uniqueId, String tags);
 
+    /**
+     * Set the download priority of files, the download queue claims higher ones first.
+     *
+     * @return the number of files whose priority changed
+     */
+    Future<Integer> updateDownloadPriority(List<String> uniqueIds, int priority);
+
+    /**
+     * Set the download priority of the files of a chat that aren't downloaded yet.
+     *
+     * @return the number of files whose priority changed
+     */
+    Future<Integer> updateChatDownloadPriority(long telegramId, long chatId, int priority);
+
     Future<Void> deleteByUniqueId(String uniqueId);
 
-    Future<Long> getMinMessageId(long telegramId, long chatId);
+    /**
+     * The message id and date bounds of the files stored for a chat, archived ones included. Served from memory,
+     * file_record is only read once to load the bounds of all chats.
+     */
+    Future<ChatBounds> getChatBounds(long telegramId, long chatId);
+
+    /**
+     * Move up to limit files downloaded and transferred before the cutoff into the archive, see {@link FileArchive}.
+     * Archived files are still read by unique id, listed and counted, writes changing their state move them back.
+     *
+     * @param completedBefore epoch milliseconds
+     * @return the number of files archived
+     */
+    Future<Integer> archiveFiles(long completedBefore, int limit);
     
     /**
      * Get files ready for download from database.
      * Queries files with download_status='idle' and scan_state='idle'.
-     * Orders by download_priority DESC, queued_at ASC.
+     * Orders by download_priority DESC, then date, queued_at ASC.
      * 
      * @param telegramId Telegram account ID
      * @param limit Maximum number of files to return
-     * @return List of FileRecord ready for download
+     * @param cutoffDateSeconds Only files with date >= cutoffDate, null for no cutoff
+     * @return List of files ready for download
+     */
+    Future<List<DownloadCandidate>> getFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst);
+    
+    /**
+     * Atomically pick the next idle files of an account and mark them downloading, so two callers never claim the same file.
+     * Claimed files are stamped with queued_at if they weren't queued yet.
+     *
+     * @param telegramId          Telegram account ID
+     * @param chatId              Only claim files of this chat, 0 for all chats
+     * @param limit               Maximum number of files to claim
+     * @param downloadOldestFirst Claim the oldest files by date first, newest first otherwise
+     * @param cutoffDateSeconds   Only claim files uploaded at or after this date, null for no cutoff
+     * @return The claimed files, already marked downloading
      */
-    Future<List<FileRecord>> getFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst);
+    Future<List<DownloadCandidate>> claimFilesForDownload(long telegramId, long chatId, int limit, Boolean downloadOldestFirst, Integer cutoffDateSeconds);
     
     /**
      * Mark files as queued by setting queued_at timestamp.
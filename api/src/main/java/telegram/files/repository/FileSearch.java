@@ -0,0 +1,212 @@
+package telegram.files.repository;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import telegram.files.Config;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Full-text search over file_name and caption.
+ * <ul>
+ *     <li>SQLite: external content FTS5 table with the trigram tokenizer, kept in sync by triggers, matches substrings</li>
+ *     <li>Postgres: generated tsvector column with a GIN index, matches word prefixes</li>
+ *     <li>MySQL: FULLTEXT index in boolean mode, matches word prefixes</li>
+ * </ul>
+ * Terms shorter than {@link #MIN_TERM_LENGTH} can't be matched by any of them, such searches fall back to LIKE.
+ * The archive isn't indexed, its files are matched by {@link #likeWhere} and rank below the indexed matches.
+ */
+public class FileSearch {
+
+    private static final Log log = LogFactory.get();
+
+    public static final String FTS_TABLE = "file_record_fts";
+
+    public static final int MIN_TERM_LENGTH = 3;
+
+    // boolean mode operators, stripped from the terms so user input stays plain words
+    private static final String MYSQL_OPERATORS = "+-<>()~*\"@";
+
+    private static volatile boolean available;
+
+    /**
+     * @param from      FROM clause replacing the plain file_record table
+     * @param where     condition to add to the WHERE clause, may be null
+     * @param rank      relevance expression, selected and compared by the keyset cursor
+     * @param ascending whether a lower rank is the better match
+     */
+    public record Plan(String from, String where, String rank, boolean ascending) {
+
+        public String order() {
+            return ascending ? "ASC" : "DESC";
+        }
+
+        /**
+         * A rank worse than any match, for the rows matched without the index.
+         */
+        public String unranked() {
+            return ascending ? "1" : "-1";
+        }
+    }
+
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    public static boolean canSearch(String search) {
+        if (!available || StrUtil.isBlank(search)) {
+            return false;
+        }
+        List<String> terms = terms(search);
+        return !terms.isEmpty() && terms.stream().allMatch(t -> t.codePointCount(0, t.length()) >= MIN_TERM_LENGTH);
+    }
+
+    /**
+     * The match query bound to #{searchQuery}, every term has to match.
+     */
+    public static String toQuery(String search) {
+        if (Config.isSqlite()) {
+            // quote every term so user input can't use FTS5 query syntax, trigram phrases match substrings
+            return terms(search).stream()
+                    .map(t -> "\"" + t.replace("\"", "\"\"") + "\"")
+                    .collect(Collectors.joining(" "));
+        } else if (Config.isMysql()) {
+            return terms(search).stream()
+                    .map(t -> "+" + t + "*")
+                    .collect(Collectors.joining(" "));
+        } else {
+            // quoted lexemes can't be read as tsquery operators
+            return terms(search).stream()
+                    .map(t -> "'" + t.replace("\\", "\\\\").replace("'", "''") + "':*")
+                    .collect(Collectors.joining(" & "));
+        }
+    }
+
+    /**
+     * Every term as a case-insensitive substring of file_name or caption, for the tables without the full-text index.
+     * The terms are bound to params as #{searchTerm0}, #{searchTerm1}...
+     */
+    public static String likeWhere(String search, Map<String, Object> params) {
+        List<String> terms = terms(search);
+        return IntStream.range(0, terms.size())
+                .mapToObj(i -> {
+                    params.put("searchTerm" + i, "%" + terms.get(i).toLowerCase() + "%");
+                    return "(LOWER(file_name) LIKE #{searchTerm%1$d} OR LOWER(caption) LIKE #{searchTerm%1$d})".formatted(i);
+                })
+                .collect(Collectors.joining(" AND ", "(", ")"));
+    }
+
+    public static Plan plan() {
+        if (Config.isSqlite()) {
+            return new Plan("""
+                    file_record JOIN (SELECT rowid AS fts_rowid, rank AS fts_rank FROM %s WHERE %s MATCH #{searchQuery}) fts
+                        ON fts.fts_rowid = file_record.rowid""".formatted(FTS_TABLE, FTS_TABLE),
+                    null,
+                    "fts.fts_rank",
+                    true);
+        } else if (Config.isPostgres()) {
+            return new Plan("file_record",
+                    "search_vector @@ to_tsquery('simple', #{searchQuery})",
+                    "ts_rank(search_vector, to_tsquery('simple', #{searchQuery}))",
+                    false);
+        } else {
+            return new Plan("file_record",
+                    "MATCH(file_name, caption) AGAINST(#{searchQuery} IN BOOLEAN MODE)",
+                    "MATCH(file_name, caption) AGAINST(#{searchQuery} IN BOOLEAN MODE)",
+                    false);
+        }
+    }
+
+    /**
+     * Create the search structures if missing, must run after file_record exists. Failing leaves search on LIKE.
+     */
+    public static Future<Void> ensure(SqlClient sqlClient) {
+        Future<Void> future;
+        if (Config.isSqlite()) {
+            future = ensureSqlite(sqlClient);
+        } else if (Config.isPostgres()) {
+            future = sqlClient.query("""
+                            ALTER TABLE file_record ADD COLUMN IF NOT EXISTS search_vector tsvector
+                                GENERATED ALWAYS AS (to_tsvector('simple', coalesce(file_name, '') || ' ' || coalesce(caption, ''))) STORED
+                            """)
+                    .execute()
+                    .compose(_ -> sqlClient.query("CREATE INDEX IF NOT EXISTS idx_file_record_search ON file_record USING GIN (search_vector)")
+                            .execute())
+                    .mapEmpty();
+        } else {
+            future = sqlClient.query("""
+                            SELECT 1
+                            FROM information_schema.statistics
+                            WHERE table_schema = DATABASE()
+                              AND table_name = 'file_record'
+                              AND index_name = 'idx_file_record_fulltext'
+                            LIMIT 1
+                            """)
+                    .execute()
+                    .compose(rs -> rs.size() > 0 ? Future.<Void>succeededFuture() :
+                            sqlClient.query("CREATE FULLTEXT INDEX idx_file_record_fulltext ON file_record (file_name, caption)")
+                                    .execute()
+                                    .<Void>mapEmpty());
+        }
+        return future
+                .onSuccess(_ -> available = true)
+                .otherwise(err -> {
+                    log.error("Failed to create full-text search index, search falls back to LIKE: %s".formatted(err.getMessage()));
+                    available = false;
+                    return null;
+                });
+    }
+
+    private static Future<Void> ensureSqlite(SqlClient sqlClient) {
+        return sqlClient.query("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '%s'".formatted(FTS_TABLE))
+                .execute()
+                .compose(rs -> {
+                    boolean exists = rs.size() > 0;
+                    Future<Void> future = Future.succeededFuture();
+                    for (String sql : List.of(
+                            """
+                                    CREATE VIRTUAL TABLE IF NOT EXISTS %1$s
+                                    USING fts5(file_name, caption, content='file_record', content_rowid='rowid', tokenize='trigram')
+                                    """,
+                            """
+                                    CREATE TRIGGER IF NOT EXISTS %1$s_ai AFTER INSERT ON file_record BEGIN
+                                        INSERT INTO %1$s(rowid, file_name, caption) VALUES (new.rowid, new.file_name, new.caption);
+                                    END
+                                    """,
+                            """
+                                    CREATE TRIGGER IF NOT EXISTS %1$s_ad AFTER DELETE ON file_record BEGIN
+                                        INSERT INTO %1$s(%1$s, rowid, file_name, caption) VALUES ('delete', old.rowid, old.file_name, old.caption);
+                                    END
+                                    """,
+                            """
+                                    CREATE TRIGGER IF NOT EXISTS %1$s_au AFTER UPDATE OF file_name, caption ON file_record BEGIN
+                                        INSERT INTO %1$s(%1$s, rowid, file_name, caption) VALUES ('delete', old.rowid, old.file_name, old.caption);
+                                        INSERT INTO %1$s(rowid, file_name, caption) VALUES (new.rowid, new.file_name, new.caption);
+                                    END
+                                    """)) {
+                        future = future.compose(_ -> sqlClient.query(sql.formatted(FTS_TABLE)).execute().mapEmpty());
+                    }
+                    if (exists) {
+                        return future;
+                    }
+                    // index the rows stored before the search table existed
+                    return future.compose(_ -> sqlClient.query("INSERT INTO %1$s(%1$s) VALUES ('rebuild')".formatted(FTS_TABLE))
+                            .execute()
+                            .onSuccess(_ -> log.info("Full-text search index built"))
+                            .mapEmpty());
+                });
+    }
+
+    private static List<String> terms(String search) {
+        return StrUtil.splitTrim(search, ' ').stream()
+                .map(t -> Config.isMysql() ? StrUtil.removeAll(t, MYSQL_OPERATORS.toCharArray()) : t)
+                .filter(StrUtil::isNotBlank)
+                .toList();
+    }
+}
@@ -0,0 +1,181 @@
+package telegram.files.repository;
+
+import cn.hutool.core.lang.Version;
+import cn.hutool.core.map.MapUtil;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.RowMapper;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.Config;
+import telegram.files.repository.impl.SqlDialect;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * File count and total size per (telegram_id, chat_id, type, download_status), the statistics read this instead of
+ * aggregating file_record. Every write to file_record that changes one of the key columns applies its delta in the same transaction.
+ * Type and status are kept as names here, file_record stores them as {@link FileRecordCode}s.
+ */
+public record FileStats(long telegramId,
+                        long chatId,
+                        String type,
+                        String downloadStatus,
+                        long fileCount,
+                        long totalSize) {
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS file_stats
+            (
+                telegram_id     BIGINT       NOT NULL,
+                chat_id         BIGINT       NOT NULL,
+                type            VARCHAR(255) NOT NULL,
+                download_status VARCHAR(255) NOT NULL,
+                file_count      BIGINT       NOT NULL DEFAULT 0,
+                total_size      BIGINT       NOT NULL DEFAULT 0,
+                PRIMARY KEY (telegram_id, chat_id, type, download_status)
+            )
+            """;
+
+    public static class FileStatsDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+
+        /**
+         * Built by the upgrade introducing the table, and rebuilt after the file_record migrations that change what it
+         * counts. Those run before, definitions migrate in order.
+         */
+        @Override
+        public Future<Void> migrate(SqlClient sqlClient, Version lastVersion, Version currentVersion) {
+            boolean rebuild = Stream.of(REBUILD_VERSION, FileRecord.ROW_ID_VERSION, FileRecord.CODES_VERSION)
+                    .anyMatch(version -> Definition.crosses(lastVersion, currentVersion, version));
+            if (!rebuild) {
+                return Future.succeededFuture();
+            }
+            return rebuildInTransaction(sqlClient)
+                    .onSuccess(_ -> Definition.log.info("File statistics built"))
+                    .onFailure(err -> Definition.log.error("Failed to build file statistics: %s".formatted(err.getMessage())));
+        }
+    }
+
+    /**
+     * The version introducing file_stats.
+     */
+    public static final Version REBUILD_VERSION = new Version("0.3.4");
+
+    public static RowMapper<FileStats> ROW_MAPPER = row ->
+            new FileStats(row.getLong("telegram_id"),
+                    row.getLong("chat_id"),
+                    row.getString("type"),
+                    row.getString("download_status"),
+                    Objects.requireNonNullElse(row.getLong("file_count"), 0L),
+                    Objects.requireNonNullElse(row.getLong("total_size"), 0L)
+            );
+
+    /**
+     * The row a file is counted in, with a count of one.
+     */
+    public static FileStats of(FileRecord fileRecord) {
+        return of(fileRecord, fileRecord.downloadStatus(), 1);
+    }
+
+    public static FileStats of(FileRecord fileRecord, String downloadStatus, long sign) {
+        return of(fileRecord.telegramId(), fileRecord.chatId(), fileRecord.type(), fileRecord.size(), downloadStatus, sign);
+    }
+
+    public static FileStats of(long telegramId, long chatId, String type, long size, String downloadStatus, long sign) {
+        return new FileStats(telegramId,
+                chatId,
+                Objects.requireNonNullElse(type, ""),
+                Objects.requireNonNullElse(downloadStatus, ""),
+                sign,
+                sign * size);
+    }
+
+    /**
+     * Deltas moving one file from one download status to another.
+     */
+    public static List<FileStats> transition(long telegramId, long chatId, String type, long size, String fromStatus, String toStatus) {
+        return List.of(of(telegramId, chatId, type, size, fromStatus, -1),
+                of(telegramId, chatId, type, size, toStatus, 1));
+    }
+
+    private static final SqlDialect DIALECT = SqlDialect.current();
+
+    private static final String UPSERT = DIALECT.upsert("file_stats",
+            List.of("telegram_id", "chat_id", "type", "download_status", "file_count", "total_size"),
+            "(#{telegramId}, #{chatId}, #{type}, #{downloadStatus}, #{fileCount}, #{totalSize})",
+            List.of("telegram_id", "chat_id", "type", "download_status"),
+            MapUtil.<String, String>builder(new LinkedHashMap<>())
+                    .put("file_count", "file_stats.file_count + " + DIALECT.inserted("file_count"))
+                    .put("total_size", "file_stats.total_size + " + DIALECT.inserted("total_size"))
+                    .build());
+
+    /**
+     * Add the deltas to their rows, must run in the transaction of the file_record write they belong to.
+     * Deltas of the same row are merged and rows are touched in key order so concurrent transactions can't deadlock.
+     */
+    public static Future<Void> apply(SqlClient sqlClient, List<FileStats> deltas) {
+        Map<String, FileStats> merged = new TreeMap<>();
+        for (FileStats delta : deltas) {
+            merged.merge("%d:%d:%s:%s".formatted(delta.telegramId, delta.chatId, delta.type, delta.downloadStatus), delta,
+                    (a, b) -> new FileStats(a.telegramId, a.chatId, a.type, a.downloadStatus,
+                            a.fileCount + b.fileCount, a.totalSize + b.totalSize));
+        }
+        List<Map<String, Object>> batch = merged.values().stream()
+                .filter(delta -> delta.fileCount != 0 || delta.totalSize != 0)
+                .map(delta -> MapUtil.<String, Object>builder()
+                        .put("telegramId", delta.telegramId)
+                        .put("chatId", delta.chatId)
+                        .put("type", delta.type)
+                        .put("downloadStatus", delta.downloadStatus)
+                        .put("fileCount", delta.fileCount)
+                        .put("totalSize", delta.totalSize)
+                        .build())
+                .toList();
+        if (batch.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return SqlTemplate
+                .forUpdate(sqlClient, UPSERT)
+                .executeBatch(batch)
+                .mapEmpty();
+    }
+
+    /**
+     * Recompute every row from file_record and its archive, must run in a transaction.
+     * Postgres locks the table first so transitions committing meanwhile apply their delta after the rebuild, on MySQL
+     * the DELETE and the locking read of INSERT ... SELECT serialize with them, SQLite has a single writer anyway.
+     */
+    public static Future<Void> rebuild(SqlClient sqlClient) {
+        Future<Void> future = Config.isPostgres() ?
+                sqlClient.query("LOCK TABLE file_stats IN EXCLUSIVE MODE").execute().mapEmpty() :
+                Future.succeededFuture();
+        return future
+                .compose(_ -> sqlClient.query("DELETE FROM file_stats").execute())
+                .compose(_ -> sqlClient.query("""
+                                INSERT INTO file_stats(telegram_id, chat_id, type, download_status, file_count, total_size)
+                                SELECT COALESCE(telegram_id, 0),
+                                       COALESCE(chat_id, 0),
+                                       COALESCE(%s, ''),
+                                       COALESCE(%s, ''),
+                                       COUNT(*),
+                                       COALESCE(SUM(size), 0)
+                                FROM %s
+                                GROUP BY COALESCE(telegram_id, 0), COALESCE(chat_id, 0), type, download_status
+                                """.formatted(FileRecordCode.TYPE.decodeSql("type"), FileRecordCode.DOWNLOAD_STATUS.decodeSql("download_status"),
+                                FileArchive.union("telegram_id, chat_id, type, download_status, size")))
+                        .execute())
+                .mapEmpty();
+    }
+
+    public static Future<Void> rebuildInTransaction(SqlClient sqlClient) {
+        if (sqlClient instanceof Pool pool) {
+            return pool.withTransaction(FileStats::rebuild);
+        }
+        return rebuild(sqlClient);
+    }
+}
@@ -0,0 +1,26 @@
+package telegram.files.repository;
+
+/**
+ * Whether and how a file is stored, for callers deciding what to do with the files of a batch of messages.
+ */
+public record FileStatus(String uniqueId, int id, String downloadStatus) {
+
+    public static final String COLUMNS = "unique_id, id, download_status";
+
+    public static final ColumnMapper<FileStatus> MAPPER = columns -> {
+        int uniqueId = columns.indexOf("unique_id");
+        int id = columns.indexOf("id");
+        int downloadStatus = columns.indexOf("download_status");
+        return row -> new FileStatus(row.getString(uniqueId),
+                row.getInteger(id),
+                FileRecordCode.DOWNLOAD_STATUS.decode(row.getInteger(downloadStatus))
+        );
+    };
+
+    public boolean isDownloadStatus(FileRecord.DownloadStatus status) {
+        if (status == null && downloadStatus == null) {
+            return true;
+        }
+        return downloadStatus != null && FileRecord.DownloadStatus.valueOf(downloadStatus) == status;
+    }
+}
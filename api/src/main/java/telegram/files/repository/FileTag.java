@@ -0,0 +1,89 @@
+package telegram.files.repository;
+
+import cn.hutool.core.collection.IterUtil;
+import cn.hutool.core.lang.Version;
+import cn.hutool.core.util.StrUtil;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.repository.impl.SqlDialect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One row per tag of a file, the filterable form of file_record.tags.
+ */
+public record FileTag(String uniqueId, String tag) {
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS file_tag
+            (
+                unique_id   VARCHAR(255) NOT NULL,
+                tag         VARCHAR(255) NOT NULL,
+                PRIMARY KEY (unique_id, tag)
+            )
+            """;
+
+    public static final List<Definition.Index> INDEXES = List.of(
+            new Definition.Index("idx_file_tag_tag", "file_tag", "tag, unique_id")
+    );
+
+    /**
+     * The version introducing file_tag, upgrades passing it fill the table from file_record.tags.
+     */
+    public static final Version BACKFILL_VERSION = new Version("0.3.4");
+
+    public static class FileTagDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+
+        @Override
+        public List<Index> getIndexes() {
+            return INDEXES;
+        }
+
+        @Override
+        public Future<Void> migrate(SqlClient sqlClient, Version lastVersion, Version currentVersion) {
+            return Definition.crosses(lastVersion, currentVersion, BACKFILL_VERSION) ? backfill(sqlClient) : Future.succeededFuture();
+        }
+    }
+
+    /**
+     * Split the comma-joined tags column into distinct, trimmed tags.
+     */
+    public static List<String> split(String tags) {
+        return StrUtil.split(tags, ",").stream()
+                .map(StrUtil::trim)
+                .filter(StrUtil::isNotBlank)
+                .distinct()
+                .toList();
+    }
+
+    /**
+     * Fill file_tag from file_record.tags, once by the migration to {@link #BACKFILL_VERSION}. Tags already stored are
+     * skipped. A failure fails the startup before the version is saved, the next start runs it again.
+     */
+    private static Future<Void> backfill(SqlClient sqlClient) {
+        return sqlClient.query("SELECT unique_id, tags FROM file_record WHERE tags IS NOT NULL AND tags != ''")
+                .execute()
+                .compose(rows -> {
+                    List<Map<String, Object>> batch = new ArrayList<>();
+                    IterUtil.toList(rows).forEach(row -> split(row.getString("tags"))
+                            .forEach(tag -> batch.add(Map.of("uniqueId", row.getString("unique_id"), "tag", tag))));
+                    if (batch.isEmpty()) {
+                        return Future.succeededFuture();
+                    }
+                    Definition.log.info("Backfilling %d file tags".formatted(batch.size()));
+                    return SqlTemplate
+                            .forUpdate(sqlClient, SqlDialect.current().insertIgnore("file_tag", List.of("unique_id", "tag"),
+                                    "(#{uniqueId}, #{tag})"))
+                            .executeBatch(batch)
+                            .<Void>mapEmpty();
+                })
+                .onFailure(err -> Definition.log.error("Failed to backfill file tags: %s".formatted(err.getMessage())));
+    }
+}
@@ -0,0 +1,25 @@
+package telegram.files.repository;
+
+/**
+ * The thumbnail of a file as the API shows it next to the file.
+ */
+public record FileThumbnail(String uniqueId, String mimeType, String extra, String downloadStatus) {
+
+    public static final String COLUMNS = "unique_id, mime_type, extra, download_status";
+
+    public static final ColumnMapper<FileThumbnail> MAPPER = columns -> {
+        int uniqueId = columns.indexOf("unique_id");
+        int mimeType = columns.indexOf("mime_type");
+        int extra = columns.indexOf("extra");
+        int downloadStatus = columns.indexOf("download_status");
+        return row -> new FileThumbnail(row.getString(uniqueId),
+                row.getString(mimeType),
+                row.getString(extra),
+                FileRecordCode.DOWNLOAD_STATUS.decode(row.getInteger(downloadStatus))
+        );
+    };
+
+    public boolean isDownloadStatus(FileRecord.DownloadStatus status) {
+        return downloadStatus != null && FileRecord.DownloadStatus.valueOf(downloadStatus) == status;
+    }
+}
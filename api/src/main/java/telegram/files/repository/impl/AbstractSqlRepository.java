@@ -1,14 +1,65 @@
 package telegram.files.repository.impl;
 
 
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Pool;
 import io.vertx.sqlclient.SqlClient;
 
+import java.util.function.Function;
+
 public abstract class AbstractSqlRepository {
 
     protected final SqlClient sqlClient;
 
+    /**
+     * Plain reads go here, the same client as sqlClient unless the database has a separate read-only pool.
+     * Reads that must see the writes of their own transaction use the transaction's client instead.
+     */
+    protected final SqlClient readClient;
+
+    /**
+     * Groups writes into shared transactions when set, null commits every write on its own.
+     */
+    protected final WriteBatcher writeBatcher;
+
+    protected final SqlDialect dialect = SqlDialect.current();
+
     public AbstractSqlRepository(SqlClient sqlClient) {
+        this(sqlClient, sqlClient);
+    }
+
+    public AbstractSqlRepository(SqlClient sqlClient, SqlClient readClient) {
+        this(sqlClient, readClient, null);
+    }
+
+    public AbstractSqlRepository(SqlClient sqlClient, SqlClient readClient, WriteBatcher writeBatcher) {
         this.sqlClient = sqlClient;
+        this.readClient = readClient;
+        this.writeBatcher = writeBatcher;
+    }
+
+    /**
+     * Run a write, through the write batcher if there is one, otherwise directly on the client.
+     */
+    protected <T> Future<T> write(Function<SqlClient, Future<T>> function) {
+        if (writeBatcher != null) {
+            return writeBatcher.submit(function);
+        }
+        return function.apply(sqlClient);
+    }
+
+    /**
+     * Run the function in a transaction when backed by a pool, otherwise directly on the client.
+     * With a write batcher the transaction is shared with the other writes of the batch, the function runs in its own savepoint.
+     */
+    protected <T> Future<T> withTransaction(Function<SqlClient, Future<T>> function) {
+        if (writeBatcher != null) {
+            return writeBatcher.submit(function);
+        }
+        if (sqlClient instanceof Pool pool) {
+            return pool.withTransaction(function::apply);
+        }
+        return function.apply(sqlClient);
     }
 
 }
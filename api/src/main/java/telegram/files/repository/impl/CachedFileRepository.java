@@ -0,0 +1,372 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.jooq.lambda.tuple.Tuple2;
+import org.jooq.lambda.tuple.Tuple4;
+import org.jooq.lambda.tuple.Tuple5;
+import telegram.files.repository.ChatBounds;
+import telegram.files.repository.DownloadCandidate;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRepository;
+import telegram.files.repository.FileStatus;
+import telegram.files.repository.FileThumbnail;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves getByUniqueId from a size-bounded, expiring LRU cache, every other call goes to the wrapped repository.
+ * Writes drop the entries they can touch once they complete. A read started before a write completed never fills the cache,
+ * so a stale row can't come back after its invalidation.
+ */
+public class CachedFileRepository implements FileRepository {
+
+    private static final Log log = LogFactory.get();
+
+    private record Entry(FileRecord fileRecord, long loadedAt) {
+    }
+
+    private final FileRepository delegate;
+
+    private final int capacity;
+
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, Entry> cache;
+
+    /**
+     * Bumped by every invalidation, a read only fills the cache if it didn't change meanwhile.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param capacity  maximum number of cached records, 0 disables the cache
+     * @param ttlMillis how long a record is served from memory, 0 keeps it until evicted or invalidated
+     */
+    public CachedFileRepository(FileRepository delegate, int capacity, long ttlMillis) {
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > CachedFileRepository.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public Future<FileRecord> getByUniqueId(String uniqueId) {
+        if (capacity <= 0 || uniqueId == null) {
+            return delegate.getByUniqueId(uniqueId);
+        }
+        synchronized (cache) {
+            Entry entry = cache.get(uniqueId);
+            if (entry != null) {
+                if (ttlMillis <= 0 || System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+                    hits.increment();
+                    return Future.succeededFuture(entry.fileRecord);
+                }
+                cache.remove(uniqueId);
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        long readGeneration = generation.get();
+        return delegate.getByUniqueId(uniqueId)
+                .onSuccess(fileRecord -> {
+                    if (fileRecord == null) {
+                        return;
+                    }
+                    synchronized (cache) {
+                        if (generation.get() == readGeneration) {
+                            cache.put(uniqueId, new Entry(fileRecord, System.currentTimeMillis()));
+                        }
+                    }
+                });
+    }
+
+    public JsonObject getStatistics() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        return JsonObject.of(
+                "size", size,
+                "capacity", capacity,
+                "ttlMillis", ttlMillis,
+                "hits", hitCount,
+                "misses", missCount,
+                "evictions", evictions.sum(),
+                "expirations", expirations.sum(),
+                "hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount)
+        );
+    }
+
+    private void invalidate(String uniqueId) {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.remove(uniqueId);
+        }
+    }
+
+    private void invalidate(Collection<String> uniqueIds) {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            uniqueIds.forEach(cache::remove);
+        }
+    }
+
+    /**
+     * Album updates rewrite caption and reactions of every file of the album.
+     */
+    private void invalidateAlbum(long mediaAlbumId) {
+        if (mediaAlbumId <= 0) {
+            return;
+        }
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.values().removeIf(entry -> entry.fileRecord.mediaAlbumId() == mediaAlbumId);
+        }
+    }
+
+    private void invalidateAll() {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.clear();
+        }
+        log.trace("File record cache cleared");
+    }
+
+    @Override
+    public Future<FileRecord> create(FileRecord fileRecord) {
+        return delegate.create(fileRecord)
+                .onComplete(_ -> {
+                    invalidate(fileRecord.uniqueId());
+                    invalidateAlbum(fileRecord.mediaAlbumId());
+                });
+    }
+
+    @Override
+    public Future<Boolean> createIfNotExist(FileRecord fileRecord) {
+        return delegate.createIfNotExist(fileRecord)
+                .onComplete(_ -> {
+                    invalidate(fileRecord.uniqueId());
+                    invalidateAlbum(fileRecord.mediaAlbumId());
+                });
+    }
+
+    @Override
+    public Future<Tuple2<List<FileRecord>, List<FileRecord>>> createAllIfNotExist(List<FileRecord> fileRecords) {
+        return delegate.createAllIfNotExist(fileRecords)
+                .onComplete(_ -> {
+                    invalidate(fileRecords.stream().map(FileRecord::uniqueId).filter(Objects::nonNull).toList());
+                    fileRecords.stream().mapToLong(FileRecord::mediaAlbumId).distinct().forEach(this::invalidateAlbum);
+                });
+    }
+
+    @Override
+    public Future<Tuple5<List<FileRecord>, Long, Long, Boolean, Double>> getFiles(long chatId, Map<String, String> filter) {
+        return delegate.getFiles(chatId, filter);
+    }
+
+    @Override
+    public Future<Tuple4<List<FileRecord>, List<String>, Long, Boolean>> getChanges(long since, int limit) {
+        return delegate.getChanges(since, limit);
+    }
+
+    @Override
+    public Future<Map<String, FileRecord>> getFilesByUniqueId(List<String> uniqueIds) {
+        return delegate.getFilesByUniqueId(uniqueIds);
+    }
+
+    @Override
+    public Future<Map<String, FileStatus>> getStatusesByUniqueId(List<String> uniqueIds) {
+        return delegate.getStatusesByUniqueId(uniqueIds);
+    }
+
+    @Override
+    public Future<Map<String, FileThumbnail>> getThumbnailsByUniqueId(List<String> uniqueIds) {
+        return delegate.getThumbnailsByUniqueId(uniqueIds);
+    }
+
+    @Override
+    public Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId) {
+        return delegate.getByPrimaryKey(fileId, uniqueId);
+    }
+
+    @Override
+    public Future<FileRecord> getMainFileByThread(long telegramId, long threadChatId, long messageThreadId) {
+        return delegate.getMainFileByThread(telegramId, threadChatId, messageThreadId);
+    }
+
+    @Override
+    public Future<String> getCaptionByMediaAlbumId(long mediaAlbumId) {
+        return delegate.getCaptionByMediaAlbumId(mediaAlbumId);
+    }
+
+    @Override
+    public Future<Long> getReactionCountByMediaAlbumId(long mediaAlbumId) {
+        return delegate.getReactionCountByMediaAlbumId(mediaAlbumId);
+    }
+
+    @Override
+    public Future<JsonObject> getDownloadStatistics(long telegramId) {
+        return delegate.getDownloadStatistics(telegramId);
+    }
+
+    @Override
+    public Future<JsonObject> getChatDownloadStatistics(long telegramId, long chatId, Integer historySince) {
+        return delegate.getChatDownloadStatistics(telegramId, chatId, historySince);
+    }
+
+    @Override
+    public Future<JsonObject> getDownloadStatistics() {
+        return delegate.getDownloadStatistics();
+    }
+
+    @Override
+    public Future<JsonArray> getCompletedRangeStatistics(long id, long startTime, long endTime, int timeRange) {
+        return delegate.getCompletedRangeStatistics(id, startTime, endTime, timeRange);
+    }
+
+    @Override
+    public Future<Integer> countByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus) {
+        return delegate.countByStatus(telegramId, downloadStatus);
+    }
+
+    @Override
+    public Future<JsonObject> countWithType(long telegramId, long chatId) {
+        return delegate.countWithType(telegramId, chatId);
+    }
+
+    @Override
+    public Future<Void> rebuildFileStats() {
+        return delegate.rebuildFileStats();
+    }
+
+    @Override
+    public Future<JsonObject> updateDownloadStatus(int fileId,
+                                                   String uniqueId,
+                                                   String localPath,
+                                                   FileRecord.DownloadStatus downloadStatus,
+                                                   Long completionDate) {
+        return delegate.updateDownloadStatus(fileId, uniqueId, localPath, downloadStatus, completionDate)
+                .onComplete(r -> {
+                    // nothing was written when there was nothing to change
+                    if (r.failed() || r.result() != null) {
+                        invalidate(uniqueId);
+                    }
+                });
+    }
+
+    @Override
+    public Future<JsonObject> updateTransferStatus(String uniqueId,
+                                                   FileRecord.TransferStatus transferStatus,
+                                                   String localPath) {
+        return delegate.updateTransferStatus(uniqueId, transferStatus, localPath)
+                .onComplete(_ -> invalidate(uniqueId));
+    }
+
+    @Override
+    public Future<Void> updateFileId(int fileId, String uniqueId) {
+        return delegate.updateFileId(fileId, uniqueId)
+                .onComplete(_ -> invalidate(uniqueId));
+    }
+
+    @Override
+    public Future<Void> updateThumbnailUniqueId(String uniqueId, String thumbnailUniqueId) {
+        return delegate.updateThumbnailUniqueId(uniqueId, thumbnailUniqueId)
+                .onComplete(_ -> invalidate(uniqueId));
+    }
+
+    @Override
+    public Future<Integer> updateAlbumDataByMediaAlbumId(long mediaAlbumId, String caption, long reactionCount) {
+        return delegate.updateAlbumDataByMediaAlbumId(mediaAlbumId, caption, reactionCount)
+                .onComplete(_ -> invalidateAlbum(mediaAlbumId));
+    }
+
+    @Override
+    public Future<Void> updateTags(String uniqueId, String tags) {
+        return delegate.updateTags(uniqueId, tags)
+                .onComplete(_ -> invalidate(uniqueId));
+    }
+
+    @Override
+    public Future<Integer> updateDownloadPriority(List<String> uniqueIds, int priority) {
+        return delegate.updateDownloadPriority(uniqueIds, priority)
+                .onComplete(_ -> invalidate(uniqueIds));
+    }
+
+    @Override
+    public Future<Integer> updateChatDownloadPriority(long telegramId, long chatId, int priority) {
+        return delegate.updateChatDownloadPriority(telegramId, chatId, priority)
+                .onComplete(r -> {
+                    if (r.failed() || r.result() > 0) {
+                        invalidateAll();
+                    }
+                });
+    }
+
+    @Override
+    public Future<Void> deleteByUniqueId(String uniqueId) {
+        return delegate.deleteByUniqueId(uniqueId)
+                .onComplete(_ -> invalidate(uniqueId));
+    }
+
+    @Override
+    public Future<ChatBounds> getChatBounds(long telegramId, long chatId) {
+        return delegate.getChatBounds(telegramId, chatId);
+    }
+
+    /**
+     * Archiving moves rows without changing them, cached records stay valid.
+     */
+    @Override
+    public Future<Integer> archiveFiles(long completedBefore, int limit) {
+        return delegate.archiveFiles(completedBefore, limit);
+    }
+
+    @Override
+    public Future<List<DownloadCandidate>> getFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
+        return delegate.getFilesReadyForDownload(telegramId, limit, cutoffDateSeconds, downloadOldestFirst);
+    }
+
+    @Override
+    public Future<List<DownloadCandidate>> claimFilesForDownload(long telegramId, long chatId, int limit, Boolean downloadOldestFirst, Integer cutoffDateSeconds) {
+        return delegate.claimFilesForDownload(telegramId, chatId, limit, downloadOldestFirst, cutoffDateSeconds)
+                .onComplete(r -> {
+                    if (r.failed()) {
+                        invalidateAll();
+                    } else if (!r.result().isEmpty()) {
+                        invalidate(r.result().stream().map(DownloadCandidate::uniqueId).toList());
+                    }
+                });
+    }
+
+    @Override
+    public Future<Integer> queueFilesForDownload(long telegramId, long chatId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
+        // marks an unknown set of rows as queued
+        return delegate.queueFilesForDownload(telegramId, chatId, limit, cutoffDateSeconds, downloadOldestFirst)
+                .onComplete(_ -> invalidateAll());
+    }
+}
@@ -0,0 +1,44 @@
+package telegram.files.repository.impl;
+
+import java.util.TreeSet;
+
+/**
+ * Numbers the writes to file_record for the change feed. This process is the only writer, so the numbers are handed
+ * out in memory, continuing from the largest one stored.
+ * <p>
+ * A write reserves its numbers before it starts and releases them once it committed or failed. Writes commit in any
+ * order, so a number is only {@link #visible} when no write holding a smaller one is still running: a reader that
+ * moved its cursor past a running write would never see it.
+ */
+class ChangeSequence {
+
+    private long last;
+
+    // the first number of every write still running
+    private final TreeSet<Long> running = new TreeSet<>();
+
+    ChangeSequence(long last) {
+        this.last = last;
+    }
+
+    /**
+     * @return the first of count consecutive numbers
+     */
+    synchronized long reserve(int count) {
+        long first = last + 1;
+        last += Math.max(count, 1);
+        running.add(first);
+        return first;
+    }
+
+    synchronized void release(long first) {
+        running.remove(first);
+    }
+
+    /**
+     * The largest number all writes up to which have completed.
+     */
+    synchronized long visible() {
+        return running.isEmpty() ? last : running.first() - 1;
+    }
+}
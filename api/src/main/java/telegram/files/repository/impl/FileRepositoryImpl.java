@@ -5,7 +5,9 @@ import cn.hutool.core.collection.IterUtil;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.date.DatePattern;
 import cn.hutool.core.date.DateUtil;
+import cn.hutool.core.map.FixedLinkedHashMap;
 import cn.hutool.core.map.MapUtil;
+import cn.hutool.core.util.ArrayUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
@@ -14,25 +16,37 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.SqlResult;
+import io.vertx.sqlclient.templates.RowMapper;
 import io.vertx.sqlclient.templates.SqlTemplate;
 import org.jooq.lambda.tuple.Tuple;
-import org.jooq.lambda.tuple.Tuple3;
-import telegram.files.Config;
-import telegram.files.DataVerticle;
+import org.jooq.lambda.tuple.Tuple2;
+import org.jooq.lambda.tuple.Tuple4;
+import org.jooq.lambda.tuple.Tuple5;
 import telegram.files.MessyUtils;
-import telegram.files.TelegramVerticle;
-import telegram.files.TelegramVerticles;
+import telegram.files.repository.ChatBounds;
+import telegram.files.repository.ColumnMapper;
+import telegram.files.repository.DownloadCandidate;
+import telegram.files.repository.FileArchive;
+import telegram.files.repository.FileDeletion;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
 import telegram.files.repository.FileRepository;
-import telegram.files.repository.SettingAutoRecords;
-import telegram.files.repository.SettingKey;
-import org.drinkless.tdlib.TdApi;
+import telegram.files.repository.FileSearch;
+import telegram.files.repository.FileStats;
+import telegram.files.repository.FileStatus;
+import telegram.files.repository.FileThumbnail;
+import telegram.files.repository.FileTag;
 
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -40,27 +54,92 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
 
     private static final Log log = LogFactory.get();
 
+    private static final int COUNT_CACHE_SIZE = 256;
+
+    private record CountEntry(long count, long version) {
+    }
+
+    private final Map<String, CountEntry> countCache = new FixedLinkedHashMap<>(COUNT_CACHE_SIZE);
+
+    private final AtomicLong writeVersion = new AtomicLong();
+
+    // bumped by download and transfer progress, only counts filtering on those columns depend on it
+    private final AtomicLong statusVersion = new AtomicLong();
+
+    private static final Pattern STATUS_COLUMNS = Pattern.compile("\\b(download_status|transfer_status|completion_date)\\b");
+
+    private static final int STATUS_UPDATE_ATTEMPTS = 5;
+
+    private static final String NOT_THUMBNAIL = "type != " + FileRecordCode.TYPE.literal("thumbnail");
+
+    private static final String DOWNLOAD_IDLE = "download_status = " + FileRecordCode.DOWNLOAD_STATUS.literal("idle");
+
+    private static final String SCAN_IDLE = "(scan_state = %s OR scan_state IS NULL)".formatted(FileRecordCode.SCAN_STATE.literal("idle"));
+
+    private static final List<String> BULK_INSERT_COLUMNS = List.of("id", "unique_id", "telegram_id", "chat_id", "message_id",
+            "media_album_id", "date", "has_sensitive_content", "size", "downloaded_size", "type", "mime_type", "file_name",
+            "thumbnail", "thumbnail_unique_id", "caption", "extra", "local_path", "download_status", "start_date",
+            "transfer_status", "tags", "thread_chat_id", "message_thread_id", "reaction_count", "change_seq");
+
+    private static final String FILE_COLUMNS = String.join(", ", FileRecord.COLUMNS);
+
+    /**
+     * Whether the archive holds files, checked once, reads only fall back to it then. Set once files were archived.
+     */
+    private volatile Future<Boolean> archiveInUse;
+
+    /**
+     * Numbers the writes for the change feed, seeded from the stored numbers on first use.
+     */
+    private Future<ChangeSequence> changeSequence;
+
+    /**
+     * Message id and date bounds by (telegram_id, chat_id), loaded once and widened by every insert.
+     */
+    private final Map<Tuple2<Long, Long>, ChatBounds> chatBounds = new ConcurrentHashMap<>();
+
+    private Future<Void> chatBoundsLoaded;
+
+    // files with the search rank of a relevance sorted page, null on other pages
+    private static final ColumnMapper<Tuple2<FileRecord, Double>> RANKED_MAPPER = columns -> {
+        RowMapper<FileRecord> fileRecord = FileRecord.MAPPER.bind(columns);
+        int rank = columns.indexOf("search_rank");
+        return row -> Tuple.tuple(fileRecord.map(row), rank < 0 ? null : row.getDouble(rank));
+    };
+
+    private static final ColumnMapper<Tuple2<FileRecord, Long>> CHANGE_MAPPER = columns -> {
+        RowMapper<FileRecord> fileRecord = FileRecord.MAPPER.bind(columns);
+        int changeSeq = columns.indexOf("change_seq");
+        return row -> Tuple.tuple(fileRecord.map(row), row.getLong(changeSeq));
+    };
+
     public FileRepositoryImpl(SqlClient sqlClient) {
         super(sqlClient);
     }
 
+    public FileRepositoryImpl(SqlClient sqlClient, SqlClient readClient, WriteBatcher writeBatcher) {
+        super(sqlClient, readClient, writeBatcher);
+    }
+
     @Override
     public Future<FileRecord> create(FileRecord fileRecord) {
-        return SqlTemplate
-                .forUpdate(sqlClient, """
+        return withChanges(1, changeSeq -> withTransaction(client -> SqlTemplate
+                .forUpdate(client, """
                         INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date, has_sensitive_content,
                                                 size, downloaded_size,
                                                 type, mime_type,
                                                 file_name, thumbnail, thumbnail_unique_id, caption, extra, local_path,
-                                                download_status, start_date, transfer_status, tags, thread_chat_id, message_thread_id, reaction_count)
+                                                download_status, start_date, transfer_status, tags, thread_chat_id, message_thread_id, reaction_count,
+                                                change_seq)
                         values (#{id}, #{unique_id}, #{telegram_id}, #{chat_id}, #{message_id}, #{media_album_id}, #{date},
                                 #{has_sensitive_content}, #{size}, #{downloaded_size}, #{type},
                                 #{mime_type}, #{file_name}, #{thumbnail}, #{thumbnail_unique_id}, #{caption}, #{extra}, #{local_path},
-                                #{download_status}, #{start_date}, #{transfer_status}, #{tags}, #{thread_chat_id}, #{message_thread_id}, #{reaction_count})
+                                #{download_status}, #{start_date}, #{transfer_status}, #{tags}, #{thread_chat_id}, #{message_thread_id}, #{reaction_count},
+                                #{change_seq})
                         """)
-                .mapFrom(FileRecord.PARAM_MAPPER)
-                .execute(fileRecord)
-                .map(r -> fileRecord)
+                .execute(toParams(fileRecord, changeSeq))
+                .compose(_ -> FileStats.apply(client, List.of(FileStats.of(fileRecord))))
+                .map(fileRecord)))
                 .compose(r -> {
                     if (Objects.equals(r.type(), "thumbnail")) {
                         return Future.succeededFuture(r);
@@ -68,7 +147,11 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                         return this.updateAlbumDataByMediaAlbumId(fileRecord.mediaAlbumId(), fileRecord.caption(), fileRecord.reactionCount()).map(r);
                     }
                 })
-                .onSuccess(r -> log.trace("Successfully created file record: %s".formatted(fileRecord.id())))
+                .onSuccess(r -> {
+                    invalidateCounts();
+                    widenChatBounds(List.of(fileRecord));
+                    log.trace("Successfully created file record: %s".formatted(fileRecord.id()));
+                })
                 .onFailure(err -> log.error("Failed to create file record: %s".formatted(err.getMessage())));
     }
 
@@ -79,17 +162,119 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                     if (record != null) {
                         return Future.succeededFuture(false);
                     }
-                    return this.create(fileRecord).map(true);
+                    // the unique index rejects a concurrent insert of the same file
+                    return this.create(fileRecord).map(true)
+                            .recover(err -> this.getByUniqueId(fileRecord.uniqueId())
+                                    .compose(existing -> existing != null ? Future.succeededFuture(false) : Future.failedFuture(err)));
                 });
     }
 
     @Override
-    public Future<Tuple3<List<FileRecord>, Long, Long>> getFiles(long chatId, Map<String, String> filter) {
+    public Future<Tuple2<List<FileRecord>, List<FileRecord>>> createAllIfNotExist(List<FileRecord> fileRecords) {
+        if (CollUtil.isEmpty(fileRecords)) {
+            return Future.succeededFuture(Tuple.tuple(List.of(), List.of()));
+        }
+        Map<String, FileRecord> candidates = new LinkedHashMap<>();
+        for (FileRecord fileRecord : fileRecords) {
+            if (StrUtil.isNotBlank(fileRecord.uniqueId())) {
+                candidates.putIfAbsent(fileRecord.uniqueId(), fileRecord);
+            }
+        }
+        List<String> uniqueIds = new ArrayList<>(candidates.keySet());
+        return withChanges(candidates.size(), firstChangeSeq -> withTransaction(client -> getFilesByUniqueId(client, uniqueIds)
+                .compose(existing -> {
+                    List<FileRecord> toInsert = candidates.values().stream()
+                            .filter(r -> !existing.containsKey(r.uniqueId()))
+                            .toList();
+                    return insertAll(client, toInsert, firstChangeSeq)
+                            .compose(inserted -> {
+                                if (inserted == toInsert.size()) {
+                                    return Future.succeededFuture(Tuple.tuple(toInsert, existing));
+                                }
+                                // someone else inserted part of the page concurrently, re-read to tell ours apart
+                                return getFilesByUniqueId(client, uniqueIds)
+                                        .map(after -> Tuple.tuple(toInsert.stream()
+                                                .filter(r -> after.containsKey(r.uniqueId()) && after.get(r.uniqueId()).id() == r.id()
+                                                             && !existing.containsKey(r.uniqueId()))
+                                                .toList(), existing));
+                            })
+                            .compose(tuple -> FileStats.apply(client, tuple.v1.stream().map(FileStats::of).toList())
+                                    .map(tuple));
+                })))
+                .compose(tuple -> {
+                    List<FileRecord> inserted = tuple.v1;
+                    List<FileRecord> existing = uniqueIds.stream()
+                            .filter(tuple.v2::containsKey)
+                            .map(tuple.v2::get)
+                            .toList();
+                    if (!inserted.isEmpty()) {
+                        invalidateCounts();
+                        widenChatBounds(inserted);
+                    }
+                    Map<Long, FileRecord> albums = new LinkedHashMap<>();
+                    inserted.stream()
+                            .filter(r -> !Objects.equals(r.type(), "thumbnail") && r.mediaAlbumId() > 0)
+                            .forEach(r -> albums.putIfAbsent(r.mediaAlbumId(), r));
+                    return Future.all(albums.values().stream()
+                                    .map(r -> updateAlbumDataByMediaAlbumId(r.mediaAlbumId(), r.caption(), r.reactionCount()))
+                                    .toList())
+                            .map(Tuple.tuple(inserted, existing));
+                })
+                .onSuccess(r -> log.trace("Bulk created file records, inserted: %d, existing: %d".formatted(r.v1.size(), r.v2.size())))
+                .onFailure(err -> log.error("Failed to bulk create file records: %s".formatted(err.getMessage())));
+    }
+
+    private Future<Integer> insertAll(SqlClient client, List<FileRecord> fileRecords, long firstChangeSeq) {
+        return dialect.insertIgnoreAll(client, "file_record", BULK_INSERT_COLUMNS, IntStream.range(0, fileRecords.size())
+                .mapToObj(i -> toParams(fileRecords.get(i), firstChangeSeq + i))
+                .toList());
+    }
+
+    private static Map<String, Object> toParams(FileRecord fileRecord, long changeSeq) {
+        Map<String, Object> params = FileRecord.toParams(fileRecord);
+        params.put("change_seq", changeSeq);
+        return params;
+    }
+
+    /**
+     * Run a write with count change numbers reserved, it gets the first. They are released once the write completed.
+     */
+    private <T> Future<T> withChanges(int count, Function<Long, Future<T>> write) {
+        return changeSequence().compose(sequence -> {
+            long first = sequence.reserve(count);
+            return Future.<T>future(promise -> write.apply(first).onComplete(promise))
+                    .onComplete(_ -> sequence.release(first));
+        });
+    }
+
+    private synchronized Future<ChangeSequence> changeSequence() {
+        if (changeSequence == null) {
+            changeSequence = sqlClient.query("""
+                            SELECT MAX(change_seq) FROM (
+                                SELECT MAX(change_seq) AS change_seq FROM file_record
+                                UNION ALL SELECT MAX(change_seq) FROM %s
+                                UNION ALL SELECT MAX(change_seq) FROM %s
+                            ) c
+                            """.formatted(FileArchive.TABLE, FileDeletion.TABLE))
+                    .execute()
+                    .map(rs -> new ChangeSequence(Objects.requireNonNullElse(rs.iterator().next().getLong(0), 0L)))
+                    .onFailure(err -> {
+                        log.error("Failed to read the last change number: %s".formatted(err.getMessage()));
+                        synchronized (this) {
+                            changeSequence = null;
+                        }
+                    });
+        }
+        return changeSequence;
+    }
+
+    @Override
+    public Future<Tuple5<List<FileRecord>, Long, Long, Boolean, Double>> getFiles(long chatId, Map<String, String> filter) {
         String search = filter.get("search");
         String type = filter.get("type");
         String downloadStatus = filter.get("downloadStatus");
         String transferStatus = filter.get("transferStatus");
-        List<String> tags = StrUtil.split(filter.get("tags"), ",");
+        List<String> tags = FileTag.split(filter.get("tags"));
         long messageThreadId = Convert.toLong(filter.get("messageThreadId"), 0L);
         String dateType = filter.get("dateType");
         String dateRange = filter.get("dateRange");
@@ -101,39 +286,52 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         Long fromMessageId = Convert.toLong(filter.get("fromMessageId"), 0L);
         int limit = Convert.toInt(filter.get("limit"), 20);
 
-        String whereClause = "type != 'thumbnail'";
+        String whereClause = NOT_THUMBNAIL;
+        String fromClause = "file_record";
+        FileSearch.Plan searchPlan = null;
+        // the archive has no full-text index, its half of a search matches the terms with LIKE
+        String searchWhere = null;
+        String archiveSearchWhere = null;
         Map<String, Object> params = new HashMap<>();
         params.put("limit", limit);
         if (chatId != 0) {
             whereClause += " AND chat_id = #{chatId}";
             params.put("chatId", chatId);
         }
-        if (StrUtil.isNotBlank(search)) {
+        if (FileSearch.canSearch(search)) {
+            searchPlan = FileSearch.plan();
+            fromClause = searchPlan.from();
+            searchWhere = searchPlan.where();
+            archiveSearchWhere = FileSearch.likeWhere(search, params);
+            params.put("searchQuery", FileSearch.toQuery(search));
+        } else if (StrUtil.isNotBlank(search)) {
             whereClause += " AND (file_name LIKE #{search} OR caption LIKE #{search})";
             params.put("search", "%%" + search + "%%");
         }
         if (StrUtil.isNotBlank(type) && !Objects.equals(type, "all")) {
             if (Objects.equals(type, "media")) {
-                whereClause += " AND type IN ('photo', 'video')";
+                whereClause += " AND type IN " + FileRecordCode.TYPE.literals("photo", "video");
             } else {
                 whereClause += " AND type = #{type}";
-                params.put("type", type);
+                params.put("type", FileRecordCode.TYPE.encodeOrNone(type));
             }
         }
         if (StrUtil.isNotBlank(downloadStatus)) {
             whereClause += " AND download_status = #{downloadStatus}";
-            params.put("downloadStatus", downloadStatus);
+            params.put("downloadStatus", FileRecordCode.DOWNLOAD_STATUS.encodeOrNone(downloadStatus));
         }
         if (StrUtil.isNotBlank(transferStatus)) {
             whereClause += " AND transfer_status = #{transferStatus}";
-            params.put("transferStatus", transferStatus);
+            params.put("transferStatus", FileRecordCode.TRANSFER_STATUS.encodeOrNone(transferStatus));
         }
         if (CollUtil.isNotEmpty(tags)) {
-            String tagClause = tags.stream()
-                    .filter(StrUtil::isNotBlank)
-                    .map(tag -> "tags LIKE '%%" + tag + "%%'")
-                    .collect(Collectors.joining(" OR "));
-            whereClause += " AND (%s)".formatted(tagClause);
+            String tagPlaceholders = IntStream.range(0, tags.size())
+                    .mapToObj(i -> {
+                        params.put("tag" + i, tags.get(i));
+                        return "#{tag" + i + "}";
+                    })
+                    .collect(Collectors.joining(","));
+            whereClause += " AND file_record.unique_id IN (SELECT unique_id FROM file_tag WHERE tag IN (%s))".formatted(tagPlaceholders);
         }
         if (messageThreadId != 0) {
             whereClause += " AND message_thread_id = #{messageThreadId}";
@@ -170,62 +368,313 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
             }
         }
         String orderBy = "message_id DESC";
-        boolean customSort = StrUtil.isNotBlank(sort) && StrUtil.isNotBlank(order);
-        if (customSort) {
+        // full-text matches are ranked unless another sort is requested, paged by the (rank, message_id) keyset
+        boolean relevanceSort = searchPlan != null && (StrUtil.isBlank(sort) || Objects.equals(sort, "relevance"));
+        boolean customSort = !relevanceSort && StrUtil.isNotBlank(sort) && StrUtil.isNotBlank(order);
+        if (relevanceSort) {
+            orderBy = "search_rank %s, message_id DESC".formatted(searchPlan.order());
+        } else if (customSort) {
             orderBy = "%s %s".formatted(sort, order);
             if (Objects.equals(sort, "completion_date")) {
                 // For completion_date, we need to ensure the date is in milliseconds
                 whereClause += " AND completion_date IS NOT NULL";
             }
         }
-        String countClause = whereClause;
+        // archived files are completed and transferred, a page of those spans both tables
+        boolean archivable = (StrUtil.isBlank(downloadStatus) || Objects.equals(downloadStatus, FileRecord.DownloadStatus.completed.name()))
+                             && (StrUtil.isBlank(transferStatus) || Objects.equals(transferStatus, FileRecord.TransferStatus.completed.name()));
+        String hotWhere = searchWhere == null ? whereClause : whereClause + " AND " + searchWhere;
+        String coldWhere = archiveSearchWhere == null ? whereClause : whereClause + " AND " + archiveSearchWhere;
+        boolean statusFiltered = STATUS_COLUMNS.matcher(whereClause).find();
+        String countSignature = fromClause + hotWhere + new TreeMap<>(MapUtil.removeAny(new HashMap<>(params), "limit"));
+        String countQuery = "SELECT COUNT(*) FROM %s WHERE %s".formatted(fromClause, hotWhere);
+        String archiveCountQuery = "SELECT (SELECT COUNT(*) FROM %1$s WHERE %2$s) + (SELECT COUNT(*) FROM %3$s file_record WHERE %4$s)"
+                .formatted(fromClause, hotWhere, FileArchive.TABLE, coldWhere);
+        // archived matches have no rank, they rank below every indexed match
+        String hotRank = relevanceSort ? searchPlan.rank() : null;
+        String coldRank = relevanceSort ? searchPlan.unranked() : null;
+        String hotKeyset = "";
+        String coldKeyset = "";
         if (fromMessageId > 0) {
             params.put("fromMessageId", fromMessageId);
-            if (customSort) {
+            Double fromRank = Convert.toDouble(filter.get("fromRank"), null);
+            if (relevanceSort && fromRank != null) {
+                String keyset = " AND (%1$s %2$s #{fromRank} OR (%1$s = #{fromRank} AND message_id < #{fromMessageId}))";
+                String direction = searchPlan.ascending() ? ">" : "<";
+                hotKeyset = keyset.formatted(hotRank, direction);
+                coldKeyset = keyset.formatted(coldRank, direction);
+                params.put("fromRank", fromRank);
+            } else if (customSort) {
                 long fromSortField = Convert.toLong(filter.get("fromSortField"));
-                whereClause += " AND (%s %s %s OR (%s = %s AND message_id < #{fromMessageId}))".formatted(sort,
+                hotKeyset = " AND (%s %s %s OR (%s = %s AND message_id < #{fromMessageId}))".formatted(sort,
                         Objects.equals(order, "asc") ? ">" : "<",
                         fromSortField,
                         sort,
                         fromSortField);
+                coldKeyset = hotKeyset;
             } else {
-                whereClause += " AND message_id < #{fromMessageId}";
+                hotKeyset = " AND message_id < #{fromMessageId}";
+                coldKeyset = hotKeyset;
             }
         }
-        log.trace("Get files with where: %s params: %s".formatted(whereClause, params));
-        return Future.all(
-                SqlTemplate
-                        .forQuery(sqlClient, """
-                                SELECT * FROM file_record WHERE %s ORDER BY %s LIMIT #{limit}
-                                """.formatted(whereClause, orderBy))
-                        .mapTo(FileRecord.ROW_MAPPER)
-                        .execute(params)
-                        .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage())))
-                        .map(IterUtil::toList)
-                ,
-                SqlTemplate
-                        .forQuery(sqlClient, """
-                                SELECT COUNT(*) FROM file_record WHERE %s
-                                """.formatted(countClause))
-                        .mapTo(rs -> rs.getLong(0))
-                        .execute(params)
-                        .onFailure(err -> log.error("Failed to get file record count: %s".formatted(err.getMessage())))
-                        .map(rs -> rs.size() > 0 ? rs.iterator().next() : 0L)
-        ).map(r -> {
-            List<FileRecord> fileRecords = r.resultAt(0);
-            long nextFromMessageId = CollUtil.isEmpty(fileRecords) ? 0 : fileRecords.getLast().messageId();
-            return Tuple.tuple(fileRecords, nextFromMessageId, r.resultAt(1));
-        });
+        log.trace("Get files with where: %s%s params: %s".formatted(hotWhere, hotKeyset, params));
+        String query = "SELECT file_record.*%s FROM %s WHERE %s%s ORDER BY %s LIMIT #{limit}"
+                .formatted(hotRank == null ? "" : ", %s AS search_rank".formatted(hotRank), fromClause, hotWhere, hotKeyset, orderBy);
+        // the top of each table, then the top of both
+        String archiveQuery = """
+                SELECT * FROM (
+                    SELECT * FROM (SELECT %1$s%2$s FROM %3$s WHERE %4$s%5$s ORDER BY %9$s LIMIT #{limit}) hot
+                    UNION ALL
+                    SELECT * FROM (SELECT %1$s%6$s FROM %10$s file_record WHERE %7$s%8$s ORDER BY %9$s LIMIT #{limit}) cold
+                ) file_record ORDER BY %9$s LIMIT #{limit}
+                """.formatted(FILE_COLUMNS,
+                hotRank == null ? "" : ", %s AS search_rank".formatted(hotRank), fromClause, hotWhere, hotKeyset,
+                coldRank == null ? "" : ", %s AS search_rank".formatted(coldRank), coldWhere, coldKeyset,
+                orderBy, FileArchive.TABLE);
+        return (archivable ? archiveInUse() : Future.succeededFuture(false))
+                .compose(withArchive -> Future.all(
+                        SqlTemplate
+                                .forQuery(readClient, withArchive ? archiveQuery : query)
+                                .execute(params)
+                                .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage())))
+                                .map(RANKED_MAPPER::mapAll)
+                        ,
+                        withArchive ? countFiles(countSignature + FileArchive.TABLE, archiveCountQuery, params, statusFiltered, fromMessageId > 0) :
+                                countFiles(countSignature, countQuery, params, statusFiltered, fromMessageId > 0)
+                ))
+                .map(r -> {
+                    List<Tuple2<FileRecord, Double>> ranked = r.resultAt(0);
+                    Tuple2<Long, Boolean> count = r.resultAt(1);
+                    List<FileRecord> fileRecords = ranked.stream().map(Tuple2::v1).toList();
+                    long nextFromMessageId = CollUtil.isEmpty(fileRecords) ? 0 : fileRecords.getLast().messageId();
+                    Double nextFromRank = CollUtil.isEmpty(ranked) ? null : ranked.getLast().v2;
+                    return Tuple.tuple(fileRecords, nextFromMessageId, count.v1, count.v2, nextFromRank);
+                });
+    }
+
+    @Override
+    public Future<Tuple4<List<FileRecord>, List<String>, Long, Boolean>> getChanges(long since, int limit) {
+        return changeSequence().compose(sequence -> {
+            // writes still running hold back the cursor, a client never steps past a change it hasn't seen
+            long upper = sequence.visible();
+            if (since < 0 || since >= upper) {
+                return Future.succeededFuture(Tuple.tuple(List.<FileRecord>of(), List.<String>of(), since < 0 ? upper : since, false));
+            }
+            Map<String, Object> params = Map.of("since", since, "upper", upper, "limit", limit);
+            return Future.all(fileChanges("change_seq > #{since} AND change_seq <= #{upper}", params, true),
+                            deletionChanges(params))
+                    .compose(r -> {
+                        List<Tuple2<FileRecord, Long>> files = r.resultAt(0);
+                        List<Tuple2<String, Long>> deleted = r.resultAt(1);
+                        long next = upper;
+                        if (files.size() == limit) {
+                            next = Math.min(next, files.getLast().v2);
+                        }
+                        if (deleted.size() == limit) {
+                            next = Math.min(next, deleted.getLast().v2);
+                        }
+                        long cursor = next;
+                        boolean hasMore = cursor < upper;
+                        // one write may number several files alike, the page ends after all of them
+                        Future<List<Tuple2<FileRecord, Long>>> lastFiles = files.size() == limit && files.getLast().v2 == cursor ?
+                                fileChanges("change_seq = #{cursor}", Map.of("cursor", cursor), false) :
+                                Future.succeededFuture(List.of());
+                        return lastFiles.map(last -> {
+                            Map<String, Tuple2<FileRecord, Long>> changed = new LinkedHashMap<>();
+                            files.stream()
+                                    .filter(f -> last.isEmpty() ? f.v2 <= cursor : f.v2 < cursor)
+                                    .forEach(f -> changed.put(f.v1.uniqueId(), f));
+                            last.forEach(f -> changed.put(f.v1.uniqueId(), f));
+                            Map<String, Long> deletedIds = new LinkedHashMap<>();
+                            deleted.stream()
+                                    .filter(d -> d.v2 <= cursor)
+                                    .forEach(d -> deletedIds.merge(d.v1, d.v2, Math::max));
+                            // a file deleted and stored again within the page is reported by its latest change only
+                            deletedIds.entrySet().removeIf(d -> changed.containsKey(d.getKey()) && changed.get(d.getKey()).v2 > d.getValue());
+                            changed.keySet().removeAll(deletedIds.keySet());
+                            return Tuple.tuple(changed.values().stream().map(Tuple2::v1).toList(), List.copyOf(deletedIds.keySet()), cursor, hasMore);
+                        });
+                    });
+        }).onFailure(err -> log.error("Failed to get file changes: %s".formatted(err.getMessage())));
+    }
+
+    private Future<List<Tuple2<FileRecord, Long>>> fileChanges(String condition, Map<String, Object> params, boolean limited) {
+        return fileSource(FILE_COLUMNS)
+                .compose(source -> SqlTemplate
+                        .forQuery(readClient, """
+                                SELECT %s FROM %s WHERE %s ORDER BY change_seq, unique_id %s
+                                """.formatted(FILE_COLUMNS, source, condition, limited ? "LIMIT #{limit}" : ""))
+                        .execute(params))
+                .map(CHANGE_MAPPER::mapAll);
+    }
+
+    private Future<List<Tuple2<String, Long>>> deletionChanges(Map<String, Object> params) {
+        return SqlTemplate
+                .forQuery(readClient, """
+                        SELECT unique_id, change_seq FROM %s
+                        WHERE change_seq > #{since} AND change_seq <= #{upper}
+                        ORDER BY change_seq
+                        LIMIT #{limit}
+                        """.formatted(FileDeletion.TABLE))
+                .mapTo(row -> Tuple.tuple(row.getString("unique_id"), row.getLong("change_seq")))
+                .execute(params)
+                .map(IterUtil::toList);
+    }
+
+    /**
+     * Count the files matching a filter at most once per filter signature.
+     * The first page recounts when the cached value is stale, later pages reuse whatever is cached and report it as approximate.
+     * Status changes while files download only make counts filtering on a status stale, the others keep being served.
+     *
+     * @return count and whether it is exact
+     */
+    private Future<Tuple2<Long, Boolean>> countFiles(String signature, String countQuery, Map<String, Object> params,
+                                                     boolean statusFiltered, boolean keysetPage) {
+        // both counters only grow, their sum changes whenever either does
+        long version = writeVersion.get() + (statusFiltered ? statusVersion.get() : 0);
+        CountEntry cached;
+        synchronized (countCache) {
+            cached = countCache.get(signature);
+        }
+        if (cached != null && (cached.version == version || keysetPage)) {
+            return Future.succeededFuture(Tuple.tuple(cached.count, cached.version == version));
+        }
+        return SqlTemplate
+                .forQuery(readClient, countQuery)
+                .mapTo(rs -> rs.getLong(0))
+                .execute(params)
+                .onFailure(err -> log.error("Failed to get file record count: %s".formatted(err.getMessage())))
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : 0L)
+                .map(count -> {
+                    synchronized (countCache) {
+                        countCache.put(signature, new CountEntry(count, version));
+                    }
+                    return Tuple.tuple(count, true);
+                });
+    }
+
+    /**
+     * Marks every cached count as stale, called after writes that can change which rows match a filter.
+     */
+    private void invalidateCounts() {
+        writeVersion.incrementAndGet();
+    }
+
+    /**
+     * Marks the cached counts filtering on download or transfer state as stale, called after status changes and claims.
+     */
+    private void invalidateStatusCounts() {
+        statusVersion.incrementAndGet();
+    }
+
+    private Future<Boolean> archiveInUse() {
+        Future<Boolean> inUse = archiveInUse;
+        if (inUse == null) {
+            inUse = readClient.query("SELECT 1 FROM %s LIMIT 1".formatted(FileArchive.TABLE))
+                    .execute()
+                    .map(rs -> rs.size() > 0)
+                    .onFailure(err -> {
+                        log.error("Failed to check the file archive: %s".formatted(err.getMessage()));
+                        archiveInUse = null;
+                    });
+            archiveInUse = inUse;
+        }
+        return inUse;
+    }
+
+    /**
+     * Run a read on file_record, then on the archive if that found nothing and the archive is in use.
+     *
+     * @param query the read of a table
+     */
+    private <T> Future<T> orArchive(Function<String, Future<T>> query, Predicate<T> found) {
+        return query.apply("file_record")
+                .compose(result -> found.test(result) ? Future.succeededFuture(result) : archiveInUse()
+                        .compose(inUse -> inUse ? query.apply(FileArchive.TABLE) : Future.succeededFuture(result)));
+    }
+
+    /**
+     * file_record, or file_record and the archive as one table named file_record when the archive is in use.
+     */
+    private Future<String> fileSource(String columns) {
+        return archiveInUse().map(inUse -> inUse ? FileArchive.union(columns) : "file_record");
+    }
+
+    /**
+     * Move a file back from the archive before a write that changes its state, a no-op unless the archive is in use.
+     */
+    private Future<Boolean> restoreArchived(SqlClient client, String uniqueId) {
+        return archiveInUse().compose(inUse -> inUse ? FileArchive.restore(client, uniqueId) : Future.succeededFuture(false));
+    }
+
+    @Override
+    public Future<Integer> archiveFiles(long completedBefore, int limit) {
+        return withTransaction(client -> FileArchive.archive(client, completedBefore, limit))
+                .onSuccess(archived -> {
+                    if (archived > 0) {
+                        archiveInUse = Future.succeededFuture(true);
+                        invalidateCounts();
+                        log.debug("Archived %d file records".formatted(archived));
+                    }
+                })
+                .onFailure(err -> log.error("Failed to archive file records: %s".formatted(err.getMessage())));
     }
 
     @Override
     public Future<Map<String, FileRecord>> getFilesByUniqueId(List<String> uniqueIds) {
-        uniqueIds = uniqueIds.stream()
+        return getFilesByUniqueId(readClient, uniqueIds);
+    }
+
+    private Future<Map<String, FileRecord>> getFilesByUniqueId(SqlClient client, List<String> uniqueIds) {
+        return getByUniqueIds(client, uniqueIds, "*", FileRecord.MAPPER, FileRecord::uniqueId);
+    }
+
+    @Override
+    public Future<Map<String, FileStatus>> getStatusesByUniqueId(List<String> uniqueIds) {
+        return getByUniqueIds(readClient, uniqueIds, FileStatus.COLUMNS, FileStatus.MAPPER, FileStatus::uniqueId);
+    }
+
+    @Override
+    public Future<Map<String, FileThumbnail>> getThumbnailsByUniqueId(List<String> uniqueIds) {
+        return getByUniqueIds(readClient, uniqueIds, FileThumbnail.COLUMNS, FileThumbnail.MAPPER, FileThumbnail::uniqueId);
+    }
+
+    /**
+     * The ids file_record doesn't have are looked up in the archive, if it is in use.
+     */
+    private <T> Future<Map<String, T>> getByUniqueIds(SqlClient client,
+                                                      List<String> uniqueIds,
+                                                      String columns,
+                                                      ColumnMapper<T> mapper,
+                                                      Function<T, String> uniqueId) {
+        List<String> ids = uniqueIds.stream()
                 .filter(StrUtil::isNotBlank)
                 .distinct().collect(Collectors.toList());
-        if (CollUtil.isEmpty(uniqueIds)) {
+        if (CollUtil.isEmpty(ids)) {
             return Future.succeededFuture(new HashMap<>());
         }
+        return getByUniqueIds(client, "file_record", ids, columns, mapper, uniqueId)
+                .compose(found -> {
+                    List<String> missing = ids.stream().filter(id -> !found.containsKey(id)).toList();
+                    if (missing.isEmpty()) {
+                        return Future.succeededFuture(found);
+                    }
+                    return archiveInUse()
+                            .compose(inUse -> !inUse ? Future.succeededFuture(found) :
+                                    getByUniqueIds(client, FileArchive.TABLE, missing, columns, mapper, uniqueId)
+                                            .map(archived -> {
+                                                found.putAll(archived);
+                                                return found;
+                                            }));
+                });
+    }
+
+    private <T> Future<Map<String, T>> getByUniqueIds(SqlClient client,
+                                                      String table,
+                                                      List<String> uniqueIds,
+                                                      String columns,
+                                                      ColumnMapper<T> mapper,
+                                                      Function<T, String> uniqueId) {
         String uniqueIdPlaceholders = IntStream.range(0, uniqueIds.size())
                 .mapToObj(i -> "#{uniqueId" + i + "}")
                 .collect(Collectors.joining(","));
@@ -234,16 +683,15 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
             params.put("uniqueId" + i, uniqueIds.get(i));
         }
         return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT * FROM file_record WHERE unique_id IN (%s)
-                        """.formatted(uniqueIdPlaceholders))
-                .mapTo(FileRecord.ROW_MAPPER)
+                .forQuery(client, """
+                        SELECT %s FROM %s WHERE unique_id IN (%s)
+                        """.formatted(columns, table, uniqueIdPlaceholders))
                 .execute(params)
                 .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage())))
                 .map(rs -> {
-                    Map<String, FileRecord> map = new HashMap<>();
-                    for (FileRecord record : rs) {
-                        map.put(record.uniqueId(), record);
+                    Map<String, T> map = new HashMap<>();
+                    for (T record : mapper.mapAll(rs)) {
+                        map.put(uniqueId.apply(record), record);
                     }
                     return map;
                 });
@@ -251,48 +699,48 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
 
     @Override
     public Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId) {
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT * FROM file_record WHERE id = #{fileId} AND unique_id = #{uniqueId}
-                        """)
-                .mapTo(FileRecord.ROW_MAPPER)
+        return orArchive(table -> SqlTemplate
+                .forQuery(readClient, """
+                        SELECT * FROM %s WHERE id = #{fileId} AND unique_id = #{uniqueId}
+                        """.formatted(table))
                 .execute(Map.of("fileId", fileId, "uniqueId", uniqueId))
                 .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage()))
                 )
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
+                .map(FileRecord.MAPPER::mapAll)
+                .map(records -> records.isEmpty() ? null : records.getFirst()), Objects::nonNull);
     }
 
     @Override
     public Future<FileRecord> getByUniqueId(String uniqueId) {
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT * FROM file_record WHERE unique_id = #{uniqueId} LIMIT 1
-                        """)
-                .mapTo(FileRecord.ROW_MAPPER)
+        return orArchive(table -> SqlTemplate
+                .forQuery(readClient, """
+                        SELECT * FROM %s WHERE unique_id = #{uniqueId} LIMIT 1
+                        """.formatted(table))
                 .execute(Map.of("uniqueId", uniqueId))
                 .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage()))
                 )
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
+                .map(FileRecord.MAPPER::mapAll)
+                .map(records -> records.isEmpty() ? null : records.getFirst()), Objects::nonNull);
     }
 
     @Override
     public Future<FileRecord> getMainFileByThread(long telegramId, long threadChatId, long messageThreadId) {
-        return SqlTemplate
-                .forQuery(sqlClient, """
+        return orArchive(table -> SqlTemplate
+                .forQuery(readClient, """
                         SELECT *
-                        FROM file_record
+                        FROM %s
                         WHERE telegram_id = #{telegramId}
                           AND thread_chat_id = #{threadChatId}
                           AND message_thread_id = #{messageThreadId}
                           AND chat_id != #{threadChatId}
-                          AND type != 'thumbnail'
+                          AND %s
                         LIMIT 1
-                        """)
-                .mapTo(FileRecord.ROW_MAPPER)
+                        """.formatted(table, NOT_THUMBNAIL))
                 .execute(Map.of("telegramId", telegramId, "threadChatId", threadChatId, "messageThreadId", messageThreadId))
                 .onFailure(err -> log.error("Failed to get main file record: %s".formatted(err.getMessage()))
                 )
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
+                .map(FileRecord.MAPPER::mapAll)
+                .map(records -> records.isEmpty() ? null : records.getFirst()), Objects::nonNull);
     }
 
     @Override
@@ -300,13 +748,13 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (mediaAlbumId <= 0) {
             return Future.succeededFuture(null);
         }
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT caption FROM file_record WHERE media_album_id = #{mediaAlbumId} LIMIT 1
-                        """)
+        return orArchive(table -> SqlTemplate
+                .forQuery(readClient, """
+                        SELECT caption FROM %s WHERE media_album_id = #{mediaAlbumId} LIMIT 1
+                        """.formatted(table))
                 .mapTo(row -> row.getString("caption"))
                 .execute(Map.of("mediaAlbumId", mediaAlbumId))
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null)
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null), Objects::nonNull)
                 .onFailure(err -> log.error("Failed to get caption: %s".formatted(err.getMessage())));
     }
 
@@ -315,191 +763,147 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (mediaAlbumId <= 0) {
             return Future.succeededFuture(0L);
         }
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT reaction_count FROM file_record WHERE media_album_id = #{mediaAlbumId} LIMIT 1
-                        """)
+        return orArchive(table -> SqlTemplate
+                .forQuery(readClient, """
+                        SELECT reaction_count FROM %s WHERE media_album_id = #{mediaAlbumId} LIMIT 1
+                        """.formatted(table))
                 .mapTo(row -> row.getLong("reaction_count"))
                 .execute(Map.of("mediaAlbumId", mediaAlbumId))
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : 0L)
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null), Objects::nonNull)
+                .map(count -> Objects.requireNonNullElse(count, 0L))
                 .onFailure(err -> log.error("Failed to get reaction count: %s".formatted(err.getMessage())));
     }
 
     @Override
     public Future<JsonObject> getDownloadStatistics(long telegramId) {
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT COUNT(*)                                                                     AS total,
-                               COUNT(CASE WHEN download_status = 'downloading' THEN 1 END)                  AS downloading,
-                               COUNT(CASE WHEN download_status = 'paused' THEN 1 END)                       AS paused,
-                               COUNT(CASE WHEN download_status = 'completed' OR download_status = 'downloaded' THEN 1 END) AS completed,
-                               COUNT(CASE WHEN download_status = 'error' THEN 1 END)                        AS error,
-                               COUNT(CASE WHEN download_status = 'idle' THEN 1 END)                         AS idle,
-                               COUNT(CASE WHEN download_status = 'completed' and type = 'photo' THEN 1 END) AS photo,
-                               COUNT(CASE WHEN download_status = 'completed' and type = 'video' THEN 1 END) AS video,
-                               COUNT(CASE WHEN download_status = 'completed' and type = 'audio' THEN 1 END) AS audio,
-                               COUNT(CASE WHEN download_status = 'completed' and type = 'file' THEN 1 END)  AS file
-                        FROM file_record
-                        WHERE telegram_id = #{telegramId} and type != 'thumbnail'
-                        """)
-                .mapTo(row -> {
+        return getFileStats("telegram_id = #{telegramId}", Map.of("telegramId", telegramId))
+                .map(stats -> {
                     JsonObject result = JsonObject.of();
-                    result.put("total", row.getInteger("total"));
-                    result.put("downloading", row.getInteger("downloading"));
-                    result.put("paused", row.getInteger("paused"));
-                    result.put("completed", row.getInteger("completed"));
-                    result.put("error", row.getInteger("error"));
-                    result.put("idle", row.getInteger("idle"));
-                    result.put("photo", row.getInteger("photo"));
-                    result.put("video", row.getInteger("video"));
-                    result.put("audio", row.getInteger("audio"));
-                    result.put("file", row.getInteger("file"));
+                    result.put("total", sumCount(stats, _ -> true));
+                    result.put("downloading", sumCount(stats, s -> isStatus(s, "downloading")));
+                    result.put("paused", sumCount(stats, s -> isStatus(s, "paused")));
+                    result.put("completed", sumCount(stats, s -> isStatus(s, "completed", "downloaded")));
+                    result.put("error", sumCount(stats, s -> isStatus(s, "error")));
+                    result.put("idle", sumCount(stats, s -> isStatus(s, "idle")));
+                    for (String type : List.of("photo", "video", "audio", "file")) {
+                        result.put(type, sumCount(stats, s -> isStatus(s, "completed") && Objects.equals(s.type(), type)));
+                    }
                     return result;
                 })
-                .execute(Map.of("telegramId", telegramId))
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : JsonObject.of())
                 .onFailure(err -> log.error("Failed to get download statistics: %s".formatted(err.getMessage())));
     }
 
     @Override
     public Future<JsonObject> getChatDownloadStatistics(long telegramId, long chatId, Integer historySince) {
-        // Build query with optional history cutoff filter
-        String query = historySince != null ? """
-                SELECT COUNT(*)                                                                     AS total,
-                       COUNT(CASE WHEN download_status = 'downloading' THEN 1 END)                  AS downloading,
-                       COUNT(CASE WHEN download_status = 'paused' THEN 1 END)                       AS paused,
-                       COUNT(CASE WHEN download_status = 'completed' OR download_status = 'downloaded' THEN 1 END) AS completed,
-                       COUNT(CASE WHEN download_status = 'error' THEN 1 END)                        AS error,
-                       COUNT(CASE WHEN download_status = 'idle' OR download_status = 'queued' THEN 1 END) AS idle
-                FROM file_record
-                WHERE telegram_id = #{telegramId} AND chat_id = #{chatId} AND type != 'thumbnail'
-                  AND date >= #{historySince}
-                """ : """
-                SELECT COUNT(*)                                                                     AS total,
-                       COUNT(CASE WHEN download_status = 'downloading' THEN 1 END)                  AS downloading,
-                       COUNT(CASE WHEN download_status = 'paused' THEN 1 END)                       AS paused,
-                       COUNT(CASE WHEN download_status = 'completed' OR download_status = 'downloaded' THEN 1 END) AS completed,
-                       COUNT(CASE WHEN download_status = 'error' THEN 1 END)                        AS error,
-                       COUNT(CASE WHEN download_status = 'idle' OR download_status = 'queued' THEN 1 END) AS idle
-                FROM file_record
-                WHERE telegram_id = #{telegramId} AND chat_id = #{chatId} AND type != 'thumbnail'
-                """;
-        
-        Map<String, Object> params = historySince != null ?
-                Map.of("telegramId", telegramId, "chatId", chatId, "historySince", historySince) :
-                Map.of("telegramId", telegramId, "chatId", chatId);
-        
-        return SqlTemplate
-                .forQuery(sqlClient, query)
-                .mapTo(row -> {
+        if (historySince != null) {
+            // the cutoff is on the message date, which file_stats doesn't keep
+            FileRecordCode status = FileRecordCode.DOWNLOAD_STATUS;
+            return fileSource("telegram_id, chat_id, type, date, download_status").compose(source -> SqlTemplate
+                    .forQuery(readClient, """
+                            SELECT COUNT(*)                                                 AS total,
+                                   COUNT(CASE WHEN download_status = %s THEN 1 END)         AS downloading,
+                                   COUNT(CASE WHEN download_status = %s THEN 1 END)         AS paused,
+                                   COUNT(CASE WHEN download_status IN %s THEN 1 END)        AS completed,
+                                   COUNT(CASE WHEN download_status = %s THEN 1 END)         AS error,
+                                   COUNT(CASE WHEN download_status = %s THEN 1 END)         AS idle
+                            FROM %s
+                            WHERE telegram_id = #{telegramId} AND chat_id = #{chatId} AND %s
+                              AND date >= #{historySince}
+                            """.formatted(status.literal("downloading"), status.literal("paused"), status.literals("completed", "downloaded"),
+                            status.literal("error"), status.literal("idle"), source, NOT_THUMBNAIL))
+                    .mapTo(row -> {
+                        JsonObject result = JsonObject.of();
+                        result.put("total", row.getInteger("total"));
+                        result.put("downloading", row.getInteger("downloading"));
+                        result.put("paused", row.getInteger("paused"));
+                        result.put("completed", row.getInteger("completed"));
+                        result.put("error", row.getInteger("error"));
+                        result.put("idle", row.getInteger("idle"));
+                        return result;
+                    })
+                    .execute(Map.of("telegramId", telegramId, "chatId", chatId, "historySince", historySince))
+                    .map(rs -> rs.size() > 0 ? rs.iterator().next() : JsonObject.of()))
+                    .onFailure(err -> log.error("Failed to get chat download statistics: %s".formatted(err.getMessage())));
+        }
+        return getFileStats("telegram_id = #{telegramId} AND chat_id = #{chatId}", Map.of("telegramId", telegramId, "chatId", chatId))
+                .map(stats -> {
                     JsonObject result = JsonObject.of();
-                    result.put("total", row.getInteger("total"));
-                    result.put("downloading", row.getInteger("downloading"));
-                    result.put("paused", row.getInteger("paused"));
-                    result.put("completed", row.getInteger("completed"));
-                    result.put("error", row.getInteger("error"));
-                    result.put("idle", row.getInteger("idle"));
+                    result.put("total", sumCount(stats, _ -> true));
+                    result.put("downloading", sumCount(stats, s -> isStatus(s, "downloading")));
+                    result.put("paused", sumCount(stats, s -> isStatus(s, "paused")));
+                    result.put("completed", sumCount(stats, s -> isStatus(s, "completed", "downloaded")));
+                    result.put("error", sumCount(stats, s -> isStatus(s, "error")));
+                    result.put("idle", sumCount(stats, s -> isStatus(s, "idle")));
                     return result;
                 })
-                .execute(params)
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : JsonObject.of())
                 .onFailure(err -> log.error("Failed to get chat download statistics: %s".formatted(err.getMessage())));
     }
 
     @Override
     public Future<JsonObject> getDownloadStatistics() {
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT COUNT(CASE WHEN download_status = 'downloading' OR download_status = 'queued' THEN 1 END) AS downloading,
-                               COUNT(CASE WHEN download_status = 'completed' OR download_status = 'downloaded' THEN 1 END) AS completed,
-                               SUM(CASE WHEN download_status = 'completed' THEN size ELSE 0 END)            AS downloaded_size
-                        FROM file_record
-                        WHERE type != 'thumbnail'
-                        """)
-                .mapTo(row -> {
+        return getFileStats(null, Map.of())
+                .map(stats -> {
                     JsonObject result = JsonObject.of();
-                    result.put("downloading", row.getInteger("downloading"));
-                    result.put("completed", row.getInteger("completed"));
-                    result.put("downloadedSize", Objects.requireNonNullElse(row.getLong("downloaded_size"), 0));
+                    result.put("downloading", sumCount(stats, s -> isStatus(s, "downloading")));
+                    result.put("completed", sumCount(stats, s -> isStatus(s, "completed", "downloaded")));
+                    result.put("downloadedSize", stats.stream()
+                            .filter(s -> isStatus(s, "completed"))
+                            .mapToLong(FileStats::totalSize)
+                            .sum());
                     return result;
                 })
-                .execute(Map.of())
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : JsonObject.of())
                 .onFailure(err -> log.error("Failed to get download statistics: %s".formatted(err.getMessage())));
     }
 
+    /**
+     * Rows of file_stats other than thumbnails, the statistics are summed from these instead of scanning file_record.
+     */
+    private Future<List<FileStats>> getFileStats(String whereClause, Map<String, Object> params) {
+        return SqlTemplate
+                .forQuery(readClient, """
+                        SELECT * FROM file_stats WHERE type != 'thumbnail' AND file_count != 0 %s
+                        """.formatted(whereClause == null ? "" : "AND " + whereClause))
+                .mapTo(FileStats.ROW_MAPPER)
+                .execute(params)
+                .map(IterUtil::toList);
+    }
+
+    private static long sumCount(List<FileStats> stats, Predicate<FileStats> predicate) {
+        return stats.stream().filter(predicate).mapToLong(FileStats::fileCount).sum();
+    }
+
+    private static boolean isStatus(FileStats stats, String... downloadStatuses) {
+        return ArrayUtil.contains(downloadStatuses, stats.downloadStatus());
+    }
+
+    @Override
+    public Future<Void> rebuildFileStats() {
+        return withTransaction(FileStats::rebuild)
+                .onSuccess(_ -> log.info("Rebuilt file statistics"))
+                .onFailure(err -> log.error("Failed to rebuild file statistics: %s".formatted(err.getMessage())));
+    }
+
     @Override
     public Future<JsonArray> getCompletedRangeStatistics(long telegramId, long startTime, long endTime, int timeRange) {
-        String query;
-        if (Config.isSqlite()) {
-            query = """
-                    SELECT strftime(
-                                       CASE
-                                           WHEN #{timeRange} = 1 THEN '%Y-%m-%d %H:%M'
-                                           WHEN #{timeRange} = 2 THEN '%Y-%m-%d %H:00'
-                                           WHEN #{timeRange} IN (3, 4) THEN '%Y-%m-%d'
-                                       END,
-                                       datetime(completion_date / 1000, 'unixepoch'),
-                                       'localtime'
-                               )        AS time,
-                               COUNT(*) AS total
-                        FROM file_record
-                        WHERE telegram_id = #{telegramId}
-                          AND completion_date IS NOT NULL
-                          AND completion_date >= #{startTime}
-                          AND completion_date <= #{endTime}
-                          AND type != 'thumbnail'
-                        GROUP BY time
-                        ORDER BY time;
-                    """;
-        } else if (Config.isPostgres()) {
-            query = """
-                    SELECT TO_CHAR(
-                               TO_TIMESTAMP(completion_date / 1000),
-                               CASE
-                                   WHEN #{timeRange} = 1 THEN 'YYYY-MM-DD HH24:MI'
-                                   WHEN #{timeRange} = 2 THEN 'YYYY-MM-DD HH24:00'
-                                   WHEN #{timeRange} IN (3, 4) THEN 'YYYY-MM-DD'
-                               END
-                           ) AS time,
-                           COUNT(*) AS total
-                    FROM file_record
-                    WHERE telegram_id = #{telegramId}
-                      AND completion_date IS NOT NULL
-                      AND completion_date >= #{startTime}
-                      AND completion_date <= #{endTime}
-                      AND type != 'thumbnail'
-                    GROUP BY time
-                    ORDER BY time;
-                    """;
-        } else {
-            query = """
-                    SELECT DATE_FORMAT(
-                               FROM_UNIXTIME(completion_date / 1000),
-                               CASE
-                                   WHEN #{timeRange} = 1 THEN '%Y-%m-%d %H:%i'
-                                   WHEN #{timeRange} = 2 THEN '%Y-%m-%d %H:00'
-                                   WHEN #{timeRange} IN (3, 4) THEN '%Y-%m-%d'
-                               END
-                           ) AS time,
-                           COUNT(*) AS total
-                    FROM file_record
-                    WHERE telegram_id = #{telegramId}
-                      AND completion_date IS NOT NULL
-                      AND completion_date >= #{startTime}
-                      AND completion_date <= #{endTime}
-                      AND type != 'thumbnail'
-                    GROUP BY time
-                    ORDER BY time;
-                    """;
-        }
-        return SqlTemplate
-                .forQuery(sqlClient, query)
-                .mapTo(row -> new JsonObject()
-                        .put("time", row.getString("time"))
-                        .put("total", row.getInteger("total"))
-                )
-                .execute(Map.of("telegramId", telegramId, "startTime", startTime, "endTime", endTime, "timeRange", timeRange))
+        return fileSource("telegram_id, completion_date, type").compose(source -> SqlTemplate
+                        .forQuery(readClient, """
+                                SELECT %s AS time,
+                                       COUNT(*) AS total
+                                FROM %s
+                                WHERE telegram_id = #{telegramId}
+                                  AND completion_date IS NOT NULL
+                                  AND completion_date >= #{startTime}
+                                  AND completion_date <= #{endTime}
+                                  AND type != #{thumbnail}
+                                GROUP BY time
+                                ORDER BY time
+                                """.formatted(dialect.timeBucket("completion_date", timeRange), source))
+                        .mapTo(row -> new JsonObject()
+                                .put("time", row.getString("time"))
+                                .put("total", row.getInteger("total"))
+                        )
+                        .execute(Map.of("telegramId", telegramId, "startTime", startTime, "endTime", endTime,
+                                "thumbnail", FileRecordCode.TYPE.code("thumbnail"))))
                 .map(IterUtil::toList)
                 .map(rs -> {
                     if (CollUtil.isEmpty(rs)) {
@@ -532,51 +936,34 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
 
     @Override
     public Future<Integer> countByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus) {
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT COUNT(*)
-                        FROM file_record
-                        WHERE telegram_id = #{telegramId}
-                          AND download_status = #{downloadStatus}
-                          AND type != 'thumbnail'
-                        """)
-                .mapTo(rs -> rs.getInteger(0))
-                .execute(Map.of("telegramId", telegramId, "downloadStatus", downloadStatus.name()))
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : 0)
+        return getFileStats("telegram_id = #{telegramId} AND download_status = #{downloadStatus}",
+                Map.of("telegramId", telegramId, "downloadStatus", downloadStatus.name()))
+                .map(stats -> (int) sumCount(stats, _ -> true))
                 .onFailure(err -> log.error("Failed to count file record: %s".formatted(err.getMessage())));
     }
 
     @Override
     public Future<JsonObject> countWithType(long telegramId, long chatId) {
-        String whereClause = "type != 'thumbnail'";
+        List<String> conditions = new ArrayList<>();
         Map<String, Object> params = new HashMap<>();
         if (telegramId != -1L) {
-            whereClause += " AND telegram_id = #{telegramId}";
+            conditions.add("telegram_id = #{telegramId}");
             params.put("telegramId", telegramId);
         }
         if (chatId != -1L) {
-            whereClause += " AND chat_id = #{chatId}";
+            conditions.add("chat_id = #{chatId}");
             params.put("chatId", chatId);
         }
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT type, COUNT(*) AS count
-                        FROM file_record
-                        WHERE %s
-                        GROUP BY type
-                        """.formatted(whereClause))
-                .mapTo(row -> new JsonObject()
-                        .put("type", row.getString("type"))
-                        .put("count", row.getInteger("count"))
-                )
-                .execute(params)
-                .map(rs -> {
+        return getFileStats(conditions.isEmpty() ? null : String.join(" AND ", conditions), params)
+                .map(stats -> {
                     JsonObject result = new JsonObject();
-                    rs.forEach(item -> result.put(item.getString("type"), item.getInteger("count")));
+                    stats.stream()
+                            .collect(Collectors.groupingBy(FileStats::type, TreeMap::new, Collectors.summingLong(FileStats::fileCount)))
+                            .forEach(result::put);
                     // Calculate media types, which includes photo, video.
-                    int mediaCount = rs.stream()
-                            .filter(item -> Objects.equals(item.getString("type"), "photo") || Objects.equals(item.getString("type"), "video"))
-                            .mapToInt(item -> item.getInteger("count"))
+                    long mediaCount = stats.stream()
+                            .filter(item -> Objects.equals(item.type(), "photo") || Objects.equals(item.type(), "video"))
+                            .mapToLong(FileStats::fileCount)
                             .sum();
                     result.put("media", mediaCount);
                     return result;
@@ -593,50 +980,195 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (StrUtil.isBlank(localPath) && downloadStatus == null) {
             return Future.succeededFuture(null);
         }
-        return getByUniqueId(uniqueId)
-                .compose(record -> {
-                    if (record == null) {
-                        return Future.succeededFuture(null);
+        Map<String, Object> params = MapUtil.ofEntries(MapUtil.entry("fileId", fileId),
+                MapUtil.entry("uniqueId", uniqueId),
+                MapUtil.entry("localPath", localPath),
+                MapUtil.entry("downloadStatus", downloadStatus == null ? null : FileRecordCode.DOWNLOAD_STATUS.code(downloadStatus.name())),
+                MapUtil.entry("completionDate", completionDate)
+        );
+        return updateDownloadStatus(params, localPath, downloadStatus, STATUS_UPDATE_ATTEMPTS)
+                .onFailure(err ->
+                        log.error("Failed to update file record: %s".formatted(err.getMessage()))
+                )
+                .map(change -> {
+                    if (change == null) {
+                        return null;
                     }
-                    boolean pathUpdated = !Objects.equals(record.localPath(), localPath);
-                    boolean downloadStatusUpdated = !record.isDownloadStatus(downloadStatus);
-                    if (!pathUpdated && !downloadStatusUpdated) {
-                        return Future.succeededFuture(null);
+                    invalidateStatusCounts();
+                    JsonObject result = JsonObject.of();
+                    if (change.pathUpdated()) {
+                        result.put("localPath", localPath);
+                        result.put("completionDate", completionDate);
+                    }
+                    if (change.downloadStatusUpdated()) {
+                        result.put("downloadStatus", downloadStatus.name());
+                        result.put("previousDownloadStatus", change.before().downloadStatus());
                     }
+                    log.debug("Successfully updated file record: %s, path: %s, status: %s, before: %s, %s"
+                            .formatted(uniqueId, localPath, downloadStatus, change.before().localPath(), change.before().downloadStatus()));
+                    return result;
+                });
+    }
 
-                    return SqlTemplate
-                            .forUpdate(sqlClient, """
-                                    UPDATE file_record SET id = #{fileId},
-                                                           local_path = #{localPath},
-                                                           download_status = #{downloadStatus},
-                                                           completion_date = #{completionDate}
-                                    WHERE unique_id = #{uniqueId}
-                                    """)
-                            .execute(MapUtil.ofEntries(MapUtil.entry("fileId", fileId),
-                                    MapUtil.entry("uniqueId", uniqueId),
-                                    MapUtil.entry("localPath", pathUpdated ? localPath : record.localPath()),
-                                    MapUtil.entry("downloadStatus", downloadStatusUpdated ? downloadStatus.name() : record.downloadStatus()),
-                                    MapUtil.entry("completionDate", completionDate)
-                            ))
-                            .onFailure(err ->
-                                    log.error("Failed to update file record: %s".formatted(err.getMessage()))
-                            )
-                            .map(r -> {
-                                JsonObject result = JsonObject.of();
-                                if (pathUpdated) {
-                                    result.put("localPath", localPath);
-                                    result.put("completionDate", completionDate);
-                                }
-                                if (downloadStatusUpdated) {
-                                    result.put("downloadStatus", downloadStatus.name());
-                                }
-                                log.debug("Successfully updated file record: %s, path: %s, status: %s, before: %s, %s"
-                                        .formatted(uniqueId, localPath, downloadStatus.name(), record.localPath(), record.downloadStatus()));
-                                return result;
-                            });
+    /**
+     * The row as it was before a download status update that changed something.
+     */
+    private record StatusBefore(long telegramId, long chatId, String type, long size, String downloadStatus, String localPath) {
+    }
+
+    private record StatusChange(StatusBefore before, boolean pathUpdated, boolean downloadStatusUpdated) {
+
+        static StatusChange of(StatusBefore before, String localPath, FileRecord.DownloadStatus downloadStatus) {
+            return new StatusChange(before,
+                    !Objects.equals(StrUtil.nullToEmpty(before.localPath()), StrUtil.nullToEmpty(localPath)),
+                    downloadStatus != null && !Objects.equals(before.downloadStatus(), downloadStatus.name()));
+        }
+
+        boolean changed() {
+            return pathUpdated || downloadStatusUpdated;
+        }
+    }
+
+    private static final RowMapper<StatusBefore> STATUS_BEFORE_MAPPER = row -> new StatusBefore(
+            Objects.requireNonNullElse(row.getLong("telegram_id"), 0L),
+            Objects.requireNonNullElse(row.getLong("chat_id"), 0L),
+            FileRecordCode.TYPE.decode(row.getInteger("type")),
+            Objects.requireNonNullElse(row.getLong("size"), 0L),
+            FileRecordCode.DOWNLOAD_STATUS.decode(row.getInteger("download_status")),
+            row.getString("local_path"));
+
+    /**
+     * The row is read first on the read pool, a progress tick that changes nothing returns without opening a transaction.
+     * Otherwise the update is conditional on the row read, a row changed in between is read again.
+     */
+    private Future<StatusChange> updateDownloadStatus(Map<String, Object> params,
+                                                      String localPath,
+                                                      FileRecord.DownloadStatus downloadStatus,
+                                                      int attempts) {
+        return readStatusBefore(params)
+                .compose(read -> {
+                    StatusBefore current = read.v1;
+                    if (current == null || !StatusChange.of(current, localPath, downloadStatus).changed()) {
+                        return Future.succeededFuture(Tuple.tuple(false, (StatusChange) null));
+                    }
+                    return withChanges(1, changeSeq -> {
+                        params.put("changeSeq", changeSeq);
+                        // an archived file is moved back to file_record, a repeated status leaves it archived
+                        return withTransaction(client -> (read.v2 ? FileArchive.restore(client, (String) params.get("uniqueId")) : Future.succeededFuture(true))
+                                .compose(restored -> restored ? writeDownloadStatus(client, params, current) : Future.succeededFuture((StatusBefore) null))
+                                .compose(before -> {
+                                    if (before == null) {
+                                        return Future.succeededFuture((StatusChange) null);
+                                    }
+                                    StatusChange change = StatusChange.of(before, localPath, downloadStatus);
+                                    if (!change.downloadStatusUpdated()) {
+                                        return Future.succeededFuture(change);
+                                    }
+                                    return FileStats.apply(client, FileStats.transition(before.telegramId(), before.chatId(), before.type(),
+                                                    before.size(), before.downloadStatus(), downloadStatus.name()))
+                                            .map(change);
+                                }));
+                    }).map(change -> Tuple.tuple(change == null, change));
+                })
+                .compose(r -> {
+                    // the row read changed before the conditional update
+                    boolean conflicted = r.v1;
+                    if (!conflicted) {
+                        return Future.succeededFuture(r.v2);
+                    }
+                    if (attempts <= 1) {
+                        return Future.failedFuture("File record %s keeps changing concurrently".formatted(params.get("uniqueId")));
+                    }
+                    return updateDownloadStatus(params, localPath, downloadStatus, attempts - 1);
                 });
     }
 
+    /**
+     * @return the row and whether it is archived, null when the file is in neither table
+     */
+    private Future<Tuple2<StatusBefore, Boolean>> readStatusBefore(Map<String, Object> params) {
+        return readStatusBefore("file_record", params)
+                .compose(current -> current != null ? Future.succeededFuture(Tuple.tuple(current, false)) : archiveInUse()
+                        .compose(inUse -> !inUse ? Future.succeededFuture(Tuple.tuple((StatusBefore) null, false)) :
+                                readStatusBefore(FileArchive.TABLE, params).map(archived -> Tuple.tuple(archived, archived != null))));
+    }
+
+    private Future<StatusBefore> readStatusBefore(String table, Map<String, Object> params) {
+        return SqlTemplate
+                .forQuery(readClient, """
+                        SELECT telegram_id, chat_id, type, size, download_status, local_path FROM %s WHERE unique_id = #{uniqueId}
+                        """.formatted(table))
+                .mapTo(STATUS_BEFORE_MAPPER)
+                .execute(params)
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
+    }
+
+    /**
+     * @param current the row as read before the transaction
+     * @return the row before the update, null when the row changed since it was read
+     */
+    private Future<StatusBefore> writeDownloadStatus(SqlClient client, Map<String, Object> params, StatusBefore current) {
+        return dialect.returningPreUpdateValues() ? updateDownloadStatusReturning(client, params) :
+                compareAndSetDownloadStatus(client, params, current);
+    }
+
+    /**
+     * Only rows whose path or status differ from the requested ones are written, a progress tick that changes nothing is a no-op.
+     */
+    private static String downloadStatusChangedClause(String alias, Map<String, Object> params) {
+        String clause = "COALESCE(%slocal_path, '') != COALESCE(#{localPath}, '')".formatted(alias);
+        if (params.get("downloadStatus") != null) {
+            clause += " OR COALESCE(%sdownload_status, %d) != #{downloadStatus}".formatted(alias, FileRecordCode.NONE);
+        }
+        return "(" + clause + ")";
+    }
+
+    /**
+     * One statement, the locked self-join hands the pre-update values to RETURNING.
+     */
+    private Future<StatusBefore> updateDownloadStatusReturning(SqlClient client, Map<String, Object> params) {
+        return SqlTemplate
+                .forQuery(client, """
+                        UPDATE file_record f SET id = #{fileId},
+                                                 local_path = #{localPath},
+                                                 download_status = COALESCE(#{downloadStatus}, f.download_status),
+                                                 completion_date = #{completionDate},
+                                                 change_seq = #{changeSeq}
+                        FROM (SELECT unique_id, download_status, local_path FROM file_record WHERE unique_id = #{uniqueId} FOR UPDATE) o
+                        WHERE f.unique_id = o.unique_id AND %s
+                        RETURNING f.telegram_id, f.chat_id, f.type, f.size, o.download_status, o.local_path
+                        """.formatted(downloadStatusChangedClause("o.", params)))
+                .mapTo(STATUS_BEFORE_MAPPER)
+                .execute(params)
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
+    }
+
+    /**
+     * RETURNING can't see pre-update values (or doesn't exist), the values read before are the condition instead.
+     * One statement, its affected rows tell whether the row was still as read.
+     *
+     * @return expected when written, null when the row changed since it was read
+     */
+    private Future<StatusBefore> compareAndSetDownloadStatus(SqlClient client, Map<String, Object> params, StatusBefore expected) {
+        Map<String, Object> casParams = new HashMap<>(params);
+        casParams.put("expectedLocalPath", StrUtil.nullToEmpty(expected.localPath()));
+        casParams.put("expectedDownloadStatus", expected.downloadStatus() == null ?
+                FileRecordCode.NONE : FileRecordCode.DOWNLOAD_STATUS.code(expected.downloadStatus()));
+        return SqlTemplate
+                .forUpdate(client, """
+                        UPDATE file_record SET id = #{fileId},
+                                               local_path = #{localPath},
+                                               download_status = COALESCE(#{downloadStatus}, download_status),
+                                               completion_date = #{completionDate},
+                                               change_seq = #{changeSeq}
+                        WHERE unique_id = #{uniqueId}
+                          AND COALESCE(local_path, '') = #{expectedLocalPath}
+                          AND COALESCE(download_status, %d) = #{expectedDownloadStatus}
+                        """.formatted(FileRecordCode.NONE))
+                .execute(casParams)
+                .map(r -> r.rowCount() > 0 ? expected : null);
+    }
+
     @Override
     public Future<JsonObject> updateTransferStatus(String uniqueId,
                                                    FileRecord.TransferStatus transferStatus,
@@ -655,21 +1187,25 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                         return Future.succeededFuture(null);
                     }
 
-                    return SqlTemplate
-                            .forUpdate(sqlClient, """
-                                    UPDATE file_record
-                                    SET transfer_status = #{transferStatus},
-                                        local_path = #{localPath}
-                                    WHERE unique_id = #{uniqueId}
-                                    """)
-                            .execute(MapUtil.ofEntries(MapUtil.entry("uniqueId", uniqueId),
-                                    MapUtil.entry("localPath", pathUpdated ? localPath : record.localPath()),
-                                    MapUtil.entry("transferStatus", transferStatusUpdated ? transferStatus.name() : record.transferStatus())
-                            ))
+                    return withChanges(1, changeSeq -> withTransaction(client -> restoreArchived(client, uniqueId)
+                            .compose(_ -> SqlTemplate
+                                    .forUpdate(client, """
+                                            UPDATE file_record
+                                            SET transfer_status = #{transferStatus},
+                                                local_path = #{localPath},
+                                                change_seq = #{changeSeq}
+                                            WHERE unique_id = #{uniqueId}
+                                            """)
+                                    .execute(MapUtil.ofEntries(MapUtil.entry("uniqueId", uniqueId),
+                                            MapUtil.entry("localPath", pathUpdated ? localPath : record.localPath()),
+                                            MapUtil.entry("transferStatus", FileRecordCode.TRANSFER_STATUS.encode(transferStatusUpdated ? transferStatus.name() : record.transferStatus())),
+                                            MapUtil.entry("changeSeq", changeSeq)
+                                    )))))
                             .onFailure(err ->
                                     log.error("Failed to update file record: %s".formatted(err.getMessage()))
                             )
                             .map(r -> {
+                                invalidateStatusCounts();
                                 JsonObject result = JsonObject.of();
                                 if (pathUpdated) {
                                     result.put("localPath", localPath);
@@ -694,11 +1230,17 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                     if (record == null || record.id() == fileId) {
                         return Future.succeededFuture();
                     }
-                    return SqlTemplate
-                            .forUpdate(sqlClient, """
-                                    UPDATE file_record SET id = #{fileId} WHERE unique_id = #{uniqueId}
+                    // the id isn't state, an archived file is updated in place
+                    return archiveInUse().compose(inUse -> withChanges(1, changeSeq -> write(client -> SqlTemplate
+                            .forUpdate(client, """
+                                    UPDATE file_record SET id = #{fileId}, change_seq = #{changeSeq} WHERE unique_id = #{uniqueId}
                                     """)
-                            .execute(Map.of("fileId", fileId, "uniqueId", uniqueId))
+                            .execute(Map.of("fileId", fileId, "uniqueId", uniqueId, "changeSeq", changeSeq))
+                            .compose(r -> r.rowCount() > 0 || !inUse ? Future.succeededFuture(r) : SqlTemplate
+                                    .forUpdate(client, """
+                                            UPDATE %s SET id = #{fileId}, change_seq = #{changeSeq} WHERE unique_id = #{uniqueId}
+                                            """.formatted(FileArchive.TABLE))
+                                    .execute(Map.of("fileId", fileId, "uniqueId", uniqueId, "changeSeq", changeSeq))))))
                             .onFailure(err ->
                                     log.error("Failed to update file record: %s".formatted(err.getMessage()))
                             )
@@ -706,6 +1248,25 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 });
     }
 
+    @Override
+    public Future<Void> updateThumbnailUniqueId(String uniqueId, String thumbnailUniqueId) {
+        if (StrUtil.isBlank(uniqueId)) {
+            return Future.succeededFuture();
+        }
+        return withChanges(1, changeSeq -> write(client -> SqlTemplate
+                .forUpdate(client, """
+                        UPDATE file_record SET thumbnail_unique_id = #{thumbnailUniqueId}, change_seq = #{changeSeq}
+                        WHERE unique_id = #{uniqueId}
+                        """)
+                .execute(MapUtil.ofEntries(
+                        MapUtil.entry("uniqueId", uniqueId),
+                        MapUtil.entry("thumbnailUniqueId", thumbnailUniqueId),
+                        MapUtil.entry("changeSeq", changeSeq)
+                ))))
+                .onFailure(err -> log.error("Failed to update thumbnail of file record: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+
     @Override
     public Future<Integer> updateAlbumDataByMediaAlbumId(long mediaAlbumId, String caption, long reactionCount) {
         if (mediaAlbumId <= 0) {
@@ -745,15 +1306,23 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
             if (StrUtil.isBlank(theCaption) && theReactionCount <= 0) {
                 return Future.succeededFuture(0);
             }
-            return SqlTemplate
-                    .forUpdate(sqlClient, """
-                            UPDATE file_record SET caption = #{caption},
-                                                   reaction_count = #{reactionCount}
-                                               WHERE media_album_id = #{mediaAlbumId}
-                            """)
-                    .execute(Map.of("mediaAlbumId", mediaAlbumId, "caption", theCaption, "reactionCount", theReactionCount))
+            // the album may be partly archived, its files are updated where they are, all with one change number
+            return archiveInUse().compose(inUse -> withChanges(1, changeSeq -> write(client -> Future.all((inUse ? List.of("file_record", FileArchive.TABLE) : List.of("file_record"))
+                            .stream()
+                            .map(table -> SqlTemplate
+                                    .forUpdate(client, """
+                                            UPDATE %s SET caption = #{caption},
+                                                          reaction_count = #{reactionCount},
+                                                          change_seq = #{changeSeq}
+                                                      WHERE media_album_id = #{mediaAlbumId}
+                                            """.formatted(table))
+                                    .execute(Map.of("mediaAlbumId", mediaAlbumId, "caption", theCaption, "reactionCount", theReactionCount,
+                                            "changeSeq", changeSeq))
+                                    .map(SqlResult::rowCount))
+                            .toList()))))
+                    .onSuccess(_ -> invalidateCounts())
                     .onFailure(err -> log.error("Failed to update file record: %s".formatted(err.getMessage())))
-                    .map(SqlResult::rowCount);
+                    .map(r -> r.<Integer>list().stream().mapToInt(Integer::intValue).sum());
         });
     }
 
@@ -762,128 +1331,316 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (StrUtil.isBlank(uniqueId)) {
             return Future.succeededFuture();
         }
-        return SqlTemplate
-                .forUpdate(sqlClient, """
-                        UPDATE file_record SET tags = #{tags} WHERE unique_id = #{uniqueId}
-                        """)
-                .execute(Map.of("uniqueId", uniqueId, "tags", tags))
+        List<String> tagList = FileTag.split(tags);
+        Map<String, Object> params = MapUtil.ofEntries(MapUtil.entry("uniqueId", uniqueId),
+                MapUtil.entry("tags", tagList.isEmpty() ? null : String.join(",", tagList)));
+        // tags aren't state, an archived file is updated in place
+        return archiveInUse().compose(inUse -> withChanges(1, changeSeq -> {
+                    params.put("changeSeq", changeSeq);
+                    return withTransaction(client -> SqlTemplate
+                            .forUpdate(client, """
+                                    UPDATE file_record SET tags = #{tags}, change_seq = #{changeSeq} WHERE unique_id = #{uniqueId}
+                                    """)
+                            .execute(params)
+                            .compose(r -> r.rowCount() > 0 || !inUse ? Future.succeededFuture(r) : SqlTemplate
+                                    .forUpdate(client, """
+                                            UPDATE %s SET tags = #{tags}, change_seq = #{changeSeq} WHERE unique_id = #{uniqueId}
+                                            """.formatted(FileArchive.TABLE))
+                                    .execute(params))
+                            .compose(_ -> SqlTemplate
+                                    .forUpdate(client, """
+                                            DELETE FROM file_tag WHERE unique_id = #{uniqueId}
+                                            """)
+                                    .execute(Map.of("uniqueId", uniqueId)))
+                            .compose(_ -> {
+                                if (tagList.isEmpty()) {
+                                    return Future.succeededFuture();
+                                }
+                                return SqlTemplate
+                                        .forUpdate(client, """
+                                                INSERT INTO file_tag(unique_id, tag) VALUES (#{uniqueId}, #{tag})
+                                                """)
+                                        .executeBatch(tagList.stream()
+                                                .map(tag -> Map.<String, Object>of("uniqueId", uniqueId, "tag", tag))
+                                                .toList());
+                            }));
+                }))
+                .onSuccess(_ -> invalidateCounts())
                 .onFailure(err -> log.error("Failed to update file record: %s".formatted(err.getMessage())))
                 .mapEmpty();
     }
 
+    @Override
+    public Future<Integer> updateDownloadPriority(List<String> uniqueIds, int priority) {
+        if (CollUtil.isEmpty(uniqueIds)) {
+            return Future.succeededFuture(0);
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("priority", priority);
+        for (int i = 0; i < uniqueIds.size(); i++) {
+            params.put("uniqueId" + i, uniqueIds.get(i));
+        }
+        String uniqueIdPlaceholders = IntStream.range(0, uniqueIds.size())
+                .mapToObj(i -> "#{uniqueId" + i + "}")
+                .collect(Collectors.joining(","));
+        // archived files are downloaded already, their priority doesn't matter
+        return updateDownloadPriority("unique_id IN (%s)".formatted(uniqueIdPlaceholders), params);
+    }
+
+    @Override
+    public Future<Integer> updateChatDownloadPriority(long telegramId, long chatId, int priority) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("priority", priority);
+        params.put("telegramId", telegramId);
+        params.put("chatId", chatId);
+        return updateDownloadPriority("telegram_id = #{telegramId} AND chat_id = #{chatId} AND download_status != %s"
+                .formatted(FileRecordCode.DOWNLOAD_STATUS.literal("completed")), params);
+    }
+
+    private Future<Integer> updateDownloadPriority(String condition, Map<String, Object> params) {
+        return withChanges(1, changeSeq -> {
+                    params.put("changeSeq", changeSeq);
+                    return write(client -> SqlTemplate
+                            .forUpdate(client, """
+                                    UPDATE file_record SET download_priority = #{priority}, change_seq = #{changeSeq}
+                                    WHERE %s AND COALESCE(download_priority, 0) != #{priority}
+                                    """.formatted(condition))
+                            .execute(params));
+                })
+                .onFailure(err -> log.error("Failed to update download priority: %s".formatted(err.getMessage())))
+                .map(SqlResult::rowCount);
+    }
+
     @Override
     public Future<Void> deleteByUniqueId(String uniqueId) {
         if (StrUtil.isBlank(uniqueId)) {
             return Future.succeededFuture();
         }
-        return SqlTemplate
-                .forUpdate(sqlClient, """
-                        DELETE FROM file_record WHERE unique_id = #{uniqueId}
-                        """)
-                .execute(Map.of("uniqueId", uniqueId))
+        return withTransaction(client -> restoreArchived(client, uniqueId))
+                .compose(_ -> deleteByUniqueId(uniqueId, STATUS_UPDATE_ATTEMPTS))
+                .onSuccess(_ -> invalidateCounts())
                 .onFailure(err -> log.error("Failed to delete file record: %s".formatted(err.getMessage()))
-                )
-                .mapEmpty();
+                );
     }
 
-    @Override
-    public Future<Long> getMinMessageId(long telegramId, long chatId) {
-        return SqlTemplate
-                .forQuery(sqlClient, """
-                        SELECT MIN(message_id) as min_msg_id
-                        FROM file_record
-                        WHERE telegram_id = #{telegramId}
-                          AND chat_id = #{chatId}
-                        """)
-                .mapTo(row -> {
-                    Long minMsgId = row.getLong("min_msg_id");
-                    return minMsgId != null ? minMsgId : 0L;
-                })
-                .execute(Map.of("telegramId", telegramId, "chatId", chatId))
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : 0L)
-                .onFailure(err -> log.error("Failed to get min message ID: %s".formatted(err.getMessage())));
+    /**
+     * Deletes only if the status is still the one read before, so the file_stats row decremented is the one the file was counted in.
+     * The deletion is recorded for the change feed in the same transaction.
+     */
+    private Future<Void> deleteByUniqueId(String uniqueId, int attempts) {
+        return getByUniqueId(uniqueId)
+                .compose(record -> withChanges(1, changeSeq -> withTransaction(client -> {
+                    Future<Boolean> deleted = record == null ? Future.succeededFuture(true) : SqlTemplate
+                            .forUpdate(client, """
+                                    DELETE FROM file_record WHERE unique_id = #{uniqueId} AND COALESCE(download_status, %d) = #{expectedDownloadStatus}
+                                    """.formatted(FileRecordCode.NONE))
+                            .execute(Map.of("uniqueId", uniqueId, "expectedDownloadStatus", record.downloadStatus() == null ?
+                                    FileRecordCode.NONE : FileRecordCode.DOWNLOAD_STATUS.code(record.downloadStatus())))
+                            .compose(r -> r.rowCount() == 0 ? Future.succeededFuture(false) :
+                                    FileStats.apply(client, List.of(FileStats.of(record, record.downloadStatus(), -r.rowCount())))
+                                            .compose(_ -> FileDeletion.record(client, record, changeSeq))
+                                            .map(true));
+                    return deleted.compose(d -> !d ? Future.succeededFuture(false) : SqlTemplate
+                            .forUpdate(client, """
+                                    DELETE FROM file_tag WHERE unique_id = #{uniqueId}
+                                    """)
+                            .execute(Map.of("uniqueId", uniqueId))
+                            .map(true));
+                })))
+                .compose(deleted -> {
+                    if (deleted) {
+                        return Future.succeededFuture();
+                    }
+                    if (attempts <= 1) {
+                        return Future.failedFuture("File record %s keeps changing concurrently".formatted(uniqueId));
+                    }
+                    return deleteByUniqueId(uniqueId, attempts - 1);
+                });
     }
-    
+
     @Override
-    public Future<List<FileRecord>> getFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
-        // Get automation settings to determine cutoff and ordering if not provided
-        return DataVerticle.settingRepository.<SettingAutoRecords>getByKey(SettingKey.automation)
-            .compose(autoRecords -> {
-                // Determine downloadOldestFirst from automation settings if not provided
-                Boolean resolvedDownloadOldestFirst = downloadOldestFirst;
-                if (resolvedDownloadOldestFirst == null && autoRecords != null && autoRecords.automations != null) {
-                    for (SettingAutoRecords.Automation auto : autoRecords.automations) {
-                        if (auto.telegramId == telegramId 
-                            && auto.download != null 
-                            && auto.download.rule != null) {
-                            resolvedDownloadOldestFirst = auto.download.rule.downloadOldestFirst;
-                            break;
-                        }
-                    }
-                }
-                final Boolean finalDownloadOldestFirst = resolvedDownloadOldestFirst;
-                
-                // Determine cutoff date from automation settings if not provided
-                if (cutoffDateSeconds == null && autoRecords != null && autoRecords.automations != null) {
-                    for (SettingAutoRecords.Automation auto : autoRecords.automations) {
-                        if (auto.telegramId == telegramId 
-                            && auto.download != null 
-                            && auto.download.rule != null 
-                            && auto.download.rule.historySince != null 
-                            && auto.download.rule.historySince > 0) {
-                            // Get sentinel message date
-                            Optional<TelegramVerticle> verticleOpt = TelegramVerticles.get(telegramId);
-                            if (verticleOpt.isPresent()) {
-                                return verticleOpt.get().client.execute(
-                                    new TdApi.GetChatMessageByDate(auto.chatId, auto.download.rule.historySince)
-                                ).compose(sentinelMessage -> {
-                                    Integer resolvedCutoff = sentinelMessage != null ? sentinelMessage.date : null;
-                                    return queryFilesReadyForDownload(telegramId, limit, resolvedCutoff, finalDownloadOldestFirst);
-                                });
-                            }
+    public Future<ChatBounds> getChatBounds(long telegramId, long chatId) {
+        return chatBoundsLoaded()
+                .map(_ -> chatBounds.getOrDefault(Tuple.tuple(telegramId, chatId), ChatBounds.EMPTY));
+    }
+
+    /**
+     * Widen the bounds of the chats of files just stored. Loading and widening commute, so neither waits for the other.
+     */
+    private void widenChatBounds(Collection<FileRecord> fileRecords) {
+        for (FileRecord fileRecord : fileRecords) {
+            chatBounds.merge(Tuple.tuple(fileRecord.telegramId(), fileRecord.chatId()), ChatBounds.of(fileRecord), ChatBounds::merge);
+        }
+    }
+
+    private synchronized Future<Void> chatBoundsLoaded() {
+        if (chatBoundsLoaded == null) {
+            chatBoundsLoaded = fileSource("telegram_id, chat_id, message_id, date")
+                    .compose(source -> readClient.query("""
+                                    SELECT telegram_id, chat_id, MIN(message_id), MAX(message_id), MIN(date), MAX(date)
+                                    FROM %s
+                                    GROUP BY telegram_id, chat_id
+                                    """.formatted(source))
+                            .execute())
+                    .<Void>map(rs -> {
+                        rs.forEach(row -> chatBounds.merge(Tuple.tuple(row.getLong(0), row.getLong(1)),
+                                new ChatBounds(row.getLong(2), row.getLong(3), row.getInteger(4), row.getInteger(5)),
+                                ChatBounds::merge));
+                        log.debug("Loaded the message bounds of %d chats".formatted(rs.size()));
+                        return null;
+                    })
+                    .onFailure(err -> {
+                        log.error("Failed to load chat message bounds: %s".formatted(err.getMessage()));
+                        synchronized (this) {
+                            chatBoundsLoaded = null;
                         }
-                    }
-                }
-                
-                return queryFilesReadyForDownload(telegramId, limit, cutoffDateSeconds, finalDownloadOldestFirst);
-            });
+                    });
+        }
+        return chatBoundsLoaded;
     }
-    
-    private Future<List<FileRecord>> queryFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
+
+    @Override
+    public Future<List<DownloadCandidate>> getFilesReadyForDownload(long telegramId, int limit, Integer cutoffDateSeconds, Boolean downloadOldestFirst) {
         Map<String, Object> params = new HashMap<>();
         params.put("telegramId", telegramId);
         params.put("limit", limit);
-        
+
+        return SqlTemplate
+            .forQuery(readClient, readyForDownloadQuery(DownloadCandidate.COLUMNS, 0, cutoffDateSeconds, downloadOldestFirst, params))
+            .execute(params)
+            .onFailure(err -> log.error("Failed to get files ready for download: %s".formatted(err.getMessage())))
+            .map(DownloadCandidate.MAPPER::mapAll);
+    }
+
+    private static String readyForDownloadQuery(String columns, long chatId, Integer cutoffDateSeconds, Boolean downloadOldestFirst, Map<String, Object> params) {
         StringBuilder queryBuilder = new StringBuilder("""
-            SELECT * FROM file_record
+            SELECT %s FROM file_record
             WHERE telegram_id = #{telegramId}
-              AND download_status = 'idle'
-              AND (scan_state = 'idle' OR scan_state IS NULL)
-              AND type != 'thumbnail'
-            """);
+              AND %s
+              AND %s
+              AND %s
+            """.formatted(columns, DOWNLOAD_IDLE, SCAN_IDLE, NOT_THUMBNAIL));
+
+        if (chatId != 0) {
+            queryBuilder.append("  AND chat_id = #{chatId}\n");
+            params.put("chatId", chatId);
+        }
         
         if (cutoffDateSeconds != null && cutoffDateSeconds > 0) {
             queryBuilder.append("  AND date >= #{cutoffDateSeconds}\n");
             params.put("cutoffDateSeconds", cutoffDateSeconds);
         }
         
-        // Order by: date (Telegram upload date) first for chronological ordering, then queued_at
+        // Order by: download_priority first, then date (Telegram upload date) for chronological ordering, then queued_at
         // When downloadOldestFirst is true, prioritize oldest files by date, regardless of when they were queued
         // message_id is not reliable for chronological ordering, use date instead
         if (Boolean.TRUE.equals(downloadOldestFirst)) {
-            queryBuilder.append("  ORDER BY date ASC, COALESCE(queued_at, ").append(Long.MAX_VALUE).append(") ASC, message_id ASC\n");
+            queryBuilder.append("  ORDER BY download_priority DESC, date ASC, COALESCE(queued_at, ").append(Long.MAX_VALUE).append(") ASC, message_id ASC\n");
         } else {
-            queryBuilder.append("  ORDER BY date DESC, COALESCE(queued_at, ").append(Long.MAX_VALUE).append(") ASC, message_id DESC\n");
+            queryBuilder.append("  ORDER BY download_priority DESC, date DESC, COALESCE(queued_at, ").append(Long.MAX_VALUE).append(") ASC, message_id DESC\n");
         }
         
         queryBuilder.append("  LIMIT #{limit}\n");
-        
+        return queryBuilder.toString();
+    }
+
+    @Override
+    public Future<List<DownloadCandidate>> claimFilesForDownload(long telegramId, long chatId, int limit, Boolean downloadOldestFirst, Integer cutoffDateSeconds) {
+        if (limit <= 0) {
+            return Future.succeededFuture(List.of());
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("telegramId", telegramId);
+        params.put("limit", limit);
+        params.put("queuedAt", System.currentTimeMillis());
+        String candidates = readyForDownloadQuery("unique_id", chatId, cutoffDateSeconds, downloadOldestFirst, params);
+
+        return withChanges(1, changeSeq -> {
+                    params.put("changeSeq", changeSeq);
+                    return withTransaction(client -> (dialect.updateReturning() ?
+                            claimFilesReturning(client, candidates, params) :
+                            claimFilesLocked(client, candidates, params))
+                            .compose(claimed -> {
+                                List<FileStats> deltas = claimed.stream()
+                                        .flatMap(r -> FileStats.transition(r.telegramId(), r.chatId(), r.type(), r.size(),
+                                                FileRecord.DownloadStatus.idle.name(), FileRecord.DownloadStatus.downloading.name()).stream())
+                                        .toList();
+                                return FileStats.apply(client, deltas).map(claimed);
+                            }));
+                })
+                .map(claimed -> {
+                    if (!claimed.isEmpty()) {
+                        invalidateStatusCounts();
+                    }
+                    Comparator<DownloadCandidate> order = Comparator.comparingInt(DownloadCandidate::date)
+                            .thenComparingLong(DownloadCandidate::messageId);
+                    return claimed.stream()
+                            .sorted(Comparator.comparingInt(DownloadCandidate::downloadPriority).reversed()
+                                    .thenComparing(Boolean.TRUE.equals(downloadOldestFirst) ? order : order.reversed()))
+                            .toList();
+                })
+                .onSuccess(claimed -> {
+                    if (!claimed.isEmpty()) {
+                        log.debug("Claimed %d files for download. TelegramId: %d".formatted(claimed.size(), telegramId));
+                    }
+                })
+                .onFailure(err -> log.error("Failed to claim files for download: %s".formatted(err.getMessage())));
+    }
+
+    /**
+     * Select and mark in one statement, skipping rows another claim holds where the database has more than one writer.
+     */
+    private Future<List<DownloadCandidate>> claimFilesReturning(SqlClient client, String candidates, Map<String, Object> params) {
         return SqlTemplate
-            .forQuery(sqlClient, queryBuilder.toString())
-            .mapTo(FileRecord.ROW_MAPPER)
-            .execute(params)
-            .onFailure(err -> log.error("Failed to get files ready for download: %s".formatted(err.getMessage())))
-            .map(IterUtil::toList);
+                .forQuery(client, """
+                        UPDATE file_record
+                        SET download_status = %s,
+                            queued_at       = COALESCE(queued_at, #{queuedAt}),
+                            change_seq      = #{changeSeq}
+                        WHERE unique_id IN (%s)
+                          AND %s
+                        RETURNING %s
+                        """.formatted(FileRecordCode.DOWNLOAD_STATUS.literal("downloading"),
+                        dialect.lockSkipLocked(candidates), DOWNLOAD_IDLE, DownloadCandidate.COLUMNS))
+                .execute(params)
+                .map(DownloadCandidate.MAPPER::mapAll);
+    }
+
+    /**
+     * Without RETURNING (MySQL, which also can't LIMIT an IN subquery), lock the candidates first and update them by key.
+     */
+    private Future<List<DownloadCandidate>> claimFilesLocked(SqlClient client, String candidates, Map<String, Object> params) {
+        return SqlTemplate
+                .forQuery(client, dialect.lockSkipLocked(candidates))
+                .mapTo(row -> row.getString("unique_id"))
+                .execute(params)
+                .map(IterUtil::toList)
+                .compose(uniqueIds -> {
+                    if (uniqueIds.isEmpty()) {
+                        return Future.succeededFuture(List.of());
+                    }
+                    Map<String, Object> claimParams = new HashMap<>();
+                    claimParams.put("queuedAt", params.get("queuedAt"));
+                    claimParams.put("changeSeq", params.get("changeSeq"));
+                    for (int i = 0; i < uniqueIds.size(); i++) {
+                        claimParams.put("uniqueId" + i, uniqueIds.get(i));
+                    }
+                    String uniqueIdPlaceholders = IntStream.range(0, uniqueIds.size())
+                            .mapToObj(i -> "#{uniqueId" + i + "}")
+                            .collect(Collectors.joining(","));
+                    return SqlTemplate
+                            .forUpdate(client, """
+                                    UPDATE file_record
+                                    SET download_status = %s,
+                                        queued_at       = COALESCE(queued_at, #{queuedAt}),
+                                        change_seq      = #{changeSeq}
+                                    WHERE unique_id IN (%s)
+                                      AND %s
+                                    """.formatted(FileRecordCode.DOWNLOAD_STATUS.literal("downloading"), uniqueIdPlaceholders, DOWNLOAD_IDLE))
+                            .execute(claimParams)
+                            .compose(_ -> getByUniqueIds(client, uniqueIds, DownloadCandidate.COLUMNS, DownloadCandidate.MAPPER, DownloadCandidate::uniqueId))
+                            .map(files -> List.copyOf(files.values()));
+                });
     }
     
     @Override
@@ -895,13 +1652,13 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         
         StringBuilder queryBuilder = new StringBuilder("""
             WITH files_to_queue AS (
-                SELECT id FROM file_record
+                SELECT unique_id FROM file_record
                 WHERE telegram_id = #{telegramId}
-                  AND download_status = 'idle'
-                  AND (scan_state = 'idle' OR scan_state IS NULL)
-                  AND type != 'thumbnail'
+                  AND %s
+                  AND %s
+                  AND %s
                   AND queued_at IS NULL
-            """);
+            """.formatted(DOWNLOAD_IDLE, SCAN_IDLE, NOT_THUMBNAIL));
         
         if (chatId != 0) {
             queryBuilder.append("  AND chat_id = #{chatId}\n");
@@ -913,27 +1670,31 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
             params.put("cutoffDateSeconds", cutoffDateSeconds);
         }
         
-        // Order by date (Telegram upload date) for correct chronological ordering
+        // Order by priority, then date (Telegram upload date) for correct chronological ordering
         // message_id is not reliable for chronological ordering
         if (Boolean.TRUE.equals(downloadOldestFirst)) {
-            queryBuilder.append("  ORDER BY date ASC, message_id ASC\n");
+            queryBuilder.append("  ORDER BY download_priority DESC, date ASC, message_id ASC\n");
         } else {
-            queryBuilder.append("  ORDER BY date DESC, message_id DESC\n");
+            queryBuilder.append("  ORDER BY download_priority DESC, date DESC, message_id DESC\n");
         }
         
         queryBuilder.append("""
                 LIMIT #{limit}
             )
             UPDATE file_record
-            SET queued_at = #{queuedAt}
-            WHERE id IN (SELECT id FROM files_to_queue)
+            SET queued_at = #{queuedAt}, change_seq = #{changeSeq}
+            WHERE unique_id IN (SELECT unique_id FROM files_to_queue)
             """);
         
         String finalQuery = queryBuilder.toString();
         log.debug("Queueing files with query: %s".formatted(finalQuery.replaceAll("#\\{[^}]+\\}", "?")));
-        return SqlTemplate
-            .forUpdate(sqlClient, finalQuery)
-            .execute(params)
+        // the queued files share one change number, the change feed pages them together
+        return withChanges(1, changeSeq -> {
+                params.put("changeSeq", changeSeq);
+                return write(client -> SqlTemplate
+                    .forUpdate(client, finalQuery)
+                    .execute(params));
+            })
             .onSuccess(count -> {
                 if (count.rowCount() > 0) {
                     log.info("Successfully queued %d files for download. TelegramId: %d, ChatId: %d".formatted(count.rowCount(), telegramId, chatId));
@@ -0,0 +1,68 @@
+package telegram.files.repository.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * MySQL has no RETURNING, claims lock their candidates first and update them by key.
+ */
+class MysqlDialect implements SqlDialect {
+
+    static final MysqlDialect INSTANCE = new MysqlDialect();
+
+    @Override
+    public int maxParameters() {
+        return 65535;
+    }
+
+    @Override
+    public String insertIgnore(String table, List<String> columns, String values) {
+        return "INSERT IGNORE INTO %s(%s) VALUES %s".formatted(table, String.join(", ", columns), values);
+    }
+
+    @Override
+    public String upsert(String table, List<String> columns, String values, List<String> keyColumns, Map<String, String> updates) {
+        return "INSERT INTO %s(%s) VALUES %s ON DUPLICATE KEY UPDATE %s".formatted(table, String.join(", ", columns), values,
+                updates.entrySet().stream()
+                        .map(e -> "%s = %s".formatted(e.getKey(), e.getValue()))
+                        .collect(Collectors.joining(", ")));
+    }
+
+    @Override
+    public String inserted(String column) {
+        return "VALUES(%s)".formatted(column);
+    }
+
+    @Override
+    public boolean updateReturning() {
+        return false;
+    }
+
+    @Override
+    public boolean returningPreUpdateValues() {
+        return false;
+    }
+
+    @Override
+    public String lockSkipLocked(String select) {
+        return select + " FOR UPDATE SKIP LOCKED";
+    }
+
+    @Override
+    public String advanceIdentity(String table, String column, long value) {
+        // AUTO_INCREMENT follows the largest inserted key
+        return null;
+    }
+
+    @Override
+    public String timeBucket(String epochMillis, int timeRange) {
+        String format = switch (timeRange) {
+            case 1 -> "%Y-%m-%d %H:%i";
+            case 2 -> "%Y-%m-%d %H:00";
+            case 3, 4 -> "%Y-%m-%d";
+            default -> throw new IllegalArgumentException("Unexpected time range: " + timeRange);
+        };
+        return "DATE_FORMAT(FROM_UNIXTIME(%s / 1000), '%s')".formatted(epochMillis, format);
+    }
+}
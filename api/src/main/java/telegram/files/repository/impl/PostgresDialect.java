@@ -0,0 +1,68 @@
+package telegram.files.repository.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Postgres claims with RETURNING and skips rows other transactions locked, its UPDATE ... FROM can return pre-update values.
+ * The reactive client has no COPY, bulk inserts use multi-row VALUES.
+ */
+class PostgresDialect implements SqlDialect {
+
+    static final PostgresDialect INSTANCE = new PostgresDialect();
+
+    @Override
+    public int maxParameters() {
+        return 32767;
+    }
+
+    @Override
+    public String insertIgnore(String table, List<String> columns, String values) {
+        return "INSERT INTO %s(%s) VALUES %s ON CONFLICT DO NOTHING".formatted(table, String.join(", ", columns), values);
+    }
+
+    @Override
+    public String upsert(String table, List<String> columns, String values, List<String> keyColumns, Map<String, String> updates) {
+        return "INSERT INTO %s(%s) VALUES %s ON CONFLICT (%s) DO UPDATE SET %s".formatted(table, String.join(", ", columns), values,
+                String.join(", ", keyColumns), updates.entrySet().stream()
+                        .map(e -> "%s = %s".formatted(e.getKey(), e.getValue()))
+                        .collect(Collectors.joining(", ")));
+    }
+
+    @Override
+    public String inserted(String column) {
+        return "excluded." + column;
+    }
+
+    @Override
+    public boolean updateReturning() {
+        return true;
+    }
+
+    @Override
+    public boolean returningPreUpdateValues() {
+        return true;
+    }
+
+    @Override
+    public String lockSkipLocked(String select) {
+        return select + " FOR UPDATE SKIP LOCKED";
+    }
+
+    @Override
+    public String advanceIdentity(String table, String column, long value) {
+        return "SELECT setval(pg_get_serial_sequence('%s', '%s'), %d, %b)".formatted(table, column, Math.max(value, 1), value > 0);
+    }
+
+    @Override
+    public String timeBucket(String epochMillis, int timeRange) {
+        String format = switch (timeRange) {
+            case 1 -> "YYYY-MM-DD HH24:MI";
+            case 2 -> "YYYY-MM-DD HH24:00";
+            case 3, 4 -> "YYYY-MM-DD";
+            default -> throw new IllegalArgumentException("Unexpected time range: " + timeRange);
+        };
+        return "TO_CHAR(TO_TIMESTAMP(%s / 1000), '%s')".formatted(epochMillis, format);
+    }
+}
@@ -8,7 +8,6 @@ import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
 import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.templates.SqlTemplate;
-import telegram.files.Config;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.SettingRecord;
 import telegram.files.repository.SettingRepository;
@@ -26,16 +25,15 @@ public class SettingRepositoryImpl extends AbstractSqlRepository implements Sett
         super(sqlClient);
     }
 
+    public SettingRepositoryImpl(SqlClient sqlClient, SqlClient readClient) {
+        super(sqlClient, readClient);
+    }
+
     @Override
     public Future<SettingRecord> createOrUpdate(String key, String value) {
         return SqlTemplate
-                .forUpdate(sqlClient, Config.isMysql() ?
-                        """
-                                INSERT INTO setting_record(`key`, value) VALUES (#{key}, #{value})
-                                ON DUPLICATE KEY UPDATE value = VALUES(value)""" :
-                        """
-                                INSERT INTO setting_record(key, value) VALUES (#{key}, #{value})
-                                ON CONFLICT (key) DO UPDATE SET value = #{value}""")
+                .forUpdate(sqlClient, dialect.upsert("setting_record", List.of(SettingRecord.KEY_FIELD, "value"), "(#{key}, #{value})",
+                        List.of(SettingRecord.KEY_FIELD), Map.of("value", dialect.inserted("value"))))
                 .mapFrom(SettingRecord.PARAM_MAPPER)
                 .execute(new SettingRecord(key, value))
                 .map(_ -> new SettingRecord(key, value))
@@ -57,7 +55,7 @@ public class SettingRepositoryImpl extends AbstractSqlRepository implements Sett
                 .collect(Collectors.joining(","));
 
         return SqlTemplate
-                .forQuery(sqlClient, """
+                .forQuery(readClient, """
                         SELECT %s, value FROM setting_record WHERE %s IN (%s)
                         """.formatted(SettingRecord.KEY_FIELD, SettingRecord.KEY_FIELD, keyStr))
                 .mapTo(SettingRecord.ROW_MAPPER)
@@ -73,7 +71,7 @@ public class SettingRepositoryImpl extends AbstractSqlRepository implements Sett
     @SuppressWarnings("unchecked")
     public <T> Future<T> getByKey(SettingKey key) {
         return SqlTemplate
-                .forQuery(sqlClient, """
+                .forQuery(readClient, """
                         SELECT value FROM setting_record WHERE %s = #{key}
                         """.formatted(SettingRecord.KEY_FIELD))
                 .mapTo(row -> row.getString("value"))
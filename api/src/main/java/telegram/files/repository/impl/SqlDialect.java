@@ -0,0 +1,117 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.core.collection.CollUtil;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlResult;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.Config;
+
+import java.util.*;
+
+/**
+ * The statements that differ between the supported databases. Repositories ask the dialect of the configured database
+ * instead of branching on {@link Config}, every backend supplies the fastest form it has.
+ * Identifiers are passed in as the database expects them, e.g. {@code `key`} on MySQL.
+ */
+public interface SqlDialect {
+
+    /**
+     * Upper bound of the rows of one multi-row statement, keeps statements and their parse time reasonable.
+     */
+    int MAX_ROWS_PER_STATEMENT = 1000;
+
+    static SqlDialect current() {
+        return Config.isPostgres() ? PostgresDialect.INSTANCE : Config.isMysql() ? MysqlDialect.INSTANCE : SqliteDialect.INSTANCE;
+    }
+
+    /**
+     * The most bind parameters one statement may carry.
+     */
+    int maxParameters();
+
+    /**
+     * INSERT skipping the rows that conflict with a unique key.
+     *
+     * @param values the VALUES list, one or more parenthesized rows
+     */
+    String insertIgnore(String table, List<String> columns, String values);
+
+    /**
+     * INSERT updating the row that conflicts with the key instead.
+     *
+     * @param updates expression by column, {@link #inserted} refers to the value the insert tried to write
+     */
+    String upsert(String table, List<String> columns, String values, List<String> keyColumns, Map<String, String> updates);
+
+    /**
+     * The value an upsert tried to insert into the column, for the expressions of {@link #upsert}.
+     */
+    String inserted(String column);
+
+    /**
+     * Whether UPDATE ... RETURNING hands back the updated rows, saving the read after the write.
+     */
+    boolean updateReturning();
+
+    /**
+     * Whether an UPDATE can join a locked copy of its row, so that RETURNING sees the values from before the update.
+     */
+    boolean returningPreUpdateValues();
+
+    /**
+     * The SELECT locking its rows until the end of the transaction, skipping rows another transaction holds.
+     * A database with a single writer returns it as is.
+     */
+    String lockSkipLocked(String select);
+
+    /**
+     * Expression formatting an epoch millisecond expression in local time as the label of its bucket:
+     * 1 minutes and 2 hours as {@code yyyy-MM-dd HH:mm}, 3 and 4 days as {@code yyyy-MM-dd}.
+     */
+    String timeBucket(String epochMillis, int timeRange);
+
+    /**
+     * Statement moving the key generator of an identity column past value, after rows were inserted with explicit keys.
+     * Null where the database keeps track by itself.
+     */
+    String advanceIdentity(String table, String column, long value);
+
+    /**
+     * Insert the rows with as few statements as the parameter limit allows, skipping rows that conflict with a unique key.
+     * Statements on one connection run in order, the chunks aren't chained.
+     *
+     * @param rows value by column, every row has every column
+     * @return the number of rows inserted
+     */
+    default Future<Integer> insertIgnoreAll(SqlClient client, String table, List<String> columns, List<Map<String, Object>> rows) {
+        if (rows.isEmpty()) {
+            return Future.succeededFuture(0);
+        }
+        int chunkSize = Math.max(1, Math.min(MAX_ROWS_PER_STATEMENT, maxParameters() / columns.size()));
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (List<Map<String, Object>> chunk : CollUtil.split(rows, chunkSize)) {
+            Map<String, Object> params = new HashMap<>();
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                Map<String, Object> row = chunk.get(i);
+                if (i > 0) {
+                    values.append(",\n");
+                }
+                // parameters are named by position, columns may come quoted
+                StringJoiner placeholders = new StringJoiner(", ", "(", ")");
+                for (int c = 0; c < columns.size(); c++) {
+                    params.put("c%d_%d".formatted(c, i), row.get(columns.get(c)));
+                    placeholders.add("#{c%d_%d}".formatted(c, i));
+                }
+                values.append(placeholders);
+            }
+            futures.add(SqlTemplate
+                    .forUpdate(client, insertIgnore(table, columns, values.toString()))
+                    .execute(params)
+                    .map(SqlResult::rowCount));
+        }
+        return Future.all(futures)
+                .map(r -> r.<Integer>list().stream().mapToInt(Integer::intValue).sum());
+    }
+}
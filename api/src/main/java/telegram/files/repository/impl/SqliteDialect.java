@@ -0,0 +1,69 @@
+package telegram.files.repository.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * SQLite has a single writer, nothing needs to be locked, and no pre-update values in RETURNING.
+ */
+class SqliteDialect implements SqlDialect {
+
+    static final SqliteDialect INSTANCE = new SqliteDialect();
+
+    @Override
+    public int maxParameters() {
+        // SQLITE_MAX_VARIABLE_NUMBER since 3.32
+        return 32766;
+    }
+
+    @Override
+    public String insertIgnore(String table, List<String> columns, String values) {
+        return "INSERT INTO %s(%s) VALUES %s ON CONFLICT DO NOTHING".formatted(table, String.join(", ", columns), values);
+    }
+
+    @Override
+    public String upsert(String table, List<String> columns, String values, List<String> keyColumns, Map<String, String> updates) {
+        return "INSERT INTO %s(%s) VALUES %s ON CONFLICT (%s) DO UPDATE SET %s".formatted(table, String.join(", ", columns), values,
+                String.join(", ", keyColumns), updates.entrySet().stream()
+                        .map(e -> "%s = %s".formatted(e.getKey(), e.getValue()))
+                        .collect(Collectors.joining(", ")));
+    }
+
+    @Override
+    public String inserted(String column) {
+        return "excluded." + column;
+    }
+
+    @Override
+    public boolean updateReturning() {
+        return true;
+    }
+
+    @Override
+    public boolean returningPreUpdateValues() {
+        return false;
+    }
+
+    @Override
+    public String lockSkipLocked(String select) {
+        return select;
+    }
+
+    @Override
+    public String advanceIdentity(String table, String column, long value) {
+        // INTEGER PRIMARY KEY continues after the largest key
+        return null;
+    }
+
+    @Override
+    public String timeBucket(String epochMillis, int timeRange) {
+        String format = switch (timeRange) {
+            case 1 -> "%Y-%m-%d %H:%M";
+            case 2 -> "%Y-%m-%d %H:00";
+            case 3, 4 -> "%Y-%m-%d";
+            default -> throw new IllegalArgumentException("Unexpected time range: " + timeRange);
+        };
+        return "strftime('%s', %s / 1000, 'unixepoch', 'localtime')".formatted(format, epochMillis);
+    }
+}
@@ -21,15 +21,19 @@ public class StatisticRepositoryImpl extends AbstractSqlRepository implements St
         super(sqlClient);
     }
 
+    public StatisticRepositoryImpl(SqlClient sqlClient, SqlClient readClient, WriteBatcher writeBatcher) {
+        super(sqlClient, readClient, writeBatcher);
+    }
+
     @Override
     public Future<Void> create(StatisticRecord record) {
-        return SqlTemplate
-                .forUpdate(sqlClient, """
+        return write(client -> SqlTemplate
+                .forUpdate(client, """
                         INSERT INTO statistic_record(related_id, type, timestamp, data)
                         VALUES (#{related_id}, #{type}, #{timestamp}, #{data})
                         """)
                 .mapFrom(StatisticRecord.PARAM_MAPPER)
-                .execute(record)
+                .execute(record))
                 .onSuccess(_ -> log.trace("Successfully created statistic record: %s".formatted(record.relatedId())))
                 .onFailure(
                         err -> log.error("Failed to create statistic record: %s".formatted(err.getMessage()))
@@ -43,7 +47,7 @@ public class StatisticRepositoryImpl extends AbstractSqlRepository implements St
                                                             long startTime,
                                                             long endTime) {
         return SqlTemplate
-                .forQuery(sqlClient, """
+                .forQuery(readClient, """
                         SELECT *
                         FROM statistic_record
                         WHERE type = #{type}
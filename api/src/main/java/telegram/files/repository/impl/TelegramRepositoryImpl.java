@@ -24,6 +24,10 @@ public class TelegramRepositoryImpl extends AbstractSqlRepository implements Tel
         super(sqlClient);
     }
 
+    public TelegramRepositoryImpl(SqlClient sqlClient, SqlClient readClient) {
+        super(sqlClient, readClient);
+    }
+
     @Override
     public String getRootPath() {
         return Config.TELEGRAM_ROOT + File.separator + UUID.randomUUID();
@@ -67,7 +71,7 @@ public class TelegramRepositoryImpl extends AbstractSqlRepository implements Tel
     @Override
     public Future<TelegramRecord> getById(long id) {
         return SqlTemplate
-                .forQuery(sqlClient, "SELECT * FROM telegram_record WHERE id = #{id} limit 1")
+                .forQuery(readClient, "SELECT * FROM telegram_record WHERE id = #{id} limit 1")
                 .mapTo(TelegramRecord.ROW_MAPPER)
                 .execute(MapUtil.of("id", id))
                 .map(rs -> rs.size() == 0 ? null : rs.iterator().next());
@@ -76,7 +80,7 @@ public class TelegramRepositoryImpl extends AbstractSqlRepository implements Tel
     @Override
     public Future<List<TelegramRecord>> getAll() {
         return SqlTemplate
-                .forQuery(sqlClient, "SELECT * FROM telegram_record ORDER BY id")
+                .forQuery(readClient, "SELECT * FROM telegram_record ORDER BY id")
                 .mapTo(TelegramRecord.ROW_MAPPER)
                 .execute(Collections.emptyMap())
                 .map(CollUtil::newArrayList);
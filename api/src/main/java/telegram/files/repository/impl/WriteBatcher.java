@@ -0,0 +1,137 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Group commit: writes submitted within a short window run one after another in a single transaction,
+ * so they share one commit instead of paying for one each.
+ * Every write runs inside its own savepoint, a failing write is rolled back alone and only its Future fails.
+ * The Futures complete once the shared transaction committed.
+ */
+public class WriteBatcher {
+
+    private static final Log log = LogFactory.get();
+
+    private record PendingWrite<T>(Function<SqlClient, Future<T>> write, Promise<T> promise) {
+    }
+
+    private final Vertx vertx;
+
+    private final Pool pool;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayMillis;
+
+    private List<PendingWrite<?>> pending = new ArrayList<>();
+
+    private long timerId = -1;
+
+    private final AtomicLong commits = new AtomicLong();
+
+    /**
+     * @param maxBatchSize   a batch is committed as soon as it holds this many writes
+     * @param maxDelayMillis how long the first write of a batch waits for others to join
+     */
+    public WriteBatcher(Vertx vertx, Pool pool, int maxBatchSize, long maxDelayMillis) {
+        this.vertx = vertx;
+        this.pool = pool;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayMillis = Math.max(1, maxDelayMillis);
+    }
+
+    /**
+     * Queue a write, the function gets the client of the shared transaction and must not use any other connection of the pool.
+     */
+    public <T> Future<T> submit(Function<SqlClient, Future<T>> write) {
+        Promise<T> promise = Promise.promise();
+        List<PendingWrite<?>> batch = null;
+        synchronized (this) {
+            pending.add(new PendingWrite<>(write, promise));
+            if (pending.size() >= maxBatchSize) {
+                batch = drain();
+            } else if (timerId < 0) {
+                timerId = vertx.setTimer(maxDelayMillis, _ -> flush());
+            }
+        }
+        if (batch != null) {
+            commit(batch);
+        }
+        return promise.future();
+    }
+
+    /**
+     * Commit whatever is pending now, completes when those writes completed.
+     */
+    public Future<Void> flush() {
+        List<PendingWrite<?>> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (batch.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        commit(batch);
+        return Future.join(batch.stream().map(w -> w.promise.future()).toList()).mapEmpty();
+    }
+
+    /**
+     * Transactions committed so far.
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    private List<PendingWrite<?>> drain() {
+        if (timerId >= 0) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+        List<PendingWrite<?>> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    private void commit(List<PendingWrite<?>> batch) {
+        List<Runnable> completions = new ArrayList<>(batch.size());
+        pool.withTransaction(client -> {
+                    Future<Void> future = Future.succeededFuture();
+                    for (PendingWrite<?> write : batch) {
+                        future = future.compose(_ -> run(client, write, completions));
+                    }
+                    return future;
+                })
+                .onSuccess(_ -> {
+                    commits.incrementAndGet();
+                    log.trace("Committed %d writes in one transaction".formatted(batch.size()));
+                    completions.forEach(Runnable::run);
+                })
+                .onFailure(err -> {
+                    log.error("Failed to commit %d writes: %s".formatted(batch.size(), err.getMessage()));
+                    batch.forEach(write -> write.promise.tryFail(err));
+                });
+    }
+
+    private static <T> Future<Void> run(SqlClient client, PendingWrite<T> write, List<Runnable> completions) {
+        return client.query("SAVEPOINT batch_write").execute()
+                .compose(_ -> write.write.apply(client))
+                .compose(result -> client.query("RELEASE SAVEPOINT batch_write").execute()
+                                .onSuccess(_ -> completions.add(() -> write.promise.tryComplete(result)))
+                                .<Void>mapEmpty(),
+                        err -> client.query("ROLLBACK TO SAVEPOINT batch_write").execute()
+                                .compose(_ -> client.query("RELEASE SAVEPOINT batch_write").execute())
+                                .onSuccess(_ -> completions.add(() -> write.promise.tryFail(err)))
+                                .<Void>mapEmpty());
+    }
+}
@@ -26,6 +26,18 @@ class AvgSpeedTest {
         assertEquals(0, avgSpeed.getMinSpeed());
     }
 
+    @Test
+    void testCurrentSpeedExpires() {
+        long baseTime = System.currentTimeMillis();
+        avgSpeed.update(1000L, baseTime);
+        avgSpeed.update(2000L, baseTime + 10000);
+
+        assertEquals(100, avgSpeed.getCurrentSpeed(baseTime + 10000));
+        assertEquals(100, avgSpeed.getCurrentSpeed(baseTime + 10000 + TEST_INTERVAL * 1000L));
+        // no update within the interval, nothing is downloading any more
+        assertEquals(0, avgSpeed.getCurrentSpeed(baseTime + 10001 + TEST_INTERVAL * 1000L));
+    }
+
     @Test
     void testConstantSpeed() {
         // Simulate constant download speed of 100 bytes per second
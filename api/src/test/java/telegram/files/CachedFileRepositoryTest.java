@@ -0,0 +1,87 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.impl.CachedFileRepository;
+import telegram.files.repository.impl.FileRepositoryImpl;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class CachedFileRepositoryTest {
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        List<FileRecord> fileRecords = IntStream.rangeClosed(1, 3)
+                .mapToObj(CachedFileRepositoryTest::fileRecord)
+                .toList();
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(fileRecords));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, 1, i, 0, i, false, 1, 0, "photo", "image/jpeg", "file_" + i, null, null,
+                null, null, null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null,
+                null, 0, 0, 0, null, 0, null);
+    }
+
+    @Test
+    @DisplayName("Repeated lookups are served from memory and writes are seen")
+    void hitAndInvalidateTest() {
+        CachedFileRepository repository = new CachedFileRepository(new FileRepositoryImpl(DataVerticle.pool), 16, 0);
+
+        MessyUtils.await(repository.getByUniqueId("unique_1"));
+        FileRecord cached = MessyUtils.await(repository.getByUniqueId("unique_1"));
+        Assertions.assertEquals(FileRecord.DownloadStatus.idle.name(), cached.downloadStatus());
+
+        MessyUtils.await(repository.updateDownloadStatus(1, "unique_1", null, FileRecord.DownloadStatus.downloading, null));
+        FileRecord updated = MessyUtils.await(repository.getByUniqueId("unique_1"));
+        Assertions.assertEquals(FileRecord.DownloadStatus.downloading.name(), updated.downloadStatus());
+
+        JsonObject statistics = repository.getStatistics();
+        Assertions.assertEquals(1, statistics.getLong("hits"));
+        Assertions.assertEquals(2, statistics.getLong("misses"));
+    }
+
+    @Test
+    @DisplayName("A thumbnail found by the maintenance is seen by cached lookups")
+    void thumbnailInvalidateTest() {
+        CachedFileRepository repository = new CachedFileRepository(new FileRepositoryImpl(DataVerticle.pool), 16, 0);
+
+        Assertions.assertNull(MessyUtils.await(repository.getByUniqueId("unique_3")).thumbnailUniqueId());
+        MessyUtils.await(repository.updateThumbnailUniqueId("unique_3", "thumbnail_3"));
+        Assertions.assertEquals("thumbnail_3", MessyUtils.await(repository.getByUniqueId("unique_3")).thumbnailUniqueId());
+    }
+
+    @Test
+    @DisplayName("The cache is bounded by size and age")
+    void evictionTest() throws InterruptedException {
+        CachedFileRepository bySize = new CachedFileRepository(new FileRepositoryImpl(DataVerticle.pool), 2, 0);
+        for (int i = 1; i <= 3; i++) {
+            MessyUtils.await(bySize.getByUniqueId("unique_" + i));
+        }
+        // unique_1 was the least recently used
+        MessyUtils.await(bySize.getByUniqueId("unique_1"));
+        JsonObject statistics = bySize.getStatistics();
+        Assertions.assertEquals(2, statistics.getInteger("size"));
+        Assertions.assertEquals(2, statistics.getLong("evictions"));
+        Assertions.assertEquals(4, statistics.getLong("misses"));
+
+        CachedFileRepository byAge = new CachedFileRepository(new FileRepositoryImpl(DataVerticle.pool), 16, 50);
+        MessyUtils.await(byAge.getByUniqueId("unique_2"));
+        Thread.sleep(100);
+        MessyUtils.await(byAge.getByUniqueId("unique_2"));
+        Assertions.assertEquals(1, byAge.getStatistics().getLong("expirations"));
+        Assertions.assertEquals(0, byAge.getStatistics().getLong("hits"));
+    }
+}
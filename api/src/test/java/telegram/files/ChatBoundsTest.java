@@ -0,0 +1,73 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.ChatBounds;
+import telegram.files.repository.FileRecord;
+
+import java.util.stream.IntStream;
+
+/**
+ * The chat bounds served from memory must equal a fresh aggregate of file_record, both when loaded and after inserts.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ChatBoundsTest {
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(100, 200)
+                .mapToObj(ChatBoundsTest::fileRecord)
+                .toList()));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, 10 + i % 2, i, 0, 1700000000 + i, false, 1024, 0, "photo", "image/jpeg",
+                "file_" + i, null, null, null, null, null, FileRecord.DownloadStatus.idle.name(),
+                FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    private static ChatBounds aggregate(long chatId) {
+        return MessyUtils.await(DataVerticle.pool.query("""
+                        SELECT MIN(message_id), MAX(message_id), MIN(date), MAX(date) FROM file_record WHERE telegram_id = 1 AND chat_id = %d
+                        """.formatted(chatId)).execute())
+                .stream()
+                .map(row -> row.getLong(0) == null ? ChatBounds.EMPTY :
+                        new ChatBounds(row.getLong(0), row.getLong(1), row.getInteger(2), row.getInteger(3)))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Bounds are loaded from file_record")
+    void loadTest() {
+        for (long chatId : new long[]{10, 11}) {
+            Assertions.assertEquals(aggregate(chatId), MessyUtils.await(DataVerticle.fileRepository.getChatBounds(1, chatId)));
+        }
+        Assertions.assertTrue(MessyUtils.await(DataVerticle.fileRepository.getChatBounds(1, 12)).isEmpty());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Inserts widen the bounds")
+    void widenTest() {
+        MessyUtils.await(DataVerticle.fileRepository.create(fileRecord(50)));
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.of(300, 301, 302)
+                .mapToObj(ChatBoundsTest::fileRecord)
+                .toList()));
+
+        for (long chatId : new long[]{10, 11}) {
+            Assertions.assertEquals(aggregate(chatId), MessyUtils.await(DataVerticle.fileRepository.getChatBounds(1, chatId)));
+        }
+        Assertions.assertEquals(50, MessyUtils.await(DataVerticle.fileRepository.getChatBounds(1, 10)).minMessageId());
+    }
+}
@@ -0,0 +1,132 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.DownloadCandidate;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
+import telegram.files.repository.FileStatus;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ClaimFilesForDownloadTest {
+
+    private static final int FILE_COUNT = 50;
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        List<FileRecord> fileRecords = IntStream.rangeClosed(1, FILE_COUNT)
+                .mapToObj(ClaimFilesForDownloadTest::fileRecord)
+                .toList();
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(fileRecords));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, 1, i, 0, 1700000000 + i, false, 1024, 0, "photo", "image/jpeg",
+                "file_" + i, null, null, null, null, null, FileRecord.DownloadStatus.idle.name(),
+                FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Claims follow the requested order and cutoff")
+    void claimOrderTest() {
+        List<DownloadCandidate> oldest = MessyUtils.await(DataVerticle.fileRepository.claimFilesForDownload(1, 0, 3, true, null));
+        Assertions.assertEquals(List.of("unique_1", "unique_2", "unique_3"), oldest.stream().map(DownloadCandidate::uniqueId).toList());
+        Assertions.assertEquals(new DownloadCandidate(1, "unique_1", 1, 1, 1, 1700000001, "photo", 1024, 0), oldest.getFirst());
+        Map<String, FileStatus> statuses = MessyUtils.await(DataVerticle.fileRepository.getStatusesByUniqueId(
+                oldest.stream().map(DownloadCandidate::uniqueId).toList()));
+        Assertions.assertTrue(statuses.values().stream().allMatch(r -> r.isDownloadStatus(FileRecord.DownloadStatus.downloading)));
+
+        List<DownloadCandidate> newest = MessyUtils.await(DataVerticle.fileRepository.claimFilesForDownload(1, 0, 2, false, 1700000000 + FILE_COUNT));
+        Assertions.assertEquals(List.of("unique_" + FILE_COUNT), newest.stream().map(DownloadCandidate::uniqueId).toList());
+
+        FileRecord claimed = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_1"));
+        Assertions.assertTrue(claimed.isDownloadStatus(FileRecord.DownloadStatus.downloading));
+        Assertions.assertNotNull(claimed.queuedAt());
+        Assertions.assertEquals(4, MessyUtils.await(DataVerticle.fileRepository.countByStatus(1, FileRecord.DownloadStatus.downloading)));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Concurrent claims never hand out the same file twice")
+    void concurrentClaimTest() {
+        List<Future<List<DownloadCandidate>>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(DataVerticle.fileRepository.claimFilesForDownload(1, 0, 7, i % 2 == 0, null));
+        }
+        MessyUtils.await(Future.join(futures).otherwiseEmpty());
+
+        List<String> claimed = futures.stream()
+                .filter(Future::succeeded)
+                .flatMap(f -> f.result().stream())
+                .map(DownloadCandidate::uniqueId)
+                .toList();
+        Assertions.assertEquals(claimed.size(), new HashSet<>(claimed).size());
+        Assertions.assertFalse(claimed.contains("unique_1"));
+
+        Integer downloading = MessyUtils.await(DataVerticle.fileRepository.countByStatus(1, FileRecord.DownloadStatus.downloading));
+        Assertions.assertEquals(4 + claimed.size(), downloading);
+        Integer idle = MessyUtils.await(DataVerticle.fileRepository.countByStatus(1, FileRecord.DownloadStatus.idle));
+        Assertions.assertEquals(FILE_COUNT, downloading + idle);
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A released claim can be claimed again")
+    void releaseClaimTest() {
+        FileRecord fileRecord = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_2"));
+        MessyUtils.await(DownloadQueueService.releaseClaim(new DownloadCandidate(fileRecord.id(), fileRecord.uniqueId(),
+                fileRecord.telegramId(), fileRecord.chatId(), fileRecord.messageId(), fileRecord.date(), fileRecord.type(), fileRecord.size(), 0)));
+        MessyUtils.await(DataVerticle.pool.query("UPDATE file_record SET download_status = %s WHERE download_status = %s AND unique_id != 'unique_2'"
+                .formatted(FileRecordCode.DOWNLOAD_STATUS.literal("completed"), FileRecordCode.DOWNLOAD_STATUS.literal("idle"))).execute());
+        MessyUtils.await(DataVerticle.fileRepository.rebuildFileStats());
+
+        List<DownloadCandidate> reclaimed = MessyUtils.await(DataVerticle.fileRepository.claimFilesForDownload(1, 0, 5, true, null));
+        Assertions.assertEquals(List.of("unique_2"), reclaimed.stream().map(DownloadCandidate::uniqueId).toList());
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("A claim for one chat leaves the other chats alone")
+    void claimChatTest() {
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(FILE_COUNT + 1, FILE_COUNT + 10)
+                .mapToObj(i -> new FileRecord(i, "unique_" + i, 1, 2 + i % 2, i, 0, 1700000000 + i, false, 1024, 0, "photo",
+                        "image/jpeg", "file_" + i, null, null, null, null, null, FileRecord.DownloadStatus.idle.name(),
+                        FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null))
+                .toList()));
+
+        List<DownloadCandidate> claimed = MessyUtils.await(DataVerticle.fileRepository.claimFilesForDownload(1, 2, 10, true, null));
+        Assertions.assertEquals(5, claimed.size());
+        Assertions.assertTrue(claimed.stream().allMatch(f -> f.chatId() == 2));
+        Assertions.assertEquals(5, MessyUtils.await(DataVerticle.fileRepository.countByStatus(1, FileRecord.DownloadStatus.idle)));
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("Files with a higher priority are claimed first")
+    void claimPriorityTest() {
+        Assertions.assertEquals(1, MessyUtils.await(DataVerticle.fileRepository.updateDownloadPriority(List.of("unique_59"), 5)));
+        Assertions.assertEquals(0, MessyUtils.await(DataVerticle.fileRepository.updateDownloadPriority(List.of("unique_59"), 5)));
+
+        List<DownloadCandidate> claimed = MessyUtils.await(DataVerticle.fileRepository.claimFilesForDownload(1, 3, 1, true, null));
+        Assertions.assertEquals(List.of("unique_59"), claimed.stream().map(DownloadCandidate::uniqueId).toList());
+        Assertions.assertEquals(5, claimed.getFirst().downloadPriority());
+
+        // the chat's files not downloaded yet, the one downloading included
+        Assertions.assertEquals(5, MessyUtils.await(DataVerticle.fileRepository.updateChatDownloadPriority(1, 3, 2)));
+        Assertions.assertEquals(2, MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_51")).downloadPriority());
+    }
+}
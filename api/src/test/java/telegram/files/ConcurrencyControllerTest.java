@@ -0,0 +1,61 @@
+package telegram.files;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class ConcurrencyControllerTest {
+
+    @Test
+    @DisplayName("Grows while throughput grows and takes back an increase that didn't pay off")
+    void probeTest() {
+        ConcurrencyController controller = new ConcurrencyController(1, 10, 4);
+        Assertions.assertEquals(5, controller.adjust(1000, true, 1));
+        Assertions.assertEquals(6, controller.adjust(1200, true, 2));
+        Assertions.assertEquals(5, controller.adjust(1210, true, 3));
+        Assertions.assertEquals(5, controller.adjust(1200, true, 4));
+        Assertions.assertEquals(6, controller.adjust(1200, true, 5));
+
+        Assertions.assertEquals(6, controller.adjust(1200, false, 6));
+        Assertions.assertEquals("not saturated", controller.getStatus().getJsonArray("history").getJsonObject(5).getString("reason"));
+    }
+
+    @Test
+    @DisplayName("Flood waits and errors halve the concurrency within the bounds")
+    void backoffTest() {
+        ConcurrencyController controller = new ConcurrencyController(2, 10, 20);
+        Assertions.assertEquals(10, controller.concurrency());
+
+        controller.onFloodWait(5000, 0);
+        Assertions.assertEquals(5, controller.adjust(1000, true, 1));
+        // held while the flood wait lasts
+        Assertions.assertEquals(5, controller.adjust(1000, true, 2));
+        Assertions.assertEquals(6, controller.adjust(1000, true, 5000));
+
+        for (int i = 0; i < 8; i++) {
+            controller.onCompleted();
+        }
+        controller.onFailed();
+        controller.onFailed();
+        Assertions.assertEquals(3, controller.adjust(1000, true, 6000));
+        controller.onFloodWait(0, 6000);
+        Assertions.assertEquals(2, controller.adjust(1000, true, 7000));
+
+        JsonObject status = controller.getStatus();
+        Assertions.assertEquals(2, status.getInteger("concurrency"));
+        Assertions.assertEquals(5, status.getJsonArray("history").size());
+        Assertions.assertEquals(2, status.getJsonArray("history").getJsonObject(3).getInteger("failed"));
+    }
+
+    @Test
+    @DisplayName("History keeps the latest windows")
+    void historyTest() {
+        ConcurrencyController controller = new ConcurrencyController(1, 3, 1);
+        for (int i = 0; i < ConcurrencyController.HISTORY_SIZE + 10; i++) {
+            controller.adjust(0, false, i);
+        }
+        Assertions.assertEquals(ConcurrencyController.HISTORY_SIZE, controller.getStatus().getJsonArray("history").size());
+        Assertions.assertEquals(10, controller.getStatus().getJsonArray("history").getJsonObject(0).getLong("timestamp"));
+    }
+}
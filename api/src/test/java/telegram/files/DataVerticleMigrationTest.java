@@ -16,11 +16,17 @@ import io.vertx.sqlclient.PoolOptions;
 import io.vertx.sqlclient.SqlClient;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
+import telegram.files.repository.DownloadCandidate;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.SettingRecord;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @ExtendWith(VertxExtension.class)
 public class DataVerticleMigrationTest {
@@ -105,6 +111,117 @@ public class DataVerticleMigrationTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test migration of the (id, unique_id) primary key to row_id")
+    void testRowIdMigration(Vertx vertx, VertxTestContext testContext) {
+        initializeCompositeKeyDatabase(vertx)
+                .compose(v -> vertx.deployVerticle(new DataVerticle()))
+                .compose(v -> DataVerticle.pool.query(getColumnsQuery()).execute())
+                .compose(columns -> {
+                    testContext.verify(() -> Assertions.assertTrue(IterUtil.toList(columns).stream()
+                            .anyMatch(row -> row.getString("name").equalsIgnoreCase("row_id"))));
+                    return DataVerticle.pool.query("SELECT id, unique_id FROM file_record ORDER BY row_id").execute();
+                })
+                .compose(rows -> {
+                    testContext.verify(() -> {
+                        // the duplicate of u1 is gone, the oldest row stays
+                        Assertions.assertEquals(2, rows.size());
+                        Assertions.assertEquals(1, rows.iterator().next().getInteger("id"));
+                    });
+                    return DataVerticle.pool.query("SELECT id, unique_id FROM file_record_duplicate").execute();
+                })
+                .compose(duplicates -> {
+                    testContext.verify(() -> {
+                        // and is kept aside
+                        Assertions.assertEquals(1, duplicates.size());
+                        Assertions.assertEquals(2, duplicates.iterator().next().getInteger("id"));
+                        Assertions.assertEquals("u1", duplicates.iterator().next().getString("unique_id"));
+                    });
+                    return DataVerticle.fileRepository.getDownloadStatistics(1);
+                })
+                .compose(statistics -> {
+                    testContext.verify(() -> Assertions.assertEquals(2, statistics.getLong("total")));
+                    // a file can only be stored once now
+                    return DataVerticle.pool.query("""
+                                    INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, type, download_status, size)
+                                    VALUES (4, 'u2', 1, 1, 3, %s, %s, 20)
+                                    """.formatted(FileRecordCode.TYPE.literal("video"), FileRecordCode.DOWNLOAD_STATUS.literal("idle"))).execute()
+                            .transform(r -> Future.succeededFuture(r.failed()));
+                })
+                .onComplete(testContext.succeeding(rejected -> testContext.verify(() -> {
+                    Assertions.assertTrue(rejected);
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test upgrade of a 0.3.0 database without the queue columns")
+    void testBaselineUpgrade(Vertx vertx, VertxTestContext testContext) {
+        initializeBaselineDatabase(vertx)
+                .compose(v -> vertx.deployVerticle(new DataVerticle()))
+                .compose(v -> DataVerticle.pool.query(getColumnsQuery()).execute())
+                .compose(columns -> {
+                    testContext.verify(() -> {
+                        Set<String> columnNames = IterUtil.toList(columns).stream()
+                                .map(row -> row.getString("name").toLowerCase())
+                                .collect(Collectors.toSet());
+                        Assertions.assertTrue(columnNames.containsAll(List.of("scan_state", "download_priority", "queued_at", "change_seq")));
+                    });
+                    return DataVerticle.fileRepository.getFiles(0, Map.of("tags", "dog"));
+                })
+                .compose(tagged -> {
+                    // file_tag is filled by the migration introducing it
+                    testContext.verify(() -> Assertions.assertEquals(List.of("u1"), tagged.v1.stream().map(FileRecord::uniqueId).toList()));
+                    return DataVerticle.fileRepository.getDownloadStatistics(1);
+                })
+                .compose(statistics -> {
+                    // file_stats is built by the migration introducing it
+                    testContext.verify(() -> {
+                        Assertions.assertEquals(2, statistics.getLong("total"));
+                        Assertions.assertEquals(1, statistics.getLong("completed"));
+                    });
+                    return DataVerticle.fileRepository.claimFilesForDownload(1, 0, 10, true, null);
+                })
+                .onComplete(testContext.succeeding(claimed -> testContext.verify(() -> {
+                    Assertions.assertEquals(List.of("u1"), claimed.stream().map(DownloadCandidate::uniqueId).toList());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test migration of type and status names to codes")
+    void testCodesMigration(Vertx vertx, VertxTestContext testContext) {
+        initializeNamesDatabase(vertx)
+                .compose(v -> vertx.deployVerticle(new DataVerticle()))
+                .compose(v -> DataVerticle.fileRepository.getFilesByUniqueId(List.of("u1", "u2", "u3")))
+                .compose(files -> {
+                    testContext.verify(() -> {
+                        Assertions.assertEquals("photo", files.get("u1").type());
+                        Assertions.assertEquals(FileRecord.DownloadStatus.completed.name(), files.get("u1").downloadStatus());
+                        Assertions.assertEquals(FileRecord.TransferStatus.completed.name(), files.get("u1").transferStatus());
+                        Assertions.assertEquals("idle", files.get("u1").scanState());
+                        Assertions.assertEquals("video", files.get("u2").type());
+                        // the legacy 'queued' is idle
+                        Assertions.assertEquals(FileRecord.DownloadStatus.idle.name(), files.get("u2").downloadStatus());
+                        Assertions.assertEquals(FileRecord.TransferStatus.idle.name(), files.get("u2").transferStatus());
+                        Assertions.assertNull(files.get("u2").scanState());
+                        Assertions.assertNull(files.get("u3").downloadStatus());
+                    });
+                    return DataVerticle.pool.query("SELECT COUNT(*) FROM file_record WHERE download_status = %s"
+                            .formatted(FileRecordCode.DOWNLOAD_STATUS.literal("idle"))).execute();
+                })
+                .compose(rows -> {
+                    testContext.verify(() -> Assertions.assertEquals(1, rows.iterator().next().getInteger(0)));
+                    return DataVerticle.fileRepository.getDownloadStatistics(1);
+                })
+                .onComplete(testContext.succeeding(statistics -> testContext.verify(() -> {
+                    Assertions.assertEquals(3, statistics.getLong("total"));
+                    Assertions.assertEquals(1, statistics.getLong("idle"));
+                    Assertions.assertEquals(1, statistics.getLong("photo"));
+                    testContext.completeNow();
+                })));
+    }
+
     private Future<Void> initializeEmptyDatabase(Vertx vertx, VertxTestContext testContext) {
         return vertx.deployVerticle(new DataVerticle())
                 .compose(id -> {
@@ -167,6 +284,84 @@ public class DataVerticleMigrationTest {
                 .mapEmpty();
     }
 
+    private Future<Void> initializeCompositeKeyDatabase(Vertx vertx) {
+        // The 0.3.0 file_record, keyed by (id, unique_id), with a file stored twice
+        String compositeKeyScheme = namesScheme().lines()
+                .filter(line -> !line.contains("row_id"))
+                .map(line -> line.trim().startsWith("queued_at") ? line + ", PRIMARY KEY (id, unique_id)" : line)
+                .collect(Collectors.joining("\n"));
+        return Future.succeededFuture()
+                .compose(v -> createTempSqlClient(vertx))
+                .compose(sqlClient -> sqlClient.query(SettingRecord.SCHEME).execute()
+                        .compose(v2 -> sqlClient.query("""
+                                INSERT INTO setting_record (%s, value)
+                                VALUES ('version', '0.3.0')
+                                """.formatted(SettingRecord.KEY_FIELD)).execute())
+                        .compose(v3 -> sqlClient.query(compositeKeyScheme).execute())
+                        .compose(v4 -> sqlClient.query("""
+                                INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, type, download_status, size)
+                                VALUES (1, 'u1', 1, 1, 1, 'photo', 'idle', 10),
+                                       (2, 'u1', 1, 1, 1, 'photo', 'idle', 10),
+                                       (3, 'u2', 1, 1, 2, 'video', 'completed', 20)
+                                """).execute())
+                        .eventually(() -> sqlClient.close())
+                )
+                .mapEmpty();
+    }
+
+    private Future<Void> initializeBaselineDatabase(Vertx vertx) {
+        // The file_record of the 0.3.0 release: no queue columns yet, keyed by (id, unique_id), storing names
+        String baselineScheme = namesScheme().lines()
+                .filter(line -> Stream.of("row_id", "scan_state", "download_priority", "queued_at", "change_seq")
+                        .noneMatch(column -> line.trim().startsWith(column)))
+                .map(line -> line.trim().startsWith("reaction_count") ? line + " PRIMARY KEY (id, unique_id)" : line)
+                .collect(Collectors.joining("\n"));
+        return Future.succeededFuture()
+                .compose(v -> createTempSqlClient(vertx))
+                .compose(sqlClient -> sqlClient.query(SettingRecord.SCHEME).execute()
+                        .compose(v2 -> sqlClient.query("""
+                                INSERT INTO setting_record (%s, value)
+                                VALUES ('version', '0.3.0')
+                                """.formatted(SettingRecord.KEY_FIELD)).execute())
+                        .compose(v3 -> sqlClient.query(baselineScheme).execute())
+                        .compose(v4 -> sqlClient.query("""
+                                INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, date, type, download_status, size, tags)
+                                VALUES (1, 'u1', 1, 1, 1, 1700000001, 'photo', 'idle', 10, 'cat, dog'),
+                                       (2, 'u2', 1, 1, 2, 1700000002, 'video', 'completed', 20, NULL)
+                                """).execute())
+                        .eventually(() -> sqlClient.close())
+                )
+                .mapEmpty();
+    }
+
+    /**
+     * The file_record scheme before type and the statuses became codes.
+     */
+    private static String namesScheme() {
+        return FileRecord.SCHEME.replace("SMALLINT", "VARCHAR(255)");
+    }
+
+    private Future<Void> initializeNamesDatabase(Vertx vertx) {
+        // The 0.3.1 file_record, storing names
+        return Future.succeededFuture()
+                .compose(v -> createTempSqlClient(vertx))
+                .compose(sqlClient -> sqlClient.query(SettingRecord.SCHEME).execute()
+                        .compose(v2 -> sqlClient.query("""
+                                INSERT INTO setting_record (%s, value)
+                                VALUES ('version', '0.3.1')
+                                """.formatted(SettingRecord.KEY_FIELD)).execute())
+                        .compose(v3 -> sqlClient.query(namesScheme()).execute())
+                        .compose(v4 -> sqlClient.query("""
+                                INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, type, download_status, transfer_status, scan_state, size)
+                                VALUES (1, 'u1', 1, 1, 1, 'photo', 'completed', 'completed', 'idle', 10),
+                                       (2, 'u2', 1, 1, 2, 'video', 'queued', 'idle', NULL, 20),
+                                       (3, 'u3', 1, 1, 3, 'audio', NULL, NULL, NULL, 30)
+                                """).execute())
+                        .eventually(() -> sqlClient.close())
+                )
+                .mapEmpty();
+    }
+
     private Future<SqlClient> createTempSqlClient(Vertx vertx) {
         if (Config.isSqlite()) {
             return Future.succeededFuture(JDBCPool.pool(vertx,
@@ -222,17 +417,17 @@ public class DataVerticleMigrationTest {
         if (Config.isPostgres()) {
             getTablesQuery = """
                     SELECT table_name FROM information_schema.tables
-                    WHERE table_schema = 'public' AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE table_schema = 'public' AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'file_tag', 'file_stats', 'file_record_archive', 'file_record_deletion')
                     """;
         } else if (Config.isMysql()) {
             getTablesQuery = """
                     SELECT table_name FROM information_schema.tables
-                    WHERE table_schema = DATABASE() AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE table_schema = DATABASE() AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'file_tag', 'file_stats', 'file_record_archive', 'file_record_deletion')
                     """;
         } else {
             getTablesQuery = """
                     SELECT name FROM sqlite_master
-                    WHERE type='table' AND name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE type='table' AND name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'file_tag', 'file_stats', 'file_record_archive', 'file_record_deletion')
                     """;
         }
         return getTablesQuery;
@@ -8,13 +8,22 @@ import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
+import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.SqlClient;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
 import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
+import telegram.files.repository.FileSearch;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.TelegramRecord;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
 @ExtendWith(VertxExtension.class)
 public class DataVerticleTest {
 
@@ -138,7 +147,7 @@ public class DataVerticleTest {
     @DisplayName("Test Get file record by primary key")
     void getFileRecordByPrimaryKeyTest(Vertx vertx, VertxTestContext testContext) {
         FileRecord fileRecord = new FileRecord(
-                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "local_path", "download_status", "transfer_status", 0, null, null, 0, 0, 0
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "local_path", FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
         );
         DataVerticle.fileRepository.create(fileRecord)
                 .compose(r -> DataVerticle.fileRepository.getByPrimaryKey(r.id(), r.uniqueId()))
@@ -152,7 +161,7 @@ public class DataVerticleTest {
     @DisplayName("Test update file download status")
     void updateFileDownloadStatusTest(Vertx vertx, VertxTestContext testContext) {
         FileRecord fileRecord = new FileRecord(
-                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
         );
         String updateLocalPath = "local_path";
         Long completionDate = 1L;
@@ -175,11 +184,46 @@ public class DataVerticleTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test update file download status only writes changes")
+    void updateFileDownloadStatusChangesTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord fileRecord = new FileRecord(
+                1, "unique_id", 1, 1, 1, 0, 1, false, 1, 0, "photo", "mime_type", "file_name", null, null, null, null, null,
+                FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null
+        );
+        DataVerticle.fileRepository.create(fileRecord)
+                .compose(r -> DataVerticle.fileRepository.updateDownloadStatus(1, r.uniqueId(), "", FileRecord.DownloadStatus.downloading, null))
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        Assertions.assertEquals(FileRecord.DownloadStatus.downloading.name(), r.getString("downloadStatus"));
+                        Assertions.assertFalse(r.containsKey("localPath"));
+                    });
+                    // a progress tick changes nothing
+                    return DataVerticle.fileRepository.updateDownloadStatus(1, fileRecord.uniqueId(), "", FileRecord.DownloadStatus.downloading, null);
+                })
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertNull(r));
+                    return DataVerticle.fileRepository.updateDownloadStatus(1, fileRecord.uniqueId(), "local_path", FileRecord.DownloadStatus.downloading, 1L);
+                })
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        Assertions.assertEquals("local_path", r.getString("localPath"));
+                        Assertions.assertFalse(r.containsKey("downloadStatus"));
+                    });
+                    return DataVerticle.fileRepository.getDownloadStatistics(1);
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(1, r.getLong("downloading"));
+                    Assertions.assertEquals(0, r.getLong("idle"));
+                    testContext.completeNow();
+                })));
+    }
+
     @Test
     @DisplayName("Test update file transfer status")
     void updateFileTransferStatusTest(Vertx vertx, VertxTestContext testContext) {
         FileRecord fileRecord = new FileRecord(
-                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
         );
         String updateLocalPath = "local_path";
         DataVerticle.fileRepository.create(fileRecord)
@@ -198,4 +242,180 @@ public class DataVerticleTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test bulk create file records")
+    void createAllIfNotExistTest(Vertx vertx, VertxTestContext testContext) {
+        List<FileRecord> page = IntStream.rangeClosed(1, 300)
+                .mapToObj(i -> new FileRecord(
+                        i, "unique_id_" + i, 1, 1, i, 0, i, false, 1, 0, "photo", "mime_type", "file_name", null, null, "caption", null, null,
+                        FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null
+                ))
+                .toList();
+        DataVerticle.fileRepository.create(page.getFirst())
+                .compose(r -> DataVerticle.fileRepository.createAllIfNotExist(page))
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        Assertions.assertEquals(299, r.v1.size());
+                        Assertions.assertEquals(1, r.v2.size());
+                        Assertions.assertEquals(page.getFirst().uniqueId(), r.v2.getFirst().uniqueId());
+                    });
+                    return DataVerticle.fileRepository.createAllIfNotExist(page);
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(0, r.v1.size());
+                    Assertions.assertEquals(300, r.v2.size());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test bulk create stores the enumerated columns as codes")
+    void createAllIfNotExistCodesTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord fileRecord = new FileRecord(
+                1, "unique_id_1", 1, 1, 1, 0, 1, false, 1, 0, "video", "mime_type", "file_name", null, null, null, null, null,
+                FileRecord.DownloadStatus.paused.name(), FileRecord.TransferStatus.completed.name(), 0, null, null, 0, 0, 0, null, 0, null
+        );
+        DataVerticle.fileRepository.createAllIfNotExist(List.of(fileRecord))
+                .compose(_ -> DataVerticle.pool
+                        .query("SELECT type, download_status, transfer_status FROM file_record WHERE unique_id = 'unique_id_1'")
+                        .execute())
+                .onComplete(testContext.succeeding(rs -> testContext.verify(() -> {
+                    Row row = rs.iterator().next();
+                    Assertions.assertEquals(FileRecordCode.TYPE.encode("video"), row.getInteger("type"));
+                    Assertions.assertEquals(FileRecordCode.DOWNLOAD_STATUS.encode("paused"), row.getInteger("download_status"));
+                    Assertions.assertEquals(FileRecordCode.TRANSFER_STATUS.encode("completed"), row.getInteger("transfer_status"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test search files by name and caption")
+    void searchFilesTest(Vertx vertx, VertxTestContext testContext) {
+        List<String> names = List.of("holiday beach.jpg", "holiday mountain.jpg", "report.pdf", "ab.txt");
+        List<FileRecord> page = IntStream.range(0, names.size())
+                .mapToObj(i -> new FileRecord(
+                        i + 1, "unique_id_" + i, 1, 1, i + 1, 0, i, false, 1, 0, "photo", "mime_type", names.get(i), null, null,
+                        i == 2 ? "quarterly beach cleanup" : null, null, null,
+                        FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null
+                ))
+                .toList();
+        DataVerticle.fileRepository.createAllIfNotExist(page)
+                .compose(r -> DataVerticle.fileRepository.getFiles(1, Map.of("search", "holiday")))
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        Assertions.assertTrue(FileSearch.isAvailable());
+                        Assertions.assertEquals(2, r.v1.size());
+                        Assertions.assertEquals(2, r.v3);
+                    });
+                    return DataVerticle.fileRepository.getFiles(1, Map.of("search", "beach"));
+                })
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertEquals(2, r.v1.size()));
+                    // too short for the full-text index, served by LIKE
+                    return DataVerticle.fileRepository.getFiles(1, Map.of("search", "ab"));
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(1, r.v1.size());
+                    Assertions.assertEquals("ab.txt", r.v1.getFirst().fileName());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test search matches the beginning of words")
+    void searchFilesPrefixTest(Vertx vertx, VertxTestContext testContext) {
+        List<FileRecord> page = List.of(
+                new FileRecord(1, "unique_id_1", 1, 1, 1, 0, 1, false, 1, 0, "photo", "mime_type", "report 2024.pdf", null, null,
+                        null, null, null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null),
+                new FileRecord(2, "unique_id_2", 1, 1, 2, 0, 2, false, 1, 0, "photo", "mime_type", "photo.jpg", null, null,
+                        "holidays in the mountains", null, null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null));
+        DataVerticle.fileRepository.createAllIfNotExist(page)
+                .compose(r -> DataVerticle.fileRepository.getFiles(1, Map.of("search", "repo")))
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        Assertions.assertEquals(1, r.v1.size());
+                        Assertions.assertEquals("unique_id_1", r.v1.getFirst().uniqueId());
+                    });
+                    return DataVerticle.fileRepository.getFiles(1, Map.of("search", "holi mount"));
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(1, r.v1.size());
+                    Assertions.assertEquals("unique_id_2", r.v1.getFirst().uniqueId());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test ranked search pages by keyset, files added meanwhile don't repeat the next page")
+    void searchFilesPagingTest(Vertx vertx, VertxTestContext testContext) {
+        int total = 25;
+        List<FileRecord> page = IntStream.rangeClosed(1, total)
+                .mapToObj(i -> searchRecord(i, i % 3 == 0 ? "sunset" : "sunset sunset " + i))
+                .toList();
+        List<String> seen = new ArrayList<>();
+        Map<String, String> filter = new HashMap<>(Map.of("search", "sunset", "limit", "10"));
+        DataVerticle.fileRepository.createAllIfNotExist(page)
+                .compose(r -> DataVerticle.fileRepository.getFiles(1, filter))
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertNotNull(r.v5));
+                    r.v1.forEach(f -> seen.add(f.uniqueId()));
+                    filter.put("fromMessageId", String.valueOf(r.v2));
+                    filter.put("fromRank", String.valueOf(r.v5));
+                    // a better match than everything listed so far, an offset cursor would repeat the last file
+                    return DataVerticle.fileRepository.create(searchRecord(total + 1, "sunset sunset sunset"))
+                            .compose(_ -> DataVerticle.fileRepository.getFiles(1, filter));
+                })
+                .compose(r -> {
+                    r.v1.forEach(f -> seen.add(f.uniqueId()));
+                    filter.put("fromMessageId", String.valueOf(r.v2));
+                    filter.put("fromRank", String.valueOf(r.v5));
+                    return DataVerticle.fileRepository.getFiles(1, filter);
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    r.v1.forEach(f -> seen.add(f.uniqueId()));
+                    Assertions.assertEquals(total, seen.size());
+                    Assertions.assertEquals(total, seen.stream().distinct().count());
+                    Assertions.assertFalse(seen.contains("unique_id_" + (total + 1)));
+                    testContext.completeNow();
+                })));
+    }
+
+    private static FileRecord searchRecord(int i, String caption) {
+        return new FileRecord(i, "unique_id_" + i, 1, 1, i, 0, i, false, 1, 0, "photo", "mime_type", "file_" + i + ".jpg", null, null,
+                caption, null, null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    @Test
+    @DisplayName("Test filter files by tags")
+    void filterFilesByTagsTest(Vertx vertx, VertxTestContext testContext) {
+        List<FileRecord> page = IntStream.rangeClosed(1, 3)
+                .mapToObj(i -> new FileRecord(
+                        i, "unique_id_" + i, 1, 1, i, 0, i, false, 1, 0, "photo", "mime_type", "file_name", null, null, null, null, null,
+                        FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null
+                ))
+                .toList();
+        DataVerticle.fileRepository.createAllIfNotExist(page)
+                .compose(r -> DataVerticle.fileRepository.updateTags("unique_id_1", "cat, dog"))
+                .compose(r -> DataVerticle.fileRepository.updateTags("unique_id_2", "catalog"))
+                .compose(r -> DataVerticle.fileRepository.getFiles(1, Map.of("tags", "cat")))
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        // no substring matches on other tags
+                        Assertions.assertEquals(1, r.v1.size());
+                        Assertions.assertEquals("unique_id_1", r.v1.getFirst().uniqueId());
+                        Assertions.assertEquals("cat,dog", r.v1.getFirst().tags());
+                    });
+                    return DataVerticle.fileRepository.getFiles(1, Map.of("tags", "dog,catalog"));
+                })
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertEquals(2, r.v1.size()));
+                    return DataVerticle.fileRepository.updateTags("unique_id_1", "");
+                })
+                .compose(r -> DataVerticle.fileRepository.getFiles(1, Map.of("tags", "cat")))
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(0, r.v1.size());
+                    testContext.completeNow();
+                })));
+    }
+
 }
@@ -0,0 +1,118 @@
+package telegram.files;
+
+import cn.hutool.core.io.FileUtil;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.*;
+import telegram.files.maintains.DatabaseMigrateMaintainVerticle;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.TelegramRecord;
+
+import java.io.File;
+import java.util.stream.IntStream;
+
+/**
+ * Migrates a SQLite database into a new one, the source is prepared by the application itself and then moved aside.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class DatabaseMigrateMaintainVerticleTest {
+
+    // more than one batch
+    private static final int FILE_COUNT = 4500;
+
+    // like the search_vector of Postgres, inserting into it fails
+    private static final String GENERATED_COLUMN = "ALTER TABLE file_record ADD COLUMN caption_length INTEGER GENERATED ALWAYS AS (length(caption)) VIRTUAL";
+
+    static Vertx vertx = Vertx.vertx();
+
+    static String sourcePath;
+
+    @BeforeAll
+    static void setUpAll() {
+        Assumptions.assumeTrue(Config.isSqlite());
+        DataVerticleTest.printDBInfo();
+        String deploymentId = MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(1, FILE_COUNT)
+                .mapToObj(i -> new FileRecord(i, "unique_" + i, 1, 1, i, 0, 1700000000 + i, i % 2 == 0, 1024, 0, "photo",
+                        "image/jpeg", "file_" + i, null, null, "caption " + i, null, null, FileRecord.DownloadStatus.idle.name(),
+                        FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null))
+                .toList()));
+        MessyUtils.await(DataVerticle.fileRepository.updateTags("unique_1", "a,b"));
+        MessyUtils.await(DataVerticle.telegramRepository.create(new TelegramRecord(1, "first", "/root", null)));
+        MessyUtils.await(DataVerticle.settingRepository.createOrUpdate("language", "en"));
+        // identical rows, the table has no key
+        for (int i = 0; i < 2; i++) {
+            MessyUtils.await(DataVerticle.pool.query("INSERT INTO statistic_record(related_id, type, timestamp, data) VALUES ('1', 'speed', 1, '{}')")
+                    .execute());
+        }
+        MessyUtils.await(DataVerticle.pool.query(GENERATED_COLUMN).execute());
+        MessyUtils.await(vertx.undeploy(deploymentId));
+
+        sourcePath = DataVerticle.getDataPath() + ".source";
+        FileUtil.move(new File(DataVerticle.getDataPath()), new File(sourcePath), true);
+        FileUtil.del(DataVerticle.getDataPath() + "-wal");
+        FileUtil.del(DataVerticle.getDataPath() + "-shm");
+
+        // both sides have the generated column, the copy must leave it out
+        deploymentId = MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(DataVerticle.pool.query(GENERATED_COLUMN).execute());
+        MessyUtils.await(vertx.undeploy(deploymentId));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        if (Config.isSqlite()) {
+            MessyUtils.await(DataVerticleTest.clear(vertx));
+        }
+    }
+
+    private static JsonObject migrate() {
+        Promise<JsonObject> result = Promise.promise();
+        MessageConsumer<JsonObject> consumer = vertx.eventBus().consumer(EventEnum.MAINTAIN.address(), message -> result.tryComplete(message.body()));
+        String deploymentId = MessyUtils.await(vertx.deployVerticle(new DatabaseMigrateMaintainVerticle("sqlite:" + sourcePath),
+                Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS));
+        JsonObject message = MessyUtils.await(result.future());
+        MessyUtils.await(Future.all(consumer.unregister(), vertx.undeploy(deploymentId)));
+        return message;
+    }
+
+    private static long count(String table) {
+        return MessyUtils.await(DataVerticle.pool.query("SELECT COUNT(*) FROM " + table).execute())
+                .iterator().next().getLong(0);
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Every table is copied and verified")
+    void migrateTest() {
+        JsonObject message = migrate();
+        Assertions.assertTrue(message.getBoolean("success"), message.getString("message"));
+
+        String deploymentId = MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        Assertions.assertEquals(FILE_COUNT, count("file_record"));
+        Assertions.assertEquals(2, count("file_tag"));
+        Assertions.assertEquals(2, count("statistic_record"));
+        Assertions.assertEquals(7, count("db_migration_checkpoint"));
+
+        FileRecord fileRecord = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_2"));
+        Assertions.assertEquals("caption 2", fileRecord.caption());
+        Assertions.assertTrue(fileRecord.hasSensitiveContent());
+        Assertions.assertEquals("first", MessyUtils.await(DataVerticle.telegramRepository.getById(1)).firstName());
+        Assertions.assertEquals(9, MessyUtils.await(DataVerticle.pool.query("SELECT caption_length FROM file_record WHERE unique_id = 'unique_2'")
+                .execute()).iterator().next().getInteger(0));
+        Assertions.assertEquals((long) FILE_COUNT, MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, 1, null))
+                .getLong("total"));
+        MessyUtils.await(vertx.undeploy(deploymentId));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A second run skips the copied tables and verifies again")
+    void resumeTest() {
+        JsonObject message = migrate();
+        Assertions.assertTrue(message.getBoolean("success"), message.getString("message"));
+    }
+}
@@ -0,0 +1,56 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class DownloadSlotsTest {
+
+    @Test
+    @DisplayName("Claims take slots and finished downloads free them")
+    void claimTest() {
+        DownloadSlots slots = new DownloadSlots();
+        Assertions.assertEquals(5, slots.free(1, 5));
+
+        Assertions.assertTrue(slots.beginClaim(1));
+        Assertions.assertFalse(slots.beginClaim(1));
+        Assertions.assertTrue(slots.beginClaim(2));
+        slots.endClaim(1, 3);
+        slots.endClaim(2, 0);
+        Assertions.assertEquals(2, slots.free(1, 5));
+        Assertions.assertEquals(5, slots.free(2, 5));
+
+        slots.started(1);
+        Assertions.assertEquals(1, slots.free(1, 5));
+        slots.finished(1);
+        slots.finished(1);
+        Assertions.assertEquals(3, slots.free(1, 5));
+        Assertions.assertTrue(slots.beginClaim(1));
+    }
+
+    @Test
+    @DisplayName("Free slots are split evenly over the chats")
+    void splitTest() {
+        Assertions.assertArrayEquals(new int[]{2, 2, 1}, DownloadSlots.split(5, 3));
+        Assertions.assertArrayEquals(new int[]{1, 1, 0, 0}, DownloadSlots.split(2, 4));
+        Assertions.assertArrayEquals(new int[]{6}, DownloadSlots.split(6, 1));
+    }
+
+    @Test
+    @DisplayName("Counts never go negative and reconcile waits for a running claim")
+    void reconcileTest() {
+        DownloadSlots slots = new DownloadSlots();
+        slots.finished(1);
+        Assertions.assertEquals(0, slots.downloading(1));
+
+        slots.reconcile(1, 4);
+        Assertions.assertEquals(4, slots.downloading(1));
+
+        slots.beginClaim(1);
+        slots.reconcile(1, 0);
+        Assertions.assertEquals(4, slots.downloading(1));
+        slots.endClaim(1, 1);
+        slots.reconcile(1, 0);
+        Assertions.assertEquals(0, slots.downloading(1));
+    }
+}
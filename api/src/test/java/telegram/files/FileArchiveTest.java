@@ -0,0 +1,216 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.jooq.lambda.tuple.Tuple2;
+import org.jooq.lambda.tuple.Tuple5;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileArchive;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Files completed and transferred move to the archive and are still read, listed and counted, writes move them back.
+ * Every third file of the fixture is archivable.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class FileArchiveTest {
+
+    private static final int FILE_COUNT = 30;
+
+    private static final long CHAT_ID = 1;
+
+    private static final long COMPLETED_AT = 1_700_000_000_000L;
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(1, FILE_COUNT)
+                .mapToObj(FileArchiveTest::fileRecord)
+                .toList()));
+        for (int i = 3; i <= FILE_COUNT; i += 3) {
+            MessyUtils.await(DataVerticle.fileRepository.updateDownloadStatus(i, "unique_" + i, "/data/file_" + i,
+                    FileRecord.DownloadStatus.completed, COMPLETED_AT + i));
+            MessyUtils.await(DataVerticle.fileRepository.updateTransferStatus("unique_" + i, FileRecord.TransferStatus.completed, null));
+        }
+        // completed but not transferred, stays
+        MessyUtils.await(DataVerticle.fileRepository.updateDownloadStatus(1, "unique_1", "/data/file_1",
+                FileRecord.DownloadStatus.completed, COMPLETED_AT + 1));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, CHAT_ID, i, 0, 1700000000 + i, false, 1024, 0, "photo", "image/jpeg",
+                "file_" + i, null, null, null, null, null, FileRecord.DownloadStatus.idle.name(),
+                FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    private static long count(String table) {
+        return MessyUtils.await(DataVerticle.pool.query("SELECT COUNT(*) FROM " + table).execute())
+                .iterator().next().getLong(0);
+    }
+
+    private static boolean isArchived(String uniqueId) {
+        return MessyUtils.await(DataVerticle.pool.query("SELECT 1 FROM %s WHERE unique_id = '%s'".formatted(FileArchive.TABLE, uniqueId))
+                .execute()).size() > 0;
+    }
+
+    private static List<Long> messageIds(Map<String, String> filter) {
+        List<Long> messageIds = new ArrayList<>();
+        Map<String, String> page = new HashMap<>(filter);
+        while (true) {
+            Tuple5<List<FileRecord>, Long, Long, Boolean, Double> result = MessyUtils.await(DataVerticle.fileRepository.getFiles(CHAT_ID, page));
+            if (result.v1.isEmpty()) {
+                return messageIds;
+            }
+            result.v1.forEach(r -> messageIds.add(r.messageId()));
+            page.put("fromMessageId", String.valueOf(result.v2));
+        }
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Only files completed and transferred before the cutoff move")
+    void archiveTest() {
+        JsonObject statistics = MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, CHAT_ID, null));
+
+        Assertions.assertEquals(0, MessyUtils.await(DataVerticle.fileRepository.archiveFiles(COMPLETED_AT, 100)));
+        Assertions.assertEquals(4, MessyUtils.await(DataVerticle.fileRepository.archiveFiles(COMPLETED_AT + 13, 4)));
+        Assertions.assertEquals(6, MessyUtils.await(DataVerticle.fileRepository.archiveFiles(Long.MAX_VALUE, 100)));
+        Assertions.assertEquals(0, MessyUtils.await(DataVerticle.fileRepository.archiveFiles(Long.MAX_VALUE, 100)));
+
+        Assertions.assertEquals(FILE_COUNT - 10, count("file_record"));
+        Assertions.assertEquals(10, count(FileArchive.TABLE));
+        Assertions.assertTrue(isArchived("unique_3"));
+        Assertions.assertFalse(isArchived("unique_1"));
+        Assertions.assertEquals(statistics, MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, CHAT_ID, null)));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Archived files are read by unique id and listed with the others")
+    void readTest() {
+        FileRecord archived = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_6"));
+        Assertions.assertNotNull(archived);
+        Assertions.assertEquals("/data/file_6", archived.localPath());
+        Assertions.assertEquals(COMPLETED_AT + 6, archived.completionDate());
+        Assertions.assertNotNull(MessyUtils.await(DataVerticle.fileRepository.getByPrimaryKey(6, "unique_6")));
+
+        Map<String, FileStatus> statuses = MessyUtils.await(DataVerticle.fileRepository.getStatusesByUniqueId(List.of("unique_2", "unique_3")));
+        Assertions.assertEquals(2, statuses.size());
+        Assertions.assertTrue(statuses.get("unique_3").isDownloadStatus(FileRecord.DownloadStatus.completed));
+
+        Assertions.assertEquals(IntStream.iterate(FILE_COUNT, i -> i >= 1, i -> i - 1).mapToObj(i -> (long) i).toList(),
+                messageIds(Map.of("limit", "7")));
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> all = MessyUtils.await(DataVerticle.fileRepository.getFiles(CHAT_ID, Map.of()));
+        Assertions.assertEquals((long) FILE_COUNT, all.v3);
+
+        Map<String, String> transferred = Map.of("downloadStatus", "completed", "transferStatus", "completed", "limit", "3");
+        Assertions.assertEquals(List.of(30L, 27L, 24L, 21L, 18L, 15L, 12L, 9L, 6L, 3L), messageIds(transferred));
+        Assertions.assertEquals(List.of(1L), messageIds(Map.of("downloadStatus", "completed", "transferStatus", "idle")));
+        Assertions.assertEquals(FILE_COUNT - 11, messageIds(Map.of("downloadStatus", "idle")).size());
+
+        JsonArray range = MessyUtils.await(DataVerticle.fileRepository.getCompletedRangeStatistics(1, COMPLETED_AT, COMPLETED_AT + FILE_COUNT, 3));
+        Assertions.assertEquals(11, range.stream().mapToInt(o -> ((JsonObject) o).getInteger("total")).sum());
+        JsonObject sinceStatistics = MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, CHAT_ID, 0));
+        Assertions.assertEquals(FILE_COUNT, sinceStatistics.getInteger("total"));
+        Assertions.assertEquals(11, sinceStatistics.getInteger("completed"));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Archived files are known, bulk inserts don't store them again")
+    void createTest() {
+        Tuple2<List<FileRecord>, List<FileRecord>> result = MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(
+                List.of(fileRecord(9), fileRecord(FILE_COUNT + 1))));
+        Assertions.assertEquals(List.of("unique_" + (FILE_COUNT + 1)), result.v1.stream().map(FileRecord::uniqueId).toList());
+        Assertions.assertEquals(List.of("unique_9"), result.v2.stream().map(FileRecord::uniqueId).toList());
+        Assertions.assertFalse(MessyUtils.await(DataVerticle.fileRepository.createIfNotExist(fileRecord(12))));
+        Assertions.assertTrue(isArchived("unique_9"));
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("Writes changing the state of an archived file move it back, other writes leave it archived")
+    void writeTest() {
+        Assertions.assertNull(MessyUtils.await(DataVerticle.fileRepository.updateDownloadStatus(15, "unique_15", "/data/file_15",
+                FileRecord.DownloadStatus.completed, COMPLETED_AT + 15)));
+        Assertions.assertTrue(isArchived("unique_15"));
+
+        MessyUtils.await(DataVerticle.fileRepository.updateTags("unique_15", "cat"));
+        MessyUtils.await(DataVerticle.fileRepository.updateFileId(115, "unique_15"));
+        Assertions.assertTrue(isArchived("unique_15"));
+        FileRecord tagged = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_15"));
+        Assertions.assertEquals("cat", tagged.tags());
+        Assertions.assertEquals(115, tagged.id());
+        Assertions.assertEquals(List.of(15L), messageIds(Map.of("tags", "cat")));
+
+        JsonObject updated = MessyUtils.await(DataVerticle.fileRepository.updateDownloadStatus(115, "unique_15", null,
+                FileRecord.DownloadStatus.idle, null));
+        Assertions.assertEquals("idle", updated.getString("downloadStatus"));
+        Assertions.assertFalse(isArchived("unique_15"));
+        FileRecord restored = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_15"));
+        Assertions.assertTrue(restored.isDownloadStatus(FileRecord.DownloadStatus.idle));
+        Assertions.assertEquals("cat", restored.tags());
+
+        Assertions.assertNotNull(MessyUtils.await(DataVerticle.fileRepository.updateTransferStatus("unique_18", FileRecord.TransferStatus.idle, null)));
+        Assertions.assertFalse(isArchived("unique_18"));
+
+        MessyUtils.await(DataVerticle.fileRepository.deleteByUniqueId("unique_21"));
+        Assertions.assertFalse(isArchived("unique_21"));
+        Assertions.assertNull(MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_21")));
+
+        Assertions.assertEquals(7, count(FileArchive.TABLE));
+        // one file created, one deleted
+        Assertions.assertEquals((long) FILE_COUNT, MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, CHAT_ID, null))
+                .getLong("total"));
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("Rebuilt statistics count archived files")
+    void rebuildTest() {
+        JsonObject statistics = MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, CHAT_ID, null));
+        MessyUtils.await(DataVerticle.fileRepository.rebuildFileStats());
+        Assertions.assertEquals(statistics, MessyUtils.await(DataVerticle.fileRepository.getChatDownloadStatistics(1, CHAT_ID, null)));
+        Assertions.assertEquals((long) FILE_COUNT, statistics.getLong("total"));
+    }
+
+    @Test
+    @Order(6)
+    @DisplayName("Search finds archived files after the indexed matches, every file once")
+    void searchTest() {
+        List<Long> archived = List.of(30L, 27L, 24L, 12L, 9L, 6L, 3L);
+        List<Long> messageIds = new ArrayList<>();
+        Map<String, String> page = new HashMap<>(Map.of("search", "file", "limit", "4"));
+        while (true) {
+            Tuple5<List<FileRecord>, Long, Long, Boolean, Double> result = MessyUtils.await(DataVerticle.fileRepository.getFiles(CHAT_ID, page));
+            if (result.v1.isEmpty()) {
+                break;
+            }
+            Assertions.assertEquals((long) FILE_COUNT, result.v3);
+            result.v1.forEach(r -> messageIds.add(r.messageId()));
+            page.put("fromMessageId", String.valueOf(result.v2));
+            page.put("fromRank", String.valueOf(result.v5));
+        }
+        Assertions.assertEquals(FILE_COUNT, messageIds.size());
+        Assertions.assertEquals(FILE_COUNT, messageIds.stream().distinct().count());
+        Assertions.assertEquals(archived, messageIds.subList(FILE_COUNT - archived.size(), FILE_COUNT));
+
+        Assertions.assertEquals(List.of(9L), messageIds(Map.of("search", "file_9", "transferStatus", "completed")));
+    }
+}
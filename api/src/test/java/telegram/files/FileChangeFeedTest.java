@@ -0,0 +1,137 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import org.jooq.lambda.tuple.Tuple4;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Every write moves a file past the cursor, deletions are reported by unique id and pages never lose a change.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class FileChangeFeedTest {
+
+    private static final int FILE_COUNT = 25;
+
+    static Vertx vertx = Vertx.vertx();
+
+    static long cursor;
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        cursor = MessyUtils.await(DataVerticle.fileRepository.getChanges(-1, 10)).v3;
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, 1, i, i <= 3 ? 100 : 0, 1700000000 + i, false, 1024, 0, "photo", "image/jpeg",
+                "file_" + i, null, null, i <= 3 ? "caption" : null, null, null, FileRecord.DownloadStatus.idle.name(),
+                FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    private static Tuple4<List<FileRecord>, List<String>, Long, Boolean> changes(int limit) {
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> changes = MessyUtils.await(DataVerticle.fileRepository.getChanges(cursor, limit));
+        cursor = changes.v3;
+        return changes;
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Created files are paged through in change order")
+    void createdTest() {
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(1, FILE_COUNT)
+                .mapToObj(FileChangeFeedTest::fileRecord)
+                .toList()));
+
+        List<String> seen = new ArrayList<>();
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> page;
+        do {
+            page = changes(10);
+            page.v1.forEach(f -> seen.add(f.uniqueId()));
+        } while (page.v4);
+        // the album files are written again with the caption of the album
+        Assertions.assertEquals(IntStream.rangeClosed(4, FILE_COUNT).mapToObj(i -> "unique_" + i).toList(), seen.subList(0, FILE_COUNT - 3));
+        Assertions.assertEquals(List.of("unique_1", "unique_2", "unique_3"), seen.subList(FILE_COUNT - 3, FILE_COUNT));
+
+        page = changes(10);
+        Assertions.assertTrue(page.v1.isEmpty());
+        Assertions.assertFalse(page.v4);
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Updates move a file past the cursor")
+    void updatedTest() {
+        MessyUtils.await(DataVerticle.fileRepository.updateDownloadStatus(5, "unique_5", "/data/file_5",
+                FileRecord.DownloadStatus.completed, System.currentTimeMillis()));
+        MessyUtils.await(DataVerticle.fileRepository.updateTags("unique_7", "a"));
+
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> page = changes(10);
+        Assertions.assertEquals(List.of("unique_5", "unique_7"), page.v1.stream().map(FileRecord::uniqueId).toList());
+        Assertions.assertEquals(FileRecord.DownloadStatus.completed.name(), page.v1.getFirst().downloadStatus());
+        Assertions.assertEquals("a", page.v1.getLast().tags());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A page doesn't end inside the files of one write")
+    void albumTest() {
+        MessyUtils.await(DataVerticle.fileRepository.updateAlbumDataByMediaAlbumId(100, "album", 0));
+
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> page = changes(1);
+        Assertions.assertEquals(3, page.v1.size());
+        Assertions.assertFalse(page.v4);
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("Deleted files are reported by unique id")
+    void deletedTest() {
+        MessyUtils.await(DataVerticle.fileRepository.deleteByUniqueId("unique_9"));
+
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> page = changes(10);
+        Assertions.assertTrue(page.v1.isEmpty());
+        Assertions.assertEquals(List.of("unique_9"), page.v2);
+
+        MessyUtils.await(DataVerticle.fileRepository.create(fileRecord(9)));
+        page = changes(10);
+        Assertions.assertEquals(List.of("unique_9"), page.v1.stream().map(FileRecord::uniqueId).toList());
+        Assertions.assertTrue(page.v2.isEmpty());
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("A file deleted and stored again within a page is reported by its latest change")
+    void recreatedTest() {
+        MessyUtils.await(DataVerticle.fileRepository.deleteByUniqueId("unique_11"));
+        MessyUtils.await(DataVerticle.fileRepository.create(fileRecord(11)));
+        MessyUtils.await(DataVerticle.fileRepository.deleteByUniqueId("unique_12"));
+        MessyUtils.await(DataVerticle.fileRepository.create(fileRecord(12)));
+        MessyUtils.await(DataVerticle.fileRepository.deleteByUniqueId("unique_12"));
+
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> page = changes(10);
+        Assertions.assertEquals(List.of("unique_11"), page.v1.stream().map(FileRecord::uniqueId).toList());
+        Assertions.assertEquals(List.of("unique_12"), page.v2);
+    }
+
+    @Test
+    @Order(6)
+    @DisplayName("Queueing moves the queued files past the cursor")
+    void queuedTest() {
+        Assertions.assertEquals(2, MessyUtils.await(DataVerticle.fileRepository.queueFilesForDownload(1, 1, 2, null, false)));
+
+        Tuple4<List<FileRecord>, List<String>, Long, Boolean> page = changes(1);
+        Assertions.assertEquals(List.of("unique_24", "unique_25"), page.v1.stream().map(FileRecord::uniqueId).sorted().toList());
+        Assertions.assertFalse(page.v4);
+    }
+}
@@ -0,0 +1,177 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Vertx;
+import io.vertx.jdbcclient.JDBCConnectOptions;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.Definition;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * file_record stores type and the statuses as codes, compared here with the names it stored before on a SQLite fixture.
+ * The fixture has a million rows, -Dfixture.rows changes that. The comparison runs with ./gradlew benchmark.
+ */
+public class FileRecordCodeTest {
+
+    private static final Log log = LogFactory.get();
+
+    private static final int ROW_COUNT = Integer.getInteger("fixture.rows", 1_000_000);
+
+    private static final int SCAN_RUNS = 5;
+
+    // how many of the names of each column the fixture uses, the rows cycle through them
+    private static final Map<FileRecordCode, Integer> FIXTURE_NAMES = Map.of(
+            FileRecordCode.TYPE, 5,
+            FileRecordCode.DOWNLOAD_STATUS, 6,
+            FileRecordCode.TRANSFER_STATUS, 4,
+            FileRecordCode.SCAN_STATE, 1);
+
+    static Vertx vertx = Vertx.vertx();
+
+    private record Measurement(long databaseBytes, long tableBytes, long indexBytes, long aggregateMillis, long filterMillis) {
+    }
+
+    @Test
+    @DisplayName("Names and codes map both ways")
+    void roundTripTest() {
+        for (FileRecordCode code : FileRecordCode.values()) {
+            for (int i = 0; i < FIXTURE_NAMES.get(code); i++) {
+                Assertions.assertEquals(i, code.encode(code.decode(i)));
+            }
+            Assertions.assertNull(code.encode(null));
+            Assertions.assertNull(code.decode(null));
+            Assertions.assertEquals(FileRecordCode.NONE, code.encodeOrNone("unknown"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> code.encode("unknown"));
+        }
+        Assertions.assertEquals(Arrays.stream(FileRecord.DownloadStatus.values()).map(Enum::name).toList(),
+                Arrays.stream(FileRecord.DownloadStatus.values()).map(s -> FileRecordCode.DOWNLOAD_STATUS.decode(s.ordinal())).toList());
+        Assertions.assertEquals(Arrays.stream(FileRecord.TransferStatus.values()).map(Enum::name).toList(),
+                Arrays.stream(FileRecord.TransferStatus.values()).map(s -> FileRecordCode.TRANSFER_STATUS.decode(s.ordinal())).toList());
+    }
+
+    @Test
+    @Tag("benchmark")
+    @DisplayName("Table size, index size and scan time, names vs codes")
+    void sizeAndScanBenchmark() throws IOException {
+        Assumptions.assumeTrue(Config.isSqlite(), "the fixture is SQLite only");
+
+        Measurement names = measure(FileRecord.SCHEME.replace("SMALLINT", "VARCHAR(255)"), FileRecordCode::decodeSql,
+                code -> "'%s'".formatted(code.decode(0)));
+        Measurement codes = measure(FileRecord.SCHEME, (_, expression) -> expression, code -> code.literal(code.decode(0)));
+
+        log.info("""
+                file_record with %d rows, names -> codes:
+                  database  %,d -> %,d bytes
+                  table     %,d -> %,d bytes
+                  indexes   %,d -> %,d bytes
+                  aggregate %d -> %d ms
+                  filter    %d -> %d ms
+                """.formatted(ROW_COUNT,
+                names.databaseBytes, codes.databaseBytes,
+                names.tableBytes, codes.tableBytes,
+                names.indexBytes, codes.indexBytes,
+                names.aggregateMillis, codes.aggregateMillis,
+                names.filterMillis, codes.filterMillis));
+        Assertions.assertTrue(codes.databaseBytes < names.databaseBytes);
+        if (codes.tableBytes >= 0) {
+            Assertions.assertTrue(codes.tableBytes < names.tableBytes);
+            Assertions.assertTrue(codes.indexBytes < names.indexBytes);
+        }
+        // the scans read fewer pages, allow for timer noise rather than asserting a speedup
+        Assertions.assertTrue(codes.filterMillis <= names.filterMillis * 2 + 10);
+    }
+
+    /**
+     * @param value   the stored value of a column given the SQL expression of its code
+     * @param literal the SQL literal of the first name of a column, as stored
+     */
+    private static Measurement measure(String scheme,
+                                       BiFunction<FileRecordCode, String, String> value,
+                                       Function<FileRecordCode, String> literal) throws IOException {
+        File file = Files.createTempFile("file_record_codes", ".db").toFile();
+        Pool pool = JDBCPool.pool(vertx,
+                new JDBCConnectOptions().setJdbcUrl("jdbc:sqlite:%s?journal_mode=OFF&synchronous=OFF".formatted(file.getAbsolutePath())),
+                new PoolOptions().setMaxSize(1).setName("pool-codes-" + file.getName()));
+        try {
+            MessyUtils.await(pool.query(scheme).execute());
+            MessyUtils.await(pool.query("""
+                    INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, date, size, mime_type, file_name,
+                                            type, download_status, transfer_status, scan_state)
+                    WITH RECURSIVE seq(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM seq WHERE i < %d)
+                    SELECT i, 'unique_' || i, i %% 4, i %% 200, i, 1700000000 + i, 1024 * i, 'image/jpeg', 'file_' || i,
+                           %s, %s, %s, %s
+                    FROM seq
+                    """.formatted(ROW_COUNT,
+                    fixtureValue(FileRecordCode.TYPE, value),
+                    fixtureValue(FileRecordCode.DOWNLOAD_STATUS, value),
+                    fixtureValue(FileRecordCode.TRANSFER_STATUS, value),
+                    fixtureValue(FileRecordCode.SCAN_STATE, value))).execute());
+            for (Definition.Index index : FileRecord.INDEXES) {
+                MessyUtils.await(pool.query(index.toSql(true)).execute());
+            }
+            MessyUtils.await(pool.query("VACUUM").execute());
+
+            long databaseBytes = MessyUtils.await(pool.query("SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size()")
+                    .execute()
+                    .map(rs -> rs.iterator().next().getLong(0)));
+            // dbstat is optional in SQLite builds, without it only the database size is known
+            long tableBytes = objectBytes(pool, "name = 'file_record'");
+            long indexBytes = objectBytes(pool, "name IN (%s)".formatted(String.join(", ",
+                    FileRecord.INDEXES.stream().map(index -> "'%s'".formatted(index.name())).toList())));
+
+            long aggregateMillis = time(pool, """
+                    SELECT telegram_id, chat_id, type, download_status, COUNT(*), SUM(size)
+                    FROM file_record
+                    GROUP BY telegram_id, chat_id, type, download_status
+                    """);
+            long filterMillis = time(pool, """
+                    SELECT COUNT(*) FROM file_record NOT INDEXED
+                    WHERE download_status = %s AND type != %s AND (scan_state = %s OR scan_state IS NULL)
+                    """.formatted(literal.apply(FileRecordCode.DOWNLOAD_STATUS), literal.apply(FileRecordCode.TYPE),
+                    literal.apply(FileRecordCode.SCAN_STATE)));
+            return new Measurement(databaseBytes, tableBytes, indexBytes, aggregateMillis, filterMillis);
+        } finally {
+            MessyUtils.await(pool.close());
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private static String fixtureValue(FileRecordCode code, BiFunction<FileRecordCode, String, String> value) {
+        return value.apply(code, "(i %% %d)".formatted(FIXTURE_NAMES.get(code)));
+    }
+
+    private static long objectBytes(Pool pool, String where) {
+        return MessyUtils.await(pool.query("SELECT COALESCE(SUM(pgsize), 0) FROM dbstat WHERE " + where)
+                .execute()
+                .map(rs -> rs.iterator().next().getLong(0))
+                .otherwise(-1L));
+    }
+
+    /**
+     * @return the median of a few runs
+     */
+    private static long time(Pool pool, String sql) {
+        List<Long> runs = new ArrayList<>();
+        for (int i = 0; i < SCAN_RUNS; i++) {
+            long start = System.nanoTime();
+            MessyUtils.await(pool.query(sql).execute());
+            runs.add((System.nanoTime() - start) / 1_000_000);
+        }
+        return runs.stream().sorted().toList().get(SCAN_RUNS / 2);
+    }
+}
@@ -0,0 +1,227 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Guards the file_record secondary indexes: every hot repository query must be answered through an index.
+ */
+public class FileRecordIndexTest {
+
+    private static final int ROW_COUNT = 20000;
+
+    private static final int BATCH_SIZE = 1000;
+
+    static final String NOT_THUMBNAIL = "type != " + FileRecordCode.TYPE.literal("thumbnail");
+
+    private static final String READY_FOR_DOWNLOAD = "download_status = %s AND (scan_state = %s OR scan_state IS NULL)"
+            .formatted(FileRecordCode.DOWNLOAD_STATUS.literal("idle"), FileRecordCode.SCAN_STATE.literal("idle"));
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+
+        List<FileRecord> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 1; i <= ROW_COUNT; i++) {
+            batch.add(new FileRecord(i, "unique_" + i, i % 4, i % 200, i, i % 50 == 0 ? i : 0, 1700000000 + i,
+                    false, 1024, 0, i % 10 == 0 ? "thumbnail" : "photo", "image/jpeg", "file_" + i, null, null,
+                    "caption " + i, null, null,
+                    FileRecord.DownloadStatus.values()[i % FileRecord.DownloadStatus.values().length].name(),
+                    FileRecord.TransferStatus.idle.name(), 0, i % 3 == 0 ? 1700000000000L + i : null, null,
+                    i % 100, i % 100, 0, null, 0, null));
+            if (batch.size() == BATCH_SIZE) {
+                insert(batch);
+                batch.clear();
+            }
+        }
+        MessyUtils.await(DataVerticle.pool.query(Config.isMysql() ? "ANALYZE TABLE file_record" : "ANALYZE file_record").execute());
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    static void insert(List<FileRecord> records) {
+        MessyUtils.await(SqlTemplate
+                .forUpdate(DataVerticle.pool, """
+                        INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date, has_sensitive_content,
+                                                size, downloaded_size, type, mime_type, file_name, caption, download_status, transfer_status,
+                                                start_date, completion_date, thread_chat_id, message_thread_id, reaction_count)
+                        values (#{id}, #{unique_id}, #{telegram_id}, #{chat_id}, #{message_id}, #{media_album_id}, #{date},
+                                #{has_sensitive_content}, #{size}, #{downloaded_size}, #{type}, #{mime_type}, #{file_name}, #{caption},
+                                #{download_status}, #{transfer_status}, #{start_date}, #{completion_date}, #{thread_chat_id},
+                                #{message_thread_id}, #{reaction_count})
+                        """)
+                .mapFrom(FileRecord.PARAM_MAPPER)
+                .executeBatch(records));
+    }
+
+    private static List<String> explain(String sql) {
+        Future<RowSet<Row>> future;
+        if (Config.isSqlite()) {
+            future = DataVerticle.pool.query("EXPLAIN QUERY PLAN " + sql).execute();
+        } else if (Config.isPostgres()) {
+            // a seq scan is always cheaper on a small table, force the planner to show whether an index is usable
+            future = DataVerticle.pool.withConnection(conn -> conn.query("SET enable_seqscan = off").execute()
+                    .compose(_ -> conn.query("EXPLAIN " + sql).execute()));
+        } else {
+            future = DataVerticle.pool.query("EXPLAIN " + sql).execute();
+        }
+        RowSet<Row> rows = MessyUtils.await(future);
+        List<String> plan = new ArrayList<>();
+        for (Row row : rows) {
+            if (Config.isSqlite()) {
+                plan.add(row.getString("detail"));
+            } else if (Config.isPostgres()) {
+                plan.add(row.getString(0));
+            } else {
+                plan.add("table=%s key=%s".formatted(row.getValue("table"), row.getValue("key")));
+            }
+        }
+        return plan;
+    }
+
+    static void assertUsesIndex(String sql) {
+        List<String> plan = explain(sql);
+        String planText = String.join("\n", plan);
+        if (Config.isSqlite()) {
+            Assertions.assertTrue(plan.stream().anyMatch(d -> d.contains("USING INDEX") || d.contains("USING COVERING INDEX")),
+                    "Expected index usage for: %s\nPlan:\n%s".formatted(sql, planText));
+            Assertions.assertTrue(plan.stream().noneMatch(d -> d.matches("SCAN (TABLE )?file_record")),
+                    "Unexpected full scan for: %s\nPlan:\n%s".formatted(sql, planText));
+        } else if (Config.isPostgres()) {
+            Assertions.assertTrue(plan.stream().anyMatch(d -> d.contains("Index")),
+                    "Expected index usage for: %s\nPlan:\n%s".formatted(sql, planText));
+        } else {
+            Assertions.assertTrue(plan.stream().noneMatch(d -> d.endsWith("key=null")),
+                    "Expected index usage for: %s\nPlan:\n%s".formatted(sql, planText));
+        }
+    }
+
+    @Test
+    @DisplayName("All declared indexes exist")
+    void indexesCreatedTest() {
+        String sql;
+        if (Config.isSqlite()) {
+            sql = "SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'file_record'";
+        } else if (Config.isPostgres()) {
+            sql = "SELECT indexname FROM pg_indexes WHERE tablename = 'file_record'";
+        } else {
+            sql = "SELECT DISTINCT index_name FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = 'file_record'";
+        }
+        List<String> names = new ArrayList<>();
+        MessyUtils.await(DataVerticle.pool.query(sql).execute()).forEach(row -> names.add(row.getString(0)));
+        FileRecord.INDEXES.forEach(index ->
+                Assertions.assertTrue(names.stream().anyMatch(index.name()::equalsIgnoreCase), "Missing index " + index.name()));
+    }
+
+    @Test
+    @DisplayName("Creating indexes twice is a no-op")
+    void createIndexesIdempotentTest() {
+        Assertions.assertDoesNotThrow(() -> MessyUtils.await(new FileRecord.FileRecordDefinition().createIndexes(DataVerticle.pool)));
+    }
+
+    @Test
+    @DisplayName("getByUniqueId uses an index")
+    void getByUniqueIdTest() {
+        assertUsesIndex("SELECT * FROM file_record WHERE unique_id = 'unique_100' LIMIT 1");
+    }
+
+    @Test
+    @DisplayName("Download queue queries use an index")
+    void downloadQueueTest() {
+        assertUsesIndex("""
+                SELECT * FROM file_record
+                WHERE telegram_id = 1
+                  AND %s
+                  AND %s
+                  AND date >= 1700005000
+                ORDER BY date ASC, COALESCE(queued_at, %d) ASC, message_id ASC
+                LIMIT 10
+                """.formatted(READY_FOR_DOWNLOAD, NOT_THUMBNAIL, Long.MAX_VALUE));
+        assertUsesIndex("""
+                SELECT id FROM file_record
+                WHERE telegram_id = 1
+                  AND %s
+                  AND %s
+                  AND queued_at IS NULL
+                  AND chat_id = 5
+                ORDER BY date DESC, message_id DESC
+                LIMIT 10
+                """.formatted(READY_FOR_DOWNLOAD, NOT_THUMBNAIL));
+        assertUsesIndex("""
+                SELECT COUNT(*) FROM file_record
+                WHERE telegram_id = 1 AND download_status = %s AND %s
+                """.formatted(FileRecordCode.DOWNLOAD_STATUS.literal("downloading"), NOT_THUMBNAIL));
+    }
+
+    @Test
+    @DisplayName("getFiles by chat uses an index")
+    void getFilesTest() {
+        assertUsesIndex("""
+                SELECT * FROM file_record WHERE %s AND chat_id = 5 AND message_id < 10000
+                ORDER BY message_id DESC LIMIT 20
+                """.formatted(NOT_THUMBNAIL));
+    }
+
+    @Test
+    @DisplayName("Chat statistics use an index")
+    void chatStatisticsTest() {
+        assertUsesIndex("""
+                SELECT COUNT(*) FROM file_record WHERE telegram_id = 1 AND chat_id = 5 AND %s
+                """.formatted(NOT_THUMBNAIL));
+    }
+
+    @Test
+    @DisplayName("getMainFileByThread uses an index")
+    void getMainFileByThreadTest() {
+        assertUsesIndex("""
+                SELECT * FROM file_record
+                WHERE telegram_id = 1
+                  AND thread_chat_id = 5
+                  AND message_thread_id = 5
+                  AND chat_id != 5
+                  AND %s
+                LIMIT 1
+                """.formatted(NOT_THUMBNAIL));
+    }
+
+    @Test
+    @DisplayName("Album queries use an index")
+    void mediaAlbumTest() {
+        assertUsesIndex("SELECT caption FROM file_record WHERE media_album_id = 100 LIMIT 1");
+        assertUsesIndex("SELECT reaction_count FROM file_record WHERE media_album_id = 100 LIMIT 1");
+    }
+
+    @Test
+    @DisplayName("Completed range statistics use an index")
+    void completedRangeTest() {
+        assertUsesIndex("""
+                SELECT COUNT(*) FROM file_record
+                WHERE telegram_id = 1
+                  AND completion_date >= 1700000000000
+                  AND completion_date <= 1700000010000
+                """);
+    }
+
+    @Test
+    @DisplayName("Seeded rows are all present")
+    void seededTest() {
+        long count = MessyUtils.await(DataVerticle.pool.query("SELECT COUNT(*) FROM file_record").execute())
+                .iterator().next().getLong(0);
+        Assertions.assertEquals(ROW_COUNT, count);
+    }
+}
@@ -0,0 +1,174 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Vertx;
+import io.vertx.jdbcclient.JDBCConnectOptions;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.DownloadCandidate;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileStatus;
+import telegram.files.repository.FileThumbnail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Mapping of file_record rows: by name per row, by position per result set, and the narrow projections.
+ * The unit test maps a small fixture, the benchmark grows it to a hundred thousand rows, -Dmapping.rows changes that.
+ */
+public class FileRecordMapperTest {
+
+    private static final Log log = LogFactory.get();
+
+    private static final int TEST_ROW_COUNT = 1000;
+
+    private static final int BENCHMARK_ROW_COUNT = Integer.getInteger("mapping.rows", 100_000);
+
+    private static final int WARMUP_RUNS = 3;
+
+    private static final int RUNS = 7;
+
+    static Vertx vertx = Vertx.vertx();
+
+    static File file;
+
+    static Pool pool;
+
+    @BeforeAll
+    static void setUpAll() throws IOException {
+        Assumptions.assumeTrue(Config.isSqlite(), "the fixture is SQLite only");
+        file = Files.createTempFile("file_record_mapping", ".db").toFile();
+        pool = JDBCPool.pool(vertx,
+                new JDBCConnectOptions().setJdbcUrl("jdbc:sqlite:%s?journal_mode=OFF&synchronous=OFF".formatted(file.getAbsolutePath())),
+                new PoolOptions().setMaxSize(1).setName("pool-mapping-" + file.getName()));
+        MessyUtils.await(pool.query(FileRecord.SCHEME).execute());
+        insertRows(1, TEST_ROW_COUNT);
+    }
+
+    /**
+     * Insert the rows from..to, both included.
+     */
+    private static void insertRows(int from, int to) {
+        MessyUtils.await(pool.query("""
+                INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date, has_sensitive_content,
+                                        size, downloaded_size, type, mime_type, file_name, thumbnail, thumbnail_unique_id, caption,
+                                        extra, local_path, download_status, transfer_status, start_date, completion_date, tags,
+                                        thread_chat_id, message_thread_id, reaction_count, scan_state, download_priority, queued_at)
+                WITH RECURSIVE seq(i) AS (SELECT %d UNION ALL SELECT i + 1 FROM seq WHERE i < %d)
+                SELECT i, 'unique_' || i, i %% 4, i %% 200, i, CASE WHEN i %% 3 = 0 THEN i END, 1700000000 + i, i %% 2,
+                       1024 * i, 0, i %% 5, 'image/jpeg', 'file_' || i, NULL, 'thumb_' || i, 'caption of ' || i,
+                       '{"width":1280,"height":720}', '/data/file_' || i, i %% 6, i %% 4, 1700000000000 + i,
+                       CASE WHEN i %% 6 = 3 THEN 1700000000000 + i END, NULL,
+                       NULL, NULL, i %% 10, i %% 3, 0, CASE WHEN i %% 2 = 0 THEN 1700000000000 + i END
+                FROM seq
+                """.formatted(from, to)).execute());
+    }
+
+    @AfterAll
+    static void tearDownAll() throws IOException {
+        if (pool != null) {
+            MessyUtils.await(pool.close());
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    @DisplayName("Mapping by position matches mapping by name")
+    void mapperTest() {
+        RowSet<Row> rows = select("*");
+        List<FileRecord> byName = new ArrayList<>(rows.size());
+        rows.forEach(row -> byName.add(FileRecord.ROW_MAPPER.map(row)));
+        Assertions.assertEquals(rows.size(), byName.size());
+        Assertions.assertFalse(byName.isEmpty());
+        Assertions.assertEquals(byName, FileRecord.MAPPER.mapAll(rows));
+
+        FileRecord first = byName.getFirst();
+        Assertions.assertEquals(new DownloadCandidate(first.id(), first.uniqueId(), first.telegramId(), first.chatId(),
+                        first.messageId(), first.date(), first.type(), first.size(), first.downloadPriority()),
+                DownloadCandidate.MAPPER.mapAll(select(DownloadCandidate.COLUMNS)).getFirst());
+        Assertions.assertEquals(new FileStatus(first.uniqueId(), first.id(), first.downloadStatus()),
+                FileStatus.MAPPER.mapAll(select(FileStatus.COLUMNS)).getFirst());
+        Assertions.assertEquals(new FileThumbnail(first.uniqueId(), first.mimeType(), first.extra(), first.downloadStatus()),
+                FileThumbnail.MAPPER.mapAll(select(FileThumbnail.COLUMNS)).getFirst());
+    }
+
+    @Test
+    @Tag("benchmark")
+    @DisplayName("Mapping throughput")
+    void mappingBenchmark() {
+        int present = MessyUtils.await(pool.query("SELECT COUNT(*) FROM file_record").execute()).iterator().next().getInteger(0);
+        if (present < BENCHMARK_ROW_COUNT) {
+            insertRows(present + 1, BENCHMARK_ROW_COUNT);
+        }
+        RowSet<Row> rows = select("*");
+        long byName = time(rows, rs -> {
+            List<FileRecord> list = new ArrayList<>(rs.size());
+            rs.forEach(row -> list.add(FileRecord.ROW_MAPPER.map(row)));
+            return list;
+        });
+        long byPosition = time(rows, FileRecord.MAPPER::mapAll);
+        long candidates = time(select(DownloadCandidate.COLUMNS), DownloadCandidate.MAPPER::mapAll);
+        long statuses = time(select(FileStatus.COLUMNS), FileStatus.MAPPER::mapAll);
+
+        long selectAll = timeQuery("*", FileRecord.MAPPER::mapAll);
+        long selectCandidates = timeQuery(DownloadCandidate.COLUMNS, DownloadCandidate.MAPPER::mapAll);
+
+        log.info("""
+                file_record mapping of %d rows, rows per ms:
+                  FileRecord by name        %,d
+                  FileRecord by position    %,d
+                  DownloadCandidate         %,d
+                  FileStatus                %,d
+                query and mapping, ms:
+                  SELECT *                  %d
+                  SELECT candidate columns  %d
+                """.formatted(rows.size(),
+                throughput(rows.size(), byName), throughput(rows.size(), byPosition),
+                throughput(rows.size(), candidates), throughput(rows.size(), statuses),
+                selectAll / 1_000_000, selectCandidates / 1_000_000));
+    }
+
+    private static RowSet<Row> select(String columns) {
+        return MessyUtils.await(pool.query("SELECT %s FROM file_record ORDER BY row_id".formatted(columns)).execute());
+    }
+
+    private static long throughput(int rows, long nanos) {
+        return rows * 1_000_000L / Math.max(nanos, 1);
+    }
+
+    /**
+     * @return the median nanos of a few runs after warming up
+     */
+    private static long time(RowSet<Row> rows, Function<RowSet<Row>, List<?>> mapping) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            Assertions.assertEquals(rows.size(), mapping.apply(rows).size());
+        }
+        List<Long> runs = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            mapping.apply(rows);
+            runs.add(System.nanoTime() - start);
+        }
+        return runs.stream().sorted().toList().get(RUNS / 2);
+    }
+
+    private static long timeQuery(String columns, Function<RowSet<Row>, List<?>> mapping) {
+        List<Long> runs = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            mapping.apply(select(columns));
+            runs.add(System.nanoTime() - start);
+        }
+        return runs.stream().sorted().toList().get(RUNS / 2);
+    }
+}
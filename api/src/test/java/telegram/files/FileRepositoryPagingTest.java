@@ -0,0 +1,155 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Vertx;
+import org.jooq.lambda.tuple.Tuple5;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.LongStream;
+
+/**
+ * Keyset paging over a large chat: counts are computed once per filter and deep pages seek to their cursor instead of skipping rows.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class FileRepositoryPagingTest {
+
+    private static final Log log = LogFactory.get();
+
+    private static final int ROW_COUNT = 20000;
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final long CHAT_ID = 1;
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+
+        List<FileRecord> batch = new ArrayList<>();
+        for (int i = 1; i <= ROW_COUNT; i++) {
+            batch.add(fileRecord(i));
+            if (batch.size() == 1000) {
+                FileRecordIndexTest.insert(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, CHAT_ID, i, 0, 1700000000 + i, false, 1024, 0, "photo", "image/jpeg",
+                "file_" + i, null, null, null, null, null, FileRecord.DownloadStatus.idle.name(),
+                FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    private static Tuple5<List<FileRecord>, Long, Long, Boolean, Double> page(long fromMessageId) {
+        return page(fromMessageId, FileRecord.DownloadStatus.idle.name());
+    }
+
+    private static Tuple5<List<FileRecord>, Long, Long, Boolean, Double> page(long fromMessageId, String downloadStatus) {
+        Map<String, String> filter = new HashMap<>();
+        filter.put("limit", String.valueOf(PAGE_SIZE));
+        if (downloadStatus != null) {
+            filter.put("downloadStatus", downloadStatus);
+        }
+        if (fromMessageId > 0) {
+            filter.put("fromMessageId", String.valueOf(fromMessageId));
+        }
+        return MessyUtils.await(DataVerticle.fileRepository.getFiles(CHAT_ID, filter));
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Pages walk the chat without gaps or repeats")
+    void pageWalkTest() {
+        long fromMessageId = 0;
+        long expected = ROW_COUNT;
+        int pages = 0;
+        do {
+            Tuple5<List<FileRecord>, Long, Long, Boolean, Double> page = page(fromMessageId);
+            Assertions.assertEquals(ROW_COUNT, page.v3);
+            Assertions.assertTrue(page.v4, "Count should be exact without writes");
+            for (FileRecord fileRecord : page.v1) {
+                Assertions.assertEquals(expected--, fileRecord.messageId());
+            }
+            fromMessageId = page.v2;
+            pages++;
+        } while (fromMessageId != 0);
+        Assertions.assertEquals(0, expected);
+        log.debug("Paged %d files in %d pages".formatted(ROW_COUNT, pages));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Deep pages seek to the cursor instead of skipping rows")
+    void keysetPageTest() {
+        long fromMessageId = PAGE_SIZE + 1;
+        List<Long> before = page(fromMessageId).v1.stream().map(FileRecord::messageId).toList();
+        Assertions.assertEquals(LongStream.rangeClosed(1, PAGE_SIZE).boxed().sorted(Comparator.reverseOrder()).toList(), before);
+
+        // a newer message shifts every OFFSET page by one, a keyset page stays put
+        MessyUtils.await(DataVerticle.fileRepository.create(fileRecord(ROW_COUNT + 2)));
+        List<Long> after = page(fromMessageId).v1.stream().map(FileRecord::messageId).toList();
+        Assertions.assertEquals(before, after);
+
+        FileRecordIndexTest.assertUsesIndex("""
+                SELECT file_record.* FROM file_record WHERE %s AND chat_id = %d AND download_status = %s
+                AND message_id < %d ORDER BY message_id DESC LIMIT %d
+                """.formatted(FileRecordIndexTest.NOT_THUMBNAIL, CHAT_ID,
+                FileRecordCode.DOWNLOAD_STATUS.literal(FileRecord.DownloadStatus.idle.name()), fromMessageId, PAGE_SIZE));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Cached count turns approximate after writes and is refreshed by the first page")
+    void countExactnessTest() {
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> first = page(0);
+        Assertions.assertTrue(first.v4);
+
+        MessyUtils.await(DataVerticle.fileRepository.create(fileRecord(ROW_COUNT + 1)));
+
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> next = page(first.v2);
+        Assertions.assertFalse(next.v4);
+        Assertions.assertEquals(first.v3, next.v3);
+
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> refreshed = page(0);
+        Assertions.assertTrue(refreshed.v4);
+        Assertions.assertEquals(first.v3 + 1, refreshed.v3);
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("Status changes only make the counts filtering on a status stale")
+    void statusCountTest() {
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> all = page(0, null);
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> idle = page(0);
+        Assertions.assertTrue(all.v4);
+        Assertions.assertTrue(idle.v4);
+
+        MessyUtils.await(DataVerticle.fileRepository.updateDownloadStatus(1, "unique_1", null,
+                FileRecord.DownloadStatus.downloading, null));
+
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> allNext = page(all.v2, null);
+        Assertions.assertTrue(allNext.v4, "A count without status filter is not affected by downloads");
+        Assertions.assertEquals(all.v3, allNext.v3);
+
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> idleNext = page(idle.v2);
+        Assertions.assertFalse(idleNext.v4);
+        Assertions.assertEquals(idle.v3 - 1, page(0).v3);
+    }
+}
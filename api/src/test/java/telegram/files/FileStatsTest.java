@@ -0,0 +1,137 @@
+package telegram.files;
+
+import cn.hutool.core.util.RandomUtil;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.FileRecordCode;
+import telegram.files.repository.FileStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * file_stats is maintained incrementally, it must always equal a fresh aggregate of file_record.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class FileStatsTest {
+
+    private static final int FILE_COUNT = 200;
+
+    private static final int TRANSITION_COUNT = 2000;
+
+    private static final List<String> TYPES = List.of("photo", "video", "audio", "file", "thumbnail");
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+
+        List<FileRecord> fileRecords = new ArrayList<>();
+        for (int i = 1; i <= FILE_COUNT; i++) {
+            fileRecords.add(fileRecord(i));
+        }
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(fileRecords));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1 + i % 2, 10 + i % 3, i, 0, 1700000000 + i, false, 1024L * i, 0,
+                TYPES.get(i % TYPES.size()), "application/octet-stream", "file_" + i, null, null, null, null, null,
+                FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0,
+                null, 0, null);
+    }
+
+    private static Map<String, String> aggregate(String sql) {
+        Map<String, String> result = new TreeMap<>();
+        MessyUtils.await(DataVerticle.pool.query(sql).execute()).forEach(row -> {
+            long count = row.getLong("file_count");
+            if (count != 0) {
+                result.put("%d:%d:%s:%s".formatted(row.getLong("telegram_id"), row.getLong("chat_id"),
+                        row.getString("type"), row.getString("download_status")), count + "/" + row.getLong("total_size"));
+            }
+        });
+        return result;
+    }
+
+    private static void assertNoDrift() {
+        Map<String, String> expected = aggregate("""
+                SELECT telegram_id, chat_id, %s AS type, %s AS download_status, COUNT(*) AS file_count, SUM(size) AS total_size
+                FROM file_record
+                GROUP BY telegram_id, chat_id, type, download_status
+                """.formatted(FileRecordCode.TYPE.decodeSql("type"), FileRecordCode.DOWNLOAD_STATUS.decodeSql("download_status")));
+        Map<String, String> actual = aggregate("SELECT * FROM file_stats");
+        Assertions.assertFalse(expected.isEmpty());
+        Assertions.assertEquals(expected, actual);
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Bulk inserts are counted")
+    void insertTest() {
+        assertNoDrift();
+        JsonObject statistics = MessyUtils.await(DataVerticle.fileRepository.getDownloadStatistics(1));
+        long expected = IntStream.rangeClosed(1, FILE_COUNT)
+                .filter(i -> i % 2 == 0 && !TYPES.get(i % TYPES.size()).equals("thumbnail"))
+                .count();
+        Assertions.assertEquals(expected, statistics.getLong("total"));
+        Assertions.assertEquals(expected, statistics.getLong("idle"));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Counters don't drift under concurrent transitions, inserts and deletes")
+    void concurrentTransitionTest() {
+        FileRecord.DownloadStatus[] statuses = FileRecord.DownloadStatus.values();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < TRANSITION_COUNT; i++) {
+            int n = RandomUtil.randomInt(1, FILE_COUNT + 1);
+            FileRecord.DownloadStatus status = statuses[RandomUtil.randomInt(statuses.length)];
+            futures.add(DataVerticle.fileRepository.updateDownloadStatus(n, "unique_" + n, null, status, null));
+            if (i % 100 == 0) {
+                futures.add(DataVerticle.fileRepository.deleteByUniqueId("unique_" + n));
+                futures.add(DataVerticle.fileRepository.createIfNotExist(fileRecord(FILE_COUNT + i)));
+            }
+        }
+        MessyUtils.await(Future.join(futures).otherwiseEmpty());
+        assertNoDrift();
+
+        JsonObject statistics = MessyUtils.await(DataVerticle.fileRepository.getDownloadStatistics());
+        Integer completed = MessyUtils.await(DataVerticle.pool.query("""
+                        SELECT COUNT(*) FROM file_record WHERE type != %s AND download_status IN %s
+                        """.formatted(FileRecordCode.TYPE.literal("thumbnail"), FileRecordCode.DOWNLOAD_STATUS.literals("completed", "downloaded")))
+                .execute()
+                .map(rs -> rs.iterator().next().getInteger(0)));
+        Assertions.assertEquals(completed.longValue(), statistics.getLong("completed"));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Rebuild repairs drifted counters")
+    void rebuildTest() {
+        MessyUtils.await(DataVerticle.pool.query("UPDATE file_stats SET file_count = file_count + 7").execute());
+        MessyUtils.await(DataVerticle.pool.query("DELETE FROM file_stats WHERE type = 'photo'").execute());
+
+        MessyUtils.await(DataVerticle.fileRepository.rebuildFileStats());
+        assertNoDrift();
+
+        List<FileStats> rows = MessyUtils.await(DataVerticle.pool.query("SELECT * FROM file_stats").execute()
+                .map(rs -> {
+                    List<FileStats> list = new ArrayList<>();
+                    rs.forEach(row -> list.add(FileStats.ROW_MAPPER.map(row)));
+                    return list;
+                }));
+        Assertions.assertTrue(rows.stream().anyMatch(r -> r.type().equals("photo")));
+    }
+}
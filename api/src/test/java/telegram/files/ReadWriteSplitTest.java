@@ -0,0 +1,149 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.jooq.lambda.tuple.Tuple5;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * UI reads must not wait for the writer while discovery and downloads keep it busy.
+ */
+public class ReadWriteSplitTest {
+
+    private static final int FILE_COUNT = 1000;
+
+    private static final int READ_COUNT = 300;
+
+    private static final Log log = LogFactory.get();
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(1, FILE_COUNT)
+                .mapToObj(ReadWriteSplitTest::fileRecord)
+                .toList()));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static FileRecord fileRecord(int i) {
+        return new FileRecord(i, "unique_" + i, 1, 1, i, 0, 1700000000 + i, false, 1024, 0, "photo", "image/jpeg",
+                "file_" + i, null, null, "caption " + i, null, null, FileRecord.DownloadStatus.idle.name(),
+                FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null);
+    }
+
+    @Test
+    @DisplayName("Reads go on while a write transaction holds the writer, writes wait for it")
+    void readDuringWriteTransactionTest() {
+        Promise<Void> held = Promise.promise();
+        Promise<Void> release = Promise.promise();
+        Future<Void> transaction = DataVerticle.pool.withTransaction(conn -> conn.query("UPDATE file_record SET caption = 'held'").execute()
+                .onSuccess(_ -> held.complete())
+                .compose(_ -> release.future()));
+        MessyUtils.await(held.future());
+
+        Future<JsonObject> write = DataVerticle.fileRepository.updateDownloadStatus(1, "unique_1", null, FileRecord.DownloadStatus.downloading, null);
+        Tuple5<List<FileRecord>, Long, Long, Boolean, Double> files = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> MessyUtils.await(DataVerticle.fileRepository.getFiles(1, Map.of())));
+        Assertions.assertFalse(files.v1.isEmpty());
+        // the uncommitted change isn't visible
+        Assertions.assertTrue(files.v1.stream().noneMatch(f -> "held".equals(f.caption())));
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> MessyUtils.await(DataVerticle.fileRepository.getDownloadStatistics(1)));
+        if (Config.isSqlite()) {
+            // one writer connection, the write queues behind the transaction
+            Assertions.assertFalse(write.isComplete());
+            // the read pool is read-only, a write going there would fail
+            Assertions.assertThrows(CompletionException.class,
+                    () -> MessyUtils.await(DataVerticle.readPool.query("UPDATE file_record SET caption = 'read' WHERE id = 1").execute()));
+        }
+
+        release.complete();
+        MessyUtils.await(transaction);
+        MessyUtils.await(write);
+        Assertions.assertEquals(FileRecord.DownloadStatus.downloading.name(),
+                MessyUtils.await(DataVerticle.fileRepository.getByUniqueId("unique_1")).downloadStatus());
+    }
+
+    @Test
+    @Tag("benchmark")
+    @DisplayName("Read latency idle vs under a steady write load")
+    void readLatencyUnderWriteLoadBenchmark() {
+        long[] idle = readLatencies();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Void>> writers = new ArrayList<>();
+        // discovery inserts batches, downloads flip statuses
+        writers.add(writeLoop(running, n -> DataVerticle.fileRepository.createAllIfNotExist(IntStream.range(0, 50)
+                .mapToObj(i -> fileRecord(FILE_COUNT + n * 50 + i + 1))
+                .toList()).mapEmpty()));
+        for (int w = 0; w < 4; w++) {
+            writers.add(writeLoop(running, n -> {
+                int i = 1 + (n * 7919) % FILE_COUNT;
+                FileRecord.DownloadStatus status = n % 2 == 0 ? FileRecord.DownloadStatus.downloading : FileRecord.DownloadStatus.idle;
+                return DataVerticle.fileRepository.updateDownloadStatus(i, "unique_" + i, null, status, null).mapEmpty();
+            }));
+        }
+        long[] loaded = readLatencies();
+        running.set(false);
+        MessyUtils.await(Future.all(writers));
+
+        log.info("""
+                Read latency, idle -> under write load:
+                  p50  %d -> %d ms
+                  p99  %d -> %d ms
+                  max  %d -> %d ms
+                """.formatted(percentile(idle, 0.5), percentile(loaded, 0.5),
+                percentile(idle, 0.99), percentile(loaded, 0.99),
+                idle[READ_COUNT - 1], loaded[READ_COUNT - 1]));
+    }
+
+    private static long[] readLatencies() {
+        long[] latencies = new long[READ_COUNT];
+        for (int i = 0; i < READ_COUNT; i++) {
+            long start = System.nanoTime();
+            if (i % 2 == 0) {
+                MessyUtils.await(DataVerticle.fileRepository.getFiles(1, Map.of()));
+            } else {
+                MessyUtils.await(DataVerticle.fileRepository.getDownloadStatistics(1));
+            }
+            latencies[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.ceil(sorted.length * percentile) - 1];
+    }
+
+    private static Future<Void> writeLoop(AtomicBoolean running, IntFunction<Future<Void>> write) {
+        return writeLoop(running, write, 0);
+    }
+
+    private static Future<Void> writeLoop(AtomicBoolean running, IntFunction<Future<Void>> write, int n) {
+        if (!running.get()) {
+            return Future.succeededFuture();
+        }
+        return write.apply(n)
+                .recover(_ -> Future.succeededFuture())
+                .compose(_ -> writeLoop(running, write, n + 1));
+    }
+}
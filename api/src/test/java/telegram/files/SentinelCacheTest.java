@@ -0,0 +1,106 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import telegram.files.repository.SettingAutoRecords;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class SentinelCacheTest {
+
+    private static final long TELEGRAM_ID = 789L;
+
+    private static final long CHAT_ID = 1011L;
+
+    private MockedStatic<TelegramVerticles> telegramVerticlesMockedStatic;
+
+    private TelegramClient client;
+
+    private SettingAutoRecords records;
+
+    private SettingAutoRecords.Automation automation;
+
+    @BeforeEach
+    public void setUp() {
+        telegramVerticlesMockedStatic = mockStatic(TelegramVerticles.class);
+        client = mock(TelegramClient.class);
+        TelegramVerticle telegramVerticle = mock(TelegramVerticle.class);
+        telegramVerticle.authorized = true;
+        telegramVerticle.client = client;
+        when(TelegramVerticles.get(TELEGRAM_ID)).thenReturn(Optional.of(telegramVerticle));
+        doReturn(Future.succeededFuture(message(1)), Future.succeededFuture(message(2)))
+                .when(client).execute(any(TdApi.GetChatMessageByDate.class));
+
+        records = new SettingAutoRecords();
+        automation = automation(100);
+        records.automations.add(automation);
+        AutomationsHolder.INSTANCE.onAutoRecordsUpdate(records);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        AutomationsHolder.INSTANCE.onAutoRecordsUpdate(new SettingAutoRecords());
+        telegramVerticlesMockedStatic.close();
+    }
+
+    private static SettingAutoRecords.Automation automation(int historySince) {
+        SettingAutoRecords.Automation automation = new SettingAutoRecords.Automation();
+        automation.telegramId = TELEGRAM_ID;
+        automation.chatId = CHAT_ID;
+        automation.preload = new SettingAutoRecords.PreloadConfig();
+        automation.download = new SettingAutoRecords.DownloadConfig();
+        automation.download.enabled = true;
+        automation.download.rule = new SettingAutoRecords.DownloadRule();
+        automation.download.rule.historySince = historySince;
+        automation.transfer = new SettingAutoRecords.TransferConfig();
+        return automation;
+    }
+
+    private static TdApi.Message message(long id) {
+        TdApi.Message message = new TdApi.Message();
+        message.id = id;
+        message.chatId = CHAT_ID;
+        return message;
+    }
+
+    @Test
+    public void testResolvedOnce() {
+        assertEquals(1, MessyUtils.await(SentinelCache.INSTANCE.get(automation)).id);
+        assertEquals(1, MessyUtils.await(SentinelCache.INSTANCE.get(automation)).id);
+
+        verify(client, times(1)).execute(any(TdApi.GetChatMessageByDate.class));
+    }
+
+    @Test
+    public void testOnAutoRecordsUpdate_ResolvesAgain() {
+        assertEquals(1, MessyUtils.await(SentinelCache.INSTANCE.get(automation)).id);
+
+        // same historySince, the chat may have changed anyway
+        SettingAutoRecords updated = new SettingAutoRecords();
+        updated.automations.add(automation(100));
+        AutomationsHolder.INSTANCE.onAutoRecordsUpdate(updated);
+
+        assertEquals(2, MessyUtils.await(SentinelCache.INSTANCE.get(automation)).id);
+        verify(client, times(2)).execute(any(TdApi.GetChatMessageByDate.class));
+    }
+
+    @Test
+    public void testOnAutoRecordsUpdate_RemovedAutomationLeavesNoEntry() {
+        MessyUtils.await(SentinelCache.INSTANCE.get(automation));
+        assertEquals(1, SentinelCache.INSTANCE.size());
+
+        AutomationsHolder.INSTANCE.onAutoRecordsUpdate(new SettingAutoRecords());
+        assertEquals(0, SentinelCache.INSTANCE.size());
+
+        // a scan still running for the removed automation resolves without caching
+        assertEquals(2, MessyUtils.await(SentinelCache.INSTANCE.get(automation)).id);
+        assertEquals(0, SentinelCache.INSTANCE.size());
+    }
+}
@@ -0,0 +1,140 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.impl.SqlDialect;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * What the repositories rely on from {@link SqlDialect}, run against the configured database.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SqlDialectConformanceTest {
+
+    private static final String TABLE = "dialect_conformance";
+
+    private static final List<String> COLUMNS = List.of("k", "n");
+
+    static Vertx vertx = Vertx.vertx();
+
+    static SqlDialect dialect = SqlDialect.current();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(DataVerticle.pool.query("""
+                CREATE TABLE %s
+                (
+                    k VARCHAR(255) NOT NULL PRIMARY KEY,
+                    n BIGINT       NOT NULL
+                )
+                """.formatted(TABLE)).execute());
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static Map<String, Long> rows() {
+        Map<String, Long> rows = new TreeMap<>();
+        MessyUtils.await(DataVerticle.pool.query("SELECT k, n FROM " + TABLE).execute())
+                .forEach(row -> rows.put(row.getString("k"), row.getLong("n")));
+        return rows;
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Insert ignore skips conflicting rows")
+    void insertIgnoreTest() {
+        String sql = dialect.insertIgnore(TABLE, COLUMNS, "(#{k0}, #{n0}), (#{k1}, #{n1})");
+        Assertions.assertEquals(2, MessyUtils.await(SqlTemplate.forUpdate(DataVerticle.pool, sql)
+                .execute(Map.of("k0", "a", "n0", 1L, "k1", "b", "n1", 2L))).rowCount());
+        Assertions.assertEquals(1, MessyUtils.await(SqlTemplate.forUpdate(DataVerticle.pool, sql)
+                .execute(Map.of("k0", "b", "n0", 3L, "k1", "c", "n1", 4L))).rowCount());
+        Assertions.assertEquals(Map.of("a", 1L, "b", 2L, "c", 4L), rows());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Upsert inserts new rows and updates conflicting ones from the inserted values")
+    void upsertTest() {
+        String sql = dialect.upsert(TABLE, COLUMNS, "(#{k}, #{n})", List.of("k"),
+                Map.of("n", "%s.n + %s".formatted(TABLE, dialect.inserted("n"))));
+        MessyUtils.await(SqlTemplate.forUpdate(DataVerticle.pool, sql)
+                .executeBatch(List.of(Map.of("k", "b", "n", 3L), Map.of("k", "d", "n", 5L))));
+        Assertions.assertEquals(Map.of("a", 1L, "b", 5L, "c", 4L, "d", 5L), rows());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Bulk insert spans several statements and counts only inserted rows")
+    void insertIgnoreAllTest() {
+        int count = SqlDialect.MAX_ROWS_PER_STATEMENT * 2 + 1;
+        List<Map<String, Object>> rows = new ArrayList<>(IntStream.range(0, count)
+                .mapToObj(i -> Map.<String, Object>of("k", "bulk_" + i, "n", (long) i))
+                .toList());
+        rows.add(Map.of("k", "a", "n", 100L));
+        Assertions.assertEquals(count, MessyUtils.await(dialect.insertIgnoreAll(DataVerticle.pool, TABLE, COLUMNS, rows)));
+        Map<String, Long> stored = rows();
+        Assertions.assertEquals(count + 4, stored.size());
+        Assertions.assertEquals(1L, stored.get("a"));
+        Assertions.assertEquals(0, MessyUtils.await(dialect.insertIgnoreAll(DataVerticle.pool, TABLE, COLUMNS, List.of())));
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("Locking select and UPDATE ... RETURNING claim rows in a transaction")
+    void claimTest() {
+        List<String> locked = MessyUtils.await(DataVerticle.pool.withTransaction(client -> client
+                .query(dialect.lockSkipLocked("SELECT k FROM %s WHERE n = 5 ORDER BY k".formatted(TABLE)))
+                .execute()
+                .map(rs -> {
+                    List<String> keys = new ArrayList<>();
+                    rs.forEach(row -> keys.add(row.getString("k")));
+                    return keys;
+                })));
+        Assertions.assertEquals(List.of("b", "bulk_5", "d"), locked);
+
+        if (dialect.updateReturning()) {
+            RowSet<Row> claimed = MessyUtils.await(DataVerticle.pool.withTransaction(client -> client
+                    .query("UPDATE %1$s SET n = -1 WHERE k IN (%2$s) RETURNING k, n".formatted(TABLE,
+                            dialect.lockSkipLocked("SELECT k FROM %s WHERE n = 5".formatted(TABLE))))
+                    .execute()));
+            Set<String> keys = new TreeSet<>();
+            claimed.forEach(row -> {
+                keys.add(row.getString("k"));
+                Assertions.assertEquals(-1L, row.getLong("n"));
+            });
+            Assertions.assertEquals(Set.of("b", "bulk_5", "d"), keys);
+        }
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("Time buckets are local time labels")
+    void timeBucketTest() {
+        long millis = 1_700_000_123_456L;
+        LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        Map<Integer, String> expected = Map.of(
+                1, local.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")),
+                2, local.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:00")),
+                3, local.format(DateTimeFormatter.ofPattern("yyyy-MM-dd")),
+                4, local.format(DateTimeFormatter.ofPattern("yyyy-MM-dd")));
+        expected.forEach((timeRange, label) -> Assertions.assertEquals(label,
+                MessyUtils.await(DataVerticle.pool.query("SELECT %s AS time".formatted(dialect.timeBucket(String.valueOf(millis), timeRange)))
+                        .execute()
+                        .map(rs -> rs.iterator().next().getString("time")))));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> dialect.timeBucket("0", 5));
+    }
+}
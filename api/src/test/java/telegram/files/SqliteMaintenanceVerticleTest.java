@@ -0,0 +1,72 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.FileRecord;
+
+import java.io.File;
+import java.util.stream.IntStream;
+
+/**
+ * Maintenance of a SQLite database, run directly rather than on its timer.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SqliteMaintenanceVerticleTest {
+
+    static Vertx vertx = Vertx.vertx();
+
+    static SqliteMaintenanceVerticle maintenanceVerticle = new SqliteMaintenanceVerticle(0, 60_000);
+
+    @BeforeAll
+    static void setUpAll() {
+        Assumptions.assumeTrue(Config.isSqlite());
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        MessyUtils.await(vertx.deployVerticle(maintenanceVerticle));
+        MessyUtils.await(DataVerticle.fileRepository.createAllIfNotExist(IntStream.rangeClosed(1, 100)
+                .mapToObj(i -> new FileRecord(i, "unique_" + i, 1, 1, i, 0, 1700000000 + i, false, 1024, 0, "photo",
+                        "image/jpeg", "file_" + i, null, null, null, null, null, FileRecord.DownloadStatus.idle.name(),
+                        FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0, null, 0, null))
+                .toList()));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        if (Config.isSqlite()) {
+            MessyUtils.await(DataVerticleTest.clear(vertx));
+        }
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("An idle database is analyzed and its write-ahead log truncated")
+    void maintainTest() {
+        File wal = new File(DataVerticle.getDataPath() + "-wal");
+        Assertions.assertTrue(wal.length() > 0);
+
+        MessyUtils.await(maintenanceVerticle.maintain());
+
+        Assertions.assertEquals(0, wal.length());
+        Assertions.assertTrue(MessyUtils.await(DataVerticle.pool
+                .query("SELECT 1 FROM sqlite_stat1 WHERE tbl = 'file_record'").execute()).size() > 0);
+        JsonObject status = maintenanceVerticle.getStatus();
+        Assertions.assertTrue(status.getLong("lastAnalyzeAt") > 0);
+        Assertions.assertTrue(status.getLong("lastOptimizeAt") > 0);
+        Assertions.assertTrue(status.getLong("lastCheckpointAt") > 0);
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Statistics report pages, sizes and settings")
+    void statisticsTest() {
+        JsonObject statistics = MessyUtils.await(SqliteMaintenanceVerticle.statistics(DataVerticle.pool));
+        Assertions.assertEquals("sqlite", statistics.getString("type"));
+        Assertions.assertEquals("wal", statistics.getString("journalMode"));
+        Assertions.assertEquals("incremental", statistics.getString("autoVacuum"));
+        Assertions.assertEquals(Long.valueOf(-Config.SQLITE_CACHE_SIZE_KB), statistics.getLong("cacheSize"));
+        Assertions.assertEquals(statistics.getLong("pageSize") * statistics.getLong("pageCount"), statistics.getLong("databaseBytes"));
+        Assertions.assertTrue(statistics.getLong("databaseBytes") > 0);
+        Assertions.assertTrue(statistics.containsKey("walBytes"));
+    }
+}
@@ -0,0 +1,105 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import org.junit.jupiter.api.*;
+import telegram.files.repository.StatisticRecord;
+import telegram.files.repository.impl.WriteBatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+public class WriteBatcherTest {
+
+    private static final Log log = LogFactory.get();
+
+    private static final int STATEMENT_COUNT = 2000;
+
+    static Vertx vertx = Vertx.vertx();
+
+    @BeforeAll
+    static void setUpAll() {
+        DataVerticleTest.printDBInfo();
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        MessyUtils.await(DataVerticleTest.clear(vertx));
+    }
+
+    private static Function<SqlClient, Future<Void>> insert(String relatedId, long timestamp) {
+        return client -> SqlTemplate
+                .forUpdate(client, """
+                        INSERT INTO statistic_record(related_id, type, timestamp, data)
+                        VALUES (#{related_id}, #{type}, #{timestamp}, #{data})
+                        """)
+                .mapFrom(StatisticRecord.PARAM_MAPPER)
+                .execute(new StatisticRecord(relatedId, StatisticRecord.Type.speed, timestamp, "{}"))
+                .mapEmpty();
+    }
+
+    private static int count(String relatedId) {
+        return MessyUtils.await(DataVerticle.pool.query("SELECT COUNT(*) FROM statistic_record WHERE related_id = '%s'".formatted(relatedId))
+                .execute()
+                .map(rs -> rs.iterator().next().getInteger(0)));
+    }
+
+    @Test
+    @DisplayName("A failing write only fails its own Future")
+    void failureIsolationTest() {
+        WriteBatcher batcher = new WriteBatcher(vertx, DataVerticle.pool, 16, 50);
+        Future<Void> first = batcher.submit(insert("isolation", 1));
+        Future<Void> failing = batcher.submit(client -> client.query("INSERT INTO no_such_table VALUES (1)").execute().mapEmpty());
+        Future<Void> last = batcher.submit(insert("isolation", 2));
+        MessyUtils.await(Future.join(first, failing, last).otherwiseEmpty());
+
+        Assertions.assertTrue(first.succeeded());
+        Assertions.assertTrue(failing.failed());
+        Assertions.assertTrue(last.succeeded());
+        Assertions.assertEquals(2, count("isolation"));
+    }
+
+    @Test
+    @DisplayName("Writes submitted together share a commit")
+    void groupCommitTest() {
+        int batchSize = 50;
+        // the timer never fires, only full batches commit
+        WriteBatcher batcher = new WriteBatcher(vertx, DataVerticle.pool, batchSize, 60_000);
+        run("grouped", batcher::submit);
+
+        Assertions.assertEquals(STATEMENT_COUNT, count("grouped"));
+        Assertions.assertEquals(STATEMENT_COUNT / batchSize, batcher.getCommitCount());
+    }
+
+    @Test
+    @Tag("benchmark")
+    @DisplayName("Statements per second, one commit each vs group commit")
+    void throughputBenchmark() {
+        long unbatched = run("unbatched", insert -> insert.apply(DataVerticle.pool));
+        WriteBatcher batcher = new WriteBatcher(vertx, DataVerticle.pool, Config.WRITE_BATCH_SIZE, Math.max(1, Config.WRITE_BATCH_MAX_DELAY_MILLIS));
+        long batched = run("batched", batcher::submit);
+
+        log.info("%s: %d statements/s one commit each, %d statements/s group commit in %d commits"
+                .formatted(Config.DB_TYPE, unbatched, batched, batcher.getCommitCount()));
+        Assertions.assertEquals(STATEMENT_COUNT, count("unbatched"));
+        Assertions.assertEquals(STATEMENT_COUNT, count("batched"));
+        Assertions.assertTrue(batched > unbatched, "group commit %d/s, one commit each %d/s".formatted(batched, unbatched));
+    }
+
+    private static long run(String relatedId, Function<Function<SqlClient, Future<Void>>, Future<Void>> executor) {
+        List<Future<Void>> futures = new ArrayList<>(STATEMENT_COUNT);
+        long start = System.nanoTime();
+        for (int i = 0; i < STATEMENT_COUNT; i++) {
+            futures.add(executor.apply(insert(relatedId, i)));
+        }
+        MessyUtils.await(Future.all(futures));
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        return STATEMENT_COUNT * 1_000_000_000L / elapsedNanos;
+    }
+}
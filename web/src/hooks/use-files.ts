@@ -24,7 +24,9 @@ const DEFAULT_FILTERS: FileFilter = {
 type FileResponse = {
   files: TelegramFile[];
   count: number;
+  countExact?: boolean;
   nextFromMessageId: number;
+  nextFromRank?: number | null;
 };
 
 export function useFiles(
@@ -88,6 +90,9 @@ export function useFiles(
     }
 
     params.set("fromMessageId", previousPageData.nextFromMessageId.toString());
+    if (previousPageData.nextFromRank != null) {
+      params.set("fromRank", previousPageData.nextFromRank.toString());
+    }
     if (filters.offline && previousPageData.files.length > 0) {
       const lastFile =
         previousPageData.files[previousPageData.files.length - 1];
@@ -227,7 +232,10 @@ export function useFiles(
     let hasMore = false;
     if (lastPage) {
       const count = lastPage.count;
-      hasMore = count > fetchedCount && lastPage.nextFromMessageId !== 0;
+      // an approximate count may lag behind new files, keep paging until the cursor runs out
+      hasMore =
+        (lastPage.countExact === false || count > fetchedCount) &&
+        lastPage.nextFromMessageId !== 0;
     }
     return hasMore;
   }, [pages]);